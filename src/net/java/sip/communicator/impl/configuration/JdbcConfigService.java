@@ -11,6 +11,7 @@ import java.io.*;
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.fileaccess.*;
@@ -20,6 +21,11 @@ import com.google.common.collect.*;
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * The properties of the database are kept in memory, so reads and prefix or
+ * suffix lookups never query the database. Changes are applied to memory
+ * right away and written to the database shortly after, all the changes made
+ * in the meantime in one transaction.
  * 
  * @author Ingo Bauersachs
  */
@@ -76,14 +82,49 @@ public final class JdbcConfigService
     private SetMultimap<String, PropertyChangeListener> listeners
         = HashMultimap.create();
 
+    /**
+     * The time, in milliseconds, changes wait to be written to the database
+     * so the following ones are written in the same transaction.
+     */
+    private static final long FLUSH_DELAY = 100;
+
+    /**
+     * The properties stored in the database, by name.
+     */
+    private final Map<String, String> properties
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The sorted names of the properties stored in the database, to look
+     * them up by prefix.
+     */
+    private final NavigableSet<String> propertyNames
+        = new ConcurrentSkipListSet<String>();
+
+    /**
+     * The changes not written to the database yet, by property name. A
+     * <tt>null</tt> value deletes the property.
+     */
+    private final Map<String, String> pendingChanges
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The timer writing the pending changes to the database.
+     */
+    private final Timer flushTimer
+        = new Timer("JdbcConfigService flush", true);
+
+    /**
+     * Whether writing the pending changes is scheduled.
+     */
+    private boolean flushScheduled = false;
+
     /**
      * Connection to the JDBC database.
      */
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -119,6 +160,7 @@ public final class JdbcConfigService
         // open the connection
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
         checkConnection();
+        loadProperties();
 
         // then do the actual migration
         if (migrate)
@@ -126,14 +168,12 @@ public final class JdbcConfigService
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            this.flush();
         }
 
         // and finally load the (mandatory) system properties
@@ -178,10 +218,6 @@ public final class JdbcConfigService
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -193,6 +229,142 @@ public final class JdbcConfigService
             "DELETE FROM Props WHERE k=?");
     }
 
+    /**
+     * Loads the properties stored in the database in memory.
+     * 
+     * @throws SQLException
+     */
+    private void loadProperties() throws SQLException
+    {
+        ResultSet q = this.selectAll.executeQuery();
+        try
+        {
+            while (q.next())
+            {
+                String key = q.getString(1);
+                String value = q.getString(2);
+                if (key != null && value != null)
+                {
+                    this.properties.put(key, value);
+                    this.propertyNames.add(key);
+                }
+            }
+        }
+        finally
+        {
+            q.close();
+        }
+    }
+
+    /**
+     * Writes the pending changes to the database in one transaction. If it
+     * fails, the changes stay pending and are written with the next ones.
+     */
+    private synchronized void flush()
+    {
+        flushScheduled = false;
+        if (pendingChanges.isEmpty())
+        {
+            return;
+        }
+
+        Map<String, String> changes
+            = new LinkedHashMap<String, String>(pendingChanges);
+        pendingChanges.clear();
+
+        try
+        {
+            this.checkConnection();
+            this.connection.setAutoCommit(false);
+            try
+            {
+                for (Map.Entry<String, String> e : changes.entrySet())
+                {
+                    if (e.getValue() == null)
+                    {
+                        this.delete.setString(1, e.getKey());
+                        this.delete.execute();
+                    }
+                    else
+                    {
+                        this.insertOrUpdate.setString(1, e.getKey());
+                        this.insertOrUpdate.setString(2, e.getValue());
+                        this.insertOrUpdate.execute();
+                    }
+                }
+
+                this.connection.commit();
+            }
+            catch (SQLException e)
+            {
+                this.connection.rollback();
+                throw e;
+            }
+            finally
+            {
+                this.connection.setAutoCommit(true);
+            }
+
+            if (logger.isTraceEnabled())
+            {
+                logger.trace("Stored " + changes.size()
+                    + " configuration changes");
+            }
+        }
+        catch (SQLException e)
+        {
+            logger.error("Failed to store " + changes.size()
+                + " configuration changes", e);
+
+            // keep the changes made since
+            for (Map.Entry<String, String> e1 : changes.entrySet())
+            {
+                if (!pendingChanges.containsKey(e1.getKey()))
+                {
+                    pendingChanges.put(e1.getKey(), e1.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a change in memory and queues it to be written to the
+     * database.
+     * 
+     * @param propertyName the name of the property
+     * @param value the new value or <tt>null</tt> to remove the property
+     */
+    private synchronized void storeProperty(String propertyName, String value)
+    {
+        if (value == null)
+        {
+            this.properties.remove(propertyName);
+            this.propertyNames.remove(propertyName);
+        }
+        else
+        {
+            this.properties.put(propertyName, value);
+            this.propertyNames.add(propertyName);
+        }
+
+        // the most recent change of a property is the one written, in the
+        // order of the first change
+        this.pendingChanges.put(propertyName, value);
+
+        if (!flushScheduled)
+        {
+            flushScheduled = true;
+            flushTimer.schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    flush();
+                }
+            }, FLUSH_DELAY);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -241,29 +413,11 @@ public final class JdbcConfigService
                 return;
             }
 
-            try
-            {
-                this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
-                {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
-                }
-                else
-                {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
-                }
-
-                this.fireChange(propertyName, oldValue, property);
-            }
-            catch (SQLException e)
-            {
-                throw new RuntimeException(e);
-            }
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
+            this.storeProperty(propertyName,
+                (property == null) ? null : property.toString());
+            this.fireChange(propertyName, oldValue, property);
         }
     }
 
@@ -277,21 +431,11 @@ public final class JdbcConfigService
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
-        {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
+        // the changes are written together as they are all pending until
+        // the lock is released
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -303,7 +447,7 @@ public final class JdbcConfigService
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -311,22 +455,7 @@ public final class JdbcConfigService
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -373,20 +502,7 @@ public final class JdbcConfigService
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
+        data.addAll(propertyNames);
 
         return data;
     }
@@ -402,46 +518,38 @@ public final class JdbcConfigService
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
+        List<String> resultSet = new ArrayList<String>(50);
+
+        // the names starting with the prefix follow it in the sorted set
+        for (String key : propertyNames.tailSet(prefix))
         {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
+            if (!key.startsWith(prefix))
             {
-                String key = q.getString(1);
+                break;
+            }
 
-                if(exactPrefixMatch)
+            if(exactPrefixMatch)
+            {
+                int ix = key.lastIndexOf('.');
+                if(ix == -1)
                 {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
+                    continue;
+                }
 
-                    String keyPrefix = key.substring(0, ix);
+                String keyPrefix = key.substring(0, ix);
 
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
+                if(prefix.equals(keyPrefix))
                 {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
+                    resultSet.add(key);
                 }
             }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
+            else
+            {
+                resultSet.add(key);
+            }
         }
+
+        return resultSet;
     }
 
     /*
@@ -454,26 +562,19 @@ public final class JdbcConfigService
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
+        List<String> resultKeySet = new ArrayList<String>(20);
+        for (String key : propertyNames)
         {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
+            int ix = key.lastIndexOf('.');
+            if (ix != -1
+                && key.length() - ix - 1 == suffix.length()
+                && key.endsWith(suffix))
             {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
+                resultKeySet.add(key);
             }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
         }
+
+        return resultKeySet;
     }
 
     /*
@@ -711,6 +812,8 @@ public final class JdbcConfigService
     @Override
     public void storeConfiguration() throws IOException
     {
+        this.flush();
+
         try
         {
             this.connection.close();
@@ -742,13 +845,17 @@ public final class JdbcConfigService
      * ()
      */
     @Override
-    public void purgeStoredConfiguration()
+    public synchronized void purgeStoredConfiguration()
     {
         try
         {
             this.checkConnection();
             Statement st = this.connection.createStatement();
             st.executeUpdate("TRUNCATE TABLE Props");
+
+            this.pendingChanges.clear();
+            this.properties.clear();
+            this.propertyNames.clear();
         }
         catch (SQLException e)
         {
@@ -0,0 +1,486 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Delivers the events of the meta contact list to its listeners on a
+ * dedicated thread, so that the protocol threads firing them do not wait for
+ * the listeners.
+ * <p>
+ * Events are delivered in the order they were fired, each one to the
+ * listeners registered when it was fired. Events which only tell listeners to
+ * look at the current state of a contact or a group - a modified protocol
+ * contact, reordered child contacts or an updated avatar - are coalesced with
+ * a pending event of the same kind for the same contact or group, unless
+ * another kind of event was fired in between. These events are held for the
+ * burst window before being delivered, so that the bursts fired while an
+ * account logs in are coalesced.
+ * <p>
+ * Once the dispatcher is stopped and the events queued before have been
+ * delivered, new events are delivered on the thread firing them.
+ */
+public class MclEventDispatcher
+    implements Runnable
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MclEventDispatcher.class);
+
+    /**
+     * The events waiting to be delivered.
+     */
+    private final LinkedList<PendingEvent> eventsToDispatch
+        = new LinkedList<PendingEvent>();
+
+    /**
+     * The pending events which may be coalesced with new ones, by coalescing
+     * key.
+     */
+    private final Map<List<Object>, PendingEvent> coalescibleEvents
+        = new HashMap<List<Object>, PendingEvent>();
+
+    /**
+     * The time, in milliseconds, coalescible events are held.
+     */
+    private final long burstWindow;
+
+    /**
+     * The thread delivering the events.
+     */
+    private Thread dispatcherThread = null;
+
+    /**
+     * start/stop indicator.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The largest number of events which have been waiting.
+     */
+    private int maxQueueSize = 0;
+
+    /**
+     * The number of delivered events.
+     */
+    private long dispatchedCount = 0;
+
+    /**
+     * The number of events coalesced with pending ones.
+     */
+    private long coalescedCount = 0;
+
+    /**
+     * The sum of the times, in nanoseconds, delivered events waited.
+     */
+    private long totalLatency = 0;
+
+    /**
+     * The longest time, in nanoseconds, a delivered event waited.
+     */
+    private long maxLatency = 0;
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param burstWindow the time, in milliseconds, coalescible events are
+     * held before being delivered
+     */
+    MclEventDispatcher(long burstWindow)
+    {
+        this.burstWindow = Math.max(0, burstWindow);
+    }
+
+    /**
+     * Starts the thread delivering the events.
+     */
+    synchronized void start()
+    {
+        if (dispatcherThread != null)
+            return;
+
+        stopped = false;
+        dispatcherThread = new Thread(this, getClass().getName());
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    /**
+     * Delivers the pending events and stops the thread delivering them.
+     *
+     * @param timeout the time, in milliseconds, to wait for the pending
+     * events to be delivered
+     */
+    void stop(long timeout)
+    {
+        Thread thread;
+
+        synchronized (eventsToDispatch)
+        {
+            stopped = true;
+            eventsToDispatch.notifyAll();
+        }
+        synchronized (this)
+        {
+            thread = dispatcherThread;
+            dispatcherThread = null;
+        }
+
+        if (thread != null && thread != Thread.currentThread())
+        {
+            try
+            {
+                thread.join(timeout);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Stopped dispatching mcl events: " + getStatistics());
+    }
+
+    /**
+     * Queues an event for delivery to listeners, or delivers it on the
+     * current thread if the dispatcher is stopped and has no more events to
+     * deliver.
+     *
+     * @param evt the event
+     * @param listeners the listeners registered when the event was fired
+     */
+    void dispatch(EventObject evt, MetaContactListListener[] listeners)
+    {
+        List<Object> key = getCoalescingKey(evt);
+
+        synchronized (eventsToDispatch)
+        {
+            if (!stopped || !eventsToDispatch.isEmpty())
+            {
+                queue(evt, listeners, key);
+                return;
+            }
+        }
+
+        if (logger.isTraceEnabled())
+            logger.trace("Delivering mcl event after stop: " + evt);
+        deliver(evt, listeners);
+    }
+
+    /**
+     * Queues an event, or coalesces it with a pending one. The caller holds
+     * the lock of the queue.
+     *
+     * @param evt the event
+     * @param listeners the listeners registered when the event was fired
+     * @param key the coalescing key of the event or <tt>null</tt>
+     */
+    private void queue(EventObject evt,
+                       MetaContactListListener[] listeners,
+                       List<Object> key)
+    {
+        if (key == null)
+        {
+            // coalescing later events would deliver them before this one
+            coalescibleEvents.clear();
+        }
+        else
+        {
+            PendingEvent pending = coalescibleEvents.get(key);
+
+            if (pending != null
+                    && Arrays.equals(pending.listeners, listeners))
+            {
+                pending.event = evt;
+                coalescedCount++;
+                return;
+            }
+        }
+
+        PendingEvent pending = new PendingEvent(evt, listeners, key);
+
+        eventsToDispatch.add(pending);
+        if (key != null)
+            coalescibleEvents.put(key, pending);
+        if (eventsToDispatch.size() > maxQueueSize)
+            maxQueueSize = eventsToDispatch.size();
+        eventsToDispatch.notifyAll();
+    }
+
+    /**
+     * Delivers the queued events until the dispatcher is stopped.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            PendingEvent pending;
+
+            synchronized (eventsToDispatch)
+            {
+                pending = eventsToDispatch.peek();
+                if (pending == null)
+                {
+                    if (stopped)
+                        break;
+
+                    try
+                    {
+                        eventsToDispatch.wait();
+                    }
+                    catch (InterruptedException iex)
+                    {
+                    }
+                    continue;
+                }
+
+                // give the burst the time to be coalesced
+                if (pending.key != null && !stopped)
+                {
+                    long wait
+                        = burstWindow
+                            - (System.nanoTime() - pending.queuedTime)
+                                / 1000000;
+
+                    if (wait > 0)
+                    {
+                        try
+                        {
+                            eventsToDispatch.wait(wait);
+                        }
+                        catch (InterruptedException iex)
+                        {
+                        }
+                        continue;
+                    }
+                }
+
+                eventsToDispatch.poll();
+                if (pending.key != null
+                        && coalescibleEvents.get(pending.key) == pending)
+                    coalescibleEvents.remove(pending.key);
+
+                long latency = System.nanoTime() - pending.queuedTime;
+
+                dispatchedCount++;
+                totalLatency += latency;
+                if (latency > maxLatency)
+                    maxLatency = latency;
+            }
+
+            deliver(pending.event, pending.listeners);
+        }
+    }
+
+    /**
+     * Delivers an event to listeners, logging the errors of the listeners.
+     *
+     * @param evt the event
+     * @param listeners the listeners
+     */
+    private static void deliver(EventObject evt,
+                                MetaContactListListener[] listeners)
+    {
+        for (MetaContactListListener listener : listeners)
+        {
+            try
+            {
+                MetaContactListServiceImpl.deliverEvent(evt, listener);
+            }
+            catch (Throwable t)
+            {
+                logger.error("Error delivering mcl event " + evt
+                    + " to " + listener, t);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events waiting to be delivered.
+     *
+     * @return the number of events waiting to be delivered
+     */
+    public int getQueueSize()
+    {
+        synchronized (eventsToDispatch)
+        {
+            return eventsToDispatch.size();
+        }
+    }
+
+    /**
+     * Returns the largest number of events which have been waiting to be
+     * delivered.
+     *
+     * @return the largest number of waiting events
+     */
+    public int getMaxQueueSize()
+    {
+        synchronized (eventsToDispatch)
+        {
+            return maxQueueSize;
+        }
+    }
+
+    /**
+     * Returns the number of delivered events.
+     *
+     * @return the number of delivered events
+     */
+    public long getDispatchedCount()
+    {
+        synchronized (eventsToDispatch)
+        {
+            return dispatchedCount;
+        }
+    }
+
+    /**
+     * Returns the number of events coalesced with pending ones instead of
+     * being delivered.
+     *
+     * @return the number of coalesced events
+     */
+    public long getCoalescedCount()
+    {
+        synchronized (eventsToDispatch)
+        {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * Returns the average time the delivered events waited.
+     *
+     * @return the average time, in milliseconds, the delivered events waited
+     */
+    public double getAverageLatency()
+    {
+        synchronized (eventsToDispatch)
+        {
+            return (dispatchedCount == 0)
+                ? 0
+                : totalLatency / 1000000.0 / dispatchedCount;
+        }
+    }
+
+    /**
+     * Returns the longest time a delivered event waited.
+     *
+     * @return the longest time, in milliseconds, a delivered event waited
+     */
+    public long getMaxLatency()
+    {
+        synchronized (eventsToDispatch)
+        {
+            return maxLatency / 1000000;
+        }
+    }
+
+    /**
+     * Returns a description of the queue depth and latency of the
+     * dispatcher.
+     *
+     * @return the description of the statistics of the dispatcher
+     */
+    public String getStatistics()
+    {
+        return "queued=" + getQueueSize()
+            + " maxQueued=" + getMaxQueueSize()
+            + " dispatched=" + getDispatchedCount()
+            + " coalesced=" + getCoalescedCount()
+            + " avgLatency=" + getAverageLatency() + "ms"
+            + " maxLatency=" + getMaxLatency() + "ms";
+    }
+
+    /**
+     * Returns the key identifying the events an event may be coalesced with.
+     *
+     * @param evt the event
+     * @return the coalescing key, or <tt>null</tt> if the event has to be
+     * delivered
+     */
+    private static List<Object> getCoalescingKey(EventObject evt)
+    {
+        if (evt instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent protoEvt = (ProtoContactEvent) evt;
+
+            if (ProtoContactEvent.PROTO_CONTACT_MODIFIED.equals(
+                    protoEvt.getPropertyName()))
+            {
+                return Arrays.<Object>asList(
+                    ProtoContactEvent.PROTO_CONTACT_MODIFIED,
+                    protoEvt.getProtoContact(),
+                    protoEvt.getParent());
+            }
+        }
+        else if (evt instanceof MetaContactGroupEvent)
+        {
+            MetaContactGroupEvent groupEvt = (MetaContactGroupEvent) evt;
+
+            if (groupEvt.getEventID()
+                    == MetaContactGroupEvent.CHILD_CONTACTS_REORDERED)
+            {
+                return Arrays.<Object>asList(
+                    MetaContactGroupEvent.CHILD_CONTACTS_REORDERED,
+                    groupEvt.getSourceMetaContactGroup());
+            }
+        }
+        else if (evt instanceof MetaContactAvatarUpdateEvent)
+        {
+            return Arrays.<Object>asList(
+                MetaContactAvatarUpdateEvent.class,
+                ((MetaContactAvatarUpdateEvent) evt).getSourceMetaContact());
+        }
+        return null;
+    }
+
+    /**
+     * An event waiting to be delivered.
+     */
+    private static class PendingEvent
+    {
+        /**
+         * The event, the latest of the coalesced ones.
+         */
+        EventObject event;
+
+        /**
+         * The listeners registered when the event was fired.
+         */
+        final MetaContactListListener[] listeners;
+
+        /**
+         * The coalescing key of the event or <tt>null</tt>.
+         */
+        final List<Object> key;
+
+        /**
+         * The time, in nanoseconds, the first of the coalesced events was
+         * queued.
+         */
+        final long queuedTime = System.nanoTime();
+
+        PendingEvent(EventObject event,
+                     MetaContactListListener[] listeners,
+                     List<Object> key)
+        {
+            this.event = event;
+            this.listeners = listeners;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The change log of the contact list file. Instead of rewriting the whole
+ * contact list file after a meta contact changed, the storage manager appends
+ * the new state of the meta contact to the journal, and compacts the journal
+ * into the contact list file once it is large enough.
+ * <p>
+ * The journal starts with the generation of the contact list file it follows,
+ * the records of a journal which does not match the generation of the contact
+ * list file are older than the file, and the journal is emptied when it is
+ * read so that a new one is started with the next contact list file. A record
+ * which was not entirely written ends the journal, and is cut from it when it
+ * is read.
+ */
+public class MclJournal
+{
+    /**
+     * The magic number starting journal files.
+     */
+    private static final int MAGIC = 0x4d434c4a;
+
+    /**
+     * The operation storing the state of a meta contact.
+     */
+    static final byte OP_STORE = 1;
+
+    /**
+     * The operation removing a meta contact.
+     */
+    static final byte OP_REMOVE = 2;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Creates the journal stored in <tt>file</tt>.
+     *
+     * @param file the journal file
+     */
+    MclJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the length of the journal file.
+     *
+     * @return the length of the journal file, <tt>0</tt> if it is missing
+     */
+    long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Empties the journal, which then follows a new generation of the contact
+     * list file.
+     *
+     * @param generation the generation of the contact list file
+     * @throws IOException if the journal cannot be written
+     */
+    void reset(long generation)
+        throws IOException
+    {
+        DataOutputStream out
+            = new DataOutputStream(new FileOutputStream(file));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes the journal file.
+     */
+    void delete()
+    {
+        if (file.exists() && !file.delete())
+            file.deleteOnExit();
+    }
+
+    /**
+     * Appends records to the journal.
+     *
+     * @param records the records to append
+     * @throws IOException if the journal cannot be written
+     */
+    void append(List<Record> records)
+        throws IOException
+    {
+        DataOutputStream out
+            = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(file, true)));
+        try
+        {
+            for (Record record : records)
+            {
+                out.writeByte(record.op);
+                out.writeUTF(record.metaUID);
+                if (record.op == OP_STORE)
+                {
+                    byte[] xml = record.xml.getBytes("UTF-8");
+
+                    out.writeUTF(record.groupUID);
+                    out.writeInt(xml.length);
+                    out.write(xml);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the records of the journal. If the journal ends with a record
+     * which was not entirely written, it is truncated after the last complete
+     * record, so that the records appended next are read too. A journal which
+     * does not follow <tt>generation</tt> of the contact list file is
+     * emptied, so that the records appended next are not lost behind its
+     * header.
+     *
+     * @param generation the generation of the contact list file
+     * @return the records or an empty list if the journal is missing or does
+     * not follow <tt>generation</tt> of the contact list file
+     * @throws IOException if the journal cannot be read
+     */
+    List<Record> read(long generation)
+        throws IOException
+    {
+        List<Record> records = new ArrayList<Record>();
+        if (!file.isFile())
+            return records;
+
+        // the journal is compacted once it is large enough, so it fits in
+        // memory, and the position of every record is known
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
+        in = new DataInputStream(bin);
+
+        // the end of the last complete record
+        int end = 0;
+        try
+        {
+            // older than the contact list file
+            if (in.readInt() != MAGIC || in.readLong() != generation)
+            {
+                truncate(0);
+                return records;
+            }
+            end = bytes.length - bin.available();
+
+            while (true)
+            {
+                int op = in.read();
+                if (op < 0)
+                    break;
+
+                Record record = new Record();
+
+                record.op = (byte) op;
+                record.metaUID = in.readUTF();
+                if (op == OP_STORE)
+                {
+                    record.groupUID = in.readUTF();
+
+                    int length = in.readInt();
+
+                    // a corrupt length, as the record was not entirely
+                    // written
+                    if (length < 0 || length > in.available())
+                        break;
+
+                    byte[] xml = new byte[length];
+                    in.readFully(xml);
+                    record.xml = new String(xml, "UTF-8");
+                }
+                else if (op != OP_REMOVE)
+                    break;
+                records.add(record);
+                end = bytes.length - bin.available();
+            }
+        }
+        catch (EOFException e)
+        {
+            // the last record was not entirely written
+        }
+        catch (UTFDataFormatException e)
+        {
+            // the last record was not entirely written
+        }
+
+        if (end < bytes.length)
+            truncate(end);
+        return records;
+    }
+
+    /**
+     * Cuts the end of the journal.
+     *
+     * @param length the new length of the journal
+     * @throws IOException if the journal cannot be written
+     */
+    private void truncate(long length)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(length);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * A change of a meta contact.
+     */
+    static class Record
+    {
+        /**
+         * The operation: {@link MclJournal#OP_STORE} or
+         * {@link MclJournal#OP_REMOVE}.
+         */
+        byte op;
+
+        /**
+         * The meta UID of the meta contact.
+         */
+        String metaUID;
+
+        /**
+         * The meta UID of the group of the stored meta contact.
+         */
+        String groupUID;
+
+        /**
+         * The XML of the stored meta contact.
+         */
+        String xml;
+
+        /**
+         * Creates an empty record.
+         */
+        Record()
+        {
+        }
+
+        /**
+         * Creates a record.
+         *
+         * @param op the operation
+         * @param metaUID the meta UID of the meta contact
+         * @param groupUID the meta UID of the group of a stored meta contact
+         * @param xml the XML of a stored meta contact
+         */
+        Record(byte op, String metaUID, String groupUID, String xml)
+        {
+            this.op = op;
+            this.metaUID = metaUID;
+            this.groupUID = groupUID;
+            this.xml = xml;
+        }
+    }
+}
@@ -10,6 +10,9 @@ import java.io.*;
 import java.util.*;
 
 import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -64,6 +67,70 @@ public class MclStorageManager
      */
     private boolean multiTenantMode = false;
 
+    /**
+     * The property to enable journal mode. In journal mode, the changes of
+     * meta contacts are appended to a journal instead of rewriting the whole
+     * contact list file, and the journal is compacted into the contact list
+     * file once it is larger than JOURNAL_COMPACTION_THRESHOLD_PROP.
+     */
+    private static final String JOURNAL_ENABLED_PROP =
+        "net.java.sip.communicator.impl.contactlist.JOURNAL_ENABLED";
+
+    /**
+     * The property holding the size, in bytes, of the journal from which it
+     * is compacted into the contact list file.
+     */
+    private static final String JOURNAL_COMPACTION_THRESHOLD_PROP =
+        "net.java.sip.communicator.impl.contactlist."
+            + "JOURNAL_COMPACTION_THRESHOLD";
+
+    /**
+     * The default size of the journal from which it is compacted.
+     */
+    private static final long DEFAULT_JOURNAL_COMPACTION_THRESHOLD
+        = 256 * 1024;
+
+    /**
+     * The extension of the journal file added to the name of the contact list
+     * file.
+     */
+    private static final String JOURNAL_FILE_EXTENSION = ".journal";
+
+    /**
+     * Whether JOURNAL_ENABLED_PROP has been enabled.
+     */
+    private boolean journalMode = false;
+
+    /**
+     * The size of the journal from which it is compacted.
+     */
+    private long journalCompactionThreshold
+        = DEFAULT_JOURNAL_COMPACTION_THRESHOLD;
+
+    /**
+     * The journal of the contact list file.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * The generation of the contact list file, incremented each time it is
+     * written in journal mode.
+     */
+    private long generation = 0;
+
+    /**
+     * The meta UIDs of the meta contacts which changed since the last time
+     * we stored this contact list, in journal mode.
+     */
+    private final Set<String> modifiedMetaContacts
+        = new LinkedHashSet<String>();
+
+    /**
+     * Serializes meta contact nodes for the journal. Used only by the storage
+     * thread.
+     */
+    private Transformer journalTransformer = null;
+
     /**
      * Indicates whether the storage manager has been properly started or in
      * other words that it has successfully found and read the xml contact list
@@ -234,6 +301,13 @@ public class MclStorageManager
      */
     private static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
 
+    /**
+     * The name of the XML attribute of the contact list root that contains
+     * the generation of the contact list file followed by the journal.
+     */
+    private static final String JOURNAL_GENERATION_ATTR_NAME =
+        "journal-generation";
+
     /**
      * A lock that we use when storing the contact list to avoid being exited
      * while in there.
@@ -326,6 +400,12 @@ public class MclStorageManager
 
         multiTenantMode = configurationService.getBoolean(
             MULTI_TENANT_MODE_PROP, multiTenantMode);
+        journalMode = configurationService.getBoolean(
+            JOURNAL_ENABLED_PROP, journalMode);
+        journalCompactionThreshold = configurationService.getLong(
+            JOURNAL_COMPACTION_THRESHOLD_PROP, journalCompactionThreshold);
+        journal = new MclJournal(
+            new File(contactlistFile.getPath() + JOURNAL_FILE_EXTENSION));
 
         // create the failsafe transaction and restore the file if needed
         try
@@ -387,12 +467,94 @@ public class MclStorageManager
             logger.error("Error finding configuration for default parsers", ex);
         }
 
+        replayJournal();
+
         mclServImpl.addMetaContactListListener(this);
         this.mclServiceImpl = mclServImpl;
         started = true;
         this.launchStorageThread();
     }
 
+    /**
+     * Applies the changes of the journal which follows the loaded contact list
+     * file, if any, and schedules their compaction into the contact list file.
+     */
+    private void replayJournal()
+    {
+        Element root = (Element) contactListDocument.getFirstChild();
+        String generationAttr
+            = root.getAttribute(JOURNAL_GENERATION_ATTR_NAME);
+
+        try
+        {
+            if (generationAttr.length() != 0)
+                generation = Long.parseLong(generationAttr);
+        }
+        catch (NumberFormatException ex)
+        {
+            logger.error("Invalid contact list generation " + generationAttr);
+        }
+
+        List<MclJournal.Record> records;
+        try
+        {
+            records = journal.read(generation);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+
+            // start a new journal after a snapshot, as the records appended
+            // to this one may not be read
+            isModified = true;
+            return;
+        }
+
+        for (MclJournal.Record record : records)
+        {
+            Element metaContactNode = findMetaContactNode(record.metaUID);
+
+            if (metaContactNode != null)
+                metaContactNode.getParentNode().removeChild(metaContactNode);
+
+            if (record.op != MclJournal.OP_STORE)
+                continue;
+
+            Element parentGroupNode = findMetaContactGroupNode(record.groupUID);
+            if (parentGroupNode == null)
+            {
+                logger.error("Couldn't find parent of journaled contact: "
+                    + record.metaUID);
+                continue;
+            }
+
+            try
+            {
+                metaContactNode
+                    = (Element) contactListDocument.importNode(
+                        XMLUtils.createDocument(record.xml)
+                            .getDocumentElement(),
+                        true);
+            }
+            catch (Exception ex)
+            {
+                logger.error("Invalid journaled contact: " + record.metaUID,
+                    ex);
+                continue;
+            }
+            XMLUtils.findChild(parentGroupNode, CHILD_CONTACTS_NODE_NAME)
+                .appendChild(metaContactNode);
+        }
+
+        if (logger.isDebugEnabled() && !records.isEmpty())
+            logger.debug("Replayed " + records.size()
+                + " contact list journal records");
+
+        // compact the journal, or remove it if journal mode was disabled
+        if (!records.isEmpty() || !journalMode)
+            isModified = true;
+    }
+
     /**
      * Stores the contact list in its current state.
      *
@@ -411,7 +573,115 @@ public class MclStorageManager
     }
 
     /**
-     * Writes the contact list on the hard disk.
+     * Schedules the storage of a meta contact which changed. In journal mode,
+     * only the changed meta contacts are written, to the journal, otherwise
+     * the whole contact list is.
+     *
+     * @param metaContact the meta contact which changed
+     * @throws IOException if writing fails.
+     */
+    private void scheduleMetaContactStorage(MetaContact metaContact)
+        throws IOException
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            if (journalMode)
+                modifiedMetaContacts.add(metaContact.getMetaUID());
+            else
+                this.isModified = true;
+            contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Appends the changed meta contacts to the journal, and compacts the
+     * journal into the contact list file if it is large enough. The
+     * contact list file is written instead if the journal cannot be.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void storeModifiedMetaContacts() throws IOException
+    {
+        List<MclJournal.Record> records
+            = new ArrayList<MclJournal.Record>(modifiedMetaContacts.size());
+
+        try
+        {
+            // the journal could not be started after the last snapshot
+            if (journal.length() == 0)
+                throw new IOException("Missing contact list journal");
+
+            for (String metaUID : modifiedMetaContacts)
+            {
+                Element metaContactNode = findMetaContactNode(metaUID);
+
+                if (metaContactNode == null)
+                {
+                    records.add(
+                        new MclJournal.Record(
+                            MclJournal.OP_REMOVE, metaUID, null, null));
+                }
+                else
+                {
+                    Element groupNode
+                        = (Element) metaContactNode.getParentNode()
+                            .getParentNode();
+
+                    records.add(
+                        new MclJournal.Record(
+                            MclJournal.OP_STORE,
+                            metaUID,
+                            groupNode.getAttribute(GROUP_UID_ATTR_NAME),
+                            toXml(metaContactNode)));
+                }
+            }
+            journal.append(records);
+        }
+        catch (Exception ex)
+        {
+            // the journal may end with a partial record, start a new one
+            logger.error("Failed to write the contact list journal", ex);
+            isModified = true;
+        }
+        modifiedMetaContacts.clear();
+
+        if (isModified || journal.length() > journalCompactionThreshold)
+        {
+            storeContactList0();
+            isModified = false;
+        }
+    }
+
+    /**
+     * Serializes a meta contact node.
+     *
+     * @param metaContactNode the meta contact node
+     * @return the XML of the node
+     * @throws TransformerException if the node cannot be serialized
+     */
+    private String toXml(Element metaContactNode)
+        throws TransformerException
+    {
+        if (journalTransformer == null)
+        {
+            journalTransformer
+                = TransformerFactory.newInstance().newTransformer();
+            journalTransformer.setOutputProperty(
+                OutputKeys.OMIT_XML_DECLARATION, "yes");
+        }
+
+        StringWriter writer = new StringWriter();
+        journalTransformer.transform(
+            new DOMSource(metaContactNode), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    /**
+     * Writes the contact list on the hard disk. In journal mode, the written
+     * file is a new generation which the journal is emptied to follow.
      *
      * @throws IOException in case writing fails.
      */
@@ -425,6 +695,13 @@ public class MclStorageManager
             + isModified);
         if (isStarted())
         {
+            if (journalMode)
+            {
+                generation++;
+                ((Element) contactListDocument.getFirstChild()).setAttribute(
+                    JOURNAL_GENERATION_ATTR_NAME, Long.toString(generation));
+            }
+
             // begin a new transaction
             try
             {
@@ -449,6 +726,24 @@ public class MclStorageManager
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            // the contact list file now holds the journaled changes
+            if (journalMode)
+            {
+                modifiedMetaContacts.clear();
+                try
+                {
+                    journal.reset(generation);
+                }
+                catch (IOException e)
+                {
+                    // a journal of an older generation is ignored
+                    logger.error("Failed to reset the contact list journal", e);
+                    journal.delete();
+                }
+            }
+            else if (journal != null)
+                journal.delete();
         }
     }
 
@@ -476,6 +771,10 @@ public class MclStorageManager
                                 storeContactList0();
                                 isModified = false;
                             }
+                            else if (!modifiedMetaContacts.isEmpty())
+                            {
+                                storeModifiedMetaContacts();
+                            }
                         }
                     }
                 }
@@ -1293,7 +1592,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1445,7 +1744,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1531,7 +1830,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1586,7 +1885,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1626,7 +1925,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getParent());
         }
         catch (IOException ex)
         {
@@ -1772,7 +2071,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getSourceMetaContact());
         }
         catch (IOException ex)
         {
@@ -1814,7 +2113,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getOldParent());
         }
         catch (IOException ex)
         {
@@ -1947,7 +2246,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getParent());
         }
         catch (IOException ex)
         {
@@ -2005,7 +2304,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleMetaContactStorage(evt.getOldParent());
+            scheduleMetaContactStorage(evt.getNewParent());
         }
         catch (IOException ex)
         {
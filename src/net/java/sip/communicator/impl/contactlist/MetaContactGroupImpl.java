@@ -699,6 +699,7 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+        mclServiceImpl.getContactIndex().addMetaContact(metaContact);
     }
 
     /**
@@ -756,6 +757,7 @@ public class MetaContactGroupImpl
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+        mclServiceImpl.getContactIndex().removeMetaContact(metaContact);
     }
 
     /**
@@ -966,6 +968,9 @@ public class MetaContactGroupImpl
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getContactIndex().addGroup(
+            (MetaContactGroupImpl) subgroup);
     }
 
     /**
@@ -983,6 +988,8 @@ public class MetaContactGroupImpl
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
+        mclServiceImpl.getContactIndex().removeGroup(subgroup);
+
         return subgroup;
     }
 
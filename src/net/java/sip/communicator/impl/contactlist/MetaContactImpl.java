@@ -687,7 +687,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().getContactIndex()
+                    .addContact(this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -780,7 +784,11 @@ public class MetaContactImpl
             }
 
             if (parentGroup != null)
+            {
                 parentGroup.lightAddMetaContact(this);
+                parentGroup.getMclServiceImpl().getContactIndex()
+                    .removeContact(this, contact);
+            }
 
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
@@ -820,6 +828,7 @@ public class MetaContactImpl
             if (contact.getProtocolProvider() == provider)
             {
                 contactsIter.remove();
+                removeFromContactIndex(contact);
                 modified = true;
             }
         }
@@ -853,6 +862,7 @@ public class MetaContactImpl
             if (contact.getParentContactGroup() == protoGroup)
             {
                 contactsIter.remove();
+                removeFromContactIndex(contact);
                 modified = true;
             }
         }
@@ -867,6 +877,23 @@ public class MetaContactImpl
     }
 
 
+    /**
+     * Removes a protocol contact removed from this meta contact from the
+     * index of the list, if this meta contact belongs to a group.
+     *
+     * @param contact the removed protocol contact
+     */
+    private void removeFromContactIndex(Contact contact)
+    {
+        MetaContactGroupImpl parentGroup = this.parentGroup;
+
+        if (parentGroup != null)
+        {
+            parentGroup.getMclServiceImpl().getContactIndex()
+                .removeContact(this, contact);
+        }
+    }
+
     /**
      * Sets <tt>parentGroup</tt> as a parent of this meta contact. Do not
      * call this method with a null argument even if a group is removing
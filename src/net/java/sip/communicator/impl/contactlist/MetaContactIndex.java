@@ -0,0 +1,315 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts of a meta contact list by their meta UID and by
+ * the account and address of the protocol contacts they encapsulate, so that
+ * they are found without walking the list.
+ * <p>
+ * The index is updated by the meta contacts and groups themselves whenever a
+ * protocol contact, a meta contact or a group is added or removed, whether or
+ * not an event is fired for the change. The meta contacts it returns are
+ * checked to still hold the looked up contact and to still belong to the
+ * list. A protocol contact held by several meta contacts is indexed for all
+ * of them, so that removing one of them keeps the others.
+ */
+public class MetaContactIndex
+{
+    /**
+     * The indexed meta contacts by meta UID.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> metaContactsByUID
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The indexed meta contacts by the keys of their protocol contacts, the
+     * most recently indexed last. The arrays are replaced, not modified,
+     * while holding the lock of the index.
+     */
+    private final ConcurrentMap<ContactKey, MetaContactImpl[]>
+        metaContactsByContact
+        = new ConcurrentHashMap<ContactKey, MetaContactImpl[]>();
+
+    /**
+     * The root group of the indexed list.
+     */
+    private final MetaContactGroupImpl root;
+
+    /**
+     * Creates an index of the meta contacts under <tt>root</tt>.
+     *
+     * @param root the root group of the list
+     */
+    MetaContactIndex(MetaContactGroupImpl root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * Returns the meta contact holding a protocol contact.
+     *
+     * @param contact the protocol contact
+     * @return the meta contact or <tt>null</tt> if the contact is not in the
+     * list
+     */
+    MetaContactImpl findMetaContactByContact(Contact contact)
+    {
+        ProtocolProviderService provider = contact.getProtocolProvider();
+        String address = contact.getAddress();
+        MetaContactImpl[] metaContacts = metaContactsByContact.get(
+            new ContactKey(
+                provider.getAccountID().getAccountUniqueID(), address));
+
+        if (metaContacts != null)
+        {
+            for (int i = metaContacts.length - 1; i >= 0; i--)
+            {
+                MetaContactImpl metaContact = metaContacts[i];
+
+                if (metaContact.getContact(address, provider) != null
+                        && isInList(metaContact))
+                    return metaContact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the meta contact holding the protocol contact of an account
+     * with an address.
+     *
+     * @param address the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the meta contact or <tt>null</tt> if the contact is not in the
+     * list
+     */
+    MetaContactImpl findMetaContactByContact(String address, String accountID)
+    {
+        MetaContactImpl[] metaContacts
+            = metaContactsByContact.get(new ContactKey(accountID, address));
+
+        if (metaContacts != null)
+        {
+            for (int i = metaContacts.length - 1; i >= 0; i--)
+            {
+                MetaContactImpl metaContact = metaContacts[i];
+
+                if (metaContact.getContact(address, accountID) != null
+                        && isInList(metaContact))
+                    return metaContact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the meta contact with a meta UID.
+     *
+     * @param metaUID the meta UID
+     * @return the meta contact or <tt>null</tt> if it is not in the list
+     */
+    MetaContactImpl findMetaContactByMetaUID(String metaUID)
+    {
+        MetaContactImpl metaContact = metaContactsByUID.get(metaUID);
+
+        return (metaContact != null && isInList(metaContact))
+            ? metaContact
+            : null;
+    }
+
+    /**
+     * Indexes a protocol contact added to a meta contact of a group.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    synchronized void addContact(MetaContactImpl metaContact, Contact contact)
+    {
+        ContactKey key = new ContactKey(contact);
+        MetaContactImpl[] metaContacts = metaContactsByContact.get(key);
+
+        if (metaContacts == null)
+        {
+            metaContactsByContact.put(
+                key, new MetaContactImpl[] { metaContact });
+            return;
+        }
+
+        // indexed again, it becomes the most recently indexed one
+        List<MetaContactImpl> newMetaContacts
+            = new ArrayList<MetaContactImpl>(Arrays.asList(metaContacts));
+        newMetaContacts.remove(metaContact);
+        newMetaContacts.add(metaContact);
+        metaContactsByContact.put(
+            key,
+            newMetaContacts.toArray(
+                new MetaContactImpl[newMetaContacts.size()]));
+    }
+
+    /**
+     * Removes a protocol contact removed from a meta contact from the index,
+     * keeping the other meta contacts holding a contact with the same key.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    synchronized void removeContact(
+        MetaContactImpl metaContact, Contact contact)
+    {
+        ContactKey key = new ContactKey(contact);
+        MetaContactImpl[] metaContacts = metaContactsByContact.get(key);
+
+        if (metaContacts == null)
+            return;
+
+        List<MetaContactImpl> newMetaContacts
+            = new ArrayList<MetaContactImpl>(Arrays.asList(metaContacts));
+
+        if (!newMetaContacts.remove(metaContact))
+            return;
+
+        if (newMetaContacts.isEmpty())
+        {
+            metaContactsByContact.remove(key);
+        }
+        else
+        {
+            metaContactsByContact.put(
+                key,
+                newMetaContacts.toArray(
+                    new MetaContactImpl[newMetaContacts.size()]));
+        }
+    }
+
+    /**
+     * Indexes a meta contact added to a group and its protocol contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    void addMetaContact(MetaContactImpl metaContact)
+    {
+        metaContactsByUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            addContact(metaContact, contacts.next());
+    }
+
+    /**
+     * Removes a meta contact removed from a group and its protocol contacts
+     * from the index, keeping the other meta contacts indexed for them.
+     *
+     * @param metaContact the meta contact
+     */
+    void removeMetaContact(MetaContactImpl metaContact)
+    {
+        metaContactsByUID.remove(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            removeContact(metaContact, contacts.next());
+    }
+
+    /**
+     * Indexes the meta contacts of a group added to another one and of its
+     * subgroups.
+     *
+     * @param group the group
+     */
+    void addGroup(MetaContactGroupImpl group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            addMetaContact((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addGroup((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Removes the meta contacts of a group removed from another one and of
+     * its subgroups from the index.
+     *
+     * @param group the group
+     */
+    void removeGroup(MetaContactGroupImpl group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            removeMetaContact((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeGroup((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Determines whether a meta contact belongs to the list, that is whether
+     * its group is the root group or one of its descendants.
+     *
+     * @param metaContact the meta contact
+     * @return <tt>true</tt> if the meta contact belongs to the list
+     */
+    private boolean isInList(MetaContactImpl metaContact)
+    {
+        MetaContactGroup group = metaContact.getParentGroup();
+
+        while (group != null && group != root)
+            group = group.getParentMetaContactGroup();
+        return group == root;
+    }
+
+    /**
+     * The key of a protocol contact: the unique ID of its account and its
+     * address.
+     */
+    private static class ContactKey
+    {
+        private final String accountID;
+
+        private final String address;
+
+        ContactKey(Contact contact)
+        {
+            this(contact.getProtocolProvider().getAccountID()
+                        .getAccountUniqueID(),
+                 contact.getAddress());
+        }
+
+        ContactKey(String accountID, String address)
+        {
+            this.accountID = accountID;
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ContactKey))
+                return false;
+
+            ContactKey key = (ContactKey) obj;
+
+            return accountID.equals(key.accountID)
+                && address.equals(key.address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * accountID.hashCode() + address.hashCode();
+        }
+    }
+}
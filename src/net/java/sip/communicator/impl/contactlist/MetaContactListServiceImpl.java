@@ -14,6 +14,7 @@ import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
 import org.jitsi.util.xml.*;
 import org.osgi.framework.*;
 
@@ -114,6 +115,43 @@ public class MetaContactListServiceImpl
      */
     private final MclStorageManager storageManager = new MclStorageManager();
 
+    /**
+     * The index of the meta contacts of the list, by meta UID and by protocol
+     * contact.
+     */
+    private final MetaContactIndex contactIndex;
+
+    /**
+     * The property to enable the delivery of the events of the list to its
+     * listeners on a dedicated thread instead of the thread firing them.
+     */
+    private static final String ASYNC_EVENT_DISPATCH_PROP
+        = "net.java.sip.communicator.impl.contactlist.ASYNC_EVENT_DISPATCH";
+
+    /**
+     * The property holding the time, in milliseconds, coalescible events are
+     * held when they are delivered on a dedicated thread.
+     */
+    private static final String EVENT_BURST_WINDOW_PROP
+        = "net.java.sip.communicator.impl.contactlist.EVENT_BURST_WINDOW";
+
+    /**
+     * The default time, in milliseconds, coalescible events are held.
+     */
+    private static final long DEFAULT_EVENT_BURST_WINDOW = 100;
+
+    /**
+     * The time, in milliseconds, to wait for the pending events to be
+     * delivered when stopping.
+     */
+    private static final long EVENT_DISPATCHER_STOP_TIMEOUT = 5000;
+
+    /**
+     * The dispatcher delivering the events of the list on a dedicated thread
+     * or <tt>null</tt> if they are delivered on the thread firing them.
+     */
+    private MclEventDispatcher eventDispatcher = null;
+
     /**
      * Creates an instance of this class.
      */
@@ -123,6 +161,7 @@ public class MetaContactListServiceImpl
             = new MetaContactGroupImpl(
                     this, ContactlistActivator.getResources().getI18NString(
                         "service.gui.CONTACTS"), "RootMetaContactGroup");
+        contactIndex = new MetaContactIndex(rootMetaGroup);
     }
 
     /**
@@ -154,6 +193,20 @@ public class MetaContactListServiceImpl
             logger.debug("Starting the meta contact list implementation.");
         this.bundleContext = bc;
 
+        ConfigurationService configService
+            = ServiceUtils.getService(bc, ConfigurationService.class);
+
+        if (configService != null
+                && configService.getBoolean(ASYNC_EVENT_DISPATCH_PROP, false))
+        {
+            eventDispatcher
+                = new MclEventDispatcher(
+                        configService.getLong(
+                                EVENT_BURST_WINDOW_PROP,
+                                DEFAULT_EVENT_BURST_WINDOW));
+            eventDispatcher.start();
+        }
+
         //initialize the meta contact list from what has been stored locally.
         try
         {
@@ -200,6 +253,10 @@ public class MetaContactListServiceImpl
      */
     public void stop(BundleContext bc)
     {
+        // deliver the pending events to the storage manager before it stops
+        if (eventDispatcher != null)
+            eventDispatcher.stop(EVENT_DISPATCHER_STOP_TIMEOUT);
+
         storageManager.storeContactListAndStopStorageManager();
         bc.removeServiceListener(this);
 
@@ -1633,7 +1690,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        return contactIndex.findMetaContactByContact(contact);
     }
 
     /**
@@ -1656,8 +1713,8 @@ public class MetaContactListServiceImpl
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        return contactIndex.findMetaContactByContact(contactAddress
+                                                     , accountID);
     }
 
     /**
@@ -1670,8 +1727,30 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
+        return contactIndex.findMetaContactByMetaUID(metaContactID);
+    }
+
+    /**
+     * Returns the index of the meta contacts of the list, kept up to date by
+     * the meta contacts and groups of the list.
+     *
+     * @return the index of the meta contacts of the list
+     */
+    MetaContactIndex getContactIndex()
+    {
+        return contactIndex;
+    }
 
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+    /**
+     * Returns the dispatcher delivering the events of the list on a dedicated
+     * thread, which reports its queue depth and latency.
+     *
+     * @return the dispatcher or <tt>null</tt> if events are delivered on the
+     * thread firing them
+     */
+    public MclEventDispatcher getEventDispatcher()
+    {
+        return eventDispatcher;
     }
 
     /**
@@ -3004,18 +3083,125 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
+        dispatchEvent(evt);
+    }
+
+    /**
+     * Delivers an event to the <tt>MetaContactListListener</tt>s currently
+     * registered, on the current thread or, if enabled, through the
+     * dispatcher.
+     *
+     * @param evt the event to deliver
+     */
+    private void dispatchEvent(EventObject evt)
+    {
+        MetaContactListListener[] listeners = getMetaContactListListeners();
+        MclEventDispatcher dispatcher = eventDispatcher;
+
+        if (dispatcher != null)
+        {
+            dispatcher.dispatch(evt, listeners);
+            return;
+        }
+
+        for (MetaContactListListener listener : listeners)
+            deliverEvent(evt, listener);
+    }
+
+    /**
+     * Calls the method of a <tt>MetaContactListListener</tt> handling an
+     * event.
+     *
+     * @param evt the event
+     * @param listener the listener
+     */
+    static void deliverEvent(EventObject evt, MetaContactListListener listener)
+    {
+        if (evt instanceof MetaContactEvent)
         {
-            switch (evt.getEventID())
+            MetaContactEvent metaContactEvt = (MetaContactEvent) evt;
+
+            switch (metaContactEvt.getEventID())
             {
                 case MetaContactEvent.META_CONTACT_ADDED:
-                    listener.metaContactAdded(evt);
+                    listener.metaContactAdded(metaContactEvt);
                     break;
                 case MetaContactEvent.META_CONTACT_REMOVED:
-                    listener.metaContactRemoved(evt);
+                    listener.metaContactRemoved(metaContactEvt);
                     break;
                 default:
-                    logger.error("Unknown event type " + evt.getEventID());
+                    logger.error("Unknown event type "
+                        + metaContactEvt.getEventID());
+            }
+        }
+        else if (evt instanceof MetaContactMovedEvent)
+        {
+            listener.metaContactMoved((MetaContactMovedEvent) evt);
+        }
+        else if (evt instanceof MetaContactRenamedEvent)
+        {
+            listener.metaContactRenamed((MetaContactRenamedEvent) evt);
+        }
+        else if (evt instanceof MetaContactModifiedEvent)
+        {
+            listener.metaContactModified((MetaContactModifiedEvent) evt);
+        }
+        else if (evt instanceof MetaContactAvatarUpdateEvent)
+        {
+            listener.metaContactAvatarUpdated(
+                (MetaContactAvatarUpdateEvent) evt);
+        }
+        else if (evt instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent protoEvt = (ProtoContactEvent) evt;
+            String eventName = protoEvt.getPropertyName();
+
+            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
+            {
+                listener.protoContactAdded(protoEvt);
+            }
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
+            {
+                listener.protoContactMoved(protoEvt);
+            }
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
+            {
+                listener.protoContactRemoved(protoEvt);
+            }
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
+            {
+                listener.protoContactModified(protoEvt);
+            }
+        }
+        else if (evt instanceof MetaContactGroupEvent)
+        {
+            MetaContactGroupEvent groupEvt = (MetaContactGroupEvent) evt;
+            int eventID = groupEvt.getEventID();
+
+            switch (eventID)
+            {
+                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
+                    listener.metaContactGroupAdded(groupEvt);
+                    break;
+                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
+                    listener.metaContactGroupRemoved(groupEvt);
+                    break;
+                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
+                    listener.childContactsReordered(groupEvt);
+                    break;
+                case MetaContactGroupEvent
+                    .META_CONTACT_GROUP_RENAMED:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
+                    listener.metaContactGroupModified(groupEvt);
+                    break;
+                default:
+                    logger.error("Unknown event type (" + eventID
+                                 + ") for event: " + groupEvt);
             }
         }
     }
@@ -3058,26 +3244,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (event instanceof MetaContactMovedEvent)
-            {
-                listener.metaContactMoved( (MetaContactMovedEvent) event);
-            }
-            else if (event instanceof MetaContactRenamedEvent)
-            {
-                listener.metaContactRenamed( (MetaContactRenamedEvent) event);
-            }
-            else if (event instanceof MetaContactModifiedEvent)
-            {
-                listener.metaContactModified( (MetaContactModifiedEvent) event);
-            }
-            else if (event instanceof MetaContactAvatarUpdateEvent)
-            {
-                listener.metaContactAvatarUpdated(
-                    (MetaContactAvatarUpdateEvent) event);
-            }
-        }
+        dispatchEvent(event);
     }
 
     /**
@@ -3110,25 +3277,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
-            {
-                listener.protoContactAdded(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
-            {
-                listener.protoContactMoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
-            {
-                listener.protoContactRemoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
-            {
-                listener.protoContactModified(event);
-            }
-        }
+        dispatchEvent(event);
     }
 
     /**
@@ -3364,34 +3513,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (eventID)
-            {
-                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
-                    listener.metaContactGroupAdded(evt);
-                    break;
-                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
-                    listener.metaContactGroupRemoved(evt);
-                    break;
-                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
-                    listener.childContactsReordered(evt);
-                    break;
-                case MetaContactGroupEvent
-                    .META_CONTACT_GROUP_RENAMED:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
-                    listener.metaContactGroupModified(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type (" + eventID
-                                 + ") for event: " + evt);
-            }
-        }
+        dispatchEvent(evt);
     }
 
     /**
@@ -236,6 +236,9 @@ public class DnsUtilActivator
         ResolverConfig.refresh();
         logDNSServers();
 
+        // the answers of the previous servers may not be valid anymore
+        NetworkUtils.getDnsRecordCache().clear();
+
         // now reset an eventually present custom resolver
         if(Lookup.getDefaultResolver() instanceof CustomResolver)
         {
@@ -11,6 +11,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.service.dns.*;
 import net.java.sip.communicator.util.*;
@@ -33,6 +34,17 @@ import org.xbill.DNS.*;
  * <p>
  * We exit redundant mode after receiving <tt>DNS_REDEMPTION</tt> consecutive
  * timely and correct responses from our primary resolver.
+ * <p>
+ * Both limits adapt to the resolvers: the time we wait for the primary
+ * resolver follows the latency it has shown so far, and stays below
+ * <tt>DNS_PATIENCE</tt>, while the number of responses it has to redeem
+ * itself with grows each time we go back to redundant mode shortly after
+ * leaving it.
+ * <p>
+ * Queries are sent by a bounded pool of worker threads and nobody waits on a
+ * thread of its own: a resolution is driven by the responses of the resolvers
+ * and by a timer, and reports to {@link ResolverListener}s. Identical queries
+ * sent while one of them is being resolved share its resolution.
  *
  * @author Emil Ivov
  */
@@ -46,6 +58,29 @@ public class ParallelResolverImpl
     private static final Logger logger = Logger
                     .getLogger(ParallelResolverImpl.class);
 
+    /**
+     * The number of threads sending queries to the primary resolver, and the
+     * number of threads sending queries to the backup resolvers.
+     */
+    private static final int MAX_WORKER_THREADS = 8;
+
+    /**
+     * The shortest time, in milliseconds, that we wait for the primary
+     * resolver before entering redundant mode, however fast it usually is.
+     */
+    private static final long MIN_DNS_PATIENCE = 250;
+
+    /**
+     * The time, in milliseconds, after leaving redundant mode during which
+     * entering it again doubles the redemption the primary resolver needs.
+     */
+    private static final long REDEMPTION_BACKOFF_INTERVAL = 5 * 60 * 1000;
+
+    /**
+     * The largest factor that the configured redemption is multiplied by.
+     */
+    private static final int MAX_REDEMPTION_FACTOR = 8;
+
     /**
      * Indicates whether we are currently in a mode where all DNS queries are
      * sent to both the primary and the backup DNS servers.
@@ -72,6 +107,17 @@ public class ParallelResolverImpl
      */
     private static int redemptionStatus = 0;
 
+    /**
+     * The factor that the configured redemption is multiplied by, doubled
+     * each time we enter redundant mode shortly after leaving it.
+     */
+    private static int redemptionFactor = 1;
+
+    /**
+     * The time, in milliseconds, we last left redundant mode.
+     */
+    private static long redundantModeExitTime = 0;
+
     /**
      * A lock that we use while determining whether we've completed redemption
      * and can exit redundant mode.
@@ -88,21 +134,111 @@ public class ParallelResolverImpl
      */
     private ExtendedResolver backupResolver;
 
-    /** Thread pool that processes the backup queries. */
-    private ExecutorService backupQueriesPool;
+    /**
+     * The latency of the default resolver.
+     */
+    private final ServerStats primaryStats = new ServerStats("primary");
+
+    /**
+     * The latency of the backup resolvers.
+     */
+    private final ServerStats backupStats = new ServerStats("backup");
+
+    /**
+     * Thread pool that sends the queries to the default resolver.
+     */
+    private final ThreadPoolExecutor primaryWorkers;
+
+    /**
+     * Thread pool that processes the backup queries, separate from the one
+     * of the default resolver so that a default resolver which does not
+     * answer cannot hold back the backup queries.
+     */
+    private final ThreadPoolExecutor backupWorkers;
+
+    /**
+     * The timer that tells resolutions the primary resolver is late.
+     */
+    private final ScheduledExecutorService patienceTimer;
+
+    /**
+     * The resolutions in progress, by question, which identical queries
+     * join.
+     */
+    private final ConcurrentMap<List<Object>, ParallelResolution> resolutions
+        = new ConcurrentHashMap<List<Object>, ParallelResolution>();
+
+    /**
+     * The source of the identifiers returned by {@link #sendAsync}.
+     */
+    private final AtomicInteger nextQueryId = new AtomicInteger();
+
+    /**
+     * The number of queries which joined the resolution of an identical
+     * query.
+     */
+    private final AtomicLong coalescedQueries = new AtomicLong();
 
     /**
      * Creates a new instance of this class.
      */
     ParallelResolverImpl()
     {
-        backupQueriesPool = Executors.newCachedThreadPool();
+        this(null, null);
+
         DnsUtilActivator.getConfigurationService()
             .addPropertyChangeListener(this);
         initProperties();
         reset();
     }
 
+    /**
+     * Creates a resolver sending queries to the specified resolvers,
+     * without reading the configuration.
+     *
+     * @param defaultResolver the default resolver
+     * @param backupResolver the backup resolvers
+     */
+    ParallelResolverImpl(Resolver defaultResolver,
+                         ExtendedResolver backupResolver)
+    {
+        ThreadFactory threadFactory = new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ParallelResolver");
+                t.setDaemon(true);
+                return t;
+            }
+        };
+
+        primaryWorkers = createWorkers(threadFactory);
+        backupWorkers = createWorkers(threadFactory);
+        patienceTimer
+            = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+        this.defaultResolver = defaultResolver;
+        this.backupResolver = backupResolver;
+    }
+
+    /**
+     * Creates a bounded pool of threads sending queries.
+     *
+     * @param threadFactory the factory of the threads
+     * @return the pool
+     */
+    private static ThreadPoolExecutor createWorkers(ThreadFactory threadFactory)
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            MAX_WORKER_THREADS, MAX_WORKER_THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            threadFactory);
+
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
     private void initProperties()
     {
         String rslvrAddrStr
@@ -198,45 +334,136 @@ public class ParallelResolverImpl
     public Message send(Message query)
         throws IOException
     {
-        ParallelResolution resolution = new ParallelResolution(query);
-        resolution.sendFirstQuery();
+        ResponseCollector collector = new ResponseCollector();
 
-        //if we are not in redundant mode we should wait a bit and see how this
-        //goes. if we get a reply we could return bravely.
-        if(!redundantMode)
+        sendAsync(query, collector);
+        return collector.returnResponseOrThrowUp();
+    }
+
+    /**
+     * Asynchronously sends a message to the default resolver, and to the
+     * backup resolvers if the default one is too slow or if we are in
+     * redundant mode. The first satisfactory response is reported to
+     * <tt>listener</tt>. If an identical query is being resolved, the query
+     * is not sent again and gets the response of the identical one.
+     *
+     * @param query The query to send
+     * @param listener The object containing the callbacks.
+     * @return An identifier, which is also a parameter in the callback
+     */
+    public Object sendAsync(final Message query, final ResolverListener listener)
+    {
+        Object id = Integer.valueOf(nextQueryId.incrementAndGet());
+        Record question = query.getQuestion();
+        List<Object> key
+            = (question == null)
+                ? null
+                : Arrays.<Object>asList(
+                        question.getName(),
+                        question.getType(),
+                        question.getDClass());
+
+        while (true)
         {
-            if(resolution.waitForResponse(currentDnsPatience))
+            ParallelResolution resolution = new ParallelResolution(query, key);
+            ParallelResolution pending
+                = (key == null)
+                    ? null
+                    : resolutions.putIfAbsent(key, resolution);
+
+            if (pending == null)
             {
-                //we are done.
-                return resolution.returnResponseOrThrowUp();
+                resolution.addListener(id, query, listener);
+                resolution.start();
+                return id;
             }
-            else
+            if (pending.addListener(id, query, listener))
             {
-                synchronized(redemptionLock)
-                {
-                    redundantMode = true;
-                    redemptionStatus = currentDnsRedemption;
-                    logger.info("Primary DNS seems laggy: "
-                        + "no response for " + query.getQuestion().getName()
-                        + "/" + Type.string(query.getQuestion().getType())
-                        + " after " + currentDnsPatience + "ms. "
-                        + "Enabling redundant mode.");
-                }
+                coalescedQueries.incrementAndGet();
+                return id;
             }
+
+            // the pending resolution completed in the meantime
+            resolutions.remove(key, pending);
         }
+    }
+
+    /**
+     * Returns the time we wait for the primary resolver before sending a query
+     * to the backup resolvers: the time it should take the primary resolver to
+     * answer, given the latency it has shown so far, but no longer than the
+     * configured patience.
+     *
+     * @return the patience, in milliseconds
+     */
+    private long getPatience()
+    {
+        long timeout = primaryStats.getRetransmissionTimeout();
 
-        //we are definitely in redundant mode now
-        resolution.sendBackupQueries();
-        resolution.waitForResponse(0);
+        if (timeout <= 0 || timeout >= currentDnsPatience)
+            return currentDnsPatience;
+        return Math.max(MIN_DNS_PATIENCE, timeout);
+    }
 
-        //check if it is time to end redundant mode.
+    /**
+     * Enters redundant mode because the primary resolver is too slow or did
+     * not give a satisfactory response.
+     *
+     * @param query the query of the resolution which made us enter redundant
+     * mode
+     * @param reason why we enter redundant mode, for logging
+     */
+    private void enterRedundantMode(Message query, String reason)
+    {
         synchronized(redemptionLock)
         {
-            if(!resolution.primaryResolverRespondedFirst)
+            if(redundantMode)
+                return;
+
+            long now = System.currentTimeMillis();
+
+            //going back to redundant mode shortly after leaving it means the
+            //primary DNS redeemed itself too easily.
+            if(now - redundantModeExitTime < REDEMPTION_BACKOFF_INTERVAL)
+            {
+                redemptionFactor
+                    = Math.min(redemptionFactor * 2, MAX_REDEMPTION_FACTOR);
+            }
+            else
+            {
+                redemptionFactor = 1;
+            }
+
+            redundantMode = true;
+            redemptionStatus = currentDnsRedemption * redemptionFactor;
+            logger.info("Primary DNS seems laggy: " + reason + " for "
+                + query.getQuestion().getName()
+                + "/" + Type.string(query.getQuestion().getType())
+                + ". Enabling redundant mode until it answers first "
+                + redemptionStatus + " times. " + getStatistics());
+        }
+    }
+
+    /**
+     * Counts a response to a query sent in redundant mode towards the
+     * redemption of the primary resolver, and exits redundant mode once it
+     * has redeemed itself.
+     *
+     * @param primaryResolverRespondedFirst whether the primary resolver
+     * answered before the backup resolvers
+     */
+    private void updateRedemption(boolean primaryResolverRespondedFirst)
+    {
+        synchronized(redemptionLock)
+        {
+            if(!redundantMode)
+                return;
+
+            if(!primaryResolverRespondedFirst)
             {
                 //primary DNS is still feeling shaky. we reinit redemption
                 //status in case we were about to cut the server some slack
-                redemptionStatus = currentDnsRedemption;
+                redemptionStatus = currentDnsRedemption * redemptionFactor;
             }
             else
             {
@@ -247,25 +474,29 @@ public class ParallelResolverImpl
                 if(redemptionStatus <= 0)
                 {
                     redundantMode = false;
+                    redundantModeExitTime = System.currentTimeMillis();
                     logger.info("Primary DNS seems back in biz. "
-                                    + "Disabling redundant mode.");
+                                    + "Disabling redundant mode. "
+                                    + getStatistics());
                 }
             }
         }
-
-        return resolution.returnResponseOrThrowUp();
     }
 
     /**
-     * Supposed to asynchronously send messages but not currently implemented.
+     * Returns a description of the latency of the resolvers and of the
+     * queries sent, for logging.
      *
-     * @param query The query to send
-     * @param listener The object containing the callbacks.
-     * @return An identifier, which is also a parameter in the callback
+     * @return the description of the statistics of this resolver
      */
-    public Object sendAsync(final Message query, final ResolverListener listener)
+    String getStatistics()
     {
-        throw new UnsupportedOperationException("Not implemented");
+        return primaryStats + " " + backupStats
+            + " patience=" + getPatience() + "ms"
+            + " coalesced=" + coalescedQueries.get()
+            + " pending=" + resolutions.size()
+            + " queued=" + primaryWorkers.getQueue().size()
+            + "/" + backupWorkers.getQueue().size();
     }
 
     /**
@@ -370,6 +601,7 @@ public class ParallelResolverImpl
     public final void reset()
     {
         Lookup.refreshDefault();
+        primaryStats.reset();
 
         // populate with new servers after refreshing configuration
         try
@@ -442,189 +674,498 @@ public class ParallelResolverImpl
     }
 
     /**
-     * The class that listens for responses to any of the queries we send to
-     * our default and backup servers and returns as soon as we get one or until
-     * our default resolver fails.
+     * Returns the exception to report for a failure of a resolver.
+     *
+     * @param t what the resolver threw
+     * @return <tt>t</tt> if it is an exception, or an exception caused by it
+     */
+    private static Exception toException(Throwable t)
+    {
+        return (t instanceof Exception)
+            ? (Exception) t
+            : new IllegalStateException("DNS resolver failure", t);
+    }
+
+    /**
+     * The resolution of a query by our default and backup resolvers, which
+     * reports the first satisfactory response we get, or the failure of all
+     * resolvers, to the listeners of the query and of the identical queries
+     * sent in the meantime.
      */
-    private class ParallelResolution implements Runnable
+    private class ParallelResolution
     {
         /**
-         * The query that we have sent to the default and backup DNS servers.
+         * The query that we send to the default and backup DNS servers.
          */
         private final Message query;
 
         /**
-         * The field where we would store the first incoming response to our
-         * query.
+         * The key of this resolution in {@link #resolutions} or
+         * <tt>null</tt> if it cannot be shared.
          */
-        private volatile Message response;
+        private final List<Object> key;
 
         /**
-         * The field where we would store the first error we receive from a DNS
+         * The listeners waiting for the response.
+         */
+        private final List<Waiter> waiters = new ArrayList<Waiter>(1);
+
+        /**
+         * The unsatisfactory response of the default resolver, which we return
+         * if the backup resolvers fail.
+         */
+        private Message primaryResponse;
+
+        /**
+         * The field where we would store the last error we receive from a DNS
          * or a backup resolver.
          */
-        private Throwable exception;
+        private Exception exception;
+
+        /**
+         * Indicates whether the response has been reported.
+         */
+        private boolean done = false;
+
+        /**
+         * Indicates whether the default resolver failed or gave an
+         * unsatisfactory response.
+         */
+        private boolean primaryFailed = false;
+
+        /**
+         * Indicates whether the query has been sent to the backup resolvers.
+         */
+        private boolean backupSent = false;
 
         /**
-         * Indicates whether we are still waiting for an answer from someone
+         * Indicates whether the backup resolvers failed.
          */
-        private volatile boolean done = false;
+        private boolean backupFailed = false;
 
         /**
-         * Indicates that a response was received from the primary resolver.
+         * The task entering redundant mode when the default resolver takes too
+         * long.
          */
-        private volatile boolean primaryResolverRespondedFirst = true;
+        private ScheduledFuture<?> patienceTimeout;
+
+        /**
+         * The time, in milliseconds, we wait for the default resolver.
+         */
+        private long patience;
 
         /**
          * Creates a {@link ParallelResolution} for the specified <tt>query</tt>
          *
          * @param query the DNS query that we'd like to send to our primary
          * and backup resolvers.
+         * @param key the key of the resolution in {@link #resolutions} or
+         * <tt>null</tt>
          */
-        public ParallelResolution(final Message query)
+        ParallelResolution(Message query, List<Object> key)
         {
             this.query = query;
+            this.key = key;
         }
 
         /**
-         * Starts this collector which would cause it to send its query to the
-         * default resolver.
+         * Adds a listener waiting for the response, unless it has already
+         * been reported.
+         *
+         * @param id the identifier of the query of the listener
+         * @param query the query of the listener
+         * @param listener the listener
+         * @return <tt>true</tt> if the listener was added and <tt>false</tt>
+         * if the resolution completed
          */
-        public void sendFirstQuery()
+        synchronized boolean addListener(
+            Object id, Message query, ResolverListener listener)
         {
-            ParallelResolverImpl.this.backupQueriesPool.execute(this);
+            if (done)
+                return false;
+
+            waiters.add(new Waiter(id, query, listener));
+            return true;
         }
 
         /**
-         * Sends this collector's query to the default resolver.
+         * Sends the query to the default resolver, and to the backup resolvers
+         * as well if we are in redundant mode.
          */
-        @Override
-        public void run()
+        void start()
+        {
+            primaryWorkers.execute(new Runnable()
+            {
+                public void run()
+                {
+                    queryPrimary();
+                }
+            });
+
+            if (redundantMode)
+                sendBackupQuery();
+        }
+
+        /**
+         * Sends the query to the default resolver, unless the resolution
+         * completed while the query was waiting for a worker, and waits for
+         * its response. The patience starts when the query is sent, so that
+         * the time spent waiting for a worker does not count. If we entered
+         * redundant mode in the meantime, the query is sent to the backup
+         * resolvers as well.
+         */
+        private void queryPrimary()
         {
+            boolean redundant = false;
+
+            synchronized (this)
+            {
+                if (done)
+                    return;
+
+                if (!backupSent && redundantMode)
+                {
+                    redundant = true;
+                }
+                else if (!backupSent)
+                {
+                    patience = getPatience();
+                    patienceTimeout = patienceTimer.schedule(
+                        new Runnable()
+                        {
+                            public void run()
+                            {
+                                patienceExhausted();
+                            }
+                        },
+                        patience,
+                        TimeUnit.MILLISECONDS);
+                }
+            }
+
+            if (redundant)
+                sendBackupQuery();
+
+            long start = System.currentTimeMillis();
             Message localResponse = null;
+            Exception localException = null;
             try
             {
                 localResponse = defaultResolver.send(query);
+                primaryStats.addResponse(System.currentTimeMillis() - start);
             }
             catch (SocketTimeoutException exc)
             {
                 logger.info("Default DNS resolver timed out.");
-                this.exception = exc;
+                primaryStats.addFailure();
+                localException = exc;
             }
             catch (Throwable exc)
             {
                 logger.info("Default DNS resolver failed", exc);
-                this.exception = exc;
+                primaryStats.addFailure();
+                localException = toException(exc);
             }
 
-            //if the backup resolvers had already replied we ignore the
-            //reply of the primary one whatever it was.
-            if(done)
-                return;
+            boolean satisfactory
+                = localResponse != null
+                    && isResponseSatisfactory(localResponse);
+            List<Waiter> toNotify = null;
+            boolean sendBackup = false;
 
-            synchronized(this)
+            synchronized (this)
             {
-                //if there was a response we're only done if it is satisfactory
-                if(    localResponse != null
-                    && isResponseSatisfactory(localResponse))
+                //if the backup resolvers had already replied we ignore the
+                //reply of the primary one whatever it was.
+                if (done)
+                    return;
+
+                if (satisfactory)
+                {
+                    toNotify = complete();
+                }
+                else
                 {
-                    response = localResponse;
-                    done = true;
+                    primaryFailed = true;
+                    primaryResponse = localResponse;
+                    if (localException != null)
+                        exception = localException;
+
+                    if (!backupSent)
+                        sendBackup = true;
+                    else if (backupFailed)
+                        toNotify = complete();
                 }
+            }
 
-                notify();
+            if (sendBackup)
+            {
+                enterRedundantMode(
+                    query,
+                    (localResponse == null)
+                        ? "no response"
+                        : "unsatisfactory response");
+                sendBackupQuery();
+            }
+            else if (toNotify != null)
+            {
+                notifyWaiters(
+                    toNotify,
+                    satisfactory ? localResponse : primaryResponse,
+                    satisfactory);
             }
         }
 
         /**
-         * Asynchronously sends this collector's query to all backup resolvers.
+         * Enters redundant mode and sends the query to the backup resolvers
+         * because the default resolver did not answer in time.
          */
-        public void sendBackupQueries()
+        private void patienceExhausted()
         {
-            //yes. a second thread in the thread ... it's ugly but it works
-            //and i do want to keep code simple to read ... this whole parallel
-            //resolving is complicated enough as it is.
-            backupQueriesPool.execute(new Runnable(){
-                @Override
+            synchronized (this)
+            {
+                if (done || backupSent)
+                    return;
+            }
+
+            enterRedundantMode(query, "no response after " + patience + "ms");
+            sendBackupQuery();
+        }
+
+        /**
+         * Asynchronously sends this resolution's query to all backup
+         * resolvers, if it was not already sent to them.
+         */
+        private void sendBackupQuery()
+        {
+            synchronized (this)
+            {
+                if (done || backupSent)
+                    return;
+                backupSent = true;
+            }
+
+            backupWorkers.execute(new Runnable()
+            {
                 public void run()
                 {
-                    if (done)
-                    {
-                        return;
-                    }
+                    queryBackup();
+                }
+            });
+        }
 
-                    Message localResponse = null;
-                    try
-                    {
-                        logger.info("Sending query for "
-                            + query.getQuestion().getName() + "/"
-                            + Type.string(query.getQuestion().getType())
-                            + " to backup resolvers");
-                        localResponse = backupResolver.send(query);
-                    }
-                    catch (Throwable exc)
-                    {
-                        logger.info("Exception occurred during backup "
-                                    +"DNS resolving" + exc);
+        /**
+         * Sends the query to the backup resolvers, unless the resolution
+         * completed while the query was waiting for a worker, and waits for
+         * their response.
+         */
+        private void queryBackup()
+        {
+            synchronized (this)
+            {
+                if (done)
+                    return;
+            }
 
-                        //keep this so that we can rethrow it
-                        exception = exc;
-                    }
-                    //if the default resolver has already replied we
-                    //ignore the reply of the backup ones.
-                    if(done)
-                    {
-                        return;
-                    }
+            long start = System.currentTimeMillis();
+            Message localResponse = null;
+            Exception localException = null;
+            try
+            {
+                logger.info("Sending query for "
+                    + query.getQuestion().getName() + "/"
+                    + Type.string(query.getQuestion().getType())
+                    + " to backup resolvers");
+                localResponse = backupResolver.send(query);
+                backupStats.addResponse(System.currentTimeMillis() - start);
+            }
+            catch (Throwable exc)
+            {
+                logger.info("Exception occurred during backup "
+                            +"DNS resolving" + exc);
+                backupStats.addFailure();
 
-                    synchronized(ParallelResolution.this)
-                    {
-                        //contrary to responses from the  primary resolver,
-                        //in this case we don't care whether the response is
-                        //satisfying: if it isn't, there's nothing we can do
-                        if (response == null)
-                        {
-                            response = localResponse;
-                            primaryResolverRespondedFirst = false;
-                        }
+                //keep this so that we can rethrow it
+                localException = toException(exc);
+            }
 
-                        done = true;
-                        ParallelResolution.this.notify();
-                    }
+            List<Waiter> toNotify;
+            Message result;
+
+            synchronized (this)
+            {
+                //if the default resolver has already replied we
+                //ignore the reply of the backup ones.
+                if (done)
+                    return;
+
+                //contrary to responses from the  primary resolver,
+                //in this case we don't care whether the response is
+                //satisfying: if it isn't, there's nothing we can do
+                if (localResponse != null)
+                {
+                    result = localResponse;
                 }
-            });
+                else
+                {
+                    backupFailed = true;
+                    exception = localException;
+
+                    //the default resolver may still answer
+                    if (!primaryFailed)
+                        return;
+                    result = primaryResponse;
+                }
+                toNotify = complete();
+            }
+
+            notifyWaiters(toNotify, result, false);
         }
 
         /**
-         * Waits for a response or an error to occur during <tt>waitFor</tt>
-         * milliseconds.If neither happens, we return false.
+         * Marks this resolution as completed, so that no more listeners are
+         * added to it.
          *
-         * @param waitFor the number of milliseconds to wait for a response or
-         * an error or <tt>0</tt> if we'd like to wait until either of these
-         * happen.
+         * @return the listeners to report the response to
+         */
+        private List<Waiter> complete()
+        {
+            done = true;
+            if (patienceTimeout != null)
+                patienceTimeout.cancel(false);
+            if (key != null)
+                resolutions.remove(key, this);
+            return waiters;
+        }
+
+        /**
+         * Reports the response, or the failure of the resolvers, to the
+         * listeners, and updates the redemption of the default resolver if
+         * the query was sent to the backup resolvers.
          *
-         * @return <tt>true</tt> if we returned because we received a response
-         * from a resolver or errors from everywhere, and <tt>false</tt> that
-         * didn't happen.
+         * @param waiters the listeners
+         * @param response the response or <tt>null</tt> if the resolvers
+         * failed
+         * @param primaryResolverRespondedFirst whether the response came
+         * from the default resolver
          */
-        public boolean waitForResponse(long waitFor)
+        private void notifyWaiters(List<Waiter> waiters,
+                                   Message response,
+                                   boolean primaryResolverRespondedFirst)
         {
-            synchronized(this)
+            if (backupSent)
+                updateRedemption(primaryResolverRespondedFirst);
+
+            for (Waiter waiter : waiters)
             {
-                if(done)
-                    return done;
                 try
                 {
-                    wait(waitFor);
+                    if (response != null)
+                    {
+                        waiter.listener.receiveMessage(
+                            waiter.id, waiter.adapt(response));
+                    }
+                    else
+                    {
+                        waiter.listener.handleException(
+                            waiter.id,
+                            (exception != null)
+                                ? exception
+                                : new IllegalStateException(
+                                        "ExtendedResolver failure"));
+                    }
                 }
-                catch (InterruptedException e)
+                catch (Throwable t)
                 {
-                    //we don't care
+                    logger.error("Error reporting DNS response to "
+                        + waiter.listener, t);
                 }
+            }
+        }
 
-                return done;
+        /**
+         * A listener waiting for the response of a resolution.
+         */
+        private class Waiter
+        {
+            /**
+             * The identifier of the query of the listener.
+             */
+            final Object id;
+
+            /**
+             * The query of the listener.
+             */
+            final Message query;
+
+            /**
+             * The listener.
+             */
+            final ResolverListener listener;
+
+            Waiter(Object id, Message query, ResolverListener listener)
+            {
+                this.id = id;
+                this.query = query;
+                this.listener = listener;
+            }
+
+            /**
+             * Returns the response to the query of the listener.
+             *
+             * @param response the response to the query of the resolution
+             * @return <tt>response</tt> if the listener sent that query, or a
+             * copy of <tt>response</tt> with the ID of the query of the
+             * listener
+             */
+            Message adapt(Message response)
+            {
+                if (query == ParallelResolution.this.query)
+                    return response;
+
+                Message copy = (Message) response.clone();
+
+                copy.getHeader().setID(query.getHeader().getID());
+                return copy;
             }
         }
+    }
+
+    /**
+     * The listener of the queries sent by {@link #send(Message)}, which the
+     * sending thread waits on.
+     */
+    private static class ResponseCollector
+        implements ResolverListener
+    {
+        /**
+         * The response to the query.
+         */
+        private Message response;
+
+        /**
+         * The error which prevented a response.
+         */
+        private Exception exception;
+
+        /**
+         * Indicates whether the query was answered or failed.
+         */
+        private boolean done = false;
+
+        public synchronized void receiveMessage(Object id, Message m)
+        {
+            response = m;
+            done = true;
+            notifyAll();
+        }
+
+        public synchronized void handleException(Object id, Exception e)
+        {
+            exception = e;
+            done = true;
+            notifyAll();
+        }
 
         /**
          * Waits for resolution to complete (if necessary) and then either
@@ -634,17 +1175,28 @@ public class ParallelResolverImpl
          * @return the response {@link Message} we received from the DNS.
          *
          * @throws IOException if this resolution ended badly because of a
-         * network IO error
+         * network IO error or if we were interrupted
          * @throws RuntimeException if something unexpected happened
          * during resolution.
          * @throws IllegalArgumentException if something unexpected happened
          * during resolution or if there was no response.
          */
-        public Message returnResponseOrThrowUp()
+        public synchronized Message returnResponseOrThrowUp()
             throws IOException, RuntimeException, IllegalArgumentException
         {
-            if(!done)
-                waitForResponse(0);
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                        "Interrupted while waiting for a DNS response");
+                }
+            }
 
             if(response != null)
             {
@@ -666,11 +1218,6 @@ public class ParallelResolverImpl
                         exception);
                 throw (RuntimeException) exception;
             }
-            else if (exception instanceof Error)
-            {
-                logger.warn("Error while using DNS resolver", exception);
-                throw (Error) exception;
-            }
             else
             {
                 logger.warn("Received a bad response from primary DNS resolver",
@@ -680,6 +1227,108 @@ public class ParallelResolverImpl
         }
     }
 
+    /**
+     * The latency of a resolver, smoothed the way TCP smoothes round-trip
+     * times (RFC 6298), from which we derive how long to wait for it.
+     */
+    private static class ServerStats
+    {
+        /**
+         * The name of the resolver, for logging.
+         */
+        private final String name;
+
+        /**
+         * The smoothed latency, in milliseconds.
+         */
+        private double smoothedLatency;
+
+        /**
+         * The smoothed deviation of the latency, in milliseconds.
+         */
+        private double latencyVariation;
+
+        /**
+         * The number of responses received from the resolver.
+         */
+        private long responses;
+
+        /**
+         * The number of queries the resolver failed to answer.
+         */
+        private long failures;
+
+        ServerStats(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Records the latency of a response.
+         *
+         * @param latency the time, in milliseconds, the resolver took to
+         * answer
+         */
+        synchronized void addResponse(long latency)
+        {
+            if (responses == 0)
+            {
+                smoothedLatency = latency;
+                latencyVariation = latency / 2.0;
+            }
+            else
+            {
+                latencyVariation
+                    = 0.75 * latencyVariation
+                        + 0.25 * Math.abs(smoothedLatency - latency);
+                smoothedLatency = 0.875 * smoothedLatency + 0.125 * latency;
+            }
+            responses++;
+        }
+
+        /**
+         * Records a query the resolver failed to answer.
+         */
+        synchronized void addFailure()
+        {
+            failures++;
+        }
+
+        /**
+         * Returns the time within which the resolver should answer.
+         *
+         * @return the time, in milliseconds, or <tt>-1</tt> if the resolver
+         * never answered
+         */
+        synchronized long getRetransmissionTimeout()
+        {
+            return (responses == 0)
+                ? -1
+                : (long) Math.ceil(smoothedLatency + 4 * latencyVariation);
+        }
+
+        /**
+         * Forgets the latency of the resolver, for instance because its
+         * servers changed.
+         */
+        synchronized void reset()
+        {
+            smoothedLatency = 0;
+            latencyVariation = 0;
+            responses = 0;
+            failures = 0;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return name + "[latency=" + Math.round(smoothedLatency)
+                + "ms variation=" + Math.round(latencyVariation)
+                + "ms responses=" + responses
+                + " failures=" + failures + "]";
+        }
+    }
+
     @SuppressWarnings("serial")
     private final Set<String> configNames = new HashSet<String>(5)
     {{
@@ -56,7 +56,12 @@ public class UnboundResolver
     }
 
     /**
-     * Timeout for DNS queries.
+     * The number of threads running the unbound queries.
+     */
+    private static final int MAX_THREADS = 8;
+
+    /**
+     * Timeout for DNS queries, in milliseconds.
      */
     private int timeout = 10000;
 
@@ -71,16 +76,30 @@ public class UnboundResolver
     private List<String> trustAnchors = new LinkedList<String>();
 
     /**
-     * Pool that executes our queries.
+     * Pool that executes our queries. Its size is bounded so that a burst of
+     * queries waits for threads instead of starting one thread each.
      */
-    private ExecutorService threadPool;
+    private final ThreadPoolExecutor threadPool;
 
     /**
      * Creates a new instance of this class.
      */
     public UnboundResolver()
     {
-        threadPool = Executors.newCachedThreadPool();
+        threadPool = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "UnboundResolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        threadPool.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -150,7 +169,7 @@ public class UnboundResolver
         });
         try
         {
-            return future.get(timeout, TimeUnit.SECONDS);
+            return future.get(timeout, TimeUnit.MILLISECONDS);
         }
         catch (InterruptedException e)
         {
@@ -166,6 +185,9 @@ public class UnboundResolver
         }
         catch (TimeoutException e)
         {
+            // don't resolve a query still waiting for a thread, nobody
+            // wants its answer anymore
+            future.cancel(false);
             throw new SocketTimeoutException(e.getMessage());
         }
     }
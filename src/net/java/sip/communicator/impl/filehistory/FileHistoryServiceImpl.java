@@ -308,6 +308,31 @@ public class FileHistoryServiceImpl
         return result;
     }
 
+    /**
+     * Counts the file transfers made by day, without reading them.
+     *
+     * @param contact MetaContact the receiver or sender of the files
+     * @param startDate Date the start date of the transfers or <tt>null</tt>
+     * @param endDate Date the end date of the transfers or <tt>null</tt>
+     * @return the number of file transfers of every day overlapping the
+     * period which has file transfers, by the start of the day
+     * @throws RuntimeException
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(MetaContact contact,
+                                                      Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        SortedMap<Date, Integer> result = new TreeMap<Date, Integer>();
+
+        for (HistoryReader reader : getHistoryReaders(contact).values())
+        {
+            HistoryRecordCounts.addCounts(
+                result, reader.countRecordsByDay(startDate, endDate));
+        }
+        return result;
+    }
+
     /**
      * Returns all the file transfers made between the given dates and
      * having the given keywords in the filename
@@ -14,6 +14,7 @@ import java.net.*;
 import java.text.*;
 import java.util.*;
 import java.util.Map;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -52,6 +53,11 @@ import org.osgi.framework.*;
  * is applied to the document to provide the look&feel. All smileys and link
  * strings are processed and finally replaced by corresponding images and HTML
  * links.
+ * <p>
+ * Only the last messages are kept in the document. The older ones are removed
+ * from it and kept as HTML, and are put back in the document when the user
+ * scrolls to its top. The elements of the messages are indexed by ID so that
+ * finding one does not walk the whole document.
  *
  * @author Yana Stamcheva
  * @author Lyubomir Marinov
@@ -140,6 +146,29 @@ public class ChatConversationPanel
         "([^<]*+)(?:<(?:[^>\"]*(?:\"[^\"]*+\"?)*)*+>?)?",
         Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
+    /**
+     * The IDs of the elements which may start a message in the document.
+     */
+    private static final String[] MESSAGE_IDS
+        = new String[]
+                {
+                    ChatHtmlUtils.MESSAGE_TEXT_ID,
+                    "statusMessage",
+                    "systemMessage",
+                    "actionMessage"
+                };
+
+    /**
+     * The maximum number of messages removed from the document, which are
+     * kept to be shown again when the user scrolls back.
+     */
+    private static final int MAX_EVICTED_MESSAGES = 500;
+
+    /**
+     * The number of removed messages put back in the document at once.
+     */
+    private static final int EVICTED_MESSAGES_PAGE_SIZE = 20;
+
     /**
      * List for observing text messages.
      */
@@ -229,6 +258,31 @@ public class ChatConversationPanel
 
     private String lastMessageUID = null;
 
+    /**
+     * The elements of the messages in the document, by ID.
+     */
+    private final Map<String, Element> elementsById
+        = new ConcurrentHashMap<String, Element>();
+
+    /**
+     * The HTML of the messages removed from the document, from the oldest
+     * one. Only accessed in the event dispatch thread.
+     */
+    private final LinkedList<String> evictedMessages
+        = new LinkedList<String>();
+
+    /**
+     * Whether removed messages are being put back in the document.
+     */
+    private boolean loadingEvictedMessages = false;
+
+    /**
+     * Whether the oldest removed messages were dropped from
+     * {@link #evictedMessages}, in which case they are loaded from history
+     * when the user scrolls back to them.
+     */
+    private boolean evictedMessagesDropped = false;
+
     private boolean isSimpleTheme = true;
 
     private ShowPreviewDialog showPreview
@@ -418,6 +472,17 @@ public class ChatConversationPanel
 
         chatTextPane.addComponentListener(componentListener);
         getViewport().addComponentListener(componentListener);
+
+        getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener()
+        {
+            public void adjustmentValueChanged(AdjustmentEvent e)
+            {
+                if (!e.getValueIsAdjusting()
+                        && (e.getValue()
+                                == e.getAdjustable().getMinimum()))
+                    loadEvictedMessages();
+            }
+        });
     }
 
     /**
@@ -432,24 +497,35 @@ public class ChatConversationPanel
     {
         synchronized (scrollToBottomRunnable)
         {
-            JScrollBar verticalScrollBar = getVerticalScrollBar();
-
-            if (verticalScrollBar != null)
-            {
-                BoundedRangeModel verticalScrollBarModel
-                    = verticalScrollBar.getModel();
-
-                if ((verticalScrollBarModel.getValue()
-                                + verticalScrollBarModel.getExtent()
-                            >= verticalScrollBarModel.getMaximum())
-                        || !verticalScrollBar.isVisible())
-                    scrollToBottomIsPending = true;
-            }
+            if (isScrolledToBottom())
+                scrollToBottomIsPending = true;
         }
 
         super.setBounds(x, y, width, height);
     }
 
+    /**
+     * Determines whether the vertical scroll bar of {@link #chatTextPane} is
+     * at its bottom or not shown.
+     *
+     * @return <tt>true</tt> if the end of the conversation is shown
+     */
+    private boolean isScrolledToBottom()
+    {
+        JScrollBar verticalScrollBar = getVerticalScrollBar();
+
+        if (verticalScrollBar == null)
+            return true;
+
+        BoundedRangeModel verticalScrollBarModel
+            = verticalScrollBar.getModel();
+
+        return (verticalScrollBarModel.getValue()
+                        + verticalScrollBarModel.getExtent()
+                    >= verticalScrollBarModel.getMaximum())
+                || !verticalScrollBar.isVisible();
+    }
+
     /**
      * Retrieves the contents of the sent message with the given ID.
      *
@@ -458,10 +534,7 @@ public class ChatConversationPanel
      */
     public String getMessageContents(String messageUID)
     {
-        Element root = document.getDefaultRootElement();
-        Element e = document.getElement(
-            root,
-            Attribute.ID,
+        Element e = getMessageElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + messageUID);
         if (e == null)
         {
@@ -675,6 +748,40 @@ public class ChatConversationPanel
         return chatString;
     }
 
+    /**
+     * Processes a message loaded from history which precedes the messages of
+     * the document. Unlike {@link #processMessage(ChatMessage,
+     * ProtocolProviderService, String)} it is never joined to the last
+     * message, which stays the last one.
+     *
+     * @param chatMessage the message
+     * @param protocolProvider the protocol provider of the message
+     * @param contactAddress the address of the contact of the message
+     * @return the formatted message
+     */
+    public String processEarlierMessage(
+            ChatMessage chatMessage,
+            ProtocolProviderService protocolProvider,
+            String contactAddress)
+    {
+        String lastUID = lastMessageUID;
+        Date lastTimestamp = lastMessageTimestamp;
+        Date lastIncomingTimestamp = lastIncomingMsgTimestamp;
+
+        lastMessageUID = null;
+        try
+        {
+            return processMessage(
+                chatMessage, null, protocolProvider, contactAddress);
+        }
+        finally
+        {
+            lastMessageUID = lastUID;
+            lastMessageTimestamp = lastTimestamp;
+            lastIncomingMsgTimestamp = lastIncomingTimestamp;
+        }
+    }
+
     /**
      * Processes the message given by the parameters.
      *
@@ -715,7 +822,7 @@ public class ChatConversationPanel
             return;
         }
 
-        Element lastMsgElement = document.getElement(
+        Element lastMsgElement = getMessageElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + previousMessageUID);
 
         String contactAddress
@@ -747,8 +854,11 @@ public class ChatConversationPanel
             try
             {
                 Element parentElement = lastMsgElement.getParentElement();
+                int offset = parentElement.getEndOffset() - 1;
+                int oldLength = document.getLength();
 
                 document.insertBeforeEnd(parentElement, newMessage);
+                indexInsertedElements(offset, oldLength);
 
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
@@ -792,11 +902,8 @@ public class ChatConversationPanel
         }
 
         String correctedUID = chatMessage.getCorrectedMessageUID();
-        Element root = document.getDefaultRootElement();
         Element correctedMsgElement
-            = document.getElement(root,
-                                  Attribute.ID,
-                                  ChatHtmlUtils.MESSAGE_TEXT_ID + correctedUID);
+            = getMessageElement(ChatHtmlUtils.MESSAGE_TEXT_ID + correctedUID);
 
         if (correctedMsgElement == null)
         {
@@ -831,7 +938,11 @@ public class ChatConversationPanel
         {
             try
             {
+                int offset = correctedMsgElement.getStartOffset();
+                int oldLength = document.getLength();
+
                 document.setOuterHTML(correctedMsgElement, newMessage);
+                indexInsertedElements(offset, oldLength);
 
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time
@@ -895,14 +1006,18 @@ public class ChatConversationPanel
         synchronized (scrollToBottomRunnable)
         {
             Element root = document.getDefaultRootElement();
+            // the body element
+            Element body = root.getElement(root.getElementCount() - 1);
+            int offset = body.getEndOffset() - 1;
+            int oldLength = document.getLength();
 
             try
             {
                 document.insertBeforeEnd(
-                            // the body element
-                            root.getElement(root.getElementCount() - 1),
+                            body,
                             // the message to insert
                             message);
+                indexInsertedElements(offset, oldLength);
 
                 // Need to call explicitly scrollToBottom, because for some
                 // reason the componentResized event isn't fired every time we
@@ -973,85 +1088,359 @@ public class ChatConversationPanel
 
     /**
      * Ensures that the document won't become too big. When the document reaches
-     * a certain size the first message in the page is removed.
+     * a certain size the first messages in the page are removed, and kept to
+     * be shown again if the user scrolls back. Messages are not removed while
+     * the user has scrolled back, as they may be the ones being read.
      */
     private void ensureDocumentSize()
     {
-        if (document.getLength() > Chat.CHAT_BUFFER_SIZE)
+        if (!isScrolledToBottom())
+            return;
+
+        while (document.getLength() > Chat.CHAT_BUFFER_SIZE)
         {
-            String[] ids = new String[]
-                                      {ChatHtmlUtils.MESSAGE_TEXT_ID,
-                                       "statusMessage",
-                                       "systemMessage",
-                                       "actionMessage"};
+            Element firstMsgElement = findElement(Attribute.ID, MESSAGE_IDS);
 
-            Element firstMsgElement = findElement(Attribute.ID, ids);
+            if (firstMsgElement == null)
+                return;
 
             int startIndex = firstMsgElement.getStartOffset();
             int endIndex = firstMsgElement.getEndOffset();
 
+            if(firstMsgElement.getName().equals("table"))
+            {
+                // as we remove a header for maybe several messages, remove
+                // the messages without header following it
+                Element parent = firstMsgElement.getParentElement();
+
+                for (int i = parent.getElementIndex(startIndex) + 1;
+                        i < parent.getElementCount();
+                        i++)
+                {
+                    Element msgElement = parent.getElement(i);
+                    String id
+                        = (String) msgElement.getAttributes().getAttribute(
+                                Attribute.ID);
+
+                    if (!msgElement.getName().equals("div")
+                            || (id == null)
+                            || !id.startsWith(ChatHtmlUtils.MESSAGE_TEXT_ID))
+                        break;
+                    endIndex = msgElement.getEndOffset();
+                }
+            }
+
+            // currently there is a problem of deleting the last message if it
+            // is the last message on the view
+            if (endIndex - startIndex >= document.getLength())
+                return;
+
+            String html = getHTML(document, startIndex, endIndex);
+
             try
             {
+                unindexElements(firstMsgElement.getParentElement(),
+                                startIndex,
+                                endIndex);
+
                 // Remove the message.
                 this.document.remove(startIndex, endIndex - startIndex);
             }
             catch (BadLocationException e)
             {
                 logger.error("Error removing messages from chat: ", e);
+                return;
             }
 
-            if(firstMsgElement.getName().equals("table"))
+            if (html != null)
             {
-                // as we have removed a header for maybe several messages,
-                // delete all messages without header
-                deleteAllMessagesWithoutHeader();
+                evictedMessages.addLast(html);
+                if (evictedMessages.size() > MAX_EVICTED_MESSAGES)
+                {
+                    evictedMessages.removeFirst();
+                    evictedMessagesDropped = true;
+                }
             }
         }
     }
 
     /**
-     * Deletes all messages "div"s that are missing their header the table tag.
-     * The method calls itself recursively.
+     * Puts back at the start of the document the last messages removed from
+     * it, keeping the messages shown in the viewport where they are. Once
+     * the kept messages are all shown again, the messages which were dropped
+     * are loaded from history.
      */
-    private void deleteAllMessagesWithoutHeader()
+    private void loadEvictedMessages()
     {
-        String[] ids = new String[]
-            {ChatHtmlUtils.MESSAGE_TEXT_ID,
-                "statusMessage",
-                "systemMessage",
-                "actionMessage"};
+        if (loadingEvictedMessages)
+            return;
+
+        if (evictedMessages.isEmpty())
+        {
+            if (!evictedMessagesDropped
+                    || !(chatContainer instanceof ChatPanel))
+                return;
 
-        Element firstMsgElement = findElement(Attribute.ID, ids);
+            Date firstMsgTimestamp = getPageFirstMsgTimestamp();
 
-        if(firstMsgElement == null
-            || !firstMsgElement.getName().equals("div"))
+            if (firstMsgTimestamp.getTime() == Long.MAX_VALUE)
+            {
+                evictedMessagesDropped = false;
+                return;
+            }
+
+            loadingEvictedMessages = true;
+            ((ChatPanel) chatContainer).loadEarlierHistory(firstMsgTimestamp);
+            return;
+        }
+
+        StringBuilder html = new StringBuilder();
+
+        for (int i = 0;
+                (i < EVICTED_MESSAGES_PAGE_SIZE) && !evictedMessages.isEmpty();
+                i++)
+            html.insert(0, evictedMessages.removeLast());
+
+        insertAtStart(html.toString());
+    }
+
+    /**
+     * Puts messages loaded from history, which precede the messages of the
+     * document, at the start of the document, unless it was cleared since
+     * they were requested.
+     *
+     * @param html the HTML of the messages or <tt>null</tt> if there are no
+     * earlier messages in history
+     */
+    void insertEarlierMessages(String html)
+    {
+        if (!evictedMessagesDropped || (html == null) || (html.length() == 0))
         {
+            evictedMessagesDropped = false;
+            loadingEvictedMessages = false;
             return;
         }
 
-        int startIndex = firstMsgElement.getStartOffset();
-        int endIndex = firstMsgElement.getEndOffset();
+        insertAtStart(html);
+    }
 
-        try
+    /**
+     * Inserts messages at the start of the document, keeping the messages
+     * shown in the viewport where they are.
+     *
+     * @param html the HTML of the messages
+     */
+    private void insertAtStart(String html)
+    {
+        loadingEvictedMessages = true;
+
+        final int heightBefore = chatTextPane.getPreferredSize().height;
+
+        synchronized (scrollToBottomRunnable)
         {
-            // Remove the message.
-            if(endIndex - startIndex < document.getLength())
-                this.document.remove(startIndex, endIndex - startIndex);
-            else
+            Element root = document.getDefaultRootElement();
+            // the body element
+            Element body = root.getElement(root.getElementCount() - 1);
+            int offset = body.getStartOffset();
+            int oldLength = document.getLength();
+
+            try
             {
-                // currently there is a problem of deleting the last message
-                // if it is the last message on the view
-                return;
+                document.insertAfterStart(body, html);
+                indexInsertedElements(offset, oldLength);
+            }
+            catch (BadLocationException e)
+            {
+                logger.error("Insert in the HTMLDocument failed.", e);
             }
+            catch (IOException e)
+            {
+                logger.error("Insert in the HTMLDocument failed.", e);
+            }
+        }
+
+        final int heightAfter = chatTextPane.getPreferredSize().height;
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                JScrollBar verticalScrollBar = getVerticalScrollBar();
+
+                verticalScrollBar.setValue(
+                    verticalScrollBar.getValue()
+                        + heightAfter - heightBefore);
+                loadingEvictedMessages = false;
+            }
+        });
+    }
+
+    /**
+     * Returns the HTML of a part of a document.
+     *
+     * @param document the document
+     * @param startIndex the start of the part of the document
+     * @param endIndex the end of the part of the document
+     * @return the HTML of the part of the document or <tt>null</tt> if it
+     * cannot be written
+     */
+    static String getHTML(HTMLDocument document, int startIndex, int endIndex)
+    {
+        StringWriter writer = new StringWriter();
+
+        try
+        {
+            new MessageHTMLWriter(
+                    writer, document, startIndex, endIndex - startIndex)
+                .write();
         }
         catch (BadLocationException e)
         {
-            logger.error("Error removing messages from chat: ", e);
+            logger.error("Could not write chat messages", e);
+            return null;
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not write chat messages", e);
+            return null;
+        }
+
+        // only keep the content of the body
+        String html = writer.toString();
+        int start = html.indexOf("<body");
+        int end = html.lastIndexOf("</body>");
+
+        if (start >= 0)
+            start = html.indexOf('>', start) + 1;
+        if ((start <= 0) || (end < start))
+            return null;
+        return html.substring(start, end);
+    }
+
+    /**
+     * Returns the element of a message with the given ID.
+     *
+     * @param id the ID of the element
+     * @return the element or <tt>null</tt> if there is no such element in the
+     * document
+     */
+    private Element getMessageElement(String id)
+    {
+        Element element = elementsById.get(id);
+
+        if ((element != null) && !isInDocument(element))
+        {
+            // the document has rebuilt the element
+            element = document.getElement(id);
+            if (element == null)
+                elementsById.remove(id);
+            else
+                elementsById.put(id, element);
+        }
+        return element;
+    }
+
+    /**
+     * Determines whether an element is still part of the document.
+     *
+     * @param element the element
+     * @return <tt>true</tt> if <tt>element</tt> is part of the document
+     */
+    private boolean isInDocument(Element element)
+    {
+        Element child = element;
+        Element parent = element.getParentElement();
+
+        while (parent != null)
+        {
+            int index = parent.getElementIndex(child.getStartOffset());
+
+            if ((index < 0) || (parent.getElement(index) != child))
+                return false;
+            child = parent;
+            parent = parent.getParentElement();
+        }
+        return child == document.getDefaultRootElement();
+    }
+
+    /**
+     * Indexes the elements of messages inserted in the document.
+     *
+     * @param offset the offset at which the messages have been inserted
+     * @param oldLength the length of the document before the insertion
+     */
+    private void indexInsertedElements(int offset, int oldLength)
+    {
+        indexElements(
+            document.getDefaultRootElement(),
+            offset,
+            offset + document.getLength() - oldLength);
+    }
+
+    /**
+     * Indexes the elements of messages in a part of the document.
+     *
+     * @param element the element which descendants are indexed
+     * @param startIndex the start of the part of the document
+     * @param endIndex the end of the part of the document
+     */
+    private void indexElements(Element element, int startIndex, int endIndex)
+    {
+        AttributeSet attributes = element.getAttributes();
+
+        if (attributes.isDefined(Attribute.ID))
+        {
+            Object id = attributes.getAttribute(Attribute.ID);
 
+            if ((id instanceof String)
+                    && ((String) id).startsWith(ChatHtmlUtils.MESSAGE_TEXT_ID))
+                elementsById.put((String) id, element);
+        }
+
+        if (element.isLeaf())
             return;
+
+        int last = element.getElementIndex(endIndex);
+
+        for (int i = element.getElementIndex(startIndex); i <= last; i++)
+        {
+            Element child = element.getElement(i);
+
+            if ((child.getEndOffset() >= startIndex)
+                    && (child.getStartOffset() <= endIndex))
+                indexElements(child, startIndex, endIndex);
+        }
+    }
+
+    /**
+     * Removes from the index the elements of messages in a part of the
+     * document, which is about to be removed.
+     *
+     * @param element the element which descendants are removed from the index
+     * @param startIndex the start of the part of the document
+     * @param endIndex the end of the part of the document
+     */
+    private void unindexElements(Element element, int startIndex, int endIndex)
+    {
+        AttributeSet attributes = element.getAttributes();
+
+        if ((element.getStartOffset() >= startIndex)
+                && (element.getEndOffset() <= endIndex)
+                && attributes.isDefined(Attribute.ID))
+        {
+            Object id = attributes.getAttribute(Attribute.ID);
+
+            if ((id instanceof String) && (elementsById.get(id) == element))
+                elementsById.remove(id);
         }
 
-        deleteAllMessagesWithoutHeader();
+        if (element.isLeaf())
+            return;
+
+        int last = element.getElementIndex(endIndex - 1);
+
+        for (int i = element.getElementIndex(startIndex); i <= last; i++)
+            unindexElements(element.getElement(i), startIndex, endIndex);
     }
 
     /**
@@ -1333,12 +1722,38 @@ public class ChatConversationPanel
      */
     public void clear()
     {
+        elementsById.clear();
+        clearEvictedMessages();
+
         this.document = (HTMLDocument) editorKit.createDefaultDocument();
         Constants.loadSimpleStyle(
             document.getStyleSheet(), chatTextPane.getFont());
         this.isSimpleTheme = ConfigurationUtils.isChatSimpleThemeEnabled();
     }
 
+    /**
+     * Forgets the messages removed from the document. They are only accessed
+     * in the event dispatch thread, where the messages added after this call
+     * are queued too.
+     */
+    private void clearEvictedMessages()
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    clearEvictedMessages();
+                }
+            });
+            return;
+        }
+
+        evictedMessages.clear();
+        evictedMessagesDropped = false;
+    }
+
     /**
      * Sets the given document to the editor pane in this panel.
      *
@@ -1362,6 +1777,17 @@ public class ChatConversationPanel
         {
             scrollToBottomIsPending = true;
 
+            if (this.document != document)
+            {
+                elementsById.clear();
+                evictedMessages.clear();
+                evictedMessagesDropped = false;
+                indexElements(
+                    document.getDefaultRootElement(),
+                    0,
+                    document.getLength());
+            }
+
             this.document = document;
             chatTextPane.setDocument(this.document);
         }
@@ -1436,7 +1862,7 @@ public class ChatConversationPanel
         if (lastMessageUID != null)
         {
             Element lastMsgElement
-                = document.getElement(
+                = getMessageElement(
                         ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID);
 
             if (lastMsgElement != null)
@@ -1462,6 +1888,122 @@ public class ChatConversationPanel
         return timestamp;
     }
 
+    /**
+     * Writes the HTML of messages of the document, so that it can be inserted
+     * in the document again.
+     */
+    private static class MessageHTMLWriter
+        extends HTMLWriter
+    {
+        /**
+         * Creates a writer of a part of a document.
+         *
+         * @param writer the writer to write the HTML to
+         * @param document the document
+         * @param pos the start of the part of the document
+         * @param len the length of the part of the document
+         */
+        public MessageHTMLWriter(Writer writer,
+                                 HTMLDocument document,
+                                 int pos,
+                                 int len)
+        {
+            super(writer, document, pos, len);
+
+            setLineLength(Integer.MAX_VALUE);
+        }
+
+        /**
+         * Escapes the values of the attributes, as the original message
+         * attribute of messages holds HTML, before writing them.
+         */
+        @Override
+        protected void writeAttributes(AttributeSet attributes)
+            throws IOException
+        {
+            SimpleAttributeSet escapedAttributes = new SimpleAttributeSet();
+            Enumeration<?> names = attributes.getAttributeNames();
+
+            while (names.hasMoreElements())
+            {
+                Object name = names.nextElement();
+                Object value = attributes.getAttribute(name);
+
+                if ((value instanceof String)
+                        && !(name instanceof CSS.Attribute))
+                    value = escapeAttribute((String) value);
+                escapedAttributes.addAttribute(name, value);
+            }
+            super.writeAttributes(escapedAttributes);
+        }
+
+        /**
+         * Escapes the characters which cannot appear in a quoted attribute
+         * value. Only the entities which the HTML 3.2 parser of Swing decodes
+         * are used, so that the value is read back unchanged.
+         *
+         * @param value the value of the attribute
+         * @return the escaped value
+         */
+        private static String escapeAttribute(String value)
+        {
+            StringBuilder escaped = null;
+
+            for (int i = 0; i < value.length(); i++)
+            {
+                char c = value.charAt(i);
+                String entity;
+
+                switch (c)
+                {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                default:
+                    entity = null;
+                    break;
+                }
+
+                if (entity != null)
+                {
+                    if (escaped == null)
+                    {
+                        escaped = new StringBuilder(value.length() + 16);
+                        escaped.append(value, 0, i);
+                    }
+                    escaped.append(entity);
+                }
+                else if (escaped != null)
+                    escaped.append(c);
+            }
+            return (escaped == null) ? value : escaped.toString();
+        }
+
+        /**
+         * Skips the components added to the conversation, which cannot be
+         * written as HTML.
+         */
+        @Override
+        protected void text(Element element)
+            throws BadLocationException,
+                   IOException
+        {
+            if (element.getAttributes().getAttribute(
+                        StyleConstants.ComponentAttribute)
+                    == null)
+                super.text(element);
+        }
+    }
+
     /**
      * Extend Editor pane to add URL tooltips.
      */
@@ -1700,7 +2242,7 @@ public class ChatConversationPanel
         if (lastMessageUID == null)
             return false;
 
-        Element lastMsgElement = document.getElement(
+        Element lastMsgElement = getMessageElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID);
 
         if (lastMsgElement == null)
@@ -2135,8 +2677,16 @@ public class ChatConversationPanel
 
                     try
                     {
-                        Element elem = document.getElement(messageID);
+                        Element elem = getMessageElement(messageID);
+
+                        if (elem == null)
+                            return;
+
+                        int offset = elem.getStartOffset();
+                        int oldLength = document.getLength();
+
                         document.setOuterHTML(elem, newMessage);
+                        indexInsertedElements(offset, oldLength);
                     }
                     catch (BadLocationException ex)
                     {
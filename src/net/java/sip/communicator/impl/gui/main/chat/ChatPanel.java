@@ -801,6 +801,28 @@ public class ChatPanel
     private void processHistory( Collection<Object> historyList,
                                 String escapedMessageID)
     {
+        processHistory(historyList, escapedMessageID, false);
+    }
+
+    /**
+     * Process history messages, which either follow or precede the messages
+     * of the conversation. The files transferred before the messages of the
+     * conversation are not shown, as components are only added at the end of
+     * the conversation.
+     *
+     * @param historyList The collection of messages coming from history.
+     * @param escapedMessageID The incoming message needed to be ignored if
+     * contained in history.
+     * @param earlier whether the messages precede the messages of the
+     * conversation
+     * @return the HTML of the messages if they precede the messages of the
+     * conversation, otherwise <tt>null</tt> as they are appended to it
+     */
+    private String processHistory( Collection<Object> historyList,
+                                   String escapedMessageID,
+                                   boolean earlier)
+    {
+        StringBuilder earlierMessages = earlier ? new StringBuilder() : null;
         Iterator<Object> iterator = historyList.iterator();
 
         String messageType;
@@ -832,7 +854,8 @@ public class ChatPanel
                             messageType,
                             evt.getSourceMessage().getContent(),
                             evt.getSourceMessage().getContentType(),
-                            evt.getSourceMessage().getMessageUID());
+                            evt.getSourceMessage().getMessageUID(),
+                            earlier);
             }
             else if(o instanceof MessageReceivedEvent)
             {
@@ -856,7 +879,8 @@ public class ChatPanel
                                 messageType,
                                 evt.getSourceMessage().getContent(),
                                 evt.getSourceMessage().getContentType(),
-                                evt.getSourceMessage().getMessageUID());
+                                evt.getSourceMessage().getMessageUID(),
+                                earlier);
                 }
             }
             else if(o instanceof ChatRoomMessageDeliveredEvent)
@@ -876,7 +900,8 @@ public class ChatPanel
                             Chat.HISTORY_OUTGOING_MESSAGE,
                             evt.getMessage().getContent(),
                             evt.getMessage().getContentType(),
-                            evt.getMessage().getMessageUID());
+                            evt.getMessage().getMessageUID(),
+                            earlier);
             }
             else if(o instanceof ChatRoomMessageReceivedEvent)
             {
@@ -893,10 +918,11 @@ public class ChatPanel
                             Chat.HISTORY_INCOMING_MESSAGE,
                             evt.getMessage().getContent(),
                             evt.getMessage().getContentType(),
-                            evt.getMessage().getMessageUID());
+                            evt.getMessage().getMessageUID(),
+                            earlier);
                 }
             }
-            else if (o instanceof FileRecord)
+            else if ((o instanceof FileRecord) && !earlier)
             {
                 FileRecord fileRecord = (FileRecord) o;
 
@@ -909,12 +935,21 @@ public class ChatPanel
                 }
             }
 
-            if (historyString != null)
+            if (historyString == null)
+                continue;
+
+            if (earlier)
+                earlierMessages.append(historyString);
+            else
                 conversationPanel.appendMessageToEnd(
                     historyString, ChatHtmlUtils.HTML_CONTENT_TYPE);
         }
 
+        if (earlier)
+            return earlierMessages.toString();
+
         fireChatHistoryChange();
+        return null;
     }
 
     /**
@@ -1157,7 +1192,7 @@ public class ChatPanel
                                          String contentType)
     {
       return processHistoryMessage(contactName, contactDisplayName,
-              date, messageType, message, contentType, null);
+              date, messageType, message, contentType, null, false);
     }
 
     /**
@@ -1173,6 +1208,8 @@ public class ChatPanel
      * @param message The message text.
      * @param contentType the content type of the message (html or plain text)
      * @param messageId The ID of the message.
+     * @param earlier whether the message precedes the messages of the
+     * conversation
      *
      * @return a string containing the processed message.
      */
@@ -1182,14 +1219,22 @@ public class ChatPanel
                                          String messageType,
                                          String message,
                                          String contentType,
-                                         String messageId)
+                                         String messageId,
+                                         boolean earlier)
     {
         ChatMessage chatMessage = new ChatMessage(
             contactName, contactDisplayName, date,
                 messageType, null, message, contentType, messageId, null);
 
-        String processedMessage =
-            this.conversationPanel.processMessage(chatMessage,
+        String processedMessage;
+        if (earlier)
+            processedMessage = this.conversationPanel.processEarlierMessage(
+                chatMessage,
+                chatSession.getCurrentChatTransport().getProtocolProvider(),
+                chatSession.getCurrentChatTransport().getName());
+        else
+            processedMessage = this.conversationPanel.processMessage(
+                chatMessage,
                 chatSession.getCurrentChatTransport().getProtocolProvider(),
                 chatSession.getCurrentChatTransport().getName());
 
@@ -2225,6 +2270,48 @@ public class ChatPanel
         worker.start();
     }
 
+    /**
+     * Loads from history the messages preceding the first message of the
+     * conversation, which were removed from it, and puts them back at its
+     * start.
+     *
+     * @param firstMsgDate the date of the first message of the conversation
+     */
+    void loadEarlierHistory(final Date firstMsgDate)
+    {
+        SwingWorker worker = new SwingWorker()
+        {
+            private Collection<Object> historyList;
+
+            @Override
+            public Object construct() throws Exception
+            {
+                historyList = chatSession.getHistoryBeforeDate(
+                    firstMsgDate,
+                    MESSAGES_PER_PAGE);
+
+                return historyList;
+            }
+
+            /**
+             * Called on the event dispatching thread (not on the worker thread)
+             * after the <code>construct</code> method has returned.
+             */
+            @Override
+            public void finished()
+            {
+                String html = null;
+
+                if (historyList != null && historyList.size() > 0)
+                    html = processHistory(historyList, null, true);
+
+                conversationPanel.insertEarlierMessages(html);
+            }
+        };
+
+        worker.start();
+    }
+
     /**
      * Implements <tt>ChatPanel.loadNextFromHistory</tt>.
      * Loads next page from history.
@@ -429,11 +429,7 @@ public class HistoryWindow
                 progressBarTimer.addActionListener(new ActionListener() {
                     public void actionPerformed(ActionEvent e)
                     {
-                        mainPanel.remove(progressBar);
-                        mainPanel.add(readyLabel, BorderLayout.SOUTH);
-                        mainPanel.revalidate();
-                        mainPanel.repaint();
-                        progressBar.setValue(0);
+                        removeProgressBar();
                     }
                 });
                 progressBarTimer.start();
@@ -451,13 +447,16 @@ public class HistoryWindow
         @Override
         public void run()
         {
-            Collection<Object> msgList = null;
+            SortedMap<Date, Integer> counts = null;
 
+            // only the days with records are needed, count them instead of
+            // reading all the records
             if (historyContact instanceof MetaContact)
             {
-                msgList = history.findByEndDate(
+                counts = history.countRecordsByDay(
                     HISTORY_FILTER,
                     historyContact,
+                    null,
                     new Date(System.currentTimeMillis()));
             }
             else if(historyContact instanceof ChatRoomWrapper)
@@ -468,64 +467,42 @@ public class HistoryWindow
                 if(chatRoomWrapper.getChatRoom() == null)
                     return;
 
-                msgList = history.findByEndDate(
+                counts = history.countRecordsByDay(
                     HISTORY_FILTER,
                     chatRoomWrapper.getChatRoom(),
+                    null,
                     new Date(System.currentTimeMillis()));
             }
 
-            if (msgList != null)
-            for (Object o : msgList)
+            if (counts != null)
             {
-                Date date = new Date(0);
-
-                if (o instanceof MessageDeliveredEvent)
-                {
-                    MessageDeliveredEvent evt = (MessageDeliveredEvent)o;
-                    date = evt.getTimestamp();
-                }
-                else if (o instanceof MessageReceivedEvent)
-                {
-                    MessageReceivedEvent evt = (MessageReceivedEvent)o;
-                    date = evt.getTimestamp();
-                }
-                else if (o instanceof ChatRoomMessageReceivedEvent)
-                {
-                    ChatRoomMessageReceivedEvent
-                        evt = (ChatRoomMessageReceivedEvent) o;
-                    date = evt.getTimestamp();
-                }
-                else if (o instanceof ChatRoomMessageDeliveredEvent)
-                {
-                    ChatRoomMessageDeliveredEvent
-                        evt = (ChatRoomMessageDeliveredEvent) o;
-                    date = evt.getTimestamp();
-                }
-                else if (o instanceof FileRecord)
-                {
-                    FileRecord fileRecord = (FileRecord) o;
-                    date = fileRecord.getDate();
-                }
-
-                boolean containsDate = false;
-                Iterator<Date> iterator = datesDisplayed.iterator();
-                while(iterator.hasNext())
+                for (Date date : counts.keySet())
                 {
-                    Date currDate = iterator.next();
-                    containsDate
-                        = (GuiUtils.compareDatesOnly(date, currDate) == 0);
+                    boolean containsDate = false;
+                    for (Date currDate : datesDisplayed)
+                    {
+                        if (GuiUtils.compareDatesOnly(date, currDate) == 0)
+                        {
+                            containsDate = true;
+                            break;
+                        }
+                    }
 
-                    if(containsDate)
-                        break;
+                    if(!containsDate)
+                        datesDisplayed.add(date);
                 }
+            }
 
-                if(!containsDate)
+            // there is no search whose progress removes the progress bar
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
                 {
-                    datesDisplayed.add(date);
+                    removeProgressBar();
                 }
-            }
+            });
 
-            if((msgList != null) && (msgList.size() > 0))
+            if((counts != null) && (counts.size() > 0))
             {
                 Runnable updateDatesPanel = new Runnable() {
                     public void run() {
@@ -803,6 +780,18 @@ public class HistoryWindow
         }
     }
 
+    /**
+     * Replaces the progress bar with the ready label.
+     */
+    private void removeProgressBar()
+    {
+        this.mainPanel.remove(progressBar);
+        this.mainPanel.add(readyLabel, BorderLayout.SOUTH);
+        this.mainPanel.revalidate();
+        this.mainPanel.repaint();
+        this.progressBar.setValue(0);
+    }
+
     /**
      * Implements MessageListener.messageReceived method in order to refresh the
      * history when new message is received.
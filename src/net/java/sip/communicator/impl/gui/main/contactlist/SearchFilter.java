@@ -34,6 +34,12 @@ public class SearchFilter
      */
     protected Pattern filterPattern;
 
+    /**
+     * The filter string, lower-cased and without accents, which contacts are
+     * matched against.
+     */
+    private String normalizedFilterString;
+
     /**
      * The <tt>MetaContactListSource</tt> to search in.
      */
@@ -117,7 +123,7 @@ public class SearchFilter
             // First add the MetaContactListSource
             filterQuery.addContactQuery(defaultQuery);
 
-            mclSource.startQuery(defaultQuery, filterPattern);
+            mclSource.startQuery(defaultQuery, filterString);
         }
         else if (sourceContactList.getDefaultFilter()
                     .equals(TreeContactList.historyFilter))
@@ -266,6 +272,8 @@ public class SearchFilter
                         Pattern.MULTILINE
                             | Pattern.CASE_INSENSITIVE
                             | Pattern.UNICODE_CASE);
+        this.normalizedFilterString
+            = MetaContactSearchIndex.normalize(filterString);
 
         this.isSearchingPhoneNumber
             = GuiActivator.getPhoneNumberI18nService().isPhoneNumber(filter);
@@ -279,8 +287,10 @@ public class SearchFilter
      */
     private boolean isMatching(String text)
     {
-        if (filterPattern != null)
-            return filterPattern.matcher(text).find();
+        // match like the meta contact list search index does
+        if (normalizedFilterString != null)
+            return MetaContactSearchIndex.normalize(text)
+                .contains(normalizedFilterString);
 
         if(isSearchingPhoneNumber && this.filterString != null)
             return GuiActivator.getPhoneNumberI18nService()
@@ -387,48 +387,55 @@ public class TreeContactList
     }
 
     /**
-     * Indicates that a <tt>MetaContact</tt> has been received for a search in
-     * the <tt>MetaContactListService</tt>.
+     * Indicates that a <tt>MetaContact</tt>, or a batch of them, has been
+     * received for a search in the <tt>MetaContactListService</tt>. The
+     * contacts of a batch are added to the list at once.
      * @param event the received <tt>MetaContactQueryEvent</tt>
      */
     public void metaContactReceived(MetaContactQueryEvent event)
     {
-        MetaContact metaContact = event.getMetaContact();
-        MetaContactGroup parentGroup = metaContact.getParentMetaContactGroup();
+        List<MetaContact> metaContacts = event.getMetaContacts();
+        List<UIContact> uiContacts
+            = new ArrayList<UIContact>(metaContacts.size());
+        List<UIGroup> uiGroups = new ArrayList<UIGroup>(metaContacts.size());
 
-        UIGroup uiGroup = null;
-        if (!MetaContactListSource.isRootGroup(parentGroup))
+        for (MetaContact metaContact : metaContacts)
         {
-            synchronized (parentGroup)
-            {
-                uiGroup = MetaContactListSource
-                    .getUIGroup(parentGroup);
+            MetaContactGroup parentGroup
+                = metaContact.getParentMetaContactGroup();
 
-                if (uiGroup == null)
+            UIGroup uiGroup = null;
+            if (!MetaContactListSource.isRootGroup(parentGroup))
+            {
+                synchronized (parentGroup)
+                {
                     uiGroup = MetaContactListSource
-                        .createUIGroup(parentGroup);
-            }
-        }
+                        .getUIGroup(parentGroup);
 
-        UIContactImpl newUIContact;
-        synchronized (metaContact)
-        {
-            newUIContact
-                = MetaContactListSource.getUIContact(metaContact);
+                    if (uiGroup == null)
+                        uiGroup = MetaContactListSource
+                            .createUIGroup(parentGroup);
+                }
+            }
 
-            if (newUIContact == null)
+            UIContactImpl newUIContact;
+            synchronized (metaContact)
             {
-                newUIContact = MetaContactListSource
-                    .createUIContact(metaContact);
-            }
-        }
+                newUIContact
+                    = MetaContactListSource.getUIContact(metaContact);
 
-        addContact( event.getQuerySource(),
-            newUIContact,
-            uiGroup,
-            true);
+                if (newUIContact == null)
+                {
+                    newUIContact = MetaContactListSource
+                        .createUIContact(metaContact);
+                }
+            }
 
+            uiContacts.add(newUIContact);
+            uiGroups.add(uiGroup);
+        }
 
+        addContacts(event.getQuerySource(), uiContacts, uiGroups, true);
     }
 
     /**
@@ -795,17 +802,18 @@ public class TreeContactList
     }
 
     /**
-     * Adds the given <tt>contact</tt> to this list.
-     * @param query the <tt>MetaContactQuery</tt> that adds the given contact
-     * @param contact the <tt>UIContact</tt> to add
-     * @param group the <tt>UIGroup</tt> to add to
-     * @param isSorted indicates if the contact should be sorted regarding to
+     * Adds the given <tt>contacts</tt> to this list, at once on the event
+     * dispatch thread.
+     * @param query the <tt>MetaContactQuery</tt> that adds the given contacts
+     * @param contacts the <tt>UIContact</tt>s to add
+     * @param groups the <tt>UIGroup</tt>s to add the contacts to, by index
+     * @param isSorted indicates if the contacts should be sorted regarding to
      * the <tt>GroupNode</tt> policy
      */
-    private void addContact(final MetaContactQuery query,
-                            final UIContact contact,
-                            final UIGroup group,
-                            final boolean isSorted)
+    private void addContacts(final MetaContactQuery query,
+                             final List<UIContact> contacts,
+                             final List<UIGroup> groups,
+                             final boolean isSorted)
     {
         if (!SwingUtilities.isEventDispatchThread())
         {
@@ -813,16 +821,21 @@ public class TreeContactList
             {
                 public void run()
                 {
-                    addContact(query, contact, group, isSorted);
+                    addContacts(query, contacts, groups, isSorted);
                 }
             });
             return;
         }
 
-        // If in the meantime the corresponding query was canceled
-        // we don't proceed with adding.
-        if (query != null && !query.isCanceled())
-            addContact(contact, group, isSorted, true);
+        for (int i = 0; i < contacts.size(); i++)
+        {
+            // If in the meantime the corresponding query was canceled
+            // we don't proceed with adding.
+            if (query == null || query.isCanceled())
+                return;
+
+            addContact(contacts.get(i), groups.get(i), isSorted, true);
+        }
     }
 
     /**
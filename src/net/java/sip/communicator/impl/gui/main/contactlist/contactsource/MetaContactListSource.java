@@ -10,7 +10,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
-import java.util.regex.*;
+import java.util.concurrent.*;
 
 import javax.swing.*;
 
@@ -68,6 +68,11 @@ public class MetaContactListSource
      */
     private static final int INITIAL_CONTACT_COUNT = 30;
 
+    /**
+     * The number of filter results fired at once to the query.
+     */
+    private static final int RESULT_BATCH_SIZE = 100;
+
     /**
      * The list of action buttons for this meta contact.
      */
@@ -85,6 +90,33 @@ public class MetaContactListSource
     private static final Logger logger
         = Logger.getLogger(MetaContactListSource.class);
 
+    /**
+     * The normalized search strings of the meta contacts, built on the first
+     * query.
+     */
+    private final MetaContactSearchIndex searchIndex
+        = new MetaContactSearchIndex();
+
+    /**
+     * The thread running the queries one after the other.
+     */
+    private final ExecutorService queryExecutor
+        = Executors.newSingleThreadExecutor(
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "MetaContactListSource query");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+    /**
+     * The last started query, until it finishes.
+     */
+    private MetaContactQuery currentQuery = null;
+
     /**
      * Returns the <tt>UIContact</tt> corresponding to the given
      * <tt>MetaContact</tt>.
@@ -184,176 +216,128 @@ public class MetaContactListSource
     }
 
     /**
-     * Starts the query.
-     * 
-     * @param filterPattern the pattern to filter through
+     * Starts a query for the meta contacts matching a filter string, which
+     * cancels the previous query if it is still running. The display names
+     * and the addresses of the contacts are matched, ignoring case and
+     * accents, through the search index.
+     *
      * @param query the query to be started
+     * @param filterString the string to filter through
      */
     public void startQuery(final MetaContactQuery query,
-        final Pattern filterPattern)
+        final String filterString)
     {
-        new Thread()
+        synchronized (this)
+        {
+            if (currentQuery != null)
+                currentQuery.cancel();
+            currentQuery = query;
+        }
+
+        queryExecutor.execute(new Runnable()
         {
-            @Override
             public void run()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
-
-                if (!query.isCanceled())
-                    query.fireQueryEvent(
-                        MetaContactQueryStatusEvent.QUERY_COMPLETED);
-                else
-                    query.fireQueryEvent(
-                        MetaContactQueryStatusEvent.QUERY_CANCELED);
+                try
+                {
+                    if (!query.isCanceled())
+                        queryMetaContactSource(filterString, query);
+
+                    if (!query.isCanceled())
+                        query.fireQueryEvent(
+                            MetaContactQueryStatusEvent.QUERY_COMPLETED);
+                    else
+                        query.fireQueryEvent(
+                            MetaContactQueryStatusEvent.QUERY_CANCELED);
+                }
+                finally
+                {
+                    synchronized (MetaContactListSource.this)
+                    {
+                        if (currentQuery == query)
+                            currentQuery = null;
+                    }
+                }
             }
-        }.start();
+        });
     }
 
     /**
-     * Filters the children in the given <tt>MetaContactGroup</tt> to match the
-     * given <tt>filterPattern</tt> and stores the result in the given
-     * <tt>treeModel</tt>.
-     * @param filterPattern the pattern to filter through
-     * @param parentGroup the <tt>MetaContactGroup</tt> to filter
+     * Finds the meta contacts matching a filter string in the search index
+     * and gives them to the query: the first ones are added directly to the
+     * contact list, the others are fired in batches.
+     *
+     * @param filterString the string to filter through
      * @param query the object that tracks the query
-     * @param resultCount the initial result count we would insert directly to
-     * the contact list without firing events
      */
-    public void queryMetaContactSource(Pattern filterPattern,
-                                        MetaContactGroup parentGroup,
-                                        MetaContactQuery query,
-                                        int resultCount)
+    private void queryMetaContactSource(String filterString,
+                                        MetaContactQuery query)
     {
-        Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
+        searchIndex.load(GuiActivator.getContactListService());
 
-        while (childContacts.hasNext() && !query.isCanceled())
-        {
-            MetaContact metaContact = childContacts.next();
-
-            if (isMatching(filterPattern, metaContact))
-            {
-                resultCount++;
+        List<MetaContact> matches = searchIndex.search(filterString, query);
+        int initialCount = Math.min(matches.size(), INITIAL_CONTACT_COUNT);
 
-                if (resultCount <= INITIAL_CONTACT_COUNT)
-                {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
-                    {
-                        synchronized (parentGroup)
-                        {
-                            uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
-
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact 
-                            = MetaContactListSource.getUIContact(metaContact);
-    
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-                        
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
-                    }
-                    
-                    query.setInitialResultCount(resultCount);
-                }
-                else
-                {
-                    query.fireQueryEvent(metaContact);
-                }
-            }
+        for (int i = 0; i < initialCount && !query.isCanceled(); i++)
+        {
+            addInitialResult(matches.get(i));
+            query.setInitialResultCount(i + 1);
         }
 
-        // If in the meantime the query is canceled we return here.
-        if(query.isCanceled())
-            return;
-
-        Iterator<MetaContactGroup> subgroups = parentGroup.getSubgroups();
-        while (subgroups.hasNext() && !query.isCanceled())
+        for (int i = initialCount;
+                i < matches.size() && !query.isCanceled();
+                i += RESULT_BATCH_SIZE)
         {
-            MetaContactGroup subgroup = subgroups.next();
-
-            queryMetaContactSource(filterPattern, subgroup, query, resultCount);
+            query.fireQueryEvents(
+                matches.subList(
+                    i, Math.min(matches.size(), i + RESULT_BATCH_SIZE)));
         }
     }
 
     /**
-     * Checks if the given <tt>metaContact</tt> is matching the given
-     * <tt>filterPattern</tt>.
-     * A <tt>MetaContact</tt> would be matching the filter if one of the
-     * following is true:<br>
-     * - its display name contains the filter string
-     * - at least one of its child protocol contacts has a display name or an
-     * address that contains the filter string.
-     * @param filterPattern the filter pattern to check for matches
-     * @param metaContact the <tt>MetaContact</tt> to check
-     * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
-     * matching the current filter, otherwise returns <tt>false</tt>
+     * Adds a meta contact matching a query directly to the contact list.
+     *
+     * @param metaContact the meta contact
      */
-    private boolean isMatching(Pattern filterPattern, MetaContact metaContact)
+    private void addInitialResult(MetaContact metaContact)
     {
-        Matcher matcher = filterPattern.matcher(metaContact.getDisplayName());
+        MetaContactGroup parentGroup = metaContact.getParentMetaContactGroup();
+        UIGroup uiGroup = null;
 
-        if(matcher.find())
-            return true;
+        if (parentGroup == null)
+            return;
 
-        Iterator<Contact> contacts = metaContact.getContacts();
-        while (contacts.hasNext())
+        if (!MetaContactListSource.isRootGroup(parentGroup))
         {
-            Contact contact = contacts.next();
-
-            matcher = filterPattern.matcher(contact.getDisplayName());
-
-            if (matcher.find())
-                return true;
-
-            matcher = filterPattern.matcher(contact.getAddress());
-
-            if (matcher.find())
-                return true;
+            synchronized (parentGroup)
+            {
+                uiGroup = MetaContactListSource
+                    .getUIGroup(parentGroup);
+                if (uiGroup == null)
+                    uiGroup = MetaContactListSource
+                        .createUIGroup(parentGroup);
+            }
         }
-        return false;
-    }
 
-    /**
-     * Checks if the given <tt>metaGroup</tt> is matching the current filter. A
-     * group is matching the current filter only if it contains at least one
-     * child <tt>MetaContact</tt>, which is matching the current filter.
-     * @param filterPattern the filter pattern to check for matches
-     * @param metaGroup the <tt>MetaContactGroup</tt> to check
-     * @return <tt>true</tt> to indicate that the given <tt>metaGroup</tt> is
-     * matching the current filter, otherwise returns <tt>false</tt>
-     */
-    public boolean isMatching(Pattern filterPattern, MetaContactGroup metaGroup)
-    {
-        Iterator<MetaContact> contacts = metaGroup.getChildContacts();
-
-        while (contacts.hasNext())
+        UIContact newUIContact;
+        synchronized (metaContact)
         {
-            MetaContact metaContact = contacts.next();
+            newUIContact
+                = MetaContactListSource.getUIContact(metaContact);
 
-            if (isMatching(filterPattern, metaContact))
-                return true;
+            if (newUIContact == null)
+            {
+                newUIContact
+                    = MetaContactListSource
+                        .createUIContact(metaContact);
+            }
+
+            GuiActivator.getContactList().addContact(
+                newUIContact,
+                uiGroup,
+                true,
+                true);
         }
-        return false;
     }
 
     public void contactPresenceStatusChanged(
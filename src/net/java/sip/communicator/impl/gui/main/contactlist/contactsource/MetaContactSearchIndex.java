@@ -0,0 +1,369 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.service.gui.event.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * The normalized search strings of the meta contacts of the meta contact
+ * list: their display names and the display names and addresses of their
+ * protocol contacts, lower-cased and without accents. The strings are
+ * computed once when a meta contact is indexed and again only when the meta
+ * contact list reports that the meta contact or its protocol contacts
+ * changed, so that searches only compare strings.
+ * <p>
+ * A meta contact matches a filter string if one of its search strings
+ * contains it. Meta contacts with a word starting with the filter string
+ * come first. When the filter string extends the previous one and the list
+ * did not change, only the previous matches are searched.
+ */
+public class MetaContactSearchIndex
+    extends MetaContactListAdapter
+{
+    /**
+     * The number of entries searched between checks for the cancellation of
+     * the query.
+     */
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    /**
+     * The entries of the indexed meta contacts.
+     */
+    private final Map<MetaContact, Entry> entries
+        = new ConcurrentHashMap<MetaContact, Entry>();
+
+    /**
+     * The number of changes of the index, to know whether the previous
+     * matches are still valid.
+     */
+    private final AtomicInteger modificationCount = new AtomicInteger();
+
+    /**
+     * Whether the meta contact list has been indexed.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The normalized filter string of the previous search.
+     */
+    private String lastFilter = null;
+
+    /**
+     * The modification count of the index at the previous search.
+     */
+    private int lastModificationCount;
+
+    /**
+     * The entries which matched the previous search.
+     */
+    private List<Entry> lastMatches = null;
+
+    /**
+     * Indexes the contacts of a meta contact list, and keeps the index up to
+     * date as the list changes. Does nothing if the list is already indexed.
+     *
+     * @param metaContactListService the meta contact list
+     */
+    synchronized void load(MetaContactListService metaContactListService)
+    {
+        if (loaded)
+            return;
+
+        // listen first so that no change is missed while the list is walked
+        metaContactListService.addMetaContactListListener(this);
+        addGroup(metaContactListService.getRoot());
+        loaded = true;
+    }
+
+    /**
+     * Finds the meta contacts matching a filter string.
+     *
+     * @param filterString the filter string
+     * @param query the query, searching stops when it is canceled
+     * @return the matching meta contacts, the ones with a word starting with
+     * the filter string first
+     */
+    synchronized List<MetaContact> search(
+        String filterString, MetaContactQuery query)
+    {
+        String filter = normalize(filterString);
+        int modifications = modificationCount.get();
+        Collection<Entry> candidates
+            = (lastMatches != null
+                    && lastModificationCount == modifications
+                    && filter.startsWith(lastFilter))
+                ? lastMatches
+                : entries.values();
+
+        List<Entry> matches = new ArrayList<Entry>();
+        List<MetaContact> prefixMatches = new ArrayList<MetaContact>();
+        List<MetaContact> substringMatches = new ArrayList<MetaContact>();
+        int searched = 0;
+
+        lastMatches = null;
+        for (Entry entry : candidates)
+        {
+            if (++searched % CANCEL_CHECK_INTERVAL == 0 && query.isCanceled())
+                return prefixMatches;
+
+            switch (entry.match(filter))
+            {
+            case Entry.PREFIX_MATCH:
+                prefixMatches.add(entry.metaContact);
+                matches.add(entry);
+                break;
+            case Entry.SUBSTRING_MATCH:
+                substringMatches.add(entry.metaContact);
+                matches.add(entry);
+                break;
+            }
+        }
+
+        lastFilter = filter;
+        lastModificationCount = modifications;
+        lastMatches = matches;
+
+        prefixMatches.addAll(substringMatches);
+        return prefixMatches;
+    }
+
+    /**
+     * Lower-cases a string and strips its accents.
+     *
+     * @param s the string
+     * @return the normalized string
+     */
+    public static String normalize(String s)
+    {
+        if (s == null)
+            return "";
+
+        int length = s.length();
+        boolean ascii = true;
+
+        for (int i = 0; i < length && ascii; i++)
+            ascii = s.charAt(i) < 0x80;
+        if (ascii)
+            return s.toLowerCase(Locale.ENGLISH);
+
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+
+        for (int i = 0; i < decomposed.length(); i++)
+        {
+            char c = decomposed.charAt(i);
+
+            if (Character.getType(c) != Character.NON_SPACING_MARK)
+                normalized.append(c);
+        }
+        return normalized.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Indexes a meta contact, or updates its entry.
+     *
+     * @param metaContact the meta contact
+     */
+    private void addMetaContact(MetaContact metaContact)
+    {
+        entries.put(metaContact, new Entry(metaContact));
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * Updates the entry of a meta contact if it is indexed.
+     *
+     * @param metaContact the meta contact
+     */
+    private void updateMetaContact(MetaContact metaContact)
+    {
+        if (metaContact != null && entries.containsKey(metaContact))
+            addMetaContact(metaContact);
+    }
+
+    /**
+     * Indexes the meta contacts of a group and of its subgroups.
+     *
+     * @param group the group
+     */
+    private void addGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            addMetaContact(metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addGroup(subgroups.next());
+    }
+
+    /**
+     * Removes the meta contacts of a group and of its subgroups from the
+     * index.
+     *
+     * @param group the group
+     */
+    private void removeGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            entries.remove(metaContacts.next());
+        modificationCount.incrementAndGet();
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeGroup(subgroups.next());
+    }
+
+    @Override
+    public void metaContactAdded(MetaContactEvent evt)
+    {
+        addMetaContact(evt.getSourceMetaContact());
+    }
+
+    @Override
+    public void metaContactRemoved(MetaContactEvent evt)
+    {
+        entries.remove(evt.getSourceMetaContact());
+        modificationCount.incrementAndGet();
+    }
+
+    @Override
+    public void metaContactRenamed(MetaContactRenamedEvent evt)
+    {
+        updateMetaContact(evt.getSourceMetaContact());
+    }
+
+    @Override
+    public void metaContactGroupAdded(MetaContactGroupEvent evt)
+    {
+        addGroup(evt.getSourceMetaContactGroup());
+    }
+
+    @Override
+    public void metaContactGroupRemoved(MetaContactGroupEvent evt)
+    {
+        removeGroup(evt.getSourceMetaContactGroup());
+    }
+
+    @Override
+    public void protoContactAdded(ProtoContactEvent evt)
+    {
+        updateMetaContact(evt.getNewParent());
+    }
+
+    @Override
+    public void protoContactModified(ProtoContactEvent evt)
+    {
+        updateMetaContact(evt.getParent());
+    }
+
+    @Override
+    public void protoContactMoved(ProtoContactEvent evt)
+    {
+        updateMetaContact(evt.getOldParent());
+        updateMetaContact(evt.getNewParent());
+    }
+
+    @Override
+    public void protoContactRemoved(ProtoContactEvent evt)
+    {
+        updateMetaContact(evt.getOldParent());
+    }
+
+    /**
+     * The normalized search strings of a meta contact.
+     */
+    private static class Entry
+    {
+        /**
+         * The meta contact does not match.
+         */
+        static final int NO_MATCH = 0;
+
+        /**
+         * A search string of the meta contact contains the filter string.
+         */
+        static final int SUBSTRING_MATCH = 1;
+
+        /**
+         * A word of a search string of the meta contact starts with the
+         * filter string.
+         */
+        static final int PREFIX_MATCH = 2;
+
+        /**
+         * The meta contact.
+         */
+        final MetaContact metaContact;
+
+        /**
+         * The normalized search strings of the meta contact.
+         */
+        final String[] searchStrings;
+
+        /**
+         * Computes the search strings of a meta contact.
+         *
+         * @param metaContact the meta contact
+         */
+        Entry(MetaContact metaContact)
+        {
+            List<String> strings = new ArrayList<String>();
+
+            strings.add(normalize(metaContact.getDisplayName()));
+
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                Contact contact = contacts.next();
+
+                strings.add(normalize(contact.getDisplayName()));
+                strings.add(normalize(contact.getAddress()));
+            }
+
+            this.metaContact = metaContact;
+            this.searchStrings = strings.toArray(new String[strings.size()]);
+        }
+
+        /**
+         * Matches the search strings against a filter string.
+         *
+         * @param filter the normalized filter string
+         * @return {@link #PREFIX_MATCH}, {@link #SUBSTRING_MATCH} or
+         * {@link #NO_MATCH}
+         */
+        int match(String filter)
+        {
+            int result = NO_MATCH;
+
+            for (String s : searchStrings)
+            {
+                int index = s.indexOf(filter);
+
+                while (index >= 0)
+                {
+                    if (index == 0
+                            || !Character.isLetterOrDigit(s.charAt(index - 1)))
+                        return PREFIX_MATCH;
+
+                    result = SUBSTRING_MATCH;
+                    index = s.indexOf(filter, index + 1);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -129,8 +129,8 @@ public class DBStructSerializer {
         HistoryID id = loadID(root);
         HistoryRecordStructure structure = loadStructure(root);
 
-        return new HistoryImpl(id, dbDatFile.getParentFile(), structure,
-                historyService);
+        return historyService.createHistoryImpl(
+                id, dbDatFile.getParentFile(), structure);
     }
 
     /**
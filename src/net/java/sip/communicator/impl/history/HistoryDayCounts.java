@@ -0,0 +1,129 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+/**
+ * The number of records of a history by day. It is kept by the indexes of
+ * the record timestamps, next to the timestamps, so that the days with
+ * records can be told without reading any record.
+ * <p>
+ * Days start at midnight in the default time zone at the time the counts are
+ * created, the counts have to be created again when it changes. Instances
+ * are not thread safe, they are synchronized by the index owning them.
+ */
+public class HistoryDayCounts
+{
+    /**
+     * The number of records by start of day.
+     */
+    private final TreeMap<Long, int[]> counts = new TreeMap<Long, int[]>();
+
+    /**
+     * The time zone of the days.
+     */
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    /**
+     * The calendar finding the start of days.
+     */
+    private final Calendar calendar = Calendar.getInstance(timeZone);
+
+    /**
+     * The start of the day of the last added record, since records mostly
+     * come in order.
+     */
+    private long lastDayStart = Long.MAX_VALUE;
+
+    /**
+     * The end of the day of the last added record.
+     */
+    private long lastDayEnd = Long.MIN_VALUE;
+
+    /**
+     * The number of records of the day of the last added record.
+     */
+    private int[] lastDayCount;
+
+    /**
+     * Counts a record.
+     *
+     * @param timestamp the timestamp of the record
+     */
+    void add(long timestamp)
+    {
+        if (timestamp < lastDayStart || timestamp >= lastDayEnd)
+        {
+            lastDayStart = getDayStart(timestamp);
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            lastDayEnd = calendar.getTimeInMillis();
+
+            lastDayCount = counts.get(lastDayStart);
+            if (lastDayCount == null)
+            {
+                lastDayCount = new int[1];
+                counts.put(lastDayStart, lastDayCount);
+            }
+        }
+        lastDayCount[0]++;
+    }
+
+    /**
+     * Determines whether the days of the counts still start at midnight in
+     * the default time zone.
+     *
+     * @return <tt>true</tt> if the default time zone did not change since
+     * the counts were created
+     */
+    boolean isCurrent()
+    {
+        return timeZone.getID().equals(TimeZone.getDefault().getID());
+    }
+
+    /**
+     * Returns the number of records of the days overlapping the period
+     * [<tt>startDate</tt>, <tt>endDate</tt>). Records of these days outside
+     * the period are counted too.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the number of records of every day which has records, by the
+     * start of the day
+     */
+    SortedMap<Date, Integer> get(Date startDate, Date endDate)
+    {
+        SortedMap<Long, int[]> days = counts;
+
+        if (startDate != null)
+            days = days.tailMap(getDayStart(startDate.getTime()));
+        if (endDate != null)
+            days = days.headMap(endDate.getTime());
+
+        SortedMap<Date, Integer> result = new TreeMap<Date, Integer>();
+        for (Map.Entry<Long, int[]> day : days.entrySet())
+            result.put(new Date(day.getKey()), day.getValue()[0]);
+        return result;
+    }
+
+    /**
+     * Returns the start of the day of a time and leaves {@link #calendar} set
+     * to it.
+     *
+     * @param time the time
+     * @return the midnight starting the day of <tt>time</tt>
+     */
+    private long getDayStart(long time)
+    {
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.beans.*;
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.w3c.dom.*;
+
+/**
+ * A least recently used cache of parsed history documents, shared by all the
+ * histories of a <tt>HistoryServiceImpl</tt>.
+ * <p>
+ * The memory held by a parsed document is estimated from the length of its
+ * file. The cache is bounded by the estimated size of the documents it holds
+ * and by their number, evicting the least recently used documents once any
+ * of the limits is exceeded. The limits are soft: the most recently used
+ * document is kept even if it exceeds them alone. They are read from the
+ * <tt>ConfigurationService</tt> and follow changes of the properties.
+ */
+public class HistoryDocumentCache
+    implements PropertyChangeListener
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryDocumentCache.class);
+
+    /**
+     * The property holding the maximum estimated size, in bytes, of the
+     * cached history documents.
+     */
+    public static final String PNAME_CACHE_MAX_SIZE
+        = "net.java.sip.communicator.impl.history.CACHE_MAX_SIZE";
+
+    /**
+     * The property holding the maximum number of cached history documents.
+     */
+    public static final String PNAME_CACHE_MAX_DOCUMENTS
+        = "net.java.sip.communicator.impl.history.CACHE_MAX_DOCUMENTS";
+
+    /**
+     * The default maximum estimated size of the cached documents.
+     */
+    private static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The default maximum number of cached documents.
+     */
+    private static final int DEFAULT_MAX_DOCUMENTS = 128;
+
+    /**
+     * The estimated number of bytes of a parsed document per byte of its
+     * file.
+     */
+    private static final int DOM_SIZE_FACTOR = 6;
+
+    /**
+     * The estimated size of an empty parsed document.
+     */
+    private static final int DOM_BASE_SIZE = 1024;
+
+    /**
+     * The configuration service holding the limits.
+     */
+    private final ConfigurationService configService;
+
+    /**
+     * The cached documents by file, least recently used first. The map keeps
+     * the insertion order and a used document is inserted again, so that
+     * looking up a document does not necessarily change the order.
+     */
+    private final LinkedHashMap<File, CachedDocument> documents
+        = new LinkedHashMap<File, CachedDocument>();
+
+    /**
+     * The maximum estimated size of the cached documents.
+     */
+    private long maxSize;
+
+    /**
+     * The maximum number of cached documents.
+     */
+    private int maxDocuments;
+
+    /**
+     * The estimated size of the cached documents.
+     */
+    private long size = 0;
+
+    /**
+     * The number of lookups which found their document.
+     */
+    private long hits = 0;
+
+    /**
+     * The number of lookups which did not find their document.
+     */
+    private long misses = 0;
+
+    /**
+     * The number of documents evicted to respect the limits.
+     */
+    private long evictions = 0;
+
+    /**
+     * Creates a cache with the limits found in <tt>configService</tt>.
+     *
+     * @param configService the configuration service
+     */
+    HistoryDocumentCache(ConfigurationService configService)
+    {
+        this.configService = configService;
+
+        readLimits();
+        configService.addPropertyChangeListener(PNAME_CACHE_MAX_SIZE, this);
+        configService.addPropertyChangeListener(
+            PNAME_CACHE_MAX_DOCUMENTS, this);
+    }
+
+    /**
+     * Returns the cached document of a file.
+     *
+     * @param file the file of the document
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    synchronized Document get(File file)
+    {
+        CachedDocument cached = documents.remove(file);
+
+        if (cached == null)
+        {
+            misses++;
+            return null;
+        }
+
+        documents.put(file, cached);
+        hits++;
+        return cached.document;
+    }
+
+    /**
+     * Returns the cached document of a file without counting the lookup or
+     * making the document the most recently used.
+     *
+     * @param file the file of the document
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    synchronized Document peek(File file)
+    {
+        CachedDocument cached = documents.get(file);
+
+        return (cached == null) ? null : cached.document;
+    }
+
+    /**
+     * Caches the document of a file, or updates its estimated size if it is
+     * already cached, and evicts documents if the limits are exceeded.
+     *
+     * @param file the file of the document
+     * @param document the document
+     */
+    synchronized void put(File file, Document document)
+    {
+        long estimatedSize = DOM_BASE_SIZE + DOM_SIZE_FACTOR * file.length();
+
+        CachedDocument cached = documents.remove(file);
+        documents.put(file, new CachedDocument(document, estimatedSize));
+        if (cached != null)
+            size -= cached.estimatedSize;
+        size += estimatedSize;
+
+        evict();
+    }
+
+    /**
+     * Removes the document of a file from the cache.
+     *
+     * @param file the file of the document
+     */
+    synchronized void remove(File file)
+    {
+        CachedDocument cached = documents.remove(file);
+        if (cached != null)
+            size -= cached.estimatedSize;
+    }
+
+    /**
+     * Removes the documents of a history directory from the cache.
+     *
+     * @param directory the history directory
+     */
+    synchronized void removeAll(File directory)
+    {
+        Iterator<Map.Entry<File, CachedDocument>> iter
+            = documents.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<File, CachedDocument> e = iter.next();
+            if (directory.equals(e.getKey().getParentFile()))
+            {
+                size -= e.getValue().estimatedSize;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all documents from the cache.
+     */
+    synchronized void clear()
+    {
+        documents.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated size of the cached documents.
+     * @return the estimated size of the cached documents
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of cached documents.
+     * @return the number of cached documents
+     */
+    public synchronized int getDocumentCount()
+    {
+        return documents.size();
+    }
+
+    /**
+     * Returns the number of lookups which found their document.
+     * @return the number of lookups which found their document
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which did not find their document.
+     * @return the number of lookups which did not find their document
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of documents evicted to respect the limits.
+     * @return the number of documents evicted to respect the limits
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Applies the new limits when one of their properties changes.
+     *
+     * @param evt the change of a limit property
+     */
+    public void propertyChange(PropertyChangeEvent evt)
+    {
+        synchronized (this)
+        {
+            readLimits();
+            evict();
+        }
+    }
+
+    /**
+     * Stops following the changes of the limits and empties the cache.
+     */
+    void dispose()
+    {
+        configService.removePropertyChangeListener(PNAME_CACHE_MAX_SIZE, this);
+        configService.removePropertyChangeListener(
+            PNAME_CACHE_MAX_DOCUMENTS, this);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Disposing history document cache: " + this);
+
+        clear();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return documents.size() + " documents, " + size + "/" + maxSize
+            + " bytes, " + hits + " hits, " + misses + " misses, "
+            + evictions + " evictions";
+    }
+
+    /**
+     * Reads the limits from the configuration.
+     */
+    private void readLimits()
+    {
+        maxSize = configService.getLong(PNAME_CACHE_MAX_SIZE, DEFAULT_MAX_SIZE);
+        maxDocuments = configService.getInt(
+            PNAME_CACHE_MAX_DOCUMENTS, DEFAULT_MAX_DOCUMENTS);
+    }
+
+    /**
+     * Evicts the least recently used documents until the limits are
+     * respected or only the most recently used document is left.
+     */
+    private void evict()
+    {
+        Iterator<CachedDocument> iter = documents.values().iterator();
+        while ((size > maxSize || documents.size() > maxDocuments)
+            && documents.size() > 1)
+        {
+            CachedDocument cached = iter.next();
+            iter.remove();
+            size -= cached.estimatedSize;
+            evictions++;
+        }
+
+        if (logger.isTraceEnabled())
+            logger.trace("History document cache: " + this);
+    }
+
+    /**
+     * A cached document and its estimated size.
+     */
+    private static class CachedDocument
+    {
+        final Document document;
+
+        final long estimatedSize;
+
+        CachedDocument(Document document, long estimatedSize)
+        {
+            this.document = document;
+            this.estimatedSize = estimatedSize;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Reads the records of a history document. Documents on disk are read with
+ * a StAX pull parser, so no DOM tree is built and reading stops as soon as
+ * the last requested record is read. Documents already loaded in memory are
+ * read from their DOM tree.
+ */
+public class HistoryDocumentReader
+{
+    /**
+     * The name of the record elements.
+     */
+    private static final String RECORD_ELEMENT = "record";
+
+    /**
+     * The name of the attribute holding the timestamp of a record.
+     */
+    private static final String TIMESTAMP_ATTRIBUTE = "timestamp";
+
+    /**
+     * Creates the factory of the pull parsers reading history documents.
+     * History documents have no DTD, so DTDs and external entities are not
+     * supported.
+     *
+     * @return the factory
+     */
+    static XMLInputFactory createInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+
+    /**
+     * Reads records of a history document file.
+     *
+     * @param factory the factory of the pull parser
+     * @param file the history document
+     * @param positions the positions of the records to read or <tt>null</tt>
+     * to read all of them
+     * @return the read records in document order
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not a valid XML document
+     */
+    static List<Record> read(XMLInputFactory factory,
+                             File file,
+                             BitSet positions)
+        throws IOException,
+               XMLStreamException
+    {
+        List<Record> records = new ArrayList<Record>();
+        int last = (positions == null) ? Integer.MAX_VALUE
+                                       : positions.length() - 1;
+        if (last < 0)
+            return records;
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try
+        {
+            XMLStreamReader reader;
+            synchronized (factory)
+            {
+                reader = factory.createXMLStreamReader(in);
+            }
+
+            try
+            {
+                int position = -1;
+                Record record = null;
+                List<String> names = new ArrayList<String>();
+                List<String> values = new ArrayList<String>();
+
+                while (reader.hasNext())
+                {
+                    int event = reader.next();
+
+                    if (event == XMLStreamConstants.START_ELEMENT)
+                    {
+                        String name = reader.getLocalName();
+
+                        if (RECORD_ELEMENT.equals(name))
+                        {
+                            position++;
+                            if (positions == null || positions.get(position))
+                            {
+                                record = new Record(position,
+                                    reader.getAttributeValue(
+                                        null, TIMESTAMP_ATTRIBUTE));
+                                names.clear();
+                                values.clear();
+                            }
+                        }
+                        else if (record != null)
+                        {
+                            // a property, an empty one has no value the same
+                            // way its DOM element has no child
+                            String text = reader.getElementText();
+                            names.add(name);
+                            values.add((text.length() == 0) ? null : text);
+                        }
+                    }
+                    else if (event == XMLStreamConstants.END_ELEMENT
+                        && record != null
+                        && RECORD_ELEMENT.equals(reader.getLocalName()))
+                    {
+                        record.setProperties(names, values);
+                        records.add(record);
+                        record = null;
+
+                        if (position >= last)
+                            break;
+                    }
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads records of a history document loaded in memory.
+     *
+     * @param document the history document
+     * @param positions the positions of the records to read or <tt>null</tt>
+     * to read all of them
+     * @return the read records in document order
+     */
+    static List<Record> read(Document document, BitSet positions)
+    {
+        List<Record> records = new ArrayList<Record>();
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+
+        NodeList nodes = document.getElementsByTagName(RECORD_ELEMENT);
+        int count = nodes.getLength();
+        for (int i = (positions == null) ? 0 : positions.nextSetBit(0);
+                i >= 0 && i < count;
+                i = (positions == null) ? i + 1 : positions.nextSetBit(i + 1))
+        {
+            Element node = (Element) nodes.item(i);
+            Record record
+                = new Record(i, node.getAttribute(TIMESTAMP_ATTRIBUTE));
+
+            names.clear();
+            values.clear();
+
+            NodeList propertyNodes = node.getChildNodes();
+            for (int j = 0; j < propertyNodes.getLength(); j++)
+            {
+                Node propertyNode = propertyNodes.item(j);
+                if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+
+                Node nestedNode = propertyNode.getFirstChild();
+                names.add(propertyNode.getNodeName());
+                values.add(
+                    (nestedNode == null) ? null : nestedNode.getNodeValue());
+            }
+
+            record.setProperties(names, values);
+            records.add(record);
+        }
+
+        return records;
+    }
+
+    /**
+     * A record read from a history document. The values are the ones stored
+     * in the document, still escaped.
+     */
+    static class Record
+    {
+        /**
+         * The position of the record among the records of the document.
+         */
+        final int position;
+
+        /**
+         * The timestamp attribute of the record.
+         */
+        final String timestamp;
+
+        /**
+         * The names of the properties of the record.
+         */
+        String[] names;
+
+        /**
+         * The values of the properties of the record, <tt>null</tt> for
+         * properties without value.
+         */
+        String[] values;
+
+        Record(int position, String timestamp)
+        {
+            this.position = position;
+            this.timestamp = timestamp;
+        }
+
+        void setProperties(List<String> names, List<String> values)
+        {
+            this.names = names.toArray(new String[names.size()]);
+            this.values = values.toArray(new String[values.size()]);
+        }
+    }
+}
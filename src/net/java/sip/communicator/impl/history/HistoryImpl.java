@@ -48,8 +48,33 @@ public class HistoryImpl
 
     private HistoryWriter writer;
 
-    private SortedMap<String, Object> historyDocuments
-        = new TreeMap<String, Object>();
+    /**
+     * The history documents by name.
+     */
+    private SortedMap<String, File> historyDocuments
+        = new TreeMap<String, File>();
+
+    /**
+     * The name of the document the writer appends records to.
+     */
+    private String openFilename = null;
+
+    /**
+     * The document the writer appends records to. It is kept apart from the
+     * documents cache, so readers and updates always see the records the
+     * writer added, even if the document was evicted from the cache.
+     */
+    private Document openDocument = null;
+
+    /**
+     * The index of the timestamps of the records in the history documents.
+     */
+    private HistoryTimestampIndex timestampIndex;
+
+    /**
+     * The index of the values of the records in the history documents.
+     */
+    private HistoryKeywordIndex keywordIndex;
 
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
@@ -150,7 +175,7 @@ public class HistoryImpl
         return interactiveReader;
     }
 
-    public HistoryWriter getWriter()
+    public synchronized HistoryWriter getWriter()
     {
         if (writer == null)
             writer = new HistoryWriterImpl(this);
@@ -162,6 +187,135 @@ public class HistoryImpl
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the index of the timestamps of the records of this history.
+     * @return the index of the timestamps of the records of this history
+     */
+    synchronized HistoryTimestampIndex getTimestampIndex()
+    {
+        if (timestampIndex == null)
+            timestampIndex = new HistoryTimestampIndex(this, directory);
+        return timestampIndex;
+    }
+
+    /**
+     * Returns the keyword index of the records of this history.
+     * @return the keyword index of the records of this history
+     */
+    synchronized HistoryKeywordIndex getKeywordIndex()
+    {
+        if (keywordIndex == null)
+            keywordIndex = new HistoryKeywordIndex(this, directory);
+        return keywordIndex;
+    }
+
+    /**
+     * Closes the indexes of this history, saving their changes, and drops its
+     * documents from the documents cache. They are loaded again on next use.
+     */
+    synchronized void close()
+    {
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        if (cache != null)
+            cache.removeAll(directory);
+
+        if (timestampIndex != null)
+            timestampIndex.close();
+        if (keywordIndex != null)
+            keywordIndex.close();
+    }
+
+    /**
+     * Returns the length of a history document on disk.
+     *
+     * @param filename the document name
+     * @return the length of the document or 0 if it was not written yet
+     */
+    long getDocumentLength(String filename)
+    {
+        return new File(this.directory, filename).length();
+    }
+
+    /**
+     * Loads a history document for indexing. Unlike
+     * {@link #getDocumentForFile(String)} the parsed document is not cached.
+     *
+     * @param filename the document name
+     * @return the document or <tt>null</tt> if it is not loaded and was not
+     * written yet or cannot be parsed
+     */
+    Document loadDocument(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            Document doc = getLoadedDocument(filename, false);
+            if (doc != null)
+                return doc;
+        }
+
+        File file = new File(this.directory, filename);
+
+        if (!file.exists())
+            return null;
+
+        try
+        {
+            return this.historyServiceImpl.parse(file);
+        }
+        catch (Exception e)
+        {
+            // will try to fix it
+            return getDocumentForFile(filename);
+        }
+    }
+
+    /**
+     * Reads records of a history document. Documents which are not loaded
+     * are read from disk without building their DOM tree, up to the last
+     * requested record. Documents which cannot be read that way are loaded,
+     * and fixed if needed, as by {@link #getDocumentForFile(String)}.
+     *
+     * @param filename the document name
+     * @param positions the positions of the records to read or <tt>null</tt>
+     * to read all of them
+     * @return the read records in document order
+     */
+    List<HistoryDocumentReader.Record> readRecords(String filename,
+                                                   BitSet positions)
+    {
+        Document doc;
+        synchronized (this.historyDocuments)
+        {
+            doc = getLoadedDocument(filename, true);
+        }
+
+        if (doc == null)
+        {
+            File file = new File(this.directory, filename);
+            if (!file.exists())
+                return new ArrayList<HistoryDocumentReader.Record>();
+
+            try
+            {
+                return HistoryDocumentReader.read(
+                    historyServiceImpl.getInputFactory(), file, positions);
+            }
+            catch (Exception e)
+            {
+                log.error("Failed to read history document " + file, e);
+            }
+
+            doc = getDocumentForFile(filename);
+            if (doc == null)
+                return new ArrayList<HistoryDocumentReader.Record>();
+        }
+
+        synchronized (doc)
+        {
+            return HistoryDocumentReader.read(doc, positions);
+        }
+    }
+
     void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
@@ -187,6 +341,13 @@ public class HistoryImpl
         }
     }
 
+    /**
+     * Returns the document the writer will append records to, loading it if
+     * it exists or creating it otherwise.
+     *
+     * @param filename the document name
+     * @return the document or <tt>null</tt> if it exists but cannot be parsed
+     */
     protected Document createDocument(String filename)
     {
         Document retVal = null;
@@ -196,18 +357,53 @@ public class HistoryImpl
             if (this.historyDocuments.containsKey(filename))
             {
                 retVal = getDocumentForFile(filename);
+
+                // it is held as the open document from now on
+                HistoryDocumentCache cache
+                    = historyServiceImpl.getDocumentCache();
+                if (cache != null)
+                    cache.remove(new File(this.directory, filename));
             } else {
                 retVal = this.historyServiceImpl.getDocumentBuilder()
                         .newDocument();
                 retVal.appendChild(retVal.createElement("history"));
 
-                this.historyDocuments.put(filename, retVal);
+                this.historyDocuments.put(
+                    filename, new File(this.directory, filename));
+            }
+
+            if (retVal != null)
+            {
+                this.openFilename = filename;
+                this.openDocument = retVal;
             }
         }
 
         return retVal;
     }
 
+    /**
+     * Returns a document which is already loaded, either because the writer
+     * appends records to it or because it is cached.
+     *
+     * @param filename the document name
+     * @param use whether the document is used, which counts for the cache
+     * statistics and eviction order
+     * @return the document or <tt>null</tt> if it is not loaded
+     */
+    private Document getLoadedDocument(String filename, boolean use)
+    {
+        if (filename.equals(this.openFilename))
+            return this.openDocument;
+
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        if (cache == null)
+            return null;
+
+        File file = new File(this.directory, filename);
+        return use ? cache.get(file) : cache.peek(file);
+    }
+
     protected void writeFile(String filename) throws InvalidParameterException,
             IOException {
         File file = new File(this.directory, filename);
@@ -220,24 +416,35 @@ public class HistoryImpl
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
+            Document doc = getLoadedDocument(filename, false);
 
-            if (obj instanceof Document)
+            if (doc != null)
             {
-                Document doc = (Document) obj;
-
                 synchronized (doc)
                 {
                     XMLUtils.writeXML(doc, file);
                 }
+
+                updateCache(filename, doc);
             }
         }
     }
 
-    protected void writeFile(String filename, Document doc)
+    /**
+     * Writes a history document.
+     *
+     * @param filename the document name
+     * @param doc the document
+     * @return the number of records of the written document
+     * @throws InvalidParameterException if the document is not part of this
+     * history
+     * @throws IOException if writing fails
+     */
+    protected int writeFile(String filename, Document doc)
         throws InvalidParameterException, IOException
     {
         File file = new File(this.directory, filename);
+        int records;
 
         synchronized (this.historyDocuments)
         {
@@ -250,8 +457,28 @@ public class HistoryImpl
             synchronized (doc)
             {
                 XMLUtils.writeXML(doc, file);
+                records = doc.getElementsByTagName("record").getLength();
             }
+
+            updateCache(filename, doc);
         }
+
+        return records;
+    }
+
+    /**
+     * Caches a document which was just written, so its estimated size
+     * follows its growth and the cache holds its latest content.
+     *
+     * @param filename the document name
+     * @param doc the written document
+     */
+    private void updateCache(String filename, Document doc)
+    {
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+
+        if (cache != null && !filename.equals(this.openFilename))
+            cache.put(new File(this.directory, filename), doc);
     }
 
     protected Iterator<String> getFileList()
@@ -271,14 +498,10 @@ public class HistoryImpl
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
+            retVal = getLoadedDocument(filename, true);
+            if (retVal == null)
             {
-                File file = (File) obj;
+                File file = this.historyDocuments.get(filename);
 
                 try {
                     retVal = this.historyServiceImpl.parse(file);
@@ -298,11 +521,10 @@ public class HistoryImpl
                 }
 
                 // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
+                HistoryDocumentCache cache
+                    = historyServiceImpl.getDocumentCache();
+                if(cache != null)
+                    cache.put(file, retVal);
             }
         }
 
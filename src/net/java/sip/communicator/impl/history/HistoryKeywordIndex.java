@@ -0,0 +1,802 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.apache.commons.lang3.*;
+import org.w3c.dom.*;
+
+/**
+ * An inverted index of the values of the records of an XML history, used to
+ * answer keyword searches without parsing every history document.
+ * <p>
+ * Keyword searches match any substring of a value, so the tokens of the index
+ * are the trigrams (every three consecutive characters) of the values of a
+ * field, each one mapped to the postings of the records whose value contains
+ * it. A keyword can only be found in the records which contain all of its
+ * trigrams, so the index returns those records as candidates and the reader
+ * still checks the actual values. The characters of the trigrams are case
+ * folded the same way case insensitive matching does, which makes the
+ * candidates valid for case sensitive searches too. Keywords shorter than a
+ * trigram do not restrict the candidates.
+ * <p>
+ * A field is indexed from the first search on it, then kept up to date as the
+ * writer adds and changes records. The index is saved to a sidecar file in
+ * the history directory along with the length of every indexed document, and
+ * the documents whose length changed since are indexed again when the index
+ * is loaded. The loaded index is only softly referenced, if memory is needed
+ * it is dropped and loaded again on next search.
+ */
+public class HistoryKeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The name of the index file in the history directory.
+     */
+    public static final String INDEX_FILE = "keywords.idx";
+
+    /**
+     * The magic number the index file starts with ("JHK1").
+     */
+    private static final int MAGIC = 0x4A484B31;
+
+    /**
+     * The number of characters of a token.
+     */
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * The suffix of property names stored as CDATA, which is not part of the
+     * element names.
+     */
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The history whose documents are indexed.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The loaded index.
+     */
+    private SoftReference<State> stateRef = null;
+
+    /**
+     * Creates the keyword index of the documents of a history.
+     *
+     * @param historyImpl the history
+     * @param directory the history directory
+     */
+    HistoryKeywordIndex(HistoryImpl historyImpl, File directory)
+    {
+        this.historyImpl = historyImpl;
+        this.indexFile = new File(directory, INDEX_FILE);
+    }
+
+    /**
+     * Indexes a record appended at the end of a document, if the index is
+     * loaded. Otherwise the document will be indexed when the index is
+     * loaded as its length does not match anymore.
+     *
+     * @param filename the document name
+     * @param position the position of the record in the document
+     * @param record the record element
+     */
+    synchronized void recordAppended(String filename,
+                                     int position,
+                                     Element record)
+    {
+        State state = (stateRef == null) ? null : stateRef.get();
+        if (state == null)
+            return;
+
+        IndexedDocument doc = state.documents.get(filename);
+        if (doc == null)
+            doc = state.newDocument(filename);
+
+        // indexed while loading, the record is already there
+        if (doc.count > position)
+            return;
+
+        state.index(doc, doc.count++, record);
+        state.liveRecords++;
+        state.dirty = true;
+    }
+
+    /**
+     * Indexes again a document whose records were reordered, removed or
+     * modified, if the index is loaded.
+     *
+     * @param filename the document name
+     * @param document the content of the document
+     */
+    synchronized void documentChanged(String filename, Document document)
+    {
+        State state = (stateRef == null) ? null : stateRef.get();
+        if (state == null)
+            return;
+
+        state.index(
+            filename, document, historyImpl.getDocumentLength(filename));
+        state.dirty = true;
+    }
+
+    /**
+     * Records the length of a document once it was written, if the index is
+     * loaded, so the document is not indexed again when the index is saved
+     * and loaded.
+     *
+     * @param filename the document name
+     * @param records the number of records of the written document
+     */
+    synchronized void documentWritten(String filename, int records)
+    {
+        State state = (stateRef == null) ? null : stateRef.get();
+        IndexedDocument doc
+            = (state == null) ? null : state.documents.get(filename);
+        if (doc == null)
+            return;
+
+        // records added since the document was written are not on disk yet,
+        // the document will be indexed again if the index is saved before
+        // they are
+        doc.length = (doc.count == records)
+            ? historyImpl.getDocumentLength(filename)
+            : -1;
+        state.dirty = true;
+    }
+
+    /**
+     * Returns the records which may contain all <tt>keywords</tt> in their
+     * <tt>field</tt> value, by document and position in the document.
+     *
+     * @param field the field where to look for the keywords
+     * @param keywords the keywords
+     * @return the positions of the candidate records by document name or
+     * <tt>null</tt> if none of the keywords can be looked up, in which case
+     * all records are candidates
+     */
+    synchronized Map<String, BitSet> find(String field, String[] keywords)
+    {
+        boolean indexable = false;
+        for (String keyword : keywords)
+        {
+            if (keyword != null && keyword.length() >= GRAM_LENGTH)
+                indexable = true;
+        }
+        if (!indexable)
+            return null;
+
+        State state = ensureLoaded(field);
+        Integer fieldId = state.fields.get(field);
+
+        List<Postings> lists = new ArrayList<Postings>();
+        for (String keyword : keywords)
+        {
+            if (keyword == null || keyword.length() < GRAM_LENGTH)
+                continue;
+
+            for (long token : tokenize(fieldId, keyword))
+            {
+                Postings postings = state.postings.get(token);
+                if (postings == null)
+                    return new HashMap<String, BitSet>();
+                lists.add(postings);
+            }
+        }
+
+        Collections.sort(lists, new Comparator<Postings>()
+        {
+            public int compare(Postings p1, Postings p2)
+            {
+                return p1.size - p2.size;
+            }
+        });
+
+        Postings first = lists.get(0);
+        first.sort();
+        long[] keys = Arrays.copyOf(first.keys, first.size);
+        int size = keys.length;
+        for (int i = 1; i < lists.size() && size > 0; i++)
+        {
+            Postings postings = lists.get(i);
+            postings.sort();
+            size = intersect(keys, size, postings.keys, postings.size);
+        }
+
+        Map<Integer, IndexedDocument> byId
+            = new HashMap<Integer, IndexedDocument>();
+        for (IndexedDocument doc : state.documents.values())
+            byId.put(doc.id, doc);
+
+        Map<String, BitSet> result = new HashMap<String, BitSet>();
+        for (int i = 0; i < size; i++)
+        {
+            // postings of documents indexed again are dropped lazily
+            IndexedDocument doc = byId.get((int) (keys[i] >>> 32));
+            if (doc == null)
+                continue;
+
+            BitSet positions = result.get(doc.filename);
+            if (positions == null)
+            {
+                positions = new BitSet();
+                result.put(doc.filename, positions);
+            }
+            positions.set((int) keys[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Saves the index if it changed and drops it from memory. The index will
+     * be loaded again on next search.
+     */
+    synchronized void close()
+    {
+        State state = (stateRef == null) ? null : stateRef.get();
+        if (state != null && state.dirty)
+            save(state);
+        stateRef = null;
+    }
+
+    /**
+     * Returns the loaded index, loading it and bringing it up to date with
+     * the documents of the history if necessary. Makes sure <tt>field</tt>
+     * is indexed.
+     *
+     * @param field the field which must be indexed
+     * @return the loaded index
+     */
+    private State ensureLoaded(String field)
+    {
+        State state = (stateRef == null) ? null : stateRef.get();
+        boolean load = (state == null);
+
+        if (load)
+        {
+            state = read();
+            stateRef = new SoftReference<State>(state);
+        }
+
+        if (!state.fields.containsKey(field))
+        {
+            // every document has to be indexed again to add the field
+            Set<String> fields = new HashSet<String>(state.fields.keySet());
+            fields.add(field);
+            state = new State();
+            for (String f : fields)
+                state.addField(f);
+            stateRef = new SoftReference<State>(state);
+            load = true;
+        }
+
+        if (!load)
+            return state;
+
+        Set<String> filenames = new HashSet<String>();
+        Iterator<String> iter = historyImpl.getFileList();
+        while (iter.hasNext())
+            filenames.add(iter.next());
+
+        Iterator<IndexedDocument> docIter = state.documents.values().iterator();
+        while (docIter.hasNext())
+        {
+            IndexedDocument doc = docIter.next();
+            if (!filenames.contains(doc.filename))
+            {
+                docIter.remove();
+                state.deadRecords += doc.count;
+                state.liveRecords -= doc.count;
+            }
+        }
+
+        int indexed = 0;
+        for (String filename : filenames)
+        {
+            IndexedDocument doc = state.documents.get(filename);
+            if (doc == null
+                || doc.length != historyImpl.getDocumentLength(filename))
+            {
+                state.index(filename, historyImpl.loadDocument(filename),
+                    historyImpl.getDocumentLength(filename));
+                indexed++;
+            }
+        }
+
+        // the document records are appended to is usually the only one to
+        // index again, which is cheap enough not to save the index for it
+        if (indexed > 1 || (indexed > 0 && !indexFile.exists()))
+            save(state);
+        else if (indexed > 0)
+            state.dirty = true;
+
+        return state;
+    }
+
+    /**
+     * Reads the index file.
+     *
+     * @return the read index, empty if there is no index file or it cannot
+     * be read
+     */
+    private State read()
+    {
+        if (!indexFile.exists())
+            return new State();
+
+        State state = new State();
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a keyword index");
+
+            int fieldCount = in.readInt();
+            for (int i = 0; i < fieldCount; i++)
+                state.addField(in.readUTF());
+
+            int docCount = in.readInt();
+            for (int i = 0; i < docCount; i++)
+            {
+                IndexedDocument doc = state.newDocument(in.readUTF());
+                doc.length = in.readLong();
+                doc.count = in.readInt();
+                state.liveRecords += doc.count;
+            }
+
+            int tokenCount = in.readInt();
+            for (int i = 0; i < tokenCount; i++)
+            {
+                long token = in.readLong();
+                int size = in.readInt();
+                Postings postings = new Postings(size);
+                long key = 0;
+                for (int j = 0; j < size; j++)
+                {
+                    key += readVarLong(in);
+                    postings.add(key);
+                }
+                state.postings.put(token, postings);
+            }
+        }
+        catch (IOException e)
+        {
+            // a damaged or truncated index, it is built again
+            logger.warn("Failed to read " + indexFile + ": " + e);
+
+            Set<String> fields = state.fields.keySet();
+            state = new State();
+            for (String field : fields)
+                state.addField(field);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Writes the index file, dropping the postings of the documents which
+     * were indexed again or removed.
+     *
+     * @param state the index to save
+     */
+    private void save(State state)
+    {
+        state.compact();
+
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+
+                String[] fields = new String[state.fields.size()];
+                for (Map.Entry<String, Integer> e : state.fields.entrySet())
+                    fields[e.getValue()] = e.getKey();
+                out.writeInt(fields.length);
+                for (String field : fields)
+                    out.writeUTF(field);
+
+                // ids are not stored, documents get new ones when read
+                out.writeInt(state.documents.size());
+                Map<Integer, Integer> ids = new HashMap<Integer, Integer>();
+                for (IndexedDocument doc : state.documents.values())
+                {
+                    ids.put(doc.id, ids.size());
+                    out.writeUTF(doc.filename);
+                    out.writeLong(doc.length);
+                    out.writeInt(doc.count);
+                }
+
+                out.writeInt(state.postings.size());
+                for (Map.Entry<Long, Postings> e : state.postings.entrySet())
+                {
+                    Postings postings = e.getValue();
+                    long[] keys = new long[postings.size];
+                    for (int i = 0; i < keys.length; i++)
+                    {
+                        long key = postings.keys[i];
+                        keys[i] = ((long) ids.get((int) (key >>> 32)) << 32)
+                            | (key & 0xFFFFFFFFL);
+                    }
+                    Arrays.sort(keys);
+
+                    out.writeLong(e.getKey());
+                    out.writeInt(keys.length);
+                    long previous = 0;
+                    for (long key : keys)
+                    {
+                        writeVarLong(out, key - previous);
+                        previous = key;
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            indexFile.delete();
+            if (!tmpFile.renameTo(indexFile))
+                throw new IOException("Failed to replace " + indexFile);
+
+            state.dirty = false;
+        }
+        catch (IOException e)
+        {
+            // the index is still usable in memory and will be built again
+            // when loaded next time
+            logger.error("Failed to write " + indexFile, e);
+            tmpFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Returns the tokens of a value of a field.
+     *
+     * @param fieldId the id of the field
+     * @param value the value
+     * @return the distinct tokens of the value
+     */
+    private static Set<Long> tokenize(int fieldId, String value)
+    {
+        Set<Long> tokens = new HashSet<Long>();
+        int len = value.length();
+        if (len < GRAM_LENGTH)
+            return tokens;
+
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++)
+            chars[i] = fold(value.charAt(i));
+
+        for (int i = 0; i + GRAM_LENGTH <= len; i++)
+        {
+            tokens.add(((long) fieldId << 48)
+                | ((long) chars[i] << 32)
+                | ((long) chars[i + 1] << 16)
+                | chars[i + 2]);
+        }
+        return tokens;
+    }
+
+    /**
+     * Folds the case of a character. Two characters fold to the same one
+     * exactly when a case insensitive <tt>String.regionMatches</tt> considers
+     * them equal.
+     *
+     * @param c the character
+     * @return the folded character
+     */
+    private static char fold(char c)
+    {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Keeps in <tt>keys</tt> only the keys which are also in <tt>other</tt>.
+     * Both arrays must be sorted.
+     *
+     * @param keys the keys to filter
+     * @param size the number of keys
+     * @param other the keys to keep
+     * @param otherSize the number of keys to keep
+     * @return the number of kept keys
+     */
+    private static int intersect(long[] keys, int size,
+                                 long[] other, int otherSize)
+    {
+        int result = 0;
+        int j = 0;
+        for (int i = 0; i < size && j < otherSize; i++)
+        {
+            long key = keys[i];
+            while (j < otherSize && other[j] < key)
+                j++;
+            if (j < otherSize && other[j] == key)
+                keys[result++] = key;
+        }
+        return result;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value)
+        throws IOException
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in)
+        throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed number");
+    }
+
+    /**
+     * A loaded index.
+     */
+    private static class State
+    {
+        /**
+         * The ids of the indexed fields by name.
+         */
+        final Map<String, Integer> fields = new HashMap<String, Integer>();
+
+        /**
+         * The indexed documents by name.
+         */
+        final Map<String, IndexedDocument> documents
+            = new HashMap<String, IndexedDocument>();
+
+        /**
+         * The postings by token. A posting is the id of the document in the
+         * high half and the position of the record in the low half.
+         */
+        final Map<Long, Postings> postings = new HashMap<Long, Postings>();
+
+        /**
+         * The id of the next indexed document.
+         */
+        int nextDocumentId = 0;
+
+        /**
+         * The number of records of the indexed documents.
+         */
+        int liveRecords = 0;
+
+        /**
+         * The number of records of documents indexed again or removed, whose
+         * postings are still in the index.
+         */
+        int deadRecords = 0;
+
+        /**
+         * Whether the index changed since it was saved.
+         */
+        boolean dirty = false;
+
+        void addField(String field)
+        {
+            fields.put(field, fields.size());
+        }
+
+        IndexedDocument newDocument(String filename)
+        {
+            IndexedDocument doc
+                = new IndexedDocument(filename, nextDocumentId++);
+            documents.put(filename, doc);
+            return doc;
+        }
+
+        /**
+         * Indexes all the records of a document under a new id.
+         *
+         * @param filename the document name
+         * @param document the document or <tt>null</tt> if it cannot be read
+         * @param length the length of the document on disk
+         */
+        void index(String filename, Document document, long length)
+        {
+            IndexedDocument old = documents.get(filename);
+            if (old != null)
+            {
+                deadRecords += old.count;
+                liveRecords -= old.count;
+            }
+
+            IndexedDocument doc = newDocument(filename);
+            doc.length = length;
+
+            if (document != null)
+            {
+                NodeList nodes = document.getElementsByTagName("record");
+                for (int i = 0; i < nodes.getLength(); i++)
+                    index(doc, i, (Element) nodes.item(i));
+                doc.count = nodes.getLength();
+                liveRecords += doc.count;
+            }
+
+            if (deadRecords > Math.max(1024, liveRecords))
+                compact();
+        }
+
+        /**
+         * Adds the postings of a record.
+         *
+         * @param doc the document of the record
+         * @param position the position of the record in the document
+         * @param record the record element
+         */
+        void index(IndexedDocument doc, int position, Element record)
+        {
+            long key = ((long) doc.id << 32) | position;
+
+            NodeList propertyNodes = record.getChildNodes();
+            for (int i = 0; i < propertyNodes.getLength(); i++)
+            {
+                Node propertyNode = propertyNodes.item(i);
+                if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+
+                String name = propertyNode.getNodeName();
+                if (name.endsWith(CDATA_SUFFIX))
+                {
+                    name = name.substring(
+                        0, name.length() - CDATA_SUFFIX.length());
+                }
+                Integer fieldId = fields.get(name);
+                Node nestedNode = propertyNode.getFirstChild();
+                if (fieldId == null || nestedNode == null)
+                    continue;
+
+                // values were escaped when written, the reader matches the
+                // unescaped ones
+                String value
+                    = StringEscapeUtils.unescapeXml(nestedNode.getNodeValue());
+
+                for (Long token : tokenize(fieldId, value))
+                {
+                    Postings list = postings.get(token);
+                    if (list == null)
+                    {
+                        list = new Postings(4);
+                        postings.put(token, list);
+                    }
+                    list.add(key);
+                }
+            }
+        }
+
+        /**
+         * Drops the postings of documents indexed again or removed.
+         */
+        void compact()
+        {
+            Set<Integer> ids = new HashSet<Integer>();
+            for (IndexedDocument doc : documents.values())
+                ids.add(doc.id);
+
+            Iterator<Postings> iter = postings.values().iterator();
+            while (iter.hasNext())
+            {
+                Postings list = iter.next();
+                int size = 0;
+                for (int i = 0; i < list.size; i++)
+                {
+                    long key = list.keys[i];
+                    if (ids.contains((int) (key >>> 32)))
+                        list.keys[size++] = key;
+                }
+                list.size = size;
+                if (size == 0)
+                    iter.remove();
+            }
+            deadRecords = 0;
+        }
+    }
+
+    /**
+     * A growable list of postings, sorted on demand.
+     */
+    private static class Postings
+    {
+        long[] keys;
+
+        int size = 0;
+
+        boolean sorted = true;
+
+        Postings(int capacity)
+        {
+            keys = new long[Math.max(capacity, 1)];
+        }
+
+        void add(long key)
+        {
+            if (size == keys.length)
+                keys = Arrays.copyOf(keys, size * 2);
+            if (size > 0 && keys[size - 1] > key)
+                sorted = false;
+            keys[size++] = key;
+        }
+
+        void sort()
+        {
+            if (!sorted)
+            {
+                Arrays.sort(keys, 0, size);
+                sorted = true;
+            }
+        }
+    }
+
+    /**
+     * A document known to the index.
+     */
+    private static class IndexedDocument
+    {
+        final String filename;
+
+        final int id;
+
+        long length;
+
+        int count = 0;
+
+        IndexedDocument(String filename, int id)
+        {
+            this.filename = filename;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,884 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only, length-prefixed binary log holding all the records of a
+ * single history. Every entry is stored as
+ * <pre>
+ * int length | byte type | long timestamp | int crc32 | payload[length]
+ * </pre>
+ * where the CRC covers the timestamp and the payload. Property names are not
+ * repeated in every record, they are declared once through
+ * <tt>TYPE_NAME</tt> entries and records refer to them by their id.
+ * <p>
+ * Records are never rewritten. Updating or dropping a record only flips its
+ * type byte to <tt>TYPE_DELETED</tt> and, for updates, appends the new
+ * version at the end of the log. Deleted space is reclaimed when the log is
+ * opened and the deleted entries outweigh the live ones.
+ * <p>
+ * An in-memory index of the live records, ordered by timestamp, is built
+ * when the log is opened so that range queries do not have to scan the file.
+ * Appends are not synced to disk one by one, the log is forced once
+ * <tt>syncGroupSize</tt> records have accumulated or when {@link #sync()} is
+ * called by the periodic task of the <tt>HistoryServiceImpl</tt>.
+ */
+public class HistoryLog
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(HistoryLog.class);
+
+    /**
+     * The name of the log file in the history directory.
+     */
+    public static final String LOG_FILE = "history.log";
+
+    /**
+     * The suffix of the temporary file used while migrating or compacting.
+     */
+    static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * The suffix of the previous log file while it is being replaced by its
+     * compacted version.
+     */
+    static final String BACKUP_SUFFIX = ".bak";
+
+    /**
+     * The magic number the log file starts with ("JHL1").
+     */
+    private static final int MAGIC = 0x4A484C31;
+
+    /**
+     * The length of the file header, the magic and the format version.
+     */
+    private static final int FILE_HEADER_LENGTH = 8;
+
+    /**
+     * The version of the log format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The length of the header of every entry.
+     */
+    private static final int ENTRY_HEADER_LENGTH = 4 + 1 + 8 + 4;
+
+    /**
+     * The maximum size of a single entry we accept when reading, anything
+     * above is considered a corrupted length prefix.
+     */
+    private static final int MAX_ENTRY_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Entry type of a live record.
+     */
+    private static final byte TYPE_RECORD = 0;
+
+    /**
+     * Entry type of a record which was updated or removed.
+     */
+    private static final byte TYPE_DELETED = 1;
+
+    /**
+     * Entry type declaring a property name id.
+     */
+    private static final byte TYPE_NAME = 2;
+
+    /**
+     * The suffix which marks CDATA properties in record structures, it is
+     * not stored as part of the name, same as the XML histories do.
+     */
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The log file.
+     */
+    private final File file;
+
+    /**
+     * The number of appended records after which the log is forced to disk.
+     */
+    private final int syncGroupSize;
+
+    /**
+     * The opened log file or <tt>null</tt> if the log is closed.
+     */
+    private RandomAccessFile raf = null;
+
+    /**
+     * The position where the next entry will be appended.
+     */
+    private long endPosition;
+
+    /**
+     * The property names declared in the log, by id.
+     */
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * The ids of the declared property names.
+     */
+    private final Map<String, Integer> nameIds
+        = new HashMap<String, Integer>();
+
+    /**
+     * The timestamps of the live records, sorted ascending.
+     */
+    private long[] timestamps = new long[64];
+
+    /**
+     * The offsets of the live records, in the order of <tt>timestamps</tt>.
+     */
+    private long[] offsets = new long[64];
+
+    /**
+     * The number of live records.
+     */
+    private int size = 0;
+
+    /**
+     * The number of live records by day, counted from the index when first
+     * needed and kept up to date as records are appended, or <tt>null</tt>
+     * if they have to be counted again.
+     */
+    private HistoryDayCounts dayCounts = null;
+
+    /**
+     * The number of records appended since the last sync.
+     */
+    private int unsyncedRecords = 0;
+
+    /**
+     * Creates a log backed by <tt>file</tt>. The file is opened lazily.
+     *
+     * @param file the log file
+     * @param syncGroupSize the number of appended records after which the
+     * log is forced to disk
+     */
+    public HistoryLog(File file, int syncGroupSize)
+    {
+        this.file = file;
+        this.syncGroupSize = syncGroupSize;
+    }
+
+    /**
+     * Returns the file backing this log.
+     * @return the file backing this log
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Opens the log if it is not already opened, building the in-memory index
+     * of its records.
+     *
+     * @throws IOException if the file cannot be read or created
+     */
+    private void ensureOpen()
+        throws IOException
+    {
+        if (raf != null)
+            return;
+
+        recover();
+
+        names.clear();
+        nameIds.clear();
+        size = 0;
+        dayCounts = null;
+        unsyncedRecords = 0;
+
+        boolean exists = file.exists() && file.length() > 0;
+        long deletedBytes = 0;
+
+        if (exists)
+            deletedBytes = scan();
+
+        raf = new RandomAccessFile(file, "rw");
+
+        if (!exists)
+        {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            endPosition = FILE_HEADER_LENGTH;
+        }
+        else if (raf.length() > endPosition)
+        {
+            logger.warn("Truncating damaged tail of history log " + file
+                + " at " + endPosition);
+            raf.setLength(endPosition);
+        }
+
+        if (deletedBytes > 64 * 1024
+            && deletedBytes > endPosition - deletedBytes)
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Reads the headers of all the entries in the log and fills the index.
+     * Sets <tt>endPosition</tt> after the last complete entry.
+     *
+     * @return the number of bytes occupied by deleted records
+     * @throws IOException if the file cannot be read or is not a log file
+     */
+    private long scan()
+        throws IOException
+    {
+        long fileLength = file.length();
+        long deletedBytes = 0;
+        long lastRecordOffset = -1;
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try
+        {
+            if (fileLength < FILE_HEADER_LENGTH || in.readInt() != MAGIC)
+                throw new IOException("Not a history log: " + file);
+
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException(
+                    "Unsupported history log version " + version);
+            }
+
+            long pos = FILE_HEADER_LENGTH;
+            while (pos + ENTRY_HEADER_LENGTH <= fileLength)
+            {
+                int length = in.readInt();
+                byte type = in.readByte();
+                long timestamp = in.readLong();
+                int crc = in.readInt();
+
+                if (length < 0 || length > MAX_ENTRY_LENGTH
+                    || pos + ENTRY_HEADER_LENGTH + length > fileLength)
+                    break;
+
+                if (type == TYPE_NAME)
+                {
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+
+                    if (crc != checksum(timestamp, payload))
+                        break;
+
+                    DataInputStream pin = new DataInputStream(
+                        new ByteArrayInputStream(payload));
+                    int id = pin.readShort();
+                    String name = readString(pin);
+
+                    while (names.size() <= id)
+                        names.add(null);
+                    names.set(id, name);
+                    nameIds.put(name, id);
+                }
+                else
+                {
+                    in.skipBytes(length);
+
+                    if (type == TYPE_RECORD)
+                    {
+                        indexAdd(timestamp, pos);
+                        lastRecordOffset = pos;
+                    }
+                    else
+                        deletedBytes += ENTRY_HEADER_LENGTH + length;
+                }
+
+                pos += ENTRY_HEADER_LENGTH + length;
+            }
+
+            endPosition = pos;
+        }
+        finally
+        {
+            in.close();
+        }
+
+        // a crash while appending can only damage the last record, check it
+        // before accepting new records after it
+        if (lastRecordOffset != -1)
+        {
+            RandomAccessFile check = new RandomAccessFile(file, "r");
+            try
+            {
+                if (readEntry(check, lastRecordOffset) == null)
+                {
+                    indexRemove(lastRecordOffset);
+                    endPosition = lastRecordOffset;
+                }
+            }
+            finally
+            {
+                check.close();
+            }
+        }
+
+        return deletedBytes;
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties, <tt>null</tt>
+     * values are not stored
+     * @param timestamp the timestamp of the record
+     * @return the offset of the appended record
+     * @throws IOException if writing to the log fails
+     */
+    public synchronized long append(
+            String[] propertyNames, String[] propertyValues, long timestamp)
+        throws IOException
+    {
+        ensureOpen();
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bout);
+
+        int count = 0;
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] != null)
+                count++;
+        }
+
+        out.writeShort(count);
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String name = propertyNames[i];
+            if (name.endsWith(CDATA_SUFFIX))
+                name = name.substring(0, name.length() - CDATA_SUFFIX.length());
+
+            out.writeShort(getNameId(name));
+            writeString(out, propertyValues[i].replace('\0', ' '));
+        }
+        out.flush();
+
+        long offset = writeEntry(TYPE_RECORD, timestamp, bout.toByteArray());
+        indexAdd(timestamp, offset);
+
+        if (++unsyncedRecords >= syncGroupSize)
+            sync();
+
+        return offset;
+    }
+
+    /**
+     * Returns the id of a property name, declaring it in the log if it is
+     * seen for the first time.
+     *
+     * @param name the property name
+     * @return the id of the name
+     * @throws IOException if writing the declaration fails
+     */
+    private int getNameId(String name)
+        throws IOException
+    {
+        Integer id = nameIds.get(name);
+        if (id != null)
+            return id;
+
+        int newId = names.size();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bout);
+        out.writeShort(newId);
+        writeString(out, name);
+        out.flush();
+
+        writeEntry(TYPE_NAME, 0, bout.toByteArray());
+        names.add(name);
+        nameIds.put(name, newId);
+
+        return newId;
+    }
+
+    /**
+     * Writes an entry at the end of the log.
+     *
+     * @param type the entry type
+     * @param timestamp the entry timestamp
+     * @param payload the entry payload
+     * @return the offset of the entry
+     * @throws IOException if writing fails
+     */
+    private long writeEntry(byte type, long timestamp, byte[] payload)
+        throws IOException
+    {
+        byte[] entry = new byte[ENTRY_HEADER_LENGTH + payload.length];
+        int crc = checksum(timestamp, payload);
+
+        putInt(entry, 0, payload.length);
+        entry[4] = type;
+        putInt(entry, 5, (int) (timestamp >>> 32));
+        putInt(entry, 9, (int) timestamp);
+        putInt(entry, 13, crc);
+        System.arraycopy(payload, 0, entry, ENTRY_HEADER_LENGTH,
+            payload.length);
+
+        long offset = endPosition;
+        raf.seek(offset);
+        raf.write(entry);
+        endPosition += entry.length;
+
+        return offset;
+    }
+
+    /**
+     * Reads the record stored at <tt>offset</tt>.
+     *
+     * @param offset the offset of the record as returned by the index
+     * @return the record or <tt>null</tt> if there is no valid live record at
+     * that offset
+     * @throws IOException if reading fails
+     */
+    public synchronized HistoryRecord read(long offset)
+        throws IOException
+    {
+        ensureOpen();
+
+        return readEntry(raf, offset);
+    }
+
+    /**
+     * Reads and decodes the record stored at <tt>offset</tt> in <tt>in</tt>.
+     *
+     * @param in the file to read from
+     * @param offset the offset of the record
+     * @return the record or <tt>null</tt> if the entry is not a valid live
+     * record
+     * @throws IOException if reading fails
+     */
+    private HistoryRecord readEntry(RandomAccessFile in, long offset)
+        throws IOException
+    {
+        if (offset + ENTRY_HEADER_LENGTH > in.length())
+            return null;
+
+        in.seek(offset);
+        int length = in.readInt();
+        byte type = in.readByte();
+        long timestamp = in.readLong();
+        int crc = in.readInt();
+
+        if (type != TYPE_RECORD
+            || length < 0
+            || offset + ENTRY_HEADER_LENGTH + length > in.length())
+            return null;
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+
+        if (crc != checksum(timestamp, payload))
+        {
+            logger.error("Corrupted record at " + offset + " in " + file);
+            return null;
+        }
+
+        DataInputStream pin
+            = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = pin.readShort();
+        String[] propertyNames = new String[count];
+        String[] propertyValues = new String[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            int id = pin.readShort();
+            propertyNames[i] = (id < names.size()) ? names.get(id) : null;
+            propertyValues[i] = readString(pin);
+        }
+
+        return new HistoryRecord(
+            propertyNames, propertyValues, new Date(timestamp));
+    }
+
+    /**
+     * Marks the record at <tt>offset</tt> as deleted and removes it from the
+     * index.
+     *
+     * @param offset the offset of the record
+     * @throws IOException if writing fails
+     */
+    public synchronized void delete(long offset)
+        throws IOException
+    {
+        ensureOpen();
+
+        if (!indexRemove(offset))
+            return;
+
+        raf.seek(offset + 4);
+        raf.writeByte(TYPE_DELETED);
+    }
+
+    /**
+     * Returns the offsets of the live records with timestamp in
+     * [<tt>startDate</tt>, <tt>endDate</tt>), ordered by timestamp.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the offsets of the records in the period
+     * @throws IOException if the log cannot be opened
+     */
+    public synchronized long[] findOffsets(Date startDate, Date endDate)
+        throws IOException
+    {
+        ensureOpen();
+
+        int from = (startDate == null)
+            ? 0 : lowerBound(startDate.getTime());
+        int to = (endDate == null)
+            ? size : lowerBound(endDate.getTime());
+
+        if (to <= from)
+            return new long[0];
+
+        long[] result = new long[to - from];
+        System.arraycopy(offsets, from, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Returns the number of live records of the days overlapping the period
+     * [<tt>startDate</tt>, <tt>endDate</tt>), without reading the records.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the number of records of every day which has records, by the
+     * start of the day
+     * @throws IOException if the log cannot be opened
+     */
+    public synchronized SortedMap<Date, Integer> countRecordsByDay(
+            Date startDate, Date endDate)
+        throws IOException
+    {
+        ensureOpen();
+
+        if (dayCounts == null || !dayCounts.isCurrent())
+        {
+            dayCounts = new HistoryDayCounts();
+            for (int i = 0; i < size; i++)
+                dayCounts.add(timestamps[i]);
+        }
+        return dayCounts.get(startDate, endDate);
+    }
+
+    /**
+     * Returns the offset of the oldest live record.
+     *
+     * @return the offset of the oldest record or -1 if the log is empty
+     * @throws IOException if the log cannot be opened
+     */
+    public synchronized long getOldestOffset()
+        throws IOException
+    {
+        ensureOpen();
+
+        return (size == 0) ? -1 : offsets[0];
+    }
+
+    /**
+     * Returns the number of live records in the log.
+     *
+     * @return the number of live records
+     * @throws IOException if the log cannot be opened
+     */
+    public synchronized int size()
+        throws IOException
+    {
+        ensureOpen();
+
+        return size;
+    }
+
+    /**
+     * Forces the records appended since the last sync to disk.
+     */
+    public synchronized void sync()
+    {
+        if (raf == null || unsyncedRecords == 0)
+            return;
+
+        try
+        {
+            raf.getChannel().force(false);
+            unsyncedRecords = 0;
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to sync history log " + file, e);
+        }
+    }
+
+    /**
+     * Syncs and closes the log. It will be opened again on the next access.
+     */
+    public synchronized void close()
+    {
+        if (raf == null)
+            return;
+
+        sync();
+
+        try
+        {
+            raf.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to close history log " + file, e);
+        }
+        raf = null;
+    }
+
+    /**
+     * Rewrites the log keeping only the live records.
+     *
+     * @throws IOException if rewriting fails
+     */
+    private void compact()
+        throws IOException
+    {
+        if (logger.isInfoEnabled())
+            logger.info("Compacting history log " + file);
+
+        long[] liveOffsets = new long[size];
+        System.arraycopy(offsets, 0, liveOffsets, 0, size);
+        Arrays.sort(liveOffsets);
+
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        HistoryLog tmp = new HistoryLog(tmpFile, Integer.MAX_VALUE);
+        tmpFile.delete();
+
+        try
+        {
+            for (long offset : liveOffsets)
+            {
+                HistoryRecord record = readEntry(raf, offset);
+                if (record != null)
+                {
+                    tmp.append(record.getPropertyNames(),
+                        record.getPropertyValues(),
+                        record.getTimestamp().getTime());
+                }
+            }
+        }
+        finally
+        {
+            tmp.close();
+        }
+
+        raf.close();
+        raf = null;
+
+        // the log is never missing: either it is in place, or the backup
+        // and the complete compacted log are, see recover()
+        File backupFile = new File(file.getPath() + BACKUP_SUFFIX);
+
+        backupFile.delete();
+        if (!file.renameTo(backupFile))
+            throw new IOException("Failed to replace history log " + file);
+        if (!tmpFile.renameTo(file))
+        {
+            if (!backupFile.renameTo(file))
+                logger.error("Failed to restore history log " + file);
+            throw new IOException("Failed to replace history log " + file);
+        }
+        backupFile.delete();
+
+        ensureOpen();
+    }
+
+    /**
+     * Puts the log back in place if the application stopped while it was
+     * being compacted. Once the log has been moved to its backup, the
+     * compacted log is complete, so it is preferred to the backup.
+     *
+     * @throws IOException if the log cannot be put back in place
+     */
+    private void recover()
+        throws IOException
+    {
+        File tmpFile = new File(file.getPath() + TMP_SUFFIX);
+        File backupFile = new File(file.getPath() + BACKUP_SUFFIX);
+
+        if (file.exists())
+        {
+            // the compaction stopped before or after replacing the log, a
+            // temporary file next to the log may be incomplete
+            if (backupFile.exists() && !backupFile.delete())
+                logger.warn("Cannot delete history log backup " + backupFile);
+            if (tmpFile.exists() && !tmpFile.delete())
+                logger.warn("Cannot delete history log copy " + tmpFile);
+        }
+        else if (backupFile.exists())
+        {
+            logger.warn("Recovering history log " + file);
+
+            if (tmpFile.exists() && tmpFile.renameTo(file))
+                backupFile.delete();
+            else if (!backupFile.renameTo(file))
+                throw new IOException("Cannot recover history log " + file);
+        }
+    }
+
+    /**
+     * Returns the position in the index of the first record with timestamp
+     * equal or after <tt>timestamp</tt>.
+     *
+     * @param timestamp the timestamp
+     * @return the position in the index
+     */
+    private int lowerBound(long timestamp)
+    {
+        int low = 0;
+        int high = size;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Adds a record to the index keeping it ordered by timestamp. Records
+     * with the same timestamp keep the order in which they were appended.
+     *
+     * @param timestamp the timestamp of the record
+     * @param offset the offset of the record
+     */
+    private void indexAdd(long timestamp, long offset)
+    {
+        if (size == timestamps.length)
+        {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+
+        int pos = size;
+        if (size > 0 && timestamps[size - 1] > timestamp)
+        {
+            pos = lowerBound(timestamp + 1);
+            System.arraycopy(timestamps, pos, timestamps, pos + 1, size - pos);
+            System.arraycopy(offsets, pos, offsets, pos + 1, size - pos);
+        }
+
+        timestamps[pos] = timestamp;
+        offsets[pos] = offset;
+        size++;
+
+        if (dayCounts != null)
+            dayCounts.add(timestamp);
+    }
+
+    /**
+     * Removes a record from the index.
+     *
+     * @param offset the offset of the record
+     * @return <tt>true</tt> if the record was found in the index
+     */
+    private boolean indexRemove(long offset)
+    {
+        for (int i = size - 1; i >= 0; i--)
+        {
+            if (offsets[i] == offset)
+            {
+                dayCounts = null;
+                System.arraycopy(timestamps, i + 1, timestamps, i, size - i - 1);
+                System.arraycopy(offsets, i + 1, offsets, i, size - i - 1);
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the checksum of an entry.
+     *
+     * @param timestamp the timestamp of the entry
+     * @param payload the payload of the entry
+     * @return the checksum
+     */
+    private static int checksum(long timestamp, byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int) (timestamp >>> shift));
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Stores <tt>value</tt> big-endian in <tt>buf</tt> at <tt>pos</tt>.
+     *
+     * @param buf the buffer
+     * @param pos the position
+     * @param value the value
+     */
+    private static void putInt(byte[] buf, int pos, int value)
+    {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string. Unlike
+     * <tt>DataOutput.writeUTF</tt> the length is not limited to 64k.
+     *
+     * @param out the stream to write to
+     * @param s the string
+     * @throws IOException if writing fails
+     */
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in the stream to read from
+     * @return the string
+     * @throws IOException if reading fails
+     */
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
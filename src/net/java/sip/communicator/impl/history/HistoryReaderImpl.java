@@ -6,19 +6,13 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
-import java.util.regex.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
 import org.apache.commons.lang3.*;
-import org.w3c.dom.*;
 
 /**
  * @author Alexander Pelov
@@ -32,11 +26,6 @@ public class HistoryReaderImpl
     private Vector<HistorySearchProgressListener> progressListeners
         = new Vector<HistorySearchProgressListener>();
 
-    // regexp used for index of case(in)sensitive impl
-    private static String REGEXP_END = ".*$";
-    private static String REGEXP_SENSITIVE_START = "(?s)^.*";
-    private static String REGEXP_INSENSITIVE_START = "(?si)^.*";
-
     /**
      * Creates an instance of <tt>HistoryReaderImpl</tt>.
      * @param historyImpl the parent History implementation
@@ -187,80 +176,24 @@ public class HistoryReaderImpl
         boolean caseSensitive)
         throws RuntimeException
     {
-        // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, null);
-
-        TreeSet<HistoryRecord> result
+        final TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-        int leftCount = count;
-        int currentFile = filelist.size() - 1;
-
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while(leftCount > 0 && currentFile >= 0)
-        {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
-
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
-
-            List<Node> lNodes = null;
 
-            if (nodes.size() > leftCount)
+        // the last count records, as the index knows them, then filtered
+        // by the keywords
+        visit(this.historyImpl.getTimestampIndex().findLast(null, count),
+            new RecordVisitor(keywords, field, caseSensitive)
             {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
-
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                @Override
+                void visit(HistoryDocumentReader.Record node, Date timestamp)
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
+                    HistoryRecord record = filterByKeyword(
+                        node, timestamp, keywords, field, caseSensitive);
 
-                if(record != null)
-                {
-                    result.add(record);
+                    if(record != null)
+                        result.add(record);
                 }
-            }
-
-            currentFile--;
-        }
+            });
 
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
@@ -338,96 +271,8 @@ public class HistoryReaderImpl
         findFirstRecordsAfter(Date date, int count)
             throws RuntimeException
     {
-        TreeSet<HistoryRecord> result
-            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), date, null);
-
-        int leftCount = count;
-        int currentFile = 0;
-
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while(leftCount > 0 && currentFile < filelist.size())
-        {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile++;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
-            }
-
-            currentFile++;
-        }
-
-        return new OrderedQueryResultSet<HistoryRecord>(result);
+        return findRecords(
+            this.historyImpl.getTimestampIndex().findFirst(date, count));
     }
 
     /**
@@ -442,180 +287,88 @@ public class HistoryReaderImpl
         findLastRecordsBefore(Date date, int count)
             throws RuntimeException
     {
-        // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, date);
+        return findRecords(
+            this.historyImpl.getTimestampIndex().findLast(date, count));
+    }
 
-        TreeSet<HistoryRecord> result
+    /**
+     * Returns the records corresponding to the given index entries, skipping
+     * broken ones.
+     *
+     * @param entries the index entries
+     * @return QueryResultSet the found records
+     */
+    private QueryResultSet<HistoryRecord> findRecords(
+        List<HistoryTimestampIndex.Entry> entries)
+    {
+        final TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-        int leftCount = count;
 
-        int currentFile = filelist.size() - 1;
-
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while(leftCount > 0 && currentFile >= 0)
+        visit(entries, new RecordVisitor(null, null, false)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
+            @Override
+            void visit(HistoryDocumentReader.Record node, Date timestamp)
             {
-                currentFile--;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
-            {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
                 // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
+                for (String value : node.values)
                 {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
+                    if(value == null)
+                        return;
                 }
 
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+                result.add(new HistoryRecord(node.names,
+                    node.values, timestamp));
             }
-
-            currentFile--;
-        }
+        });
 
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
     private QueryResultSet<HistoryRecord> find(
-        Date startDate, Date endDate,
+        final Date startDate, final Date endDate,
         String[] keywords, String field, boolean caseSensitive)
     {
-        TreeSet<HistoryRecord> result
+        final TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
-        Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
+        List<HistoryTimestampIndex.Entry> entries
+            = this.historyImpl.getTimestampIndex().findByPeriod(
+                startDate, endDate,
+                findCandidates(this.historyImpl, keywords, field));
 
-        double currentProgress
-            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
-        double fileProgressStep
-            = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
-
-        if(filelist.size() != 0)
-            fileProgressStep
-                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
-                    / filelist.size();
+        final double nodesProgressStep
+            = (entries.size() == 0)
+                ? HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                : (double) HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / entries.size();
 
         // start progress - minimum value
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        Iterator<String> fileIterator = filelist.iterator();
-        while (fileIterator.hasNext())
+        RecordVisitor visitor = new RecordVisitor(keywords, field, caseSensitive)
         {
-            String filename = fileIterator.next();
-
-            Document doc = this.historyImpl.getDocumentForFile(filename);
-
-            if(doc == null)
-                continue;
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            double nodesProgressStep = fileProgressStep;
-
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
-
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            @Override
+            void visit(HistoryDocumentReader.Record node, Date timestamp)
             {
-                node = nodes.item(i);
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                HistoryRecord record =
+                    filterByKeyword(node, timestamp,
+                                    keywords, field, caseSensitive);
 
-                if(isInPeriod(timestamp, startDate, endDate))
+                if(record != null)
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
-
-                    if(record != null)
-                    {
-                        result.add(record);
-                    }
+                    result.add(record);
                 }
 
                 currentProgress += nodesProgressStep;
                 fireProgressStateChanged(
                     startDate, endDate, keywords, (int)currentProgress);
             }
-        }
+        };
+        visit(entries, visitor);
 
         // if maximum value is not reached fire an event
-        if((int)currentProgress
+        if((int)visitor.currentProgress
                 < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
         {
             fireProgressStateChanged(startDate, endDate, keywords,
@@ -626,6 +379,80 @@ public class HistoryReaderImpl
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
+    /**
+     * Returns the records which may contain the given keywords according to
+     * the keyword index of the history.
+     *
+     * @param historyImpl the history
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @return the positions of the candidate records by document name or
+     * <tt>null</tt> if all records are candidates
+     */
+    static Map<String, BitSet> findCandidates(HistoryImpl historyImpl,
+                                              String[] keywords,
+                                              String field)
+    {
+        if(keywords == null || keywords.length == 0 || field == null)
+            return null;
+
+        return historyImpl.getKeywordIndex().find(field, keywords);
+    }
+
+    /**
+     * Passes the records corresponding to the given index entries to
+     * <tt>visitor</tt>. Every document is read once, only the documents
+     * holding some of the entries are read and only up to the last of their
+     * records which is part of the entries.
+     *
+     * @param entries the index entries, ordered by timestamp
+     * @param visitor the visitor
+     */
+    private void visit(List<HistoryTimestampIndex.Entry> entries,
+                       RecordVisitor visitor)
+    {
+        Map<String, List<HistoryTimestampIndex.Entry>> byDocument
+            = new LinkedHashMap<String, List<HistoryTimestampIndex.Entry>>();
+        for (HistoryTimestampIndex.Entry entry : entries)
+        {
+            List<HistoryTimestampIndex.Entry> docEntries
+                = byDocument.get(entry.filename);
+            if (docEntries == null)
+            {
+                docEntries = new ArrayList<HistoryTimestampIndex.Entry>();
+                byDocument.put(entry.filename, docEntries);
+            }
+            docEntries.add(entry);
+        }
+
+        for (Map.Entry<String, List<HistoryTimestampIndex.Entry>> e
+                : byDocument.entrySet())
+        {
+            BitSet positions = new BitSet();
+            for (HistoryTimestampIndex.Entry entry : e.getValue())
+                positions.set(entry.position);
+
+            HistoryDocumentReader.Record[] records
+                = new HistoryDocumentReader.Record[positions.length()];
+            for (HistoryDocumentReader.Record record
+                    : this.historyImpl.readRecords(e.getKey(), positions))
+            {
+                records[record.position] = record;
+            }
+
+            for (HistoryTimestampIndex.Entry entry : e.getValue())
+            {
+                HistoryDocumentReader.Record record = records[entry.position];
+
+                // the document changed since it was indexed
+                if(record == null)
+                    continue;
+
+                visitor.visit(record, new Date(entry.timestamp));
+            }
+        }
+    }
+
     /**
      * Evaluetes does <tt>timestamp</tt> is in the given time period.
      *
@@ -656,56 +483,48 @@ public class HistoryReaderImpl
     /**
      * If there is keyword restriction and doesn't match the conditions
      * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
+     * given record read from a document.
      *
-     * @param propertyNodes NodeList
+     * @param node the record read from a document
      * @param timestamp Date
      * @param keywords String[]
      * @param field String
      * @param caseSensitive boolean
      * @return HistoryRecord
      */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
+    static HistoryRecord filterByKeyword(   HistoryDocumentReader.Record node,
                                             Date timestamp,
                                             String[] keywords,
                                             String field,
                                             boolean caseSensitive)
     {
         ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
+        int len = node.names.length;
         boolean targetNodeFound = false;
         for (int j = 0; j < len; j++)
         {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
+            String nodeName = node.names[j];
 
-                if(nestedNode == null)
-                    continue;
+            // Get nested TEXT node's value
+            String nodeValue = node.values[j];
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
-
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
+            if(nodeValue == null)
+                continue;
 
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
+            // unescape xml chars, we have escaped when writing values
+            nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
 
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
+            if(field != null && field.equals(nodeName))
+            {
+                targetNodeFound = true;
 
+                if(!matchKeyword(nodeValue, keywords, caseSensitive))
+                    return null; // doesn't match the given keyword(s)
+                                // so return nothing
             }
+
+            nameVals.add(nodeName);
+            nameVals.add(nodeValue);
         }
 
         // if we need to find a particular record but the target node is not
@@ -726,6 +545,40 @@ public class HistoryReaderImpl
         return new HistoryRecord(propertyNames, propertyValues, timestamp);
     }
 
+    /**
+     * Checks whether an already loaded record satisfies the keyword
+     * restriction, the same way {@link #filterByKeyword(
+     * HistoryDocumentReader.Record, Date, String[], String, boolean)} does
+     * for records read from XML.
+     *
+     * @param record the record to check
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return <tt>true</tt> if the record should be part of the result
+     */
+    static boolean matchRecord(HistoryRecord record,
+                               String[] keywords,
+                               String field,
+                               boolean caseSensitive)
+    {
+        if(keywords == null || keywords.length == 0)
+            return true;
+
+        String[] propertyNames = record.getPropertyNames();
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if(field != null && field.equals(propertyNames[i]))
+            {
+                return matchKeyword(record.getPropertyValues()[i],
+                                    keywords, caseSensitive);
+            }
+        }
+
+        // the target property is not present
+        return false;
+    }
+
     /**
      * Check if a value is in the given keyword(s)
      * If no keyword(s) given must return true
@@ -740,16 +593,13 @@ public class HistoryReaderImpl
     {
         if(keywords != null)
         {
-            String regexpStart = null;
-            if(caseSensitive)
-                regexpStart = REGEXP_SENSITIVE_START;
-            else
-                regexpStart = REGEXP_INSENSITIVE_START;
-
             for (int i = 0; i < keywords.length; i++)
             {
-                if(!value.matches(
-                    regexpStart + Pattern.quote(keywords[i]) + REGEXP_END))
+                boolean found = caseSensitive
+                    ? StringUtils.contains(value, keywords[i])
+                    : StringUtils.containsIgnoreCase(value, keywords[i]);
+
+                if(!found)
                     return false;
             }
 
@@ -932,11 +782,8 @@ public class HistoryReaderImpl
     }
 
     /**
-     * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records,
-     * this way we escape parsing all files which will significantly
-     * slow the process and for one search will parse the files twice.
+     * Count the number of messages that a search will return. The count is
+     * taken from the timestamp index, so no document is parsed.
      *
      * @return the number of searched messages
      * @throws UnsupportedOperationException
@@ -946,35 +793,72 @@ public class HistoryReaderImpl
     public int countRecords()
         throws UnsupportedOperationException
     {
-        int result = 0;
-        String lastFile = null;
-        Iterator<String> filelistIter = this.historyImpl.getFileList();
-        while (filelistIter.hasNext())
-        {
-            lastFile = filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
-        }
-
-        if(lastFile == null)
-            return result;
-
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
+        return this.historyImpl.getTimestampIndex().countRecords();
+    }
 
-        if(doc == null)
-            return result;
+    /**
+     * Counts the records of the days overlapping a period. The counts are
+     * kept by the timestamp index, so no document is parsed.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period, exclusive, or <tt>null</tt>
+     * @return the number of records of every day which has records, by the
+     * start of the day
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(Date startDate,
+                                                      Date endDate)
+    {
+        return this.historyImpl.getTimestampIndex().countRecordsByDay(
+            startDate, endDate);
+    }
 
-        NodeList nodes = doc.getElementsByTagName("record");
+    /**
+     * Receives the record nodes found for a query.
+     */
+    private static abstract class RecordVisitor
+    {
+        /**
+         * The keywords of the query.
+         */
+        final String[] keywords;
+
+        /**
+         * The field where to look for the keywords.
+         */
+        final String field;
+
+        /**
+         * Whether keyword search is case sensitive.
+         */
+        final boolean caseSensitive;
+
+        /**
+         * The progress of the query.
+         */
+        double currentProgress
+            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
 
-        result += nodes.getLength();
+        RecordVisitor(String[] keywords, String field, boolean caseSensitive)
+        {
+            this.keywords = keywords;
+            this.field = field;
+            this.caseSensitive = caseSensitive;
+        }
 
-        return result;
+        /**
+         * Called for every record of the query.
+         *
+         * @param node the record read from its document
+         * @param timestamp the timestamp of the record
+         */
+        abstract void visit(HistoryDocumentReader.Record node, Date timestamp);
     }
 
     /**
      * Used to compare HistoryRecords
      * ant to be ordered in TreeSet
      */
-    private static class HistoryRecordComparator
+    static class HistoryRecordComparator
         implements Comparator<HistoryRecord>
     {
         public int compare(HistoryRecord h1, HistoryRecord h2)
@@ -10,6 +10,7 @@ import java.io.*;
 import java.util.*;
 
 import javax.xml.parsers.*;
+import javax.xml.stream.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
@@ -39,6 +40,30 @@ public class HistoryServiceImpl
      */
     public static final String DATA_FILE = "dbstruct.dat";
 
+    /**
+     * The property holding the number of records appended to a history log
+     * after which the log is forced to disk.
+     */
+    public static final String PNAME_LOG_SYNC_GROUP_SIZE
+        = "net.java.sip.communicator.impl.history.LOG_SYNC_GROUP_SIZE";
+
+    /**
+     * The property holding the interval, in milliseconds, at which history
+     * logs with pending records are forced to disk.
+     */
+    public static final String PNAME_LOG_SYNC_INTERVAL
+        = "net.java.sip.communicator.impl.history.LOG_SYNC_INTERVAL";
+
+    /**
+     * The default number of records after which a history log is synced.
+     */
+    private static final int DEFAULT_LOG_SYNC_GROUP_SIZE = 32;
+
+    /**
+     * The default interval at which history logs are synced.
+     */
+    private static final long DEFAULT_LOG_SYNC_INTERVAL = 1000;
+
     /**
      * The logger for this class.
      */
@@ -53,8 +78,45 @@ public class HistoryServiceImpl
 
     private final DocumentBuilder builder;
 
+    /**
+     * The factory of the pull parsers reading history documents.
+     */
+    private final XMLInputFactory inputFactory;
+
     private final boolean cacheEnabled;
 
+    /**
+     * The cache of parsed history documents shared by all histories or
+     * <tt>null</tt> if caching is disabled.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    /**
+     * The queue writing the documents of XML histories records were added to
+     * or <tt>null</tt> if they are written by the threads adding records.
+     */
+    private final HistoryWriteQueue writeQueue;
+
+    /**
+     * Whether new histories are stored in a <tt>HistoryLog</tt>.
+     */
+    private final boolean logStorageEnabled;
+
+    /**
+     * The number of records after which a history log is synced.
+     */
+    private final int logSyncGroupSize;
+
+    /**
+     * The interval at which history logs are synced.
+     */
+    private final long logSyncInterval;
+
+    /**
+     * The timer syncing history logs, created with the first log history.
+     */
+    private Timer logSyncTimer = null;
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -81,14 +143,144 @@ public class HistoryServiceImpl
     public HistoryServiceImpl(BundleContext bundleContext)
         throws Exception
     {
+        ConfigurationService configService
+            = getConfigurationService(bundleContext);
+
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        this.inputFactory = HistoryDocumentReader.createInputFactory();
         this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+            configService.getBoolean(CACHE_ENABLED_PROPERTY, false);
+        this.documentCache = cacheEnabled
+            ? new HistoryDocumentCache(configService)
+            : null;
+        this.writeQueue = configService.getBoolean(
+                HistoryWriteQueue.PNAME_WRITE_BEHIND, false)
+            ? new HistoryWriteQueue(configService.getInt(
+                HistoryWriteQueue.PNAME_WRITE_QUEUE_CAPACITY,
+                HistoryWriteQueue.DEFAULT_WRITE_QUEUE_CAPACITY))
+            : null;
+        this.logStorageEnabled = STORAGE_BACKEND_LOG.equals(
+            configService.getString(
+                STORAGE_BACKEND_PROPERTY, STORAGE_BACKEND_XML));
+        this.logSyncGroupSize = configService.getInt(
+            PNAME_LOG_SYNC_GROUP_SIZE, DEFAULT_LOG_SYNC_GROUP_SIZE);
+        this.logSyncInterval = configService.getLong(
+            PNAME_LOG_SYNC_INTERVAL, DEFAULT_LOG_SYNC_INTERVAL);
         this.fileAccessService = getFileAccessService(bundleContext);
     }
 
+    /**
+     * Creates the <tt>History</tt> implementation for a history directory.
+     * Directories which already hold a <tt>HistoryLog</tt> always use it,
+     * otherwise the configured storage is used.
+     *
+     * @param id the history identifier
+     * @param directory the history directory
+     * @param structure the structure of the history records
+     * @return the history
+     */
+    History createHistoryImpl(HistoryID id, File directory,
+                              HistoryRecordStructure structure)
+    {
+        if (logStorageEnabled
+            || new File(directory, HistoryLog.LOG_FILE).exists())
+        {
+            startLogSync();
+            return new LogHistoryImpl(id, directory, structure, this);
+        }
+        else
+            return new HistoryImpl(id, directory, structure, this);
+    }
+
+    /**
+     * Returns the number of records after which a history log is synced.
+     * @return the number of records after which a history log is synced
+     */
+    int getLogSyncGroupSize()
+    {
+        return logSyncGroupSize;
+    }
+
+    /**
+     * Starts the periodic sync of the history logs, if not already started.
+     */
+    private synchronized void startLogSync()
+    {
+        if (logSyncTimer != null)
+            return;
+
+        logSyncTimer = new Timer("History log sync", true);
+        logSyncTimer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                for (History history : getLoadedHistories())
+                {
+                    if (history instanceof LogHistoryImpl)
+                        ((LogHistoryImpl) history).getLog().sync();
+                }
+            }
+        }, logSyncInterval, logSyncInterval);
+    }
+
+    /**
+     * Returns a copy of the list of loaded histories.
+     * @return the loaded histories
+     */
+    private List<History> getLoadedHistories()
+    {
+        synchronized (this.histories)
+        {
+            return new ArrayList<History>(this.histories.values());
+        }
+    }
+
+    /**
+     * Closes the log of <tt>history</tt> if it is stored in one, syncing its
+     * pending records, or the indexes of its XML documents otherwise, once
+     * the queued documents are written.
+     *
+     * @param history the history
+     */
+    private void closeHistory(History history)
+    {
+        if (history instanceof LogHistoryImpl)
+            ((LogHistoryImpl) history).getLog().close();
+        else if (history instanceof HistoryImpl)
+        {
+            if (writeQueue != null)
+                writeQueue.flush();
+            ((HistoryImpl) history).close();
+        }
+    }
+
+    /**
+     * Stops the service, writing the queued documents, syncing and closing
+     * all the history logs and indexes and emptying the documents cache.
+     */
+    void stop()
+    {
+        if (writeQueue != null)
+            writeQueue.stop();
+
+        synchronized (this)
+        {
+            if (logSyncTimer != null)
+            {
+                logSyncTimer.cancel();
+                logSyncTimer = null;
+            }
+        }
+
+        for (History history : getLoadedHistories())
+            closeHistory(history);
+
+        if (documentCache != null)
+            documentCache.dispose();
+    }
+
     public Iterator<HistoryID> getExistingIDs()
     {
         List<File> vect = new Vector<File>();
@@ -176,8 +368,7 @@ public class HistoryServiceImpl
                         "There is already a history with the specified ID.");
             } else {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history = createHistoryImpl(id, dir, recordStructure);
 
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
@@ -229,6 +420,18 @@ public class HistoryServiceImpl
         return builder.parse(in);
     }
 
+    /**
+     * Returns the factory of the pull parsers reading history documents.
+     * Unlike the DOM parser, documents are read concurrently, the factory is
+     * only locked while creating a parser.
+     *
+     * @return the factory of the pull parsers reading history documents
+     */
+    XMLInputFactory getInputFactory()
+    {
+        return inputFactory;
+    }
+
     private void findDatFiles(List<File> vect, File directory)
     {
         File[] files = directory.listFiles();
@@ -302,6 +505,28 @@ public class HistoryServiceImpl
         return cacheEnabled;
     }
 
+    /**
+     * Returns the cache of parsed history documents shared by all histories,
+     * which reports its size, hit, miss and eviction statistics.
+     *
+     * @return the documents cache or <tt>null</tt> if caching is disabled
+     */
+    public HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns the queue writing the documents of XML histories.
+     *
+     * @return the write queue or <tt>null</tt> if documents are written by
+     * the threads adding records
+     */
+    HistoryWriteQueue getWriteQueue()
+    {
+        return writeQueue;
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -313,11 +538,10 @@ public class HistoryServiceImpl
     {
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
-        if (logger.isTraceEnabled())
-            logger.trace("Removing history directory " + dir);
-        deleteDirAndContent(dir);
 
         History history = histories.remove(id);
+        closeHistory(history);
+
         if(history == null)
         {
             // well this can be global delete, so lets remove all matching
@@ -331,10 +555,15 @@ public class HistoryServiceImpl
                 Map.Entry<HistoryID, History> entry = iter.next();
                 if(isSubHistory(ids, entry.getKey()))
                 {
+                    closeHistory(entry.getValue());
                     iter.remove();
                 }
             }
         }
+
+        if (logger.isTraceEnabled())
+            logger.trace("Removing history directory " + dir);
+        deleteDirAndContent(dir);
     }
 
     /**
@@ -342,6 +571,9 @@ public class HistoryServiceImpl
      */
     public void purgeLocallyCachedHistories()
     {
+        for (History history : getLoadedHistories())
+            closeHistory(history);
+
         histories.clear();
     }
 
@@ -453,6 +685,8 @@ public class HistoryServiceImpl
         // make sure parent path is existing
         newDir.getParentFile().mkdirs();
 
+        closeHistory(histories.get(oldId));
+
         if(!oldDir.renameTo(newDir))
         {
             if (logger.isInfoEnabled())
@@ -555,7 +789,10 @@ public class HistoryServiceImpl
                 @Override
                 public int compare(File o1, File o2)
                 {
-                    return o1.getName().compareTo(o2.getName());
+                    int res = o1.getName().compareTo(o2.getName());
+
+                    // history logs all have the same name
+                    return (res != 0) ? res : o1.compareTo(o2);
                 }
             });
 
@@ -0,0 +1,816 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * A persistent index of the timestamps of the records of an XML history.
+ * For every history document it remembers the timestamp of each record, by
+ * the position of the record in the document, so readers can tell which
+ * documents and which records of them fall in a period without parsing the
+ * documents or their timestamps.
+ * <p>
+ * The index is kept in a sidecar file in the history directory as a list of
+ * operations which is replayed when the index is loaded: <tt>OP_FILE</tt>
+ * replaces all the timestamps of a document and <tt>OP_ADD</tt> appends the
+ * timestamp of a record added at the end of a document. Both carry the length
+ * of the document after the change, which is compared to the actual length
+ * of the document when the index is loaded, documents which do not match
+ * (for example because of a crash between writing the document and the
+ * index) and documents missing from the index are indexed again by parsing
+ * them. <tt>OP_LENGTH</tt> only updates the length of a document.
+ * <p>
+ * Once the index is loaded, changes are indexed in memory as soon as they
+ * are made to the documents, and written to the index file once the document
+ * is written, since documents may be written later on the writer thread of
+ * the <tt>HistoryWriteQueue</tt>. Writers do not load the index, documents
+ * changed before it is loaded are indexed again when it is.
+ */
+public class HistoryTimestampIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryTimestampIndex.class);
+
+    /**
+     * The name of the index file in the history directory.
+     */
+    public static final String INDEX_FILE = "timestamps.idx";
+
+    /**
+     * The magic number the index file starts with ("JHT1").
+     */
+    private static final int MAGIC = 0x4A485431;
+
+    /**
+     * Replaces the timestamps of a document.
+     */
+    private static final byte OP_FILE = 1;
+
+    /**
+     * Appends a timestamp to a document.
+     */
+    private static final byte OP_ADD = 2;
+
+    /**
+     * Updates the length of a document.
+     */
+    private static final byte OP_LENGTH = 3;
+
+    /**
+     * The length stored for documents whose records on disk may not match
+     * the index, it never matches the actual length of a document.
+     */
+    private static final long UNKNOWN_LENGTH = -1;
+
+    /**
+     * The history whose documents are indexed.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The indexed documents by name.
+     */
+    private final Map<String, IndexedDocument> documents
+        = new HashMap<String, IndexedDocument>();
+
+    /**
+     * The stream appending operations to the index file or <tt>null</tt> if
+     * the index is not loaded or cannot be written.
+     */
+    private DataOutputStream out = null;
+
+    /**
+     * Whether the index has been loaded and checked against the documents.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The names of the documents changed while the index was not loaded,
+     * which may not be written yet.
+     */
+    private final Set<String> changedDocuments = new HashSet<String>();
+
+    /**
+     * The number of records by day, counted from the index when first
+     * needed and kept up to date as records are appended, or <tt>null</tt>
+     * if they have to be counted again.
+     */
+    private HistoryDayCounts dayCounts = null;
+
+    /**
+     * Creates the index of the documents of a history.
+     *
+     * @param historyImpl the history
+     * @param directory the history directory
+     */
+    HistoryTimestampIndex(HistoryImpl historyImpl, File directory)
+    {
+        this.historyImpl = historyImpl;
+        this.indexFile = new File(directory, INDEX_FILE);
+    }
+
+    /**
+     * Records that a record was appended at the end of a document. The
+     * change is written to the index file once the document is written. If
+     * the index is not loaded, the document is indexed again when it is.
+     *
+     * @param filename the document name
+     * @param position the position of the record in the document
+     * @param timestamp the timestamp of the record
+     */
+    synchronized void recordAppended(String filename,
+                                     int position,
+                                     long timestamp)
+    {
+        if (!loaded)
+        {
+            changedDocuments.add(filename);
+            return;
+        }
+
+        IndexedDocument doc = documents.get(filename);
+        if (doc == null)
+        {
+            doc = new IndexedDocument(filename);
+            documents.put(filename, doc);
+        }
+
+        // if the document was indexed while loading, it already contains the
+        // record
+        if (doc.count > position)
+            return;
+
+        doc.add(timestamp);
+        if (dayCounts != null)
+            dayCounts.add(timestamp);
+    }
+
+    /**
+     * Indexes again a document whose records were reordered, removed or
+     * modified. The change is written to the index file once the document
+     * is written. If the index is not loaded, the document is indexed again
+     * when it is.
+     *
+     * @param filename the document name
+     * @param document the content of the document
+     */
+    synchronized void documentChanged(String filename, Document document)
+    {
+        if (!loaded)
+        {
+            changedDocuments.add(filename);
+            return;
+        }
+
+        index(filename, document).persisted = -1;
+    }
+
+    /**
+     * Writes the changes of a document to the index file once the document
+     * was written.
+     *
+     * @param filename the document name
+     * @param records the number of records of the written document
+     */
+    synchronized void documentWritten(String filename, int records)
+    {
+        IndexedDocument doc = documents.get(filename);
+        if (!loaded || doc == null)
+            return;
+
+        // records added since the document was written are not on disk yet,
+        // the length makes sure the document is indexed again after a crash
+        doc.length = (doc.count == records)
+            ? historyImpl.getDocumentLength(filename)
+            : UNKNOWN_LENGTH;
+
+        if (out != null)
+        {
+            try
+            {
+                if (doc.persisted < 0)
+                    write(out, doc);
+                else if (doc.persisted == doc.count)
+                {
+                    out.writeByte(OP_LENGTH);
+                    out.writeUTF(filename);
+                    out.writeLong(doc.length);
+                }
+                else
+                {
+                    for (int i = doc.persisted; i < doc.count; i++)
+                    {
+                        out.writeByte(OP_ADD);
+                        out.writeUTF(filename);
+                        out.writeLong(doc.length);
+                        out.writeLong(doc.timestamps[i]);
+                    }
+                }
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                writeFailed(e);
+            }
+        }
+        doc.persisted = doc.count;
+    }
+
+    /**
+     * Returns the records with timestamp in [<tt>startDate</tt>,
+     * <tt>endDate</tt>), ordered by timestamp.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the records in the period
+     */
+    synchronized List<Entry> findByPeriod(Date startDate, Date endDate)
+    {
+        return findByPeriod(startDate, endDate, null);
+    }
+
+    /**
+     * Returns the records with timestamp in [<tt>startDate</tt>,
+     * <tt>endDate</tt>) among the given ones, ordered by timestamp.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param positions the positions of the records to return by document
+     * name or <tt>null</tt> for all records
+     * @return the records in the period
+     */
+    synchronized List<Entry> findByPeriod(Date startDate,
+                                          Date endDate,
+                                          Map<String, BitSet> positions)
+    {
+        ensureLoaded();
+
+        long start = (startDate == null) ? Long.MIN_VALUE : startDate.getTime();
+        long end = (endDate == null) ? Long.MAX_VALUE : endDate.getTime();
+
+        List<Entry> result = new ArrayList<Entry>();
+        for (IndexedDocument doc : documents.values())
+        {
+            if (doc.count == 0 || doc.max < start || doc.min >= end)
+                continue;
+
+            if (positions == null)
+                doc.collect(start, end, result);
+            else if (positions.containsKey(doc.filename))
+                doc.collect(start, end, positions.get(doc.filename), result);
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the <tt>count</tt> newest records with timestamp before
+     * <tt>endDate</tt>, ordered by timestamp. Documents are visited from the
+     * one with the newest record and the search stops as soon as no other
+     * document can hold a record newer than the ones already found.
+     *
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param count the number of records
+     * @return the found records
+     */
+    synchronized List<Entry> findLast(Date endDate, int count)
+    {
+        if (count <= 0)
+            return new ArrayList<Entry>();
+
+        ensureLoaded();
+
+        long end = (endDate == null) ? Long.MAX_VALUE : endDate.getTime();
+
+        List<IndexedDocument> docs
+            = new ArrayList<IndexedDocument>(documents.values());
+        Collections.sort(docs, new Comparator<IndexedDocument>()
+        {
+            public int compare(IndexedDocument d1, IndexedDocument d2)
+            {
+                return (d1.max < d2.max) ? 1 : ((d1.max == d2.max) ? 0 : -1);
+            }
+        });
+
+        List<Entry> result = new ArrayList<Entry>();
+        for (IndexedDocument doc : docs)
+        {
+            if (doc.count == 0 || doc.min >= end)
+                continue;
+
+            if (result.size() >= count)
+            {
+                Collections.sort(result);
+                if (doc.max < result.get(result.size() - count).timestamp)
+                    break;
+            }
+
+            doc.collect(Long.MIN_VALUE, end, result);
+        }
+
+        Collections.sort(result);
+        if (result.size() > count)
+            result = result.subList(result.size() - count, result.size());
+        return result;
+    }
+
+    /**
+     * Returns the <tt>count</tt> oldest records with timestamp after or at
+     * <tt>startDate</tt>, ordered by timestamp.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param count the number of records
+     * @return the found records
+     */
+    synchronized List<Entry> findFirst(Date startDate, int count)
+    {
+        if (count <= 0)
+            return new ArrayList<Entry>();
+
+        ensureLoaded();
+
+        long start = (startDate == null) ? Long.MIN_VALUE : startDate.getTime();
+
+        List<IndexedDocument> docs
+            = new ArrayList<IndexedDocument>(documents.values());
+        Collections.sort(docs, new Comparator<IndexedDocument>()
+        {
+            public int compare(IndexedDocument d1, IndexedDocument d2)
+            {
+                return (d1.min < d2.min) ? -1 : ((d1.min == d2.min) ? 0 : 1);
+            }
+        });
+
+        List<Entry> result = new ArrayList<Entry>();
+        for (IndexedDocument doc : docs)
+        {
+            if (doc.count == 0 || doc.max < start)
+                continue;
+
+            if (result.size() >= count)
+            {
+                Collections.sort(result);
+                if (doc.min > result.get(count - 1).timestamp)
+                    break;
+            }
+
+            doc.collect(start, Long.MAX_VALUE, result);
+        }
+
+        Collections.sort(result);
+        if (result.size() > count)
+            result = result.subList(0, count);
+        return result;
+    }
+
+    /**
+     * Returns the number of records in the history.
+     * @return the number of records in the history
+     */
+    synchronized int countRecords()
+    {
+        ensureLoaded();
+
+        int count = 0;
+        for (IndexedDocument doc : documents.values())
+            count += doc.count;
+        return count;
+    }
+
+    /**
+     * Returns the number of records of the days overlapping the period
+     * [<tt>startDate</tt>, <tt>endDate</tt>), without reading the records.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the number of records of every day which has records, by the
+     * start of the day
+     */
+    synchronized SortedMap<Date, Integer> countRecordsByDay(Date startDate,
+                                                            Date endDate)
+    {
+        ensureLoaded();
+
+        if (dayCounts == null || !dayCounts.isCurrent())
+        {
+            dayCounts = new HistoryDayCounts();
+            for (IndexedDocument doc : documents.values())
+            {
+                for (int i = 0; i < doc.count; i++)
+                    dayCounts.add(doc.timestamps[i]);
+            }
+        }
+        return dayCounts.get(startDate, endDate);
+    }
+
+    /**
+     * Closes the index file. The index will be loaded again on next use.
+     */
+    synchronized void close()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Failed to close " + indexFile, e);
+            }
+            out = null;
+        }
+        documents.clear();
+        dayCounts = null;
+        loaded = false;
+    }
+
+    /**
+     * Loads the index file and brings it up to date with the documents of
+     * the history.
+     */
+    private void ensureLoaded()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+
+        long readBytes = read();
+
+        Set<String> filenames = new HashSet<String>();
+        Iterator<String> iter = historyImpl.getFileList();
+        while (iter.hasNext())
+            filenames.add(iter.next());
+
+        boolean changed = documents.keySet().retainAll(filenames);
+
+        for (String filename : filenames)
+        {
+            IndexedDocument doc = documents.get(filename);
+            boolean unwritten = changedDocuments.contains(filename);
+            if (doc == null
+                || doc.length != historyImpl.getDocumentLength(filename)
+                || unwritten)
+            {
+                doc = index(filename, historyImpl.loadDocument(filename));
+                changed = true;
+
+                // the records on disk may not match until it is written
+                if (unwritten)
+                    doc.length = UNKNOWN_LENGTH;
+            }
+        }
+        changedDocuments.clear();
+
+        try
+        {
+            if (changed || readBytes < 0 || readBytes > 2 * estimateSize())
+                rewrite();
+
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile, true)));
+        }
+        catch (IOException e)
+        {
+            writeFailed(e);
+        }
+    }
+
+    /**
+     * Reads the index file.
+     *
+     * @return the number of bytes read or -1 if the index file is missing
+     * or damaged and has to be written again
+     */
+    private long read()
+    {
+        if (!indexFile.exists())
+            return -1;
+
+        long length = indexFile.length();
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a timestamp index");
+
+            while (true)
+            {
+                byte op;
+                try
+                {
+                    op = in.readByte();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                String filename = in.readUTF();
+                IndexedDocument doc = documents.get(filename);
+                if (doc == null)
+                {
+                    doc = new IndexedDocument(filename);
+                    documents.put(filename, doc);
+                }
+                doc.length = in.readLong();
+
+                if (op == OP_FILE)
+                {
+                    int count = in.readInt();
+                    doc.clear();
+                    for (int i = 0; i < count; i++)
+                        doc.add(in.readLong());
+                }
+                else if (op == OP_ADD)
+                    doc.add(in.readLong());
+                else if (op != OP_LENGTH)
+                    throw new IOException("Unknown operation " + op);
+                doc.persisted = doc.count;
+            }
+        }
+        catch (IOException e)
+        {
+            // a damaged or truncated index, the documents which do not match
+            // it will be indexed again
+            logger.warn("Failed to read " + indexFile + ": " + e);
+            length = -1;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Rewrites the index file with one <tt>OP_FILE</tt> per document.
+     *
+     * @throws IOException if writing fails
+     */
+    private void rewrite()
+        throws IOException
+    {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream tmp = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(tmpFile)));
+        try
+        {
+            tmp.writeInt(MAGIC);
+            for (IndexedDocument doc : documents.values())
+            {
+                write(tmp, doc);
+                doc.persisted = doc.count;
+            }
+        }
+        finally
+        {
+            tmp.close();
+        }
+
+        indexFile.delete();
+        if (!tmpFile.renameTo(indexFile))
+            throw new IOException("Failed to replace " + indexFile);
+    }
+
+    /**
+     * Writes an <tt>OP_FILE</tt> operation for a document.
+     *
+     * @param out the stream to write to
+     * @param doc the document
+     * @throws IOException if writing fails
+     */
+    private static void write(DataOutputStream out, IndexedDocument doc)
+        throws IOException
+    {
+        out.writeByte(OP_FILE);
+        out.writeUTF(doc.filename);
+        out.writeLong(doc.length);
+        out.writeInt(doc.count);
+        for (int i = 0; i < doc.count; i++)
+            out.writeLong(doc.timestamps[i]);
+    }
+
+    /**
+     * Returns the size of the index file if it was rewritten.
+     * @return the size of the index file if it was rewritten
+     */
+    private long estimateSize()
+    {
+        long size = 4;
+        for (IndexedDocument doc : documents.values())
+            size += 1 + 2 + doc.filename.length() + 8 + 4 + 8 * doc.count;
+        return size;
+    }
+
+    /**
+     * Stops persisting the index after a write error, it is still maintained
+     * in memory.
+     *
+     * @param e the error
+     */
+    private void writeFailed(IOException e)
+    {
+        logger.error("Failed to write " + indexFile, e);
+
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException ex)
+            {
+            }
+            out = null;
+        }
+        indexFile.delete();
+    }
+
+    /**
+     * Indexes the records of a document.
+     *
+     * @param filename the document name
+     * @param document the content of the document or <tt>null</tt> if it
+     * cannot be read
+     * @return the indexed document
+     */
+    private IndexedDocument index(String filename, Document document)
+    {
+        IndexedDocument doc = documents.get(filename);
+        if (doc == null)
+        {
+            doc = new IndexedDocument(filename);
+            documents.put(filename, doc);
+        }
+        doc.clear();
+        doc.length = historyImpl.getDocumentLength(filename);
+        dayCounts = null;
+
+        if (document == null)
+            return doc;
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        NodeList nodes = document.getElementsByTagName("record");
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            String ts = ((Element) nodes.item(i)).getAttribute("timestamp");
+            long timestamp;
+            try
+            {
+                timestamp = sdf.parse(ts).getTime();
+            }
+            catch (ParseException e)
+            {
+                timestamp = Long.parseLong(ts);
+            }
+            doc.add(timestamp);
+        }
+
+        return doc;
+    }
+
+    /**
+     * A record found in the index.
+     */
+    static class Entry
+        implements Comparable<Entry>
+    {
+        /**
+         * The name of the document holding the record.
+         */
+        final String filename;
+
+        /**
+         * The position of the record among the records of the document.
+         */
+        final int position;
+
+        /**
+         * The timestamp of the record.
+         */
+        final long timestamp;
+
+        Entry(String filename, int position, long timestamp)
+        {
+            this.filename = filename;
+            this.position = position;
+            this.timestamp = timestamp;
+        }
+
+        public int compareTo(Entry o)
+        {
+            if (timestamp != o.timestamp)
+                return (timestamp < o.timestamp) ? -1 : 1;
+
+            int res = filename.compareTo(o.filename);
+            return (res != 0) ? res : (position - o.position);
+        }
+    }
+
+    /**
+     * The timestamps of the records of one document.
+     */
+    private static class IndexedDocument
+    {
+        final String filename;
+
+        long length;
+
+        long[] timestamps = new long[16];
+
+        int count = 0;
+
+        /**
+         * The number of timestamps written to the index file, -1 if all of
+         * them have to be written again.
+         */
+        int persisted = 0;
+
+        long min = Long.MAX_VALUE;
+
+        long max = Long.MIN_VALUE;
+
+        IndexedDocument(String filename)
+        {
+            this.filename = filename;
+        }
+
+        void add(long timestamp)
+        {
+            if (count == timestamps.length)
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+            timestamps[count++] = timestamp;
+
+            if (timestamp < min)
+                min = timestamp;
+            if (timestamp > max)
+                max = timestamp;
+        }
+
+        void clear()
+        {
+            count = 0;
+            min = Long.MAX_VALUE;
+            max = Long.MIN_VALUE;
+        }
+
+        void collect(long start, long end, List<Entry> result)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                long timestamp = timestamps[i];
+                if (start <= timestamp && timestamp < end)
+                    result.add(new Entry(filename, i, timestamp));
+            }
+        }
+
+        void collect(long start, long end, BitSet positions, List<Entry> result)
+        {
+            for (int i = positions.nextSetBit(0);
+                    i >= 0 && i < count;
+                    i = positions.nextSetBit(i + 1))
+            {
+                long timestamp = timestamps[i];
+                if (start <= timestamp && timestamp < end)
+                    result.add(new Entry(filename, i, timestamp));
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Writes the history documents records were added to on a single thread
+ * shared by all the histories of a <tt>HistoryServiceImpl</tt>, instead of
+ * on the threads adding the records.
+ * <p>
+ * Records are added to their document in memory right away, so they are
+ * immediately visible to readers, and the document is queued to be written.
+ * The writer thread waits a little after the first queued document so bursts
+ * of records are gathered, or until as many records as the queue holds are
+ * gathered, then writes each of the queued documents once.
+ * The queue is bounded, threads adding records while it is full wait for the
+ * writer to catch up.
+ */
+public class HistoryWriteQueue
+    implements Runnable
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriteQueue.class);
+
+    /**
+     * The property enabling writing history documents on the writer thread.
+     */
+    public static final String PNAME_WRITE_BEHIND
+        = "net.java.sip.communicator.impl.history.WRITE_BEHIND";
+
+    /**
+     * The property holding the maximum number of records waiting to be
+     * written.
+     */
+    public static final String PNAME_WRITE_QUEUE_CAPACITY
+        = "net.java.sip.communicator.impl.history.WRITE_QUEUE_CAPACITY";
+
+    /**
+     * The default maximum number of records waiting to be written.
+     */
+    static final int DEFAULT_WRITE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The time, in milliseconds, the writer waits after the first queued
+     * record to gather the following ones.
+     */
+    private static final long GATHER_DELAY = 50;
+
+    /**
+     * The queued writes.
+     */
+    private final BlockingQueue<PendingWrite> queue;
+
+    /**
+     * The maximum number of writes gathered in a batch.
+     */
+    private final int capacity;
+
+    /**
+     * The number of queued writes which are not written yet.
+     */
+    private int pending = 0;
+
+    /**
+     * The writer thread, started with the first queued write.
+     */
+    private Thread thread = null;
+
+    /**
+     * Whether the queue is stopped.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Creates a queue holding at most <tt>capacity</tt> writes.
+     *
+     * @param capacity the maximum number of records waiting to be written
+     */
+    HistoryWriteQueue(int capacity)
+    {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<PendingWrite>(capacity);
+    }
+
+    /**
+     * Queues the write of a document a record was added to. Waits while the
+     * queue is full.
+     *
+     * @param writer the writer of the history of the document
+     * @param filename the document name
+     * @param document the document
+     * @return <tt>false</tt> if the queue is stopped and the document has to
+     * be written by the caller
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    boolean enqueue(HistoryWriterImpl writer,
+                    String filename,
+                    Document document)
+        throws IOException
+    {
+        synchronized (this)
+        {
+            if (stopped)
+                return false;
+
+            if (thread == null)
+            {
+                thread = new Thread(this, "History writer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            pending++;
+        }
+
+        try
+        {
+            queue.put(new PendingWrite(writer, filename, document));
+        }
+        catch (InterruptedException e)
+        {
+            written(1);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting for the history writer");
+        }
+        return true;
+    }
+
+    /**
+     * Waits until all the queued writes are written.
+     */
+    void flush()
+    {
+        boolean interrupted = false;
+
+        synchronized (this)
+        {
+            while (pending > 0 && thread != null && thread.isAlive())
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Writes the queued documents and stops the writer thread. Records
+     * added after are written on the threads adding them.
+     */
+    void stop()
+    {
+        flush();
+
+        synchronized (this)
+        {
+            stopped = true;
+            if (thread != null)
+            {
+                thread.interrupt();
+                thread = null;
+            }
+        }
+    }
+
+    /**
+     * Writes the queued documents until the queue is stopped.
+     */
+    public void run()
+    {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        boolean stop = false;
+
+        while (!stop)
+        {
+            try
+            {
+                batch.add(queue.take());
+
+                // gather the writes following the first one, unless there are
+                // already enough of them to make threads wait
+                long deadline = System.currentTimeMillis() + GATHER_DELAY;
+                while (batch.size() < capacity)
+                {
+                    long delay = deadline - System.currentTimeMillis();
+                    PendingWrite write = (delay > 0)
+                        ? queue.poll(delay, TimeUnit.MILLISECONDS)
+                        : null;
+                    if (write == null)
+                        break;
+                    batch.add(write);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                synchronized (this)
+                {
+                    stop = stopped;
+                }
+            }
+            queue.drainTo(batch);
+
+            if (!batch.isEmpty())
+            {
+                write(batch);
+                written(batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes every document of a batch once, with all of its new records.
+     *
+     * @param batch the queued writes
+     */
+    private void write(List<PendingWrite> batch)
+    {
+        // writers have no equals, they are compared by identity
+        Map<HistoryWriterImpl, Map<String, Document>> documents
+            = new LinkedHashMap<HistoryWriterImpl, Map<String, Document>>();
+        for (PendingWrite write : batch)
+        {
+            Map<String, Document> writerDocuments = documents.get(write.writer);
+            if (writerDocuments == null)
+            {
+                writerDocuments = new LinkedHashMap<String, Document>();
+                documents.put(write.writer, writerDocuments);
+            }
+            writerDocuments.put(write.filename, write.document);
+        }
+
+        int count = 0;
+        for (Map.Entry<HistoryWriterImpl, Map<String, Document>> e
+                : documents.entrySet())
+        {
+            for (Map.Entry<String, Document> doc : e.getValue().entrySet())
+            {
+                try
+                {
+                    e.getKey().writeDocument(doc.getKey(), doc.getValue());
+                }
+                catch (Throwable t)
+                {
+                    logger.error(
+                        "Failed to write history document " + doc.getKey(), t);
+                }
+                count++;
+            }
+        }
+
+        if (logger.isTraceEnabled())
+        {
+            logger.trace("Wrote " + batch.size() + " history records in "
+                + count + " documents");
+        }
+    }
+
+    /**
+     * Records that queued writes are done and wakes up the threads waiting
+     * for them.
+     *
+     * @param count the number of done writes
+     */
+    private synchronized void written(int count)
+    {
+        pending -= count;
+        notifyAll();
+    }
+
+    /**
+     * The write of a document a record was added to.
+     */
+    private static class PendingWrite
+    {
+        final HistoryWriterImpl writer;
+
+        final String filename;
+
+        final Document document;
+
+        PendingWrite(HistoryWriterImpl writer,
+                     String filename,
+                     Document document)
+        {
+            this.writer = writer;
+            this.filename = filename;
+            this.document = document;
+        }
+    }
+}
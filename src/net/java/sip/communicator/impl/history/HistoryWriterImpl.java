@@ -120,45 +120,97 @@ public class HistoryWriterImpl
                            int maxNumberOfRecords)
         throws InvalidParameterException, IOException
     {
+        HistoryWriteQueue writeQueue
+            = historyImpl.getHistoryServiceImpl().getWriteQueue();
+        String filename;
+        Document doc;
+
         // Synchronized to assure that two concurrent threads can insert records
-        // safely.
+        // safely, and index them in the order they are added.
         synchronized (this.docCreateLock)
         {
             if (this.currentDoc == null
                     || this.currentDocElements > MAX_RECORDS_PER_FILE)
             {
+                // once another document is open the previous one is read from
+                // disk, its queued records have to be written first
+                if (this.currentDoc != null && writeQueue != null)
+                    writeQueue.flush();
+
                 this.createNewDoc(date, this.currentDoc == null);
             }
-        }
 
-        synchronized (this.currentDoc)
-        {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
+            filename = this.currentFile;
+            doc = this.currentDoc;
+
+            boolean recordRemoved = false;
+            Element elem;
+            int position;
+
+            synchronized (doc)
             {
-                // if we have setting for max number of records,
-                // check the number and when exceed them, remove the first one
-                if( maxNumberOfRecords > -1
-                    && this.currentDocElements >= maxNumberOfRecords)
+                Node root = doc.getFirstChild();
+                synchronized (root)
                 {
-                    // lets remove the first one
-                    removeFirstRecord(root);
+                    // if we have setting for max number of records,
+                    // check the number and when exceed them, remove the first
+                    // one
+                    if( maxNumberOfRecords > -1
+                        && this.currentDocElements >= maxNumberOfRecords)
+                    {
+                        // lets remove the first one
+                        removeFirstRecord(root);
+                        recordRemoved = true;
+                    }
+
+                    elem = createRecord(
+                        doc, propertyNames, propertyValues, date);
+                    root.appendChild(elem);
+                    this.currentDocElements++;
+                    position = doc.getElementsByTagName("record").getLength()
+                        - 1;
                 }
+            }
 
-                Element elem = createRecord(
-                    this.currentDoc, propertyNames, propertyValues, date);
-                root.appendChild(elem);
-                this.currentDocElements++;
+            if(recordRemoved)
+            {
+                this.historyImpl.getTimestampIndex()
+                    .documentChanged(filename, doc);
+                this.historyImpl.getKeywordIndex()
+                    .documentChanged(filename, doc);
+            }
+            else
+            {
+                this.historyImpl.getTimestampIndex()
+                    .recordAppended(filename, position, date.getTime());
+                this.historyImpl.getKeywordIndex()
+                    .recordAppended(filename, position, elem);
             }
         }
 
-        // write changes
+        // write changes, on the writer thread of the service if it has one
+        if (writeQueue == null || !writeQueue.enqueue(this, filename, doc))
+            writeDocument(filename, doc);
+    }
+
+    /**
+     * Writes a document and the changes of the indexes of its records.
+     *
+     * @param filename the document name
+     * @param doc the document
+     * @throws IOException if writing the document fails
+     */
+    void writeDocument(String filename, Document doc)
+        throws IOException
+    {
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            int records = this.historyImpl.writeFile(filename, doc);
+
+            this.historyImpl.getTimestampIndex()
+                .documentWritten(filename, records);
+            this.historyImpl.getKeywordIndex()
+                .documentWritten(filename, records);
         }
     }
 
@@ -296,56 +348,61 @@ public class HistoryWriterImpl
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            // the document may be written meanwhile by the write queue
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
+
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
 
-                Element idNode = XMLUtils.findChild(
-                    (Element)node, timestampProperty);
-                if(idNode == null)
-                    continue;
+                    Element idNode = XMLUtils.findChild(
+                        (Element)node, timestampProperty);
+                    if(idNode == null)
+                        continue;
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+                    Node nestedNode = idNode.getFirstChild();
+                    if(nestedNode == null)
+                        continue;
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                    // Get nested TEXT node's value
+                    String nodeValue = nestedNode.getNodeValue();
 
-                Date nodeTimeStamp;
-                try
-                {
-                    nodeTimeStamp = sdf.parse(nodeValue);
-                }
-                catch (ParseException e)
-                {
-                    nodeTimeStamp = new Date(Long.parseLong(nodeValue));
-                }
+                    Date nodeTimeStamp;
+                    try
+                    {
+                        nodeTimeStamp = sdf.parse(nodeValue);
+                    }
+                    catch (ParseException e)
+                    {
+                        nodeTimeStamp = new Date(Long.parseLong(nodeValue));
+                    }
 
-                if(nodeTimeStamp.before(timestamp))
-                    continue;
+                    if(nodeTimeStamp.before(timestamp))
+                        continue;
 
-                Element newElem = createRecord(
-                    doc, structPropertyNames, propertyValues, timestamp);
+                    Element newElem = createRecord(
+                        doc, structPropertyNames, propertyValues, timestamp);
 
-                doc.getFirstChild().insertBefore(newElem, node);
+                    doc.getFirstChild().insertBefore(newElem, node);
 
-                changed = true;
-                break;
+                    changed = true;
+                    break;
+                }
             }
 
             if(changed)
             {
                 // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
+                this.historyImpl.getTimestampIndex()
+                    .documentChanged(filename, doc);
+                this.historyImpl.getKeywordIndex()
+                    .documentChanged(filename, doc);
+                writeDocument(filename, doc);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -383,7 +440,7 @@ public class HistoryWriterImpl
 
             if (file != null)
             {
-                this.currentDoc = this.historyImpl.getDocumentForFile(file);
+                this.currentDoc = this.historyImpl.createDocument(file);
                 this.currentFile = file;
                 loaded = true;
             }
@@ -435,67 +492,73 @@ public class HistoryWriterImpl
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            // the document may be written meanwhile by the write queue
+            synchronized (doc)
             {
-                node = nodes.item(i);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                Element idNode = XMLUtils.findChild((Element)node, idProperty);
-                if(idNode == null)
-                    continue;
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+                    Element idNode
+                        = XMLUtils.findChild((Element)node, idProperty);
+                    if(idNode == null)
+                        continue;
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+                    Node nestedNode = idNode.getFirstChild();
+                    if(nestedNode == null)
+                        continue;
 
-                if(!nodeValue.equals(idValue))
-                    continue;
+                    // Get nested TEXT node's value
+                    String nodeValue = nestedNode.getNodeValue();
 
-                Element changedNode =
-                    XMLUtils.findChild((Element)node, property);
+                    if(!nodeValue.equals(idValue))
+                        continue;
 
-                if(changedNode != null)
-                {
-                    Node changedNestedNode = changedNode.getFirstChild();
+                    Element changedNode =
+                        XMLUtils.findChild((Element)node, property);
 
-                    changedNestedNode.setNodeValue(newValue);
-                }
-                else
-                {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
+                    if(changedNode != null)
+                    {
+                        Node changedNestedNode = changedNode.getFirstChild();
 
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
-                    propertyElement.appendChild(value);
+                        changedNestedNode.setNodeValue(newValue);
+                    }
+                    else
+                    {
+                        Element propertyElement = this.currentDoc
+                            .createElement(property);
 
-                    node.appendChild(propertyElement);
-                }
+                        Text value = this.currentDoc
+                            .createTextNode(newValue.replaceAll("\0", " "));
+                        propertyElement.appendChild(value);
+
+                        node.appendChild(propertyElement);
+                    }
 
-                // change the timestamp, to reflect there was a change
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                ((Element)node).setAttribute("timestamp",
-                    sdf.format(new Date()));
+                    // change the timestamp, to reflect there was a change
+                    SimpleDateFormat sdf
+                        = new SimpleDateFormat(DATE_FORMAT);
+                    ((Element)node).setAttribute("timestamp",
+                        sdf.format(new Date()));
 
-                changed = true;
-                break;
+                    changed = true;
+                    break;
+                }
             }
 
             if(changed)
             {
                 // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
+                this.historyImpl.getTimestampIndex()
+                    .documentChanged(filename, doc);
+                this.historyImpl.getKeywordIndex()
+                    .documentChanged(filename, doc);
+                writeDocument(filename, doc);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -529,36 +592,42 @@ public class HistoryWriterImpl
             if(doc == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
             boolean changed = false;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            // the document may be written meanwhile by the write queue
+            synchronized (doc)
             {
-                node = nodes.item(i);
-                updater.setHistoryRecord(createHistoryRecordFromNode(node));
-                if(!updater.isMatching())
-                    continue;
-
-                // change the timestamp, to reflect there was a change
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                ((Element)node).setAttribute("timestamp",
-                    sdf.format(new Date()));
-
-                Map<String, String> updates = updater.getUpdateChanges();
-                for(String nodeName : updates.keySet())
-                {
-                    Element changedNode =
-                        XMLUtils.findChild((Element)node, nodeName);
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                    if(changedNode != null)
+                Node node;
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    node = nodes.item(i);
+                    updater.setHistoryRecord(createHistoryRecordFromNode(node));
+                    if(!updater.isMatching())
+                        continue;
+
+                    // change the timestamp, to reflect there was a change
+                    SimpleDateFormat sdf
+                        = new SimpleDateFormat(DATE_FORMAT);
+                    ((Element)node).setAttribute("timestamp",
+                        sdf.format(new Date()));
+
+                    Map<String, String> updates = updater.getUpdateChanges();
+                    for(String nodeName : updates.keySet())
                     {
-                        Node changedNestedNode = changedNode.getFirstChild();
-
-                        changedNestedNode.setNodeValue(updates.get(nodeName));
-                        changed = true;
+                        Element changedNode =
+                            XMLUtils.findChild((Element)node, nodeName);
+
+                        if(changedNode != null)
+                        {
+                            Node changedNestedNode
+                                = changedNode.getFirstChild();
+
+                            changedNestedNode.setNodeValue(
+                                updates.get(nodeName));
+                            changed = true;
+                        }
                     }
                 }
             }
@@ -566,10 +635,11 @@ public class HistoryWriterImpl
             if(changed)
             {
                 // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
+                this.historyImpl.getTimestampIndex()
+                    .documentChanged(filename, doc);
+                this.historyImpl.getKeywordIndex()
+                    .documentChanged(filename, doc);
+                writeDocument(filename, doc);
 
                 // this prevents that the current writer, which holds
                 // instance for the last document he is editing will not
@@ -16,8 +16,6 @@ import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
@@ -144,25 +142,32 @@ public class InteractiveHistoryReaderImpl
                                                     startDate, endDate, true);
         Iterator<String> fileIterator = filelist.iterator();
 
+        // the records which may match according to the keyword index
+        Map<String, BitSet> candidates
+            = HistoryReaderImpl.findCandidates(history, keywords, field);
+
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
-
-            if(doc == null)
-                continue;
+            BitSet positions = null;
+            if(candidates != null)
+            {
+                positions = candidates.get(filename);
+                if(positions == null)
+                    continue;
+            }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            List<HistoryDocumentReader.Record> records
+                = history.readRecords(filename, positions);
 
-            for ( int i = nodes.getLength() - 1;
+            for ( int i = records.size() - 1;
                   i >= 0 && !query.isCanceled();
                   i--)
             {
-                Node node = nodes.item(i);
+                HistoryDocumentReader.Record node = records.get(i);
                 Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
+                String ts = node.timestamp;
                 try
                 {
                     timestamp = sdf.parse(ts);
@@ -174,11 +179,9 @@ public class InteractiveHistoryReaderImpl
 
                 if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
                     HistoryRecord record =
                         HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
+                            .filterByKeyword(node, timestamp,
                                         keywords, field, caseSensitive);
 
                     if(record != null)
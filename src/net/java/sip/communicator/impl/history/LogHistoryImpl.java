@@ -0,0 +1,169 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A <tt>History</tt> whose records are kept in a single append-only
+ * <tt>HistoryLog</tt> instead of a sequence of XML documents. Existing XML
+ * documents found in the history directory are migrated into the log the
+ * first time it is opened.
+ */
+public class LogHistoryImpl
+    implements History
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LogHistoryImpl.class);
+
+    private final HistoryID id;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    private final File directory;
+
+    /**
+     * The log holding the records of this history.
+     */
+    private final HistoryLog log;
+
+    private HistoryReader reader;
+
+    private InteractiveHistoryReader interactiveReader;
+
+    private HistoryWriter writer;
+
+    /**
+     * Creates an instance of <tt>LogHistoryImpl</tt> by specifying the
+     * history identifier, the directory, the <tt>HistoryRecordStructure</tt>
+     * to use and the parent <tt>HistoryServiceImpl</tt>.
+     * @param id the identifier
+     * @param directory the directory
+     * @param historyRecordStructure the structure
+     * @param historyServiceImpl the parent history service
+     */
+    protected LogHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+        this.historyRecordStructure = historyRecordStructure;
+        this.log = new HistoryLog(
+            new File(directory, HistoryLog.LOG_FILE),
+            historyServiceImpl.getLogSyncGroupSize());
+
+        try
+        {
+            new XmlHistoryMigrator(historyServiceImpl).migrate(directory, log);
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to migrate XML history in " + directory, e);
+        }
+    }
+
+    /**
+     * Returns the identifier of this history.
+     * @return the identifier of this history
+     */
+    public HistoryID getID()
+    {
+        return this.id;
+    }
+
+    /**
+     * Returns the current <tt>HistoryRecordStructure</tt>.
+     * @return the current <tt>HistoryRecordStructure</tt>
+     */
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return this.historyRecordStructure;
+    }
+
+    /**
+     * Sets the given <tt>structure</tt> to be the new history records
+     * structure used in this history implementation.
+     * @param structure the new <tt>HistoryRecordStructure</tt> to use
+     */
+    public void setHistoryRecordsStructure(HistoryRecordStructure structure)
+    {
+        this.historyRecordStructure = structure;
+
+        try
+        {
+            File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
+            DBStructSerializer dbss = new DBStructSerializer(historyServiceImpl);
+            dbss.writeHistory(dbDatFile, this);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not create new history structure");
+        }
+
+        if (writer != null)
+            ((LogHistoryWriterImpl) writer).setStructure(structure);
+    }
+
+    /**
+     * Returns an object which can be used to read and query this history.
+     * @return an object which can be used to read and query this history
+     */
+    public HistoryReader getReader()
+    {
+        if (reader == null)
+            reader = new LogHistoryReaderImpl(this);
+        return reader;
+    }
+
+    /**
+     * Returns an object that can be used to read and query this history
+     * interactively.
+     * @return an object that can be used to read and query this history
+     */
+    public InteractiveHistoryReader getInteractiveReader()
+    {
+        if (interactiveReader == null)
+            interactiveReader = new LogInteractiveHistoryReaderImpl(this);
+        return interactiveReader;
+    }
+
+    /**
+     * Returns an object which can be used to append records to this history.
+     * @return an object which can be used to append records to this history
+     */
+    public HistoryWriter getWriter()
+    {
+        if (writer == null)
+            writer = new LogHistoryWriterImpl(this);
+        return writer;
+    }
+
+    /**
+     * Returns the log holding the records of this history.
+     * @return the log holding the records of this history
+     */
+    HistoryLog getLog()
+    {
+        return log;
+    }
+
+    protected HistoryServiceImpl getHistoryServiceImpl()
+    {
+        return this.historyServiceImpl;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryReader</tt> of a <tt>LogHistoryImpl</tt>. The log keeps an
+ * index of its records ordered by timestamp, so date bounded queries only
+ * read the records inside the requested period and <tt>findLast</tt> reads
+ * the log backwards until it has enough records.
+ */
+public class LogHistoryReaderImpl
+    implements HistoryReader
+{
+    private final HistoryLog log;
+
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates a reader for the given history.
+     * @param historyImpl the history to read from
+     */
+    protected LogHistoryReaderImpl(LogHistoryImpl historyImpl)
+    {
+        this.log = historyImpl.getLog();
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+            Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByEndDate(
+            Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByPeriod(
+            Date startDate, Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeyword(
+            String keyword, String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeyword(
+            String keyword, String field, boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeywords(
+            String[] keywords, String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByKeywords(
+            String[] keywords, String field, boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByPeriod(
+            Date startDate, Date endDate, String[] keywords, String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findByPeriod(
+            Date startDate, Date endDate, String[] keywords, String field,
+            boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findLast(int count)
+        throws RuntimeException
+    {
+        return findLast(count, null, null, false);
+    }
+
+    public synchronized QueryResultSet<HistoryRecord> findLast(
+            int count, String[] keywords, String field, boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findBackwards(null, count, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(
+            Date date, int count)
+        throws RuntimeException
+    {
+        TreeSet<HistoryRecord> result = new TreeSet<HistoryRecord>(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        try
+        {
+            long[] offsets = log.findOffsets(date, null);
+
+            for (int i = 0; i < offsets.length && result.size() < count; i++)
+            {
+                HistoryRecord record = log.read(offsets[i]);
+                if (record != null)
+                    result.add(record);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to read history log", e);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(
+            Date date, int count)
+        throws RuntimeException
+    {
+        return findBackwards(date, count, null, null, false);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records before <tt>endDate</tt> which
+     * contain the given keywords.
+     *
+     * @param endDate the date before which records are searched or
+     * <tt>null</tt>
+     * @param count the number of records
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> findBackwards(Date endDate,
+                                                        int count,
+                                                        String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result = new TreeSet<HistoryRecord>(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        try
+        {
+            long[] offsets = log.findOffsets(null, endDate);
+
+            for (int i = offsets.length - 1;
+                    i >= 0 && result.size() < count;
+                    i--)
+            {
+                HistoryRecord record = log.read(offsets[i]);
+
+                if (record != null
+                    && HistoryReaderImpl.matchRecord(
+                            record, keywords, field, caseSensitive))
+                {
+                    result.add(record);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to read history log", e);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns all the records in the given period which contain the given
+     * keywords, firing progress events while reading.
+     *
+     * @param startDate start of the period or <tt>null</tt>
+     * @param endDate end of the period or <tt>null</tt>
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> find(Date startDate,
+                                               Date endDate,
+                                               String[] keywords,
+                                               String field,
+                                               boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result = new TreeSet<HistoryRecord>(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        try
+        {
+            long[] offsets = log.findOffsets(startDate, endDate);
+            int lastProgress
+                = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+
+            for (int i = 0; i < offsets.length; i++)
+            {
+                HistoryRecord record = log.read(offsets[i]);
+
+                if (record != null
+                    && HistoryReaderImpl.matchRecord(
+                            record, keywords, field, caseSensitive))
+                {
+                    result.add(record);
+                }
+
+                int progress = (int) ((long) (i + 1)
+                    * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / offsets.length);
+                if (progress != lastProgress)
+                {
+                    lastProgress = progress;
+                    fireProgressStateChanged(
+                        startDate, endDate, keywords, progress);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to read history log", e);
+        }
+        finally
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                                          String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized(progressListeners)
+        {
+            for (HistorySearchProgressListener listener : progressListeners)
+                listener.progressChanged(event);
+        }
+    }
+
+    public void addSearchProgressListener(
+            HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    public void removeSearchProgressListener(
+            HistorySearchProgressListener listener)
+    {
+        synchronized(progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Returns the exact number of records in the log, which is known without
+     * reading any of them.
+     *
+     * @return the number of records
+     */
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        try
+        {
+            return log.size();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to read history log", e);
+        }
+    }
+
+    /**
+     * Counts the records of the days overlapping a period. The counts are
+     * kept next to the index of the log, so no record is read.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period, exclusive, or <tt>null</tt>
+     * @return the number of records of every day which has records, by the
+     * start of the day
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(Date startDate,
+                                                      Date endDate)
+    {
+        try
+        {
+            return log.countRecordsByDay(startDate, endDate);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to read history log", e);
+        }
+    }
+}
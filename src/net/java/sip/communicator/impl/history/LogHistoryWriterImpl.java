@@ -0,0 +1,221 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of a <tt>LogHistoryImpl</tt>. New records are
+ * appended to the log, updated records are marked deleted and appended again
+ * with their new values, so no write ever rewrites existing data.
+ */
+public class LogHistoryWriterImpl
+    implements HistoryWriter
+{
+    private final HistoryLog log;
+
+    private String[] structPropertyNames;
+
+    /**
+     * Creates a writer for the given history.
+     * @param historyImpl the history to write to
+     */
+    protected LogHistoryWriterImpl(LogHistoryImpl historyImpl)
+    {
+        this.log = historyImpl.getLog();
+        this.structPropertyNames
+            = historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+
+    /**
+     * Changes the structure used for records added by values only.
+     * @param structure the new structure
+     */
+    void setStructure(HistoryRecordStructure structure)
+    {
+        this.structPropertyNames = structure.getPropertyNames();
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        log.append(
+            record.getPropertyNames(),
+            record.getPropertyValues(),
+            record.getTimestamp().getTime());
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(propertyValues, new Date());
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        log.append(structPropertyNames, propertyValues, timestamp.getTime());
+    }
+
+    /**
+     * Stores the passed propertyValues complying with the
+     * historyRecordStructure, dropping the oldest record if the history
+     * already holds <tt>maxNumberOfRecords</tt>.
+     *
+     * @param propertyValues The values of the record.
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException
+     */
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        synchronized (log)
+        {
+            if (maxNumberOfRecords > -1)
+            {
+                while (log.size() >= maxNumberOfRecords && log.size() > 0)
+                    log.delete(log.getOldestOffset());
+            }
+
+            addRecord(propertyValues);
+        }
+    }
+
+    /**
+     * Stores the passed propertyValues with the given timestamp. The log
+     * keeps its records ordered by timestamp so there is no need to look for
+     * the place where the record must be inserted.
+     *
+     * @param propertyValues The values of the record.
+     * @param timestamp The timestamp of the record.
+     * @param timestampProperty unused, the record timestamp is used for
+     * ordering
+     * @throws IOException
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        addRecord(propertyValues, timestamp);
+    }
+
+    /**
+     * Updates the oldest record which has <tt>idValue</tt> as value of the
+     * <tt>idProperty</tt>.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     */
+    public void updateRecord(final String idProperty, final String idValue,
+            final String property, final String newValue)
+        throws IOException
+    {
+        updateRecords(new HistoryRecordUpdater()
+        {
+            private HistoryRecord record;
+
+            public void setHistoryRecord(HistoryRecord historyRecord)
+            {
+                this.record = historyRecord;
+            }
+
+            public boolean isMatching()
+            {
+                String[] names = record.getPropertyNames();
+                for (int i = 0; i < names.length; i++)
+                {
+                    if (idProperty.equals(names[i]))
+                        return idValue.equals(record.getPropertyValues()[i]);
+                }
+                return false;
+            }
+
+            public Map<String, String> getUpdateChanges()
+            {
+                return Collections.singletonMap(property, newValue);
+            }
+        }, true, true);
+    }
+
+    /**
+     * Updates history records using given <tt>HistoryRecordUpdater</tt>
+     * instance to find the records to be updated and to get the new values
+     * for the fields.
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     */
+    public void updateRecord(HistoryRecordUpdater updater)
+        throws IOException
+    {
+        updateRecords(updater, false, false);
+    }
+
+    /**
+     * Replaces the records matched by <tt>updater</tt> with updated copies
+     * carrying the current time as timestamp.
+     *
+     * @param updater finds the records and provides the changes
+     * @param firstOnly stop after the first updated record
+     * @param addMissing add the changed properties which the record does not
+     * have yet
+     * @throws IOException if reading or writing the log fails
+     */
+    private void updateRecords(HistoryRecordUpdater updater,
+                               boolean firstOnly,
+                               boolean addMissing)
+        throws IOException
+    {
+        synchronized (log)
+        {
+            long[] offsets = log.findOffsets(null, null);
+
+            for (long offset : offsets)
+            {
+                HistoryRecord record = log.read(offset);
+                if (record == null)
+                    continue;
+
+                updater.setHistoryRecord(record);
+                if (!updater.isMatching())
+                    continue;
+
+                Map<String, String> changes = updater.getUpdateChanges();
+                List<String> names = new ArrayList<String>(
+                    Arrays.asList(record.getPropertyNames()));
+                List<String> values = new ArrayList<String>(
+                    Arrays.asList(record.getPropertyValues()));
+
+                for (Map.Entry<String, String> change : changes.entrySet())
+                {
+                    int ix = names.indexOf(change.getKey());
+                    if (ix != -1)
+                        values.set(ix, change.getValue());
+                    else if (addMissing)
+                    {
+                        names.add(change.getKey());
+                        values.add(change.getValue());
+                    }
+                }
+
+                log.delete(offset);
+                log.append(
+                    names.toArray(new String[names.size()]),
+                    values.toArray(new String[values.size()]),
+                    System.currentTimeMillis());
+
+                if (firstOnly)
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The <tt>InteractiveHistoryReader</tt> of a <tt>LogHistoryImpl</tt>. Reads
+ * the log from the newest record backwards, delivering matches to the
+ * <tt>HistoryQuery</tt> as they are found.
+ */
+public class LogInteractiveHistoryReaderImpl
+    implements InteractiveHistoryReader
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LogInteractiveHistoryReaderImpl.class);
+
+    private final HistoryLog log;
+
+    /**
+     * Creates a reader for the given history.
+     * @param history the history to read from
+     */
+    public LogInteractiveHistoryReaderImpl(LogHistoryImpl history)
+    {
+        this.log = history.getLog();
+    }
+
+    public HistoryQuery findByKeyword(String keyword,
+                                      String field,
+                                      int recordCount)
+    {
+        return findByKeywords(new String[]{keyword}, field, recordCount);
+    }
+
+    public HistoryQuery findByKeywords(final String[] keywords,
+                                       final String field,
+                                       final int recordCount)
+    {
+        StringBuilder queryString = new StringBuilder();
+        for (String s : keywords)
+        {
+            queryString.append(' ');
+            queryString.append(s);
+        }
+
+        final HistoryQueryImpl query
+            = new HistoryQueryImpl(queryString.toString());
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                find(keywords, field, recordCount, query);
+            }
+        }.start();
+
+        return query;
+    }
+
+    /**
+     * Finds the newest records containing the given keywords.
+     * @param keywords the keywords
+     * @param field the field, where to search the keywords
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void find(String[] keywords,
+                      String field,
+                      int resultCount,
+                      HistoryQueryImpl query)
+    {
+        try
+        {
+            long[] offsets = log.findOffsets(null, null);
+
+            for (int i = offsets.length - 1;
+                    i >= 0 && resultCount > 0 && !query.isCanceled();
+                    i--)
+            {
+                HistoryRecord record = log.read(offsets[i]);
+
+                if (record != null
+                    && HistoryReaderImpl.matchRecord(
+                            record, keywords, field, false))
+                {
+                    query.addHistoryRecord(record);
+                    resultCount--;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to search history log", e);
+        }
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.apache.commons.lang3.*;
+import org.w3c.dom.*;
+
+/**
+ * Moves the records of the XML documents found in a history directory into
+ * the <tt>HistoryLog</tt> of that directory. The records are first written to
+ * a temporary log which replaces the real one only once it is complete and
+ * synced, and the XML documents and their indexes are deleted afterwards. If
+ * the process is interrupted before the replacement it is simply run again,
+ * if it is interrupted after it only the leftover XML documents are deleted.
+ */
+public class XmlHistoryMigrator
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(XmlHistoryMigrator.class);
+
+    /**
+     * The suffix appended to the name of XML documents which could not be
+     * parsed and were left out of the migration.
+     */
+    private static final String BROKEN_SUFFIX = ".broken";
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    /**
+     * Creates a migrator using the XML parser of the given service.
+     * @param historyServiceImpl the history service
+     */
+    public XmlHistoryMigrator(HistoryServiceImpl historyServiceImpl)
+    {
+        this.historyServiceImpl = historyServiceImpl;
+    }
+
+    /**
+     * Migrates the XML documents in <tt>directory</tt> into <tt>log</tt>.
+     * Does nothing if there are no XML documents.
+     *
+     * @param directory the history directory
+     * @param log the log of the history
+     * @throws IOException if the migrated log cannot be written
+     */
+    public void migrate(File directory, HistoryLog log)
+        throws IOException
+    {
+        File[] xmlFiles = listXmlFiles(directory);
+        if (xmlFiles.length == 0)
+            return;
+
+        File logFile = log.getFile();
+
+        if (!logFile.exists())
+        {
+            if (logger.isInfoEnabled())
+            {
+                logger.info("Migrating " + xmlFiles.length
+                    + " history documents in " + directory);
+            }
+
+            File tmpFile = new File(logFile.getPath() + HistoryLog.TMP_SUFFIX);
+            tmpFile.delete();
+
+            HistoryLog tmp = new HistoryLog(tmpFile, Integer.MAX_VALUE);
+            try
+            {
+                for (File xmlFile : xmlFiles)
+                {
+                    if (!migrateDocument(xmlFile, tmp))
+                    {
+                        // keep the unreadable document aside, so it is
+                        // neither deleted nor migrated again
+                        File broken
+                            = new File(xmlFile.getPath() + BROKEN_SUFFIX);
+                        if (!xmlFile.renameTo(broken))
+                        {
+                            throw new IOException(
+                                "Cannot parse history document " + xmlFile);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                tmp.close();
+            }
+
+            if (!tmpFile.renameTo(logFile))
+                throw new IOException("Cannot create history log " + logFile);
+        }
+
+        for (File xmlFile : xmlFiles)
+        {
+            if (xmlFile.exists() && !xmlFile.delete())
+                logger.warn("Cannot delete migrated history " + xmlFile);
+        }
+
+        // the indexes of the XML documents are of no use anymore
+        new File(directory, HistoryTimestampIndex.INDEX_FILE).delete();
+        new File(directory, HistoryKeywordIndex.INDEX_FILE).delete();
+    }
+
+    /**
+     * Appends the records of an XML document to a log.
+     *
+     * @param xmlFile the XML document
+     * @param log the log
+     * @return <tt>false</tt> if the document cannot be parsed
+     * @throws IOException if writing to the log fails
+     */
+    private boolean migrateDocument(File xmlFile, HistoryLog log)
+        throws IOException
+    {
+        Document doc;
+        try
+        {
+            doc = historyServiceImpl.parse(xmlFile);
+        }
+        catch (Exception e)
+        {
+            logger.error("Cannot parse history document " + xmlFile, e);
+            return false;
+        }
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        NodeList nodes = doc.getElementsByTagName("record");
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            Element node = (Element) nodes.item(i);
+
+            Date timestamp;
+            String ts = node.getAttribute("timestamp");
+            try
+            {
+                timestamp = sdf.parse(ts);
+            }
+            catch (ParseException e)
+            {
+                timestamp = new Date(Long.parseLong(ts));
+            }
+
+            names.clear();
+            values.clear();
+
+            NodeList propertyNodes = node.getChildNodes();
+            for (int j = 0; j < propertyNodes.getLength(); j++)
+            {
+                Node propertyNode = propertyNodes.item(j);
+                if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+
+                Node nestedNode = propertyNode.getFirstChild();
+                if (nestedNode == null)
+                    continue;
+
+                names.add(propertyNode.getNodeName());
+                // values were escaped when written to the XML document
+                values.add(
+                    StringEscapeUtils.unescapeXml(nestedNode.getNodeValue()));
+            }
+
+            log.append(
+                names.toArray(new String[names.size()]),
+                values.toArray(new String[values.size()]),
+                timestamp.getTime());
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the XML history documents in <tt>directory</tt> ordered by
+     * name, which is the order they were created in.
+     *
+     * @param directory the history directory
+     * @return the XML documents
+     */
+    private static File[] listXmlFiles(File directory)
+    {
+        File[] files = directory.listFiles(new FileFilter()
+        {
+            public boolean accept(File f)
+            {
+                return f.isFile()
+                    && f.getName().endsWith(HistoryImpl.SUPPORTED_FILETYPE);
+            }
+        });
+
+        if (files == null)
+            return new File[0];
+
+        Arrays.sort(files);
+        return files;
+    }
+}
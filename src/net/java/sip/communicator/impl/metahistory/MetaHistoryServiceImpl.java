@@ -7,11 +7,13 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.filehistory.*;
+import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.event.ProgressEvent;
 import net.java.sip.communicator.service.metahistory.*;
@@ -27,6 +29,10 @@ import org.osgi.framework.*;
  * The Meta History Service is wrapper around the other known
  * history services. Query them all at once, sort the result and return all
  * merged records in one collection.
+ * <p>
+ * The services are queried in parallel, so a search takes as long as the
+ * slowest service instead of all of them, and their sorted records are
+ * merged, stopping once the requested number of records is reached.
  *
  * @author Damian Minkov
  */
@@ -53,6 +59,23 @@ public class MetaHistoryServiceImpl
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The comparator ordering the records of all the services by date.
+     */
+    private static final RecordsComparator RECORDS_COMPARATOR
+        = new RecordsComparator();
+
+    /**
+     * The number of threads querying the wrapped services at once.
+     */
+    private static final int QUERY_THREADS = 4;
+
+    /**
+     * The executor querying the wrapped services in parallel, shared by all
+     * the searches.
+     */
+    private ExecutorService queryExecutor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -65,52 +88,38 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByStartDate(String[] services,
-            Object descriptor, Date startDate)
+            Object descriptor, final Date startDate)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        Collection<Object> result = merge(query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
+                {
+                    return mhs.findByStartDate(contact, startDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
+                    return mhs.findByStartDate(room, startDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
+                    return fhs.findByStartDate(contact, startDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+
+                Collection<?> query(CallHistoryService chs)
+                {
+                    return chs.findByStartDate(startDate);
+                }
+            },
+            listenWrapper));
         listenWrapper.fireLastProgress(startDate, null, null);
 
         return result;
@@ -128,55 +137,92 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByEndDate(String[] services,
-            Object descriptor, Date endDate)
+            Object descriptor, final Date endDate)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        Collection<Object> result = merge(query(services, descriptor,
+            new HistoryQuery()
+            {
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
+                {
+                    return mhs.findByEndDate(contact, endDate);
+                }
+
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
+                {
+                    return mhs.findByEndDate(room, endDate);
+                }
+
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
+                {
+                    return fhs.findByEndDate(contact, endDate);
+                }
+
+                Collection<?> query(CallHistoryService chs)
+                {
+                    return chs.findByEndDate(endDate);
+                }
+            },
+            listenWrapper));
+        listenWrapper.fireLastProgress(null, endDate, null);
+
+        return result;
+    }
+
+    /**
+     * Counts the records by day, without reading them, so that the days with
+     * records can be listed. Call records are not counted.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param startDate Date the start of the period or <tt>null</tt>
+     * @param endDate Date the end of the period or <tt>null</tt>
+     * @return the number of records of the services we wrap of every day
+     *  overlapping the period which has records, by the start of the day
+     * @throws RuntimeException
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(String[] services,
+            Object descriptor, Date startDate, Date endDate)
+        throws RuntimeException
+    {
+        SortedMap<Date, Integer> result = new TreeMap<Date, Integer>();
+
+        for (String service : services)
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            Object serv = getService(service);
+            SortedMap<Date, Integer> counts = null;
+
+            if (serv instanceof MessageHistoryService)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                MessageHistoryService mhs = (MessageHistoryService) serv;
 
-                if(descriptor instanceof MetaContact)
+                if (descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
+                    counts = mhs.countRecordsByDay(
+                        (MetaContact) descriptor, startDate, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+                else if (descriptor instanceof ChatRoom)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
+                    counts = mhs.countRecordsByDay(
+                        (ChatRoom) descriptor, startDate, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
             }
-            else if(serv instanceof FileHistoryService
+            else if (serv instanceof FileHistoryService
                     && descriptor instanceof MetaContact)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
+                counts = ((FileHistoryService) serv).countRecordsByDay(
+                    (MetaContact) descriptor, startDate, endDate);
             }
-        }
-        listenWrapper.fireLastProgress(null, endDate, null);
 
+            if (counts != null)
+                HistoryRecordCounts.addCounts(result, counts);
+        }
         return result;
     }
 
@@ -193,55 +239,38 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate)
+            Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        Collection<Object> result = merge(query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
+                {
+                    return mhs.findByPeriod(contact, startDate, endDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
+                    return mhs.findByPeriod(room, startDate, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
+                    return fhs.findByPeriod(contact, startDate, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+
+                Collection<?> query(CallHistoryService chs)
+                {
+                    return chs.findByPeriod(startDate, endDate);
+                }
+            },
+            listenWrapper));
         listenWrapper.fireLastProgress(startDate, endDate, null);
 
         return result;
@@ -284,72 +313,47 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            Object descriptor, final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        Collection<Object> result = merge(query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
+                    return mhs.findByPeriod(contact,
+                        startDate, endDate,
+                        keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor,
+                    return mhs.findByPeriod(room,
                         startDate, endDate,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
+                        keywords, caseSensitive);
+                }
 
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
                 {
-                    CallRecord callRecord = iter.next();
+                    return fhs.findByPeriod(contact,
+                        startDate, endDate,
+                        keywords, caseSensitive);
+                }
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                Collection<?> query(CallHistoryService chs)
+                {
+                    return filterCallRecords(
+                        chs.findByPeriod(startDate, endDate),
+                        keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            },
+            listenWrapper));
         listenWrapper.fireLastProgress(startDate, endDate, keywords);
 
         return result;
@@ -424,69 +428,42 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByKeywords(String[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        Collection<Object> result = merge(query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
+                    return mhs.findByKeywords(contact, keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (ChatRoom)descriptor,
-                            keywords, caseSensitive));
+                    return mhs.findByKeywords(room, keywords, caseSensitive);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
-                        (MetaContact)descriptor,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
 
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
                 {
-                    CallRecord callRecord = iter.next();
+                    return fhs.findByKeywords(contact, keywords, caseSensitive);
+                }
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                Collection<?> query(CallHistoryService chs)
+                {
+                    // this will get all call records
+                    return filterCallRecords(
+                        chs.findByEndDate(new Date()),
+                        keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            },
+            listenWrapper));
         listenWrapper.fireLastProgress(null, null, keywords);
 
         return result;
@@ -504,67 +481,42 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findLast(String[] services,
-            Object descriptor, int count)
+            Object descriptor, final int count)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        Collection<Object> result = mergeLast(query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (MetaContact)descriptor,
-                            count));
+                    return mhs.findLast(contact, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (ChatRoom)descriptor,
-                            count));
+                    return mhs.findLast(room, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
-                        (MetaContact)descriptor,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
+                {
+                    return fhs.findLast(contact, count);
+                }
 
-        if(startIndex < 0)
-            startIndex = 0;
+                Collection<?> query(CallHistoryService chs)
+                {
+                    return chs.findLast(count);
+                }
+            },
+            listenWrapper),
+            count);
+        listenWrapper.fireLastProgress(null, null, null);
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result;
     }
 
     /**
@@ -580,79 +532,42 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findFirstMessagesAfter(String[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        Collection<Object> result = mergeFirst(query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
+                {
+                    return mhs.findFirstMessagesAfter(contact, date, count);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    return mhs.findFirstMessagesAfter(room, date, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    return fhs.findFirstRecordsAfter(contact, date, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
+                Collection<?> query(CallHistoryService chs)
                 {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
+                    return chs.findByStartDate(date);
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
+            },
+            listenWrapper),
+            count);
         listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-
-        int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
 
-        return resultAsList.subList(0, toIndex);
+        return result;
     }
 
     /**
@@ -668,77 +583,351 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findLastMessagesBefore(String[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
         MessageProgressWrapper listenWrapper
             = new MessageProgressWrapper(services.length);
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        Collection<Object> result = mergeLast(query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> query(MessageHistoryService mhs,
+                                    MetaContact contact)
+                {
+                    return mhs.findLastMessagesBefore(contact, date, count);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> query(MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    return mhs.findLastMessagesBefore(room, date, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> query(FileHistoryService fhs,
+                                    MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    return fhs.findLastRecordsBefore(contact, date, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
+
+                Collection<?> query(CallHistoryService chs)
+                {
+                    return chs.findByEndDate(date);
+                }
+            },
+            listenWrapper),
+            count);
+        listenWrapper.fireLastProgress(date, null, null);
+
+        return result;
+    }
+
+    /**
+     * Queries the wrapped services in parallel, the first one on the calling
+     * thread and the others on the query executor.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String), MetaContact or ChatRoom.
+     * @param query the query to run on each service
+     * @param listenWrapper the listener of the progress of the services
+     * @return the records returned by each service, sorted by date
+     * @throws RuntimeException if a service fails
+     */
+    private List<List<Object>> query(String[] services,
+                                     final Object descriptor,
+                                     final HistoryQuery query,
+                                     final MessageProgressWrapper listenWrapper)
+        throws RuntimeException
+    {
+        List<Callable<List<Object>>> tasks
+            = new ArrayList<Callable<List<Object>>>(services.length);
+        for (int i = 0; i < services.length; i++)
+        {
+            final Object serv = getService(services[i]);
+            final int ix = i;
+
+            tasks.add(new Callable<List<Object>>()
+            {
+                public List<Object> call()
+                {
+                    return query(
+                        serv, descriptor, query, listenWrapper.forService(ix));
+                }
+            });
+        }
+
+        ExecutorService executor;
+        synchronized (this)
+        {
+            executor = queryExecutor;
+        }
+
+        List<Future<List<Object>>> futures
+            = new ArrayList<Future<List<Object>>>(tasks.size());
+        if (executor != null)
+        {
+            try
+            {
+                for (int i = 1; i < tasks.size(); i++)
+                    futures.add(executor.submit(tasks.get(i)));
             }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
+            catch (RejectedExecutionException e)
+            {
+                // stopping, query the remaining services on this thread
+                futures.clear();
+            }
+        }
+
+        List<List<Object>> results
+            = new ArrayList<List<Object>>(tasks.size());
+        try
+        {
+            for (int i = 0; i < tasks.size(); i++)
+            {
+                if (i == 0 || futures.isEmpty())
+                    results.add(tasks.get(i).call());
+                else
+                    results.add(futures.get(i - 1).get());
+            }
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            // the tasks do not throw checked exceptions
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            for (Future<List<Object>> future : futures)
+                future.cancel(true);
+        }
+
+        return results;
+    }
+
+    /**
+     * Queries one of the wrapped services.
+     *
+     * @param serv the service
+     * @param descriptor CallPeer address(String), MetaContact or ChatRoom.
+     * @param query the query to run
+     * @param listener the listener of the progress of the service
+     * @return the records returned by the service, sorted by date
+     */
+    private static List<Object> query(Object serv,
+                                      Object descriptor,
+                                      HistoryQuery query,
+                                      ServiceProgressListener listener)
+    {
+        Collection<?> records = null;
+
+        if(serv instanceof MessageHistoryService)
+        {
+            MessageHistoryService mhs =
+                (MessageHistoryService)serv;
+            mhs.addSearchProgressListener(listener);
+
+            try
+            {
+                if(descriptor instanceof MetaContact)
+                    records = query.query(mhs, (MetaContact)descriptor);
+                else if(descriptor instanceof ChatRoom)
+                    records = query.query(mhs, (ChatRoom)descriptor);
+            }
+            finally
+            {
+                mhs.removeSearchProgressListener(listener);
+            }
+        }
+        else if(serv instanceof FileHistoryService
+                && descriptor instanceof MetaContact)
+        {
+            records = query.query(
+                (FileHistoryService)serv, (MetaContact)descriptor);
+        }
+        else if(serv instanceof CallHistoryService)
+        {
+            CallHistoryService chs = (CallHistoryService)serv;
+            chs.addSearchProgressListener(listener);
+
+            try
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
+                records = query.query(chs);
             }
-            else if(serv instanceof CallHistoryService)
+            finally
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
+                chs.removeSearchProgressListener(listener);
+            }
+        }
+
+        if (records == null)
+            return new ArrayList<Object>();
+
+        // most services already return their records sorted, which the
+        // stable sort only checks
+        List<Object> result = new ArrayList<Object>(records);
+        Collections.sort(result, RECORDS_COMPARATOR);
+        return result;
+    }
+
+    /**
+     * Returns the call records having a peer matching the keywords.
+     *
+     * @param records the call records
+     * @param keywords array of keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching call records
+     */
+    private List<CallRecord> filterCallRecords(
+        Collection<CallRecord> records,
+        String[] keywords,
+        boolean caseSensitive)
+    {
+        List<CallRecord> result = new ArrayList<CallRecord>();
+
+        for (CallRecord callRecord : records)
+        {
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+        return result;
+    }
+
+    /**
+     * Merges the sorted records of the services. Records with the same date
+     * are only returned once, the first one in the order of the services.
+     *
+     * @param results the records of each service, sorted by date
+     * @return the merged records sorted by date
+     */
+    private static List<Object> merge(List<List<Object>> results)
+    {
+        return mergeFirst(results, Integer.MAX_VALUE);
+    }
 
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
+    /**
+     * Merges the oldest sorted records of the services, stopping after
+     * <tt>count</tt> records. Records with the same date are only returned
+     * once, the first one in the order of the services.
+     *
+     * @param results the records of each service, sorted by date
+     * @param count the maximum number of records to return
+     * @return the <tt>count</tt> oldest records sorted by date
+     */
+    private static List<Object> mergeFirst(List<List<Object>> results,
+                                           int count)
+    {
+        int[] next = new int[results.size()];
+        int size = 0;
+        for (List<Object> records : results)
+            size += records.size();
+        List<Object> merged = new ArrayList<Object>(Math.min(size, count));
+        Object last = null;
+
+        while (merged.size() < count)
+        {
+            // the first service wins ties, as it is queried first
+            int min = -1;
+            for (int i = 0; i < next.length; i++)
+            {
+                List<Object> records = results.get(i);
+                if (next[i] < records.size()
+                    && (min < 0
+                        || RECORDS_COMPARATOR.compare(
+                                records.get(next[i]),
+                                results.get(min).get(next[min])) < 0))
                 {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
+                    min = i;
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+            }
+            if (min < 0)
+                break;
+
+            Object record = results.get(min).get(next[min]++);
+            if (last == null || RECORDS_COMPARATOR.compare(last, record) != 0)
+            {
+                merged.add(record);
+                last = record;
             }
         }
-        listenWrapper.fireLastProgress(date, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        return merged;
+    }
+
+    /**
+     * Merges the newest sorted records of the services, stopping after
+     * <tt>count</tt> records. Records with the same date are only returned
+     * once, the first one in the order of the services.
+     *
+     * @param results the records of each service, sorted by date
+     * @param count the maximum number of records to return
+     * @return the <tt>count</tt> newest records sorted by date
+     */
+    private static List<Object> mergeLast(List<List<Object>> results,
+                                          int count)
+    {
+        int[] previous = new int[results.size()];
+        for (int i = 0; i < previous.length; i++)
+            previous[i] = results.get(i).size();
+        List<Object> merged = new ArrayList<Object>();
+        Object last = null;
+
+        while (true)
+        {
+            // walking backwards, the first service has to come last on ties
+            int max = -1;
+            for (int i = 0; i < previous.length; i++)
+            {
+                List<Object> records = results.get(i);
+                if (previous[i] > 0
+                    && (max < 0
+                        || RECORDS_COMPARATOR.compare(
+                                records.get(previous[i] - 1),
+                                results.get(max).get(previous[max] - 1))
+                            >= 0))
+                {
+                    max = i;
+                }
+            }
+            if (max < 0)
+                break;
+
+            Object record = results.get(max).get(previous[max] - 1);
+            if (last != null && RECORDS_COMPARATOR.compare(last, record) == 0)
+            {
+                // the same date, the record found last is the one kept
+                merged.set(merged.size() - 1, record);
+            }
+            else if (merged.size() < count)
+            {
+                merged.add(record);
+            }
+            else
+                break;
 
-        if(startIndex < 0)
-            startIndex = 0;
+            previous[max]--;
+            last = record;
+        }
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        Collections.reverse(merged);
+        return merged;
     }
 
     /**
@@ -868,6 +1057,25 @@ public class MetaHistoryServiceImpl
 
         services.clear();
 
+        synchronized (this)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                QUERY_THREADS, QUERY_THREADS,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "MetaHistoryService query");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
+            queryExecutor = executor;
+        }
+
         // start listening for newly register or removed services
         bc.addServiceListener(this);
     }
@@ -881,6 +1089,15 @@ public class MetaHistoryServiceImpl
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        synchronized (this)
+        {
+            if (queryExecutor != null)
+            {
+                queryExecutor.shutdownNow();
+                queryExecutor = null;
+            }
+        }
     }
 
     /**
@@ -917,25 +1134,51 @@ public class MetaHistoryServiceImpl
         }
     }
 
-    private class MessageProgressWrapper
-        implements MessageHistorySearchProgressListener,
-        CallHistorySearchProgressListener
+    /**
+     * A query run on each of the wrapped services.
+     */
+    private static abstract class HistoryQuery
     {
-        private final int count;
+        abstract Collection<?> query(MessageHistoryService mhs,
+                                     MetaContact contact);
+
+        abstract Collection<?> query(MessageHistoryService mhs, ChatRoom room);
+
+        abstract Collection<?> query(FileHistoryService fhs,
+                                     MetaContact contact);
+
+        abstract Collection<?> query(CallHistoryService chs);
+    }
 
-        private int ix;
+    /**
+     * Combines the progress of the services queried in parallel into the
+     * progress of the search.
+     */
+    private class MessageProgressWrapper
+    {
+        /**
+         * The progress of each service, out of
+         * <tt>HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE</tt>.
+         */
+        private final int[] progress;
 
         public MessageProgressWrapper(int count)
         {
-            this.count = count;
+            this.progress = new int[count];
         }
 
-        public void setIx(int ix)
+        /**
+         * Returns the listener of the progress of a service.
+         *
+         * @param ix the index of the service
+         * @return the listener
+         */
+        ServiceProgressListener forService(int ix)
         {
-            this.ix = ix;
+            return new ServiceProgressListener(this, ix);
         }
 
-        private void fireProgress(int origProgress, int maxVal,
+        private void fireProgress(int ix, int origProgress, int maxVal,
             Date startDate, Date endDate, String[] keywords)
         {
             ProgressEvent ev = new ProgressEvent(
@@ -944,13 +1187,17 @@ public class MetaHistoryServiceImpl
                 endDate,
                 keywords);
 
-            double part1 = origProgress/
-                ((double)maxVal*count);
-            double convProgress =
-                part1*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE +
-                ix*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE/count;
+            long sum = 0;
+            synchronized (progress)
+            {
+                progress[ix] = (int) ((long) origProgress
+                    * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / maxVal);
+                for (int p : progress)
+                    sum += p;
+            }
 
-            ev.setProgress((int)convProgress);
+            ev.setProgress((int) (sum / progress.length));
 
             fireEvent(ev);
         }
@@ -980,11 +1227,30 @@ public class MetaHistoryServiceImpl
 
             fireEvent(ev);
         }
+    }
+
+    /**
+     * Listens to the progress of one of the queried services.
+     */
+    private static class ServiceProgressListener
+        implements MessageHistorySearchProgressListener,
+        CallHistorySearchProgressListener
+    {
+        private final MessageProgressWrapper wrapper;
+
+        private final int ix;
+
+        ServiceProgressListener(MessageProgressWrapper wrapper, int ix)
+        {
+            this.wrapper = wrapper;
+            this.ix = ix;
+        }
 
         public void progressChanged(
             net.java.sip.communicator.service.msghistory.event.ProgressEvent evt)
         {
-            fireProgress(
+            wrapper.fireProgress(
+                ix,
                 evt.getProgress(),
                 MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
                 evt.getStartDate(),
@@ -994,7 +1260,8 @@ public class MetaHistoryServiceImpl
 
         public void progressChanged(net.java.sip.communicator.service.callhistory.event.ProgressEvent evt)
         {
-            fireProgress(
+            wrapper.fireProgress(
+                ix,
                 evt.getProgress(),
                 CallHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
                 evt.getStartDate(),
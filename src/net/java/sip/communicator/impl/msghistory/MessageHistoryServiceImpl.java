@@ -206,6 +206,33 @@ public class MessageHistoryServiceImpl
         return result;
     }
 
+    /**
+     * Counts the messages exchanged by all the contacts in the supplied
+     * metacontact by day, without reading the messages.
+     *
+     * @param contact MetaContact
+     * @param startDate Date the start date of the conversations or
+     * <tt>null</tt>
+     * @param endDate Date the end date of the conversations or <tt>null</tt>
+     * @return the number of messages of every day overlapping the period
+     * which has messages, by the start of the day
+     * @throws RuntimeException
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(MetaContact contact,
+                                                      Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        SortedMap<Date, Integer> result = new TreeMap<Date, Integer>();
+
+        for (HistoryReader reader : getHistoryReaders(contact).values())
+        {
+            HistoryRecordCounts.addCounts(
+                result, reader.countRecordsByDay(startDate, endDate));
+        }
+        return result;
+    }
+
     /**
      * Returns all the messages exchanged by all the contacts
      * in the supplied metacontact between the given dates
@@ -2132,6 +2159,35 @@ public class MessageHistoryServiceImpl
         return result;
     }
 
+    /**
+     * Counts the messages exchanged in the supplied chat room by day,
+     * without reading the messages.
+     *
+     * @param room The chat room
+     * @param startDate Date the start date of the conversations or
+     * <tt>null</tt>
+     * @param endDate Date the end date of the conversations or <tt>null</tt>
+     * @return the number of messages of every day overlapping the period
+     * which has messages, by the start of the day
+     * @throws RuntimeException
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(ChatRoom room,
+                                                      Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        try
+        {
+            return getHistoryForMultiChat(room).getReader().countRecordsByDay(
+                startDate, endDate);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read history", e);
+            return new TreeMap<Date, Integer>();
+        }
+    }
+
     /**
      * Returns all the messages exchanged
      * in the supplied chat room between the given dates
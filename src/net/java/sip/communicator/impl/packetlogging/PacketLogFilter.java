@@ -0,0 +1,174 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import org.jitsi.service.packetlogging.PacketLoggingService.*;
+
+/**
+ * Selects logged packets by the fields of their index entries: the packets of
+ * a protocol, of a stream between two ports, of a SIP dialog, logged during
+ * a period of time, or any combination of these.
+ */
+public class PacketLogFilter
+{
+    /**
+     * The protocol of the packets or <tt>null</tt> for any.
+     */
+    private ProtocolName protocol = null;
+
+    /**
+     * One of the ports of the packets or <tt>0</tt> for any.
+     */
+    private int port1 = 0;
+
+    /**
+     * The other port of the packets or <tt>0</tt> for any.
+     */
+    private int port2 = 0;
+
+    /**
+     * The Call-ID of the SIP packets or <tt>null</tt> for any.
+     */
+    private String callId = null;
+
+    /**
+     * The time, in milliseconds, from which the packets were logged.
+     */
+    private long from = Long.MIN_VALUE;
+
+    /**
+     * The time, in milliseconds, until which the packets were logged.
+     */
+    private long to = Long.MAX_VALUE;
+
+    /**
+     * Creates a filter accepting all the packets.
+     */
+    public PacketLogFilter()
+    {
+    }
+
+    /**
+     * Creates a filter accepting the SIP packets of a dialog.
+     *
+     * @param callId the Call-ID of the dialog
+     * @return the filter
+     */
+    public static PacketLogFilter forSipDialog(String callId)
+    {
+        PacketLogFilter filter = new PacketLogFilter();
+
+        filter.setProtocol(ProtocolName.SIP);
+        filter.callId = callId;
+        return filter;
+    }
+
+    /**
+     * Creates a filter accepting the packets of a protocol exchanged between
+     * two ports, in both directions. For an RTP stream, these are the local
+     * and the remote RTP ports of the stream.
+     *
+     * @param protocol the protocol of the packets
+     * @param port1 one of the ports
+     * @param port2 the other port or <tt>0</tt> for any
+     * @return the filter
+     */
+    public static PacketLogFilter forStream(
+        ProtocolName protocol, int port1, int port2)
+    {
+        PacketLogFilter filter = new PacketLogFilter();
+
+        filter.setProtocol(protocol);
+        filter.setPorts(port1, port2);
+        return filter;
+    }
+
+    /**
+     * Accepts only the packets of a protocol.
+     *
+     * @param protocol the protocol or <tt>null</tt> for any
+     */
+    public void setProtocol(ProtocolName protocol)
+    {
+        this.protocol = protocol;
+    }
+
+    /**
+     * Accepts only the packets exchanged between two ports, in both
+     * directions.
+     *
+     * @param port1 one of the ports or <tt>0</tt> for any
+     * @param port2 the other port or <tt>0</tt> for any
+     */
+    public void setPorts(int port1, int port2)
+    {
+        this.port1 = port1;
+        this.port2 = port2;
+    }
+
+    /**
+     * Accepts only the packets logged during a period of time.
+     *
+     * @param from the time, in milliseconds, from which the packets were
+     * logged
+     * @param to the time, in milliseconds, until which the packets were
+     * logged
+     */
+    public void setTimeRange(long from, long to)
+    {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Returns the Call-ID of the accepted SIP packets.
+     *
+     * @return the Call-ID or <tt>null</tt> for any
+     */
+    String getCallId()
+    {
+        return callId;
+    }
+
+    /**
+     * Checks whether the index entry of a packet is accepted. The Call-ID of
+     * SIP packets is checked only by its hash, the packet content has to be
+     * checked too when the filter has a Call-ID.
+     *
+     * @param entry the index entry of the packet
+     * @return <tt>true</tt> if the packet may be accepted
+     */
+    boolean accepts(PacketLogIndex.Entry entry)
+    {
+        if (entry.timestamp < from || entry.timestamp > to)
+            return false;
+        if (protocol != null && entry.protocol != protocol)
+            return false;
+        if (callId != null && entry.key != callId.hashCode())
+            return false;
+
+        if (port1 != 0 || port2 != 0)
+        {
+            return matches(entry.sourcePort, entry.destinationPort)
+                || matches(entry.destinationPort, entry.sourcePort);
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a pair of ports is the pair of the filter.
+     *
+     * @param source the source port
+     * @param destination the destination port
+     * @return <tt>true</tt> if the ports match
+     */
+    private boolean matches(int source, int destination)
+    {
+        return (port1 == 0 || port1 == source)
+            && (port2 == 0 || port2 == destination);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.jitsi.service.packetlogging.PacketLoggingService.*;
+
+/**
+ * The index of the packets of a pcap log file, stored next to it. Each
+ * packet has a fixed size entry holding the offset of its record in the log
+ * file and the fields packets are searched by: the time it was logged, its
+ * protocol, transport and ports and, for SIP, a hash of its Call-ID. Packets
+ * of a SIP dialog or of an RTP stream can then be found without parsing the
+ * log files.
+ * <p>
+ * Entries are gathered in a buffer and written with the records of the log
+ * file, by the thread saving the packets.
+ */
+public class PacketLogIndex
+{
+    /**
+     * The extension of the index files added to the name of their log file.
+     */
+    static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * The magic number starting index files.
+     */
+    private static final int MAGIC = 0x4a504958;
+
+    /**
+     * The version of the format of index files.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The size of the header of index files.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of an entry.
+     */
+    static final int ENTRY_SIZE = 32;
+
+    /**
+     * The size of the buffer gathering entries.
+     */
+    private static final int BUFFER_SIZE = 1024 * ENTRY_SIZE;
+
+    /**
+     * The protocols by ordinal.
+     */
+    private static final ProtocolName[] PROTOCOLS = ProtocolName.values();
+
+    /**
+     * The transports by ordinal.
+     */
+    private static final TransportName[] TRANSPORTS = TransportName.values();
+
+    /**
+     * The channel of the index file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The buffer gathering the entries written at once.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Creates a new empty index file.
+     *
+     * @param file the index file
+     * @throws IOException if the file cannot be created
+     */
+    PacketLogIndex(File file)
+        throws IOException
+    {
+        channel = new FileOutputStream(file).getChannel();
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+    }
+
+    /**
+     * Returns the index file of a log file.
+     *
+     * @param logFile the log file
+     * @return the index file
+     */
+    static File getIndexFile(File logFile)
+    {
+        return new File(logFile.getPath() + INDEX_EXTENSION);
+    }
+
+    /**
+     * Adds the entry of a packet.
+     *
+     * @param packet the packet
+     * @param offset the offset of its record in the log file
+     * @param length the length of the record
+     * @param headerLength the length of the headers preceding the packet
+     * content in the record
+     * @throws IOException if the buffered entries cannot be written
+     */
+    void add(PacketRingBuffer.Packet packet,
+             long offset,
+             int length,
+             int headerLength)
+        throws IOException
+    {
+        if (!buffer.hasRemaining())
+            flush();
+
+        int key = 0;
+        if (packet.protocol == ProtocolName.SIP)
+        {
+            String callId
+                = getSipCallId(packet.packetContent, 0, packet.packetLength);
+            if (callId != null)
+                key = callId.hashCode();
+        }
+
+        buffer.putLong(offset);
+        buffer.putLong(packet.timestamp);
+        buffer.putInt(length);
+        buffer.putShort((short) packet.sourcePort);
+        buffer.putShort((short) packet.destinationPort);
+        buffer.putInt(key);
+        buffer.put((byte) packet.protocol.ordinal());
+        buffer.put((byte) packet.transport.ordinal());
+        buffer.put((byte) (packet.sender ? 1 : 0));
+        buffer.put((byte) headerLength);
+    }
+
+    /**
+     * Writes the buffered entries to the file.
+     *
+     * @throws IOException if the entries cannot be written
+     */
+    void flush()
+        throws IOException
+    {
+        buffer.flip();
+        try
+        {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        finally
+        {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes the buffered entries and closes the file.
+     *
+     * @throws IOException if the entries cannot be written
+     */
+    void close()
+        throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the entries of an index file. Entries of records which are not
+     * entirely in the log file, because they were not written yet when the
+     * index was written, are left out.
+     *
+     * @param file the index file
+     * @param logLength the length of the log file
+     * @return the entries, or an empty list if the file is missing or is not
+     * an index file
+     * @throws IOException if the file cannot be read
+     */
+    static List<Entry> read(File file, long logLength)
+        throws IOException
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!file.isFile())
+            return entries;
+
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+
+            ByteBuffer buffer = ByteBuffer.allocate(
+                (int) Math.min(size, Integer.MAX_VALUE));
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer) < 0)
+                    break;
+            }
+            buffer.flip();
+            if (buffer.remaining() < HEADER_SIZE)
+                return entries;
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return entries;
+
+            while (buffer.remaining() >= ENTRY_SIZE)
+            {
+                Entry entry = new Entry();
+
+                entry.offset = buffer.getLong();
+                entry.timestamp = buffer.getLong();
+                entry.length = buffer.getInt();
+                entry.sourcePort = buffer.getShort() & 0xffff;
+                entry.destinationPort = buffer.getShort() & 0xffff;
+                entry.key = buffer.getInt();
+                entry.protocol = PROTOCOLS[
+                    (buffer.get() & 0xff) % PROTOCOLS.length];
+                entry.transport = TRANSPORTS[
+                    (buffer.get() & 0xff) % TRANSPORTS.length];
+                entry.sender = buffer.get() != 0;
+                entry.headerLength = buffer.get() & 0xff;
+
+                if (entry.offset + entry.length > logLength)
+                    break;
+                entries.add(entry);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the Call-ID of a SIP message.
+     *
+     * @param content the buffer holding the message
+     * @param offset the offset of the message in the buffer
+     * @param length the length of the message
+     * @return the Call-ID or <tt>null</tt> if the message has none
+     */
+    static String getSipCallId(byte[] content, int offset, int length)
+    {
+        int end = offset + length;
+        int lineStart = offset;
+
+        // the headers end with the first empty line, the first line is the
+        // request or status line
+        while (lineStart < end)
+        {
+            int lineEnd = lineStart;
+            while (lineEnd < end
+                    && content[lineEnd] != '\r'
+                    && content[lineEnd] != '\n')
+                lineEnd++;
+
+            if (lineEnd == lineStart)
+                return null;
+
+            int colon = lineStart;
+            while (colon < lineEnd && content[colon] != ':')
+                colon++;
+
+            if (colon < lineEnd && lineStart > offset)
+            {
+                String name
+                    = toString(content, lineStart, colon - lineStart).trim();
+
+                if (name.equalsIgnoreCase("Call-ID")
+                        || name.equalsIgnoreCase("i"))
+                {
+                    return toString(content, colon + 1, lineEnd - colon - 1)
+                        .trim();
+                }
+            }
+
+            lineStart = lineEnd;
+            if (lineStart < end && content[lineStart] == '\r')
+                lineStart++;
+            if (lineStart < end && content[lineStart] == '\n')
+                lineStart++;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes ISO-8859-1 characters.
+     *
+     * @param content the buffer holding the characters
+     * @param offset the offset of the characters in the buffer
+     * @param length the number of characters
+     * @return the characters
+     */
+    private static String toString(byte[] content, int offset, int length)
+    {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) (content[offset + i] & 0xff);
+        return new String(chars);
+    }
+
+    /**
+     * The entry of a logged packet.
+     */
+    static class Entry
+    {
+        /**
+         * The offset of the record of the packet in the log file.
+         */
+        long offset;
+
+        /**
+         * The time, in milliseconds, the packet was logged.
+         */
+        long timestamp;
+
+        /**
+         * The length of the record of the packet.
+         */
+        int length;
+
+        /**
+         * The source port of the packet.
+         */
+        int sourcePort;
+
+        /**
+         * The destination port of the packet.
+         */
+        int destinationPort;
+
+        /**
+         * The hash of the Call-ID of SIP packets, <tt>0</tt> for others.
+         */
+        int key;
+
+        /**
+         * The protocol logging this packet.
+         */
+        ProtocolName protocol;
+
+        /**
+         * The transport the packet uses.
+         */
+        TransportName transport;
+
+        /**
+         * Are we the sender of the packet.
+         */
+        boolean sender;
+
+        /**
+         * The length of the headers preceding the packet content in the
+         * record.
+         */
+        int headerLength;
+    }
+}
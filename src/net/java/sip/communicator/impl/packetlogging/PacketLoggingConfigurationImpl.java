@@ -18,13 +18,52 @@ import org.jitsi.service.packetlogging.*;
 public class PacketLoggingConfigurationImpl
     extends PacketLoggingConfiguration
 {
+    /**
+     * Property for the maximum number of packets waiting to be saved.
+     */
+    public final static String PACKET_LOGGING_QUEUE_CAPACITY_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_QUEUE_CAPACITY";
+
+    /**
+     * Property for whether the oldest packets waiting to be saved are dropped
+     * when too many packets wait, instead of the new ones.
+     */
+    public final static String PACKET_LOGGING_DROP_OLDEST_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_DROP_OLDEST";
+
+    /**
+     * The default maximum number of packets waiting to be saved.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * The service whose packets are counted.
+     */
+    private final PacketLoggingServiceImpl packetLoggingService;
+
+    /**
+     * The maximum number of packets waiting to be saved.
+     */
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    /**
+     * Whether the oldest packets waiting to be saved are dropped when too
+     * many packets wait.
+     */
+    private boolean dropOldest = false;
+
     /**
      * Creates new PacketLoggingConfiguration and load values from
      * configuration service and if missing uses already defined
      * default values.
+     *
+     * @param packetLoggingService the service whose packets are counted
      */
-    PacketLoggingConfigurationImpl()
+    PacketLoggingConfigurationImpl(
+        PacketLoggingServiceImpl packetLoggingService)
     {
+        this.packetLoggingService = packetLoggingService;
+
         // load values from config service
         ConfigurationService configService =
                 PacketLoggingActivator.getConfigurationService();
@@ -57,6 +96,12 @@ public class PacketLoggingConfigurationImpl
             configService.getInt(
                 PACKET_LOGGING_FILE_COUNT_PROPERTY_NAME,
                 getLogfileCount()));
+        queueCapacity = configService.getInt(
+            PACKET_LOGGING_QUEUE_CAPACITY_PROPERTY_NAME,
+            queueCapacity);
+        dropOldest = configService.getBoolean(
+            PACKET_LOGGING_DROP_OLDEST_PROPERTY_NAME,
+            dropOldest);
     }
 
     /**
@@ -159,4 +204,71 @@ public class PacketLoggingConfigurationImpl
                 PACKET_LOGGING_FILE_COUNT_PROPERTY_NAME,
                 logfileCount);
     }
+
+    /**
+     * The maximum number of packets waiting to be saved.
+     * @return the maximum number of packets waiting to be saved.
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    /**
+     * Changes the maximum number of packets waiting to be saved. Takes
+     * effect when the service is restarted.
+     * @param queueCapacity the new maximum number of packets.
+     */
+    public void setQueueCapacity(int queueCapacity)
+    {
+        this.queueCapacity = queueCapacity;
+
+        PacketLoggingActivator.getConfigurationService().setProperty(
+                PACKET_LOGGING_QUEUE_CAPACITY_PROPERTY_NAME,
+                queueCapacity);
+    }
+
+    /**
+     * Whether the oldest packets waiting to be saved are dropped when too
+     * many packets wait, instead of the new ones.
+     * @return <tt>true</tt> if the oldest packets are dropped.
+     */
+    public boolean isDropOldest()
+    {
+        return dropOldest;
+    }
+
+    /**
+     * Changes which packets are dropped when too many packets wait to be
+     * saved. Takes effect when the service is restarted.
+     * @param dropOldest <tt>true</tt> to drop the oldest packets.
+     */
+    public void setDropOldest(boolean dropOldest)
+    {
+        this.dropOldest = dropOldest;
+
+        PacketLoggingActivator.getConfigurationService().setProperty(
+                PACKET_LOGGING_DROP_OLDEST_PROPERTY_NAME,
+                dropOldest);
+    }
+
+    /**
+     * The number of packets dropped because they were logged faster than
+     * they could be saved, since the service started.
+     * @return the number of dropped packets.
+     */
+    public long getDroppedPacketCount()
+    {
+        return packetLoggingService.getDroppedPacketCount();
+    }
+
+    /**
+     * The number of packets written to the log files since the service
+     * started.
+     * @return the number of written packets.
+     */
+    public long getWrittenPacketCount()
+    {
+        return packetLoggingService.getWrittenPacketCount();
+    }
 }
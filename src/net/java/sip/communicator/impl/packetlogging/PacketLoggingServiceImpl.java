@@ -7,7 +7,9 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
 
 import net.java.sip.communicator.util.*;
 
@@ -30,14 +32,60 @@ public class PacketLoggingServiceImpl
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The OutputStream we are currently writing to.
+     * The initial size of the buffer gathering the packets written to the
+     * file at once.
      */
-    private FileOutputStream outputStream = null;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
 
     /**
-     * The thread that queues packets and saves them to file.
+     * The time, in milliseconds, to wait for the queued packets to be saved
+     * when stopping.
      */
-    private SaverThread saverThread = new SaverThread();
+    private static final long STOP_TIMEOUT = 1000;
+
+    /**
+     * The size of the header of a packet record in the file.
+     */
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    /**
+     * The channel of the file we are currently writing to.
+     */
+    private FileChannel outputChannel = null;
+
+    /**
+     * The index of the file we are currently writing to.
+     */
+    private PacketLogIndex outputIndex = null;
+
+    /**
+     * The lock keeping the files from being rotated while packets are
+     * extracted from them.
+     */
+    private final Object filesLock = new Object();
+
+    /**
+     * The buffer gathering the packets written to the file at once. Used only
+     * by the saver thread.
+     */
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The number of packets in the write buffer.
+     */
+    private int bufferedPackets = 0;
+
+    /**
+     * The number of packets written to the files.
+     */
+    private volatile long writtenPackets = 0;
+
+    /**
+     * The thread that queues packets and saves them to file, created when
+     * the service starts.
+     */
+    private SaverThread saverThread = null;
 
     /**
      * The current configuration.
@@ -134,6 +182,26 @@ public class PacketLoggingServiceImpl
      */
     private long dstCount = 1;
 
+    /**
+     * The ipv4 header of the packet being saved.
+     */
+    private final byte[] ipHeader4 = new byte[ipHeaderTemplate.length];
+
+    /**
+     * The ipv6 header of the packet being saved.
+     */
+    private final byte[] ipHeader6 = new byte[ip6HeaderTemplate.length];
+
+    /**
+     * The udp header of the packet being saved.
+     */
+    private final byte[] udpHeader = new byte[udpHeaderTemplate.length];
+
+    /**
+     * The tcp header of the packet being saved.
+     */
+    private final byte[] tcpHeader = new byte[tcpHeaderTemplate.length];
+
     /**
      * A counter watching how much has been written to the file.
      */
@@ -142,7 +210,7 @@ public class PacketLoggingServiceImpl
     /**
      * All the files we can use for writing.
      */
-    private File[] files;
+    private volatile File[] files;
 
     /**
      * Starting the packet logger. Generating the files we can use,
@@ -150,6 +218,11 @@ public class PacketLoggingServiceImpl
      */
     public void start()
     {
+        PacketLoggingConfigurationImpl cfg
+            = (PacketLoggingConfigurationImpl) getConfiguration();
+
+        saverThread = new SaverThread(
+            new PacketRingBuffer(cfg.getQueueCapacity(), cfg.isDropOldest()));
         saverThread.start();
     }
 
@@ -182,53 +255,273 @@ public class PacketLoggingServiceImpl
     private void rotateFiles()
         throws IOException
     {
-        if(outputStream != null)
+        if(outputChannel != null)
         {
-            outputStream.flush();
-            outputStream.close();
+            flushBuffer();
+            outputChannel.close();
+            outputChannel = null;
+            outputIndex.close();
+            outputIndex = null;
         }
 
-        for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
+        synchronized(filesLock)
         {
-            File f1 = files[i];
-            File f2 = files[i+1];
-
-            if (f1.exists())
+            for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
             {
-                if (f2.exists())
-                    f2.delete();
-                f1.renameTo(f2);
+                File f1 = files[i];
+                File f2 = files[i+1];
+
+                if (f1.exists())
+                {
+                    if (f2.exists())
+                        f2.delete();
+                    f1.renameTo(f2);
+
+                    // the index goes with its file, even if it is missing
+                    File index = PacketLogIndex.getIndexFile(f2);
+                    if (index.exists())
+                        index.delete();
+                    PacketLogIndex.getIndexFile(f1).renameTo(index);
+                }
             }
-        }
 
-        outputStream = new FileOutputStream(files[0]);
+            outputChannel = new FileOutputStream(files[0]).getChannel();
+            outputIndex
+                = new PacketLogIndex(PacketLogIndex.getIndexFile(files[0]));
+        }
         written = 0;
         createGlobalHeader();
     }
 
     /**
-     * Stops the packet logging.
+     * Writes the buffered packets to the file.
+     * @throws IOException
      */
-    public void stop()
+    private void flushBuffer()
+        throws IOException
     {
-        saverThread.stopRunning();
+        writeBuffer.flip();
+        try
+        {
+            while(writeBuffer.hasRemaining())
+                outputChannel.write(writeBuffer);
+            outputIndex.flush();
+            writtenPackets += bufferedPackets;
+        }
+        finally
+        {
+            writeBuffer.clear();
+            bufferedPackets = 0;
+        }
+    }
 
-        if(outputStream != null)
+    /**
+     * Writes the buffered packets and closes the file.
+     */
+    private void closeFile()
+    {
+        if(outputChannel != null)
         {
             try
             {
-                outputStream.flush();
-                outputStream.close();
+                flushBuffer();
+                outputChannel.close();
+                outputIndex.close();
             }
             catch(IOException e)
             {
-                e.printStackTrace();
+                logger.error("Error closing packet log file", e);
             }
             finally
             {
-                outputStream = null;
+                outputChannel = null;
+                outputIndex = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the packet logging. The queued packets are saved before the
+     * saver thread ends, the packets logged after are ignored.
+     */
+    public void stop()
+    {
+        SaverThread saverThread = this.saverThread;
+
+        if(saverThread != null)
+        {
+            saverThread.stopRunning();
+            try
+            {
+                saverThread.join(STOP_TIMEOUT);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of packets dropped because they were logged faster
+     * than they could be saved.
+     *
+     * @return the number of dropped packets
+     */
+    long getDroppedPacketCount()
+    {
+        SaverThread saverThread = this.saverThread;
+
+        return (saverThread == null) ? 0 : saverThread.ring.getDroppedCount();
+    }
+
+    /**
+     * Copies the logged packets accepted by a filter to a new pcap file,
+     * oldest first. The packets are found through the indexes of the log
+     * files and their records are copied without being parsed. Packets still
+     * waiting to be written to the log files are not copied. The files are not
+     * locked while they are copied, so the packets of files rotated meanwhile
+     * may be missed or copied twice.
+     *
+     * @param filter the filter accepting the packets to copy
+     * @param destination the pcap file to create
+     * @return the number of copied packets
+     * @throws IOException if the log files cannot be read or the destination
+     * cannot be written
+     */
+    public int extractPackets(PacketLogFilter filter, File destination)
+        throws IOException
+    {
+        int count = 0;
+        FileChannel out = new FileOutputStream(destination).getChannel();
+
+        try
+        {
+            ByteBuffer header
+                = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            writeGlobalHeader(header);
+            header.flip();
+            while(header.hasRemaining())
+                out.write(header);
+
+            File[] files;
+            synchronized(filesLock)
+            {
+                if(this.files == null)
+                {
+                    try
+                    {
+                        getFileNames();
+                    }
+                    catch(Exception e)
+                    {
+                        throw new IOException(
+                            "Cannot get packet log files", e);
+                    }
+                }
+                files = this.files.clone();
+            }
+
+            for(int i = files.length - 1; i >= 0; i--)
+            {
+                if(files[i].isFile())
+                    count += extractPackets(files[i], filter, out);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return count;
+    }
+
+    /**
+     * Copies the packets of a log file accepted by a filter.
+     *
+     * @param file the log file
+     * @param filter the filter accepting the packets to copy
+     * @param out the channel to copy the packets to
+     * @return the number of copied packets
+     * @throws IOException if the log file cannot be read or the packets
+     * cannot be written
+     */
+    private int extractPackets(File file,
+                               PacketLogFilter filter,
+                               FileChannel out)
+        throws IOException
+    {
+        int count = 0;
+        FileInputStream in;
+
+        try
+        {
+            in = new FileInputStream(file);
+        }
+        catch(FileNotFoundException e)
+        {
+            // rotated away since the file list was taken
+            return 0;
+        }
+
+        try
+        {
+            FileChannel channel = in.getChannel();
+            String callId = filter.getCallId();
+            ByteBuffer content = null;
+
+            for(PacketLogIndex.Entry entry
+                    : PacketLogIndex.read(
+                        PacketLogIndex.getIndexFile(file), channel.size()))
+            {
+                if(!filter.accepts(entry))
+                    continue;
+
+                if(callId != null)
+                {
+                    // the index only has the hash of the Call-ID
+                    int length = entry.length - entry.headerLength;
+                    if(content == null || content.capacity() < length)
+                        content = ByteBuffer.allocate(length);
+                    content.clear();
+                    content.limit(length);
+                    channel.position(entry.offset + entry.headerLength);
+                    while(content.hasRemaining())
+                    {
+                        if(channel.read(content) < 0)
+                            break;
+                    }
+
+                    if(!callId.equals(
+                            PacketLogIndex.getSipCallId(
+                                content.array(), 0, content.position())))
+                        continue;
+                }
+
+                long position = entry.offset;
+                long end = entry.offset + entry.length;
+                while(position < end)
+                {
+                    position
+                        += channel.transferTo(position, end - position, out);
+                }
+                count++;
             }
         }
+        finally
+        {
+            in.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of packets written to the files.
+     *
+     * @return the number of written packets
+     */
+    long getWrittenPacketCount()
+    {
+        return writtenPackets;
     }
 
     /**
@@ -236,45 +529,37 @@ public class PacketLoggingServiceImpl
      * @throws IOException
      */
     private void createGlobalHeader()
-            throws IOException
+    {
+        writeGlobalHeader(writeBuffer);
+        written += 24;
+    }
+
+    /**
+     * Puts a pcap file global header in a little-endian buffer.
+     * @param writeBuffer the buffer.
+     */
+    private static void writeGlobalHeader(ByteBuffer writeBuffer)
     {
         /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
+        writeBuffer.putInt(0xa1b2c3d4);
 
         /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
+        writeBuffer.putShort((short) 2);
 
         /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
+        writeBuffer.putShort((short) 4);
 
         /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        writeBuffer.putInt(0);
 
         /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        writeBuffer.putInt(0);
 
         /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        writeBuffer.putInt(0xffff);
 
         /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        writeBuffer.putInt(1);
     }
 
     /**
@@ -376,17 +661,21 @@ public class PacketLoggingServiceImpl
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
-                       sourceAddress,
-                       sourcePort,
-                       destinationAddress,
-                       destinationPort,
-                       transport,
-                       sender,
-                       packetContent,
-                       packetOffset,
-                       packetLength));
+        SaverThread saverThread = this.saverThread;
+
+        if(saverThread != null)
+        {
+            saverThread.queuePacket(protocol,
+                                    sourceAddress,
+                                    sourcePort,
+                                    destinationAddress,
+                                    destinationPort,
+                                    transport,
+                                    sender,
+                                    packetContent,
+                                    packetOffset,
+                                    packetLength);
+        }
     }
 
     /**
@@ -397,19 +686,21 @@ public class PacketLoggingServiceImpl
     public PacketLoggingConfiguration getConfiguration()
     {
         if(packetLoggingConfiguration == null)
-            packetLoggingConfiguration = new PacketLoggingConfigurationImpl();
+            packetLoggingConfiguration
+                = new PacketLoggingConfigurationImpl(this);
 
         return packetLoggingConfiguration;
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Dump the packet to the write buffer, writing the buffer to the output
+     * file when it is full.
      *
      * @param packet the packet ot save.
      * @throws Exception when error occurs saving to file stream or when
      *  rotating files.
      */
-    private void savePacket(Packet packet)
+    private void savePacket(PacketRingBuffer.Packet packet)
         throws Exception
     {
         // if one of the addresses is ipv4 we are using ipv4,
@@ -422,7 +713,7 @@ public class PacketLoggingServiceImpl
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
+            ipHeader = ipHeader4;
             System.arraycopy(
                     ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -438,7 +729,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
+            ipHeader = ipHeader6;
             System.arraycopy(
                     ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -458,7 +749,6 @@ public class PacketLoggingServiceImpl
         short len;
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
             System.arraycopy(udpHeaderTemplate, 0,
                     udpHeader, 0, udpHeader.length);
@@ -470,7 +760,7 @@ public class PacketLoggingServiceImpl
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
+            transportHeader = tcpHeader;
             System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
                    0, transportHeader.length);
 
@@ -538,7 +828,7 @@ public class PacketLoggingServiceImpl
                 ipHeader[6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
+        long current = packet.timestamp;
         int tsSec = (int)(current/1000);
         int tsUsec = (int)((current%1000) * 1000);
         int feakHeaderLen = fakeEthernetHeader.length +
@@ -546,50 +836,45 @@ public class PacketLoggingServiceImpl
         int inclLen = packet.packetLength + feakHeaderLen;
         int origLen = inclLen;
 
-        synchronized(this)
+        // open files only if needed
+        if(outputChannel == null)
         {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
-
-            long limit = getConfiguration().getLimit();
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
 
-            if((limit > 0) && (written > limit))
-                rotateFiles();
+        long limit = getConfiguration().getLimit();
 
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
+        if((limit > 0) && (written > limit))
+            rotateFiles();
 
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
+        int recordLen = RECORD_HEADER_SIZE + inclLen;
 
-            written += inclLen + 16;
+        if(writeBuffer.remaining() < recordLen)
+        {
+            flushBuffer();
+            if(writeBuffer.capacity() < recordLen)
+            {
+                writeBuffer = ByteBuffer.allocate(recordLen)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            }
         }
-    }
 
-    /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
-     */
-    private void addInt(int d)
-        throws IOException
-    {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        writeBuffer.putInt(tsSec);
+        writeBuffer.putInt(tsUsec);
+        writeBuffer.putInt(inclLen);
+        writeBuffer.putInt(origLen);
+
+        writeBuffer.put(fakeEthernetHeader);
+        writeBuffer.put(ipHeader);
+        writeBuffer.put(transportHeader);
+        writeBuffer.put(packet.packetContent, 0, packet.packetLength);
+        bufferedPackets++;
+
+        outputIndex.add(
+            packet, written, recordLen, RECORD_HEADER_SIZE + feakHeaderLen);
+
+        written += recordLen;
     }
 
     /**
@@ -648,147 +933,66 @@ public class PacketLoggingServiceImpl
     }
 
     /**
-     * The data we receive and that we will dump in a file.
+     * Dumps packet in separate thread so we don't block
+     * our calling thread.
      */
-    private static class Packet
+    private class SaverThread
+        extends Thread
     {
         /**
-         * The protocol logging this packet.
-         */
-        ProtocolName protocol;
-
-        /**
-         * The source address of the packet.
+         * The packets queued to be written in the file.
          */
-        byte[] sourceAddress;
+        private final PacketRingBuffer ring;
 
         /**
-         * The source port of the packet.
-         */
-        int sourcePort;
-
-        /**
-         * The destination address of the packet.
-         */
-        byte[] destinationAddress;
-
-        /**
-         * The destination port of the packet.
-         */
-        int destinationPort;
-
-        /**
-         * Is the packet a udp one.
-         */
-        TransportName transport;
-
-        /**
-         * Are we sending the packet, or false if we are receiving.
-         */
-        boolean sender;
-
-        /**
-         * Array containing packet content.
+         * start/stop indicator.
          */
-        byte[] packetContent;
+        private volatile boolean stopped = false;
 
         /**
-         * The offset in the packetContent where packet content is.
+         * Whether the thread is parked waiting for packets to save.
          */
-        int packetOffset;
+        private volatile boolean waiting = false;
 
         /**
-         * The length of the packet content.
+         * Creates the thread saving the packets queued in <tt>ring</tt>.
+         *
+         * @param ring the packets to save
          */
-        int packetLength;
-
-        /**
-         * Creates a packet with the needed data.
-         * @param protocol the source protocol that logs this packet.
-         * @param sourceAddress The source address of the packet.
-         * @param sourcePort The source port of the packet.
-         * @param destinationAddress The destination address of the packet.
-         * @param destinationPort The destination port of the packet.
-         * @param transport the transport this packet uses.
-         * @param sender Are we sending the packet,
-         *  or false if we are receiving.
-         * @param packetContent Array containing packet content.
-         * @param packetOffset The offset in the packetContent
-         *  where packet content is.
-         * @param packetLength The length of the packet content.
-         */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
+        SaverThread(PacketRingBuffer ring)
         {
-            this.protocol = protocol;
-            this.sourceAddress = sourceAddress;
-            this.sourcePort = sourcePort;
-            this.destinationAddress = destinationAddress;
-            this.destinationPort = destinationPort;
-            this.transport = transport;
-            this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
-        }
-    }
-
-    /**
-     * Dumps packet in separate thread so we don't block
-     * our calling thread.
-     */
-    private class SaverThread
-        extends Thread
-    {
-        /**
-         * start/stop indicator.
-         */
-        private boolean stopped = true;
+            super("PacketLogging saver");
+            setDaemon(true);
 
-        /**
-         * List of packets queued to be written in the file.
-         */
-        private final List<Packet> pktsToSave = new ArrayList<Packet>();
+            this.ring = ring;
+        }
 
         /**
-         * Sends instant messages in separate thread so we don't block
-         * our calling thread.
+         * Saves the queued packets, writing them to the file whenever there
+         * are no more packets to save or the write buffer is full.
          */
         @Override
         public void run()
         {
-            stopped = false;
-            while(!stopped)
+            try
             {
-                Packet pktToSave;
-
-                synchronized(this)
+                while(true)
                 {
-                    if(pktsToSave.isEmpty())
+                    PacketRingBuffer.Packet pktToSave = ring.poll();
+
+                    if(pktToSave == null)
                     {
-                        try
-                        {
-                            wait();
-                        }
-                        catch (InterruptedException iex)
-                        {
-                        }
+                        writeBuffered();
+                        if(stopped)
+                            break;
+
+                        waiting = true;
+                        if(ring.isEmpty() && !stopped)
+                            LockSupport.park(this);
+                        waiting = false;
                         continue;
                     }
 
-                    pktToSave = pktsToSave.remove(0);
-                }
-
-                if(pktToSave != null)
-                {
                     try
                     {
                         savePacket(pktToSave);
@@ -804,27 +1008,88 @@ public class PacketLoggingServiceImpl
                         else
                             logger.error("Error writing packet to file", t);
                     }
+                    finally
+                    {
+                        ring.release(pktToSave);
+                    }
                 }
             }
+            finally
+            {
+                closeFile();
+            }
+        }
+
+        /**
+         * Writes the buffered packets to the file.
+         */
+        private void writeBuffered()
+        {
+            if(outputChannel == null || bufferedPackets == 0)
+                return;
+
+            try
+            {
+                flushBuffer();
+            }
+            catch(IOException e)
+            {
+                logger.error("Error writing packets to file", e);
+            }
         }
 
         /**
-         * Interrupts this sender so that it would no longer send messages.
+         * Interrupts this saver once the queued packets are saved.
          */
-        public synchronized void stopRunning()
+        public void stopRunning()
         {
             stopped = true;
-            notifyAll();
+            LockSupport.unpark(this);
         }
 
         /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
+         * Schedule new packet for save, dropping it or the oldest queued
+         * packet if the queue is full.
+         *
+         * @param protocol the source protocol that logs this packet.
+         * @param sourceAddress the source address of the packet.
+         * @param sourcePort the source port of the packet.
+         * @param destinationAddress the destination address.
+         * @param destinationPort the destination port.
+         * @param transport the transport this packet uses.
+         * @param sender are we the sender of the packet or not.
+         * @param packetContent the packet content.
+         * @param packetOffset the packet content offset.
+         * @param packetLength the packet content length.
          */
-        public synchronized void queuePacket(Packet packet)
+        public void queuePacket(ProtocolName protocol,
+                                byte[] sourceAddress,
+                                int sourcePort,
+                                byte[] destinationAddress,
+                                int destinationPort,
+                                TransportName transport,
+                                boolean sender,
+                                byte[] packetContent,
+                                int packetOffset,
+                                int packetLength)
         {
-            pktsToSave.add(packet);
-            notifyAll();
+            if(stopped)
+                return;
+
+            if(ring.offer(protocol,
+                          sourceAddress,
+                          sourcePort,
+                          destinationAddress,
+                          destinationPort,
+                          transport,
+                          sender,
+                          packetContent,
+                          packetOffset,
+                          packetLength)
+                && waiting)
+            {
+                LockSupport.unpark(this);
+            }
         }
     }
 }
@@ -0,0 +1,323 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.PacketLoggingService.*;
+
+/**
+ * A bounded queue of the packets waiting to be saved, filled by the threads
+ * logging packets and emptied by the thread saving them.
+ * <p>
+ * The queue is a ring of preallocated packets, the content of a logged packet
+ * is copied into the buffer of its slot so logging threads may reuse their
+ * buffers right away and no garbage is created per packet. Slots are claimed
+ * with compare-and-set on the positions of the ring and published through
+ * their sequence numbers, so logging threads never block on a lock. When the
+ * ring is full the newest packet is dropped, or the oldest one when the ring
+ * drops the oldest packets.
+ */
+public class PacketRingBuffer
+{
+    /**
+     * The initial size of the buffers holding the content of the packets.
+     */
+    private static final int INITIAL_CONTENT_SIZE = 2048;
+
+    /**
+     * The slots of the ring.
+     */
+    private final Packet[] slots;
+
+    /**
+     * The sequence numbers of the slots. A slot is free for the packet at
+     * position <tt>p</tt> when its sequence is <tt>p</tt>, and holds that
+     * packet when its sequence is <tt>p + 1</tt>.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask giving the slot of a position.
+     */
+    private final int mask;
+
+    /**
+     * Whether the oldest packets are dropped when the ring is full.
+     */
+    private final boolean dropOldest;
+
+    /**
+     * The position of the next packet to add.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position of the next packet to take.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * The number of packets dropped because the ring was full.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a ring holding at least <tt>capacity</tt> packets.
+     *
+     * @param capacity the minimum number of packets the ring holds, rounded
+     * up to a power of two
+     * @param dropOldest <tt>true</tt> to drop the oldest packets when the ring
+     * is full, <tt>false</tt> to drop the new ones
+     */
+    PacketRingBuffer(int capacity, boolean dropOldest)
+    {
+        int size = 1;
+        while (size < capacity && size < (1 << 30))
+            size <<= 1;
+
+        this.slots = new Packet[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.dropOldest = dropOldest;
+
+        for (int i = 0; i < size; i++)
+        {
+            slots[i] = new Packet();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Returns the number of packets the ring holds.
+     *
+     * @return the number of packets the ring holds
+     */
+    int getCapacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Returns the number of packets dropped because the ring was full.
+     *
+     * @return the number of dropped packets
+     */
+    long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Returns whether there are packets to take.
+     *
+     * @return <tt>true</tt> if the ring holds no packet
+     */
+    boolean isEmpty()
+    {
+        long position = head.get();
+
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    /**
+     * Adds a copy of a packet to the ring, dropping it or the oldest packet
+     * if the ring is full.
+     *
+     * @param protocol the source protocol that logs this packet.
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param transport the transport this packet uses.
+     * @param sender are we the sender of the packet or not.
+     * @param packetContent the packet content.
+     * @param packetOffset the packet content offset.
+     * @param packetLength the packet content length.
+     * @return <tt>true</tt> if the packet was added
+     */
+    boolean offer(ProtocolName protocol,
+                  byte[] sourceAddress,
+                  int sourcePort,
+                  byte[] destinationAddress,
+                  int destinationPort,
+                  TransportName transport,
+                  boolean sender,
+                  byte[] packetContent,
+                  int packetOffset,
+                  int packetLength)
+    {
+        long timestamp = System.currentTimeMillis();
+        boolean droppedOldest = false;
+        long position;
+        Packet slot;
+
+        while (true)
+        {
+            position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    slot = slots[index];
+                    break;
+                }
+            }
+            else if (sequence < position)
+            {
+                // full, make room once by dropping the oldest packet unless
+                // the saver holds it or it is still being added
+                if (!dropOldest
+                        || droppedOldest
+                        || !discard(position - slots.length))
+                {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                droppedOldest = true;
+            }
+        }
+
+        slot.protocol = protocol;
+        slot.sourceAddress = sourceAddress;
+        slot.sourcePort = sourcePort;
+        slot.destinationAddress = destinationAddress;
+        slot.destinationPort = destinationPort;
+        slot.transport = transport;
+        slot.sender = sender;
+        slot.timestamp = timestamp;
+        if (slot.packetContent.length < packetLength)
+            slot.packetContent = new byte[packetLength];
+        System.arraycopy(
+            packetContent, packetOffset, slot.packetContent, 0, packetLength);
+        slot.packetLength = packetLength;
+
+        sequences.set((int) position & mask, position + 1);
+        return true;
+    }
+
+    /**
+     * Takes the oldest packet of the ring. The packet stays in its slot and
+     * has to be given back with {@link #release(Packet)} once it is saved.
+     *
+     * @return the oldest packet or <tt>null</tt> if there is none
+     */
+    Packet poll()
+    {
+        while (true)
+        {
+            long position = head.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+
+            if (sequence != position + 1)
+                return null;
+            if (head.compareAndSet(position, position + 1))
+            {
+                Packet slot = slots[index];
+                slot.position = position;
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Gives back the slot of a packet taken with {@link #poll()}.
+     *
+     * @param packet the packet
+     */
+    void release(Packet packet)
+    {
+        long position = packet.position;
+
+        sequences.set((int) position & mask, position + slots.length);
+    }
+
+    /**
+     * Drops the oldest packet of the ring if it is at <tt>position</tt>, so
+     * that its slot is freed for the packet being added. Newer packets are
+     * not dropped as they would not free that slot.
+     *
+     * @param position the position of the packet to drop
+     * @return <tt>true</tt> if the packet was dropped
+     */
+    private boolean discard(long position)
+    {
+        if (head.get() != position
+                || sequences.get((int) position & mask) != position + 1
+                || !head.compareAndSet(position, position + 1))
+            return false;
+
+        dropped.incrementAndGet();
+        sequences.set((int) position & mask, position + slots.length);
+        return true;
+    }
+
+    /**
+     * A slot of the ring, holding a logged packet.
+     */
+    static class Packet
+    {
+        /**
+         * The position of the packet in the ring.
+         */
+        long position;
+
+        /**
+         * The protocol logging this packet.
+         */
+        ProtocolName protocol;
+
+        /**
+         * The source address of the packet.
+         */
+        byte[] sourceAddress;
+
+        /**
+         * The source port of the packet.
+         */
+        int sourcePort;
+
+        /**
+         * The destination address of the packet.
+         */
+        byte[] destinationAddress;
+
+        /**
+         * The destination port of the packet.
+         */
+        int destinationPort;
+
+        /**
+         * Is the packet a udp one.
+         */
+        TransportName transport;
+
+        /**
+         * Are we sending the packet, or false if we are receiving.
+         */
+        boolean sender;
+
+        /**
+         * The time, in milliseconds, the packet was logged.
+         */
+        long timestamp;
+
+        /**
+         * The buffer holding the packet content from its beginning.
+         */
+        byte[] packetContent = new byte[INITIAL_CONTENT_SIZE];
+
+        /**
+         * The length of the packet content.
+         */
+        int packetLength;
+    }
+}
@@ -39,7 +39,17 @@ public enum ISupport
     /**
      * Maximum number of joined channels allowed by IRC server.
      */
-    CHANLIMIT;
+    CHANLIMIT,
+    /**
+     * Maximum number of nicks the IRC server monitors for presence changes
+     * using the MONITOR command.
+     */
+    MONITOR,
+    /**
+     * Maximum number of nicks the IRC server watches for presence changes
+     * using the WATCH command.
+     */
+    WATCH;
 
     /**
      * Pattern for parsing ChanLimit ISUPPORT parameter.
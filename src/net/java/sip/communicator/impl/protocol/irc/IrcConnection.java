@@ -256,6 +256,7 @@ public class IrcConnection
      */
     void disconnect()
     {
+        this.presence.dispose();
         try
         {
             this.irc.disconnect();
@@ -444,6 +444,72 @@ public class OperationSetPersistentPresenceIrcImpl
         return null;
     }
 
+    /**
+     * Get the nicks of all contacts, in any group.
+     *
+     * @return returns the nicks of the contacts
+     */
+    List<String> getContactNicks()
+    {
+        final List<String> nicks = new ArrayList<String>();
+        addContactNicks(nicks, this.rootGroup);
+        return nicks;
+    }
+
+    /**
+     * Add the nicks of the contacts of a group and its subgroups.
+     *
+     * @param nicks the destination list of nicks
+     * @param group the contact group
+     */
+    private static void addContactNicks(final List<String> nicks,
+        final ContactGroup group)
+    {
+        final Iterator<Contact> contacts = group.contacts();
+        while (contacts.hasNext())
+        {
+            nicks.add(contacts.next().getAddress());
+        }
+        final Iterator<ContactGroup> groups = group.subgroups();
+        while (groups.hasNext())
+        {
+            addContactNicks(nicks, groups.next());
+        }
+    }
+
+    /**
+     * Update (from IRC) the presence status of the contact of a nick.
+     *
+     * @param nick the nick of the contact
+     * @param online <tt>true</tt> if the nick is online, or <tt>false</tt> if
+     *            it is offline
+     * @return returns <tt>true</tt> if the presence status of the contact
+     *         changed, or <tt>false</tt> if it did not or if there is no
+     *         contact for the nick
+     */
+    boolean updateNickContactPresence(final String nick, final boolean online)
+    {
+        // Note: takes a boolean instead of the IrcStatusEnum status, for the
+        // same reason as updatePresenceStatus.
+        final Contact contact = findContactByID(nick);
+        if (!(contact instanceof ContactIrcImpl))
+        {
+            return false;
+        }
+        final ContactIrcImpl ircContact = (ContactIrcImpl) contact;
+        final PresenceStatus previous = ircContact.getPresenceStatus();
+        final PresenceStatus status =
+            online ? IrcStatusEnum.ONLINE : IrcStatusEnum.OFFLINE;
+        if (status.equals(previous))
+        {
+            return false;
+        }
+        ircContact.setPresenceStatus(status);
+        fireContactPresenceStatusChangeEvent(ircContact,
+            ircContact.getParentContactGroup(), previous, status);
+        return true;
+    }
+
     /**
      * IRC does not support authorization handling, so this is not supported.
      *
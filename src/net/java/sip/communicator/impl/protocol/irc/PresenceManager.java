@@ -22,8 +22,8 @@ import com.ircclouds.irc.api.state.*;
  *
  * TODO Jitsi is currently missing support for presence in MUC (ChatRoomMember).
  *
- * TODO Monitor presence using ISON, WATCH or MONITOR. (Monitor does not seem to
- * support away status, though)
+ * Presence of contacts is watched by {@link PresenceWatcher}. (It does not
+ * track their away status, though, since MONITOR does not support it.)
  *
  * TODO ERR_NOSUCHNICKCHAN: Check if target is Contact, then update contact
  * presence status to off-line since the nick apparently does not exist anymore.
@@ -62,6 +62,11 @@ public class PresenceManager
      */
     private final Integer isupportAwayLen;
 
+    /**
+     * Watcher for the presence of the contacts.
+     */
+    private final PresenceWatcher watcher;
+
     /**
      * Current presence status.
      */
@@ -106,6 +111,19 @@ public class PresenceManager
         this.irc = irc;
         this.irc.addListener(new PresenceListener());
         this.isupportAwayLen = parseISupportAwayLen(this.connectionState);
+        this.watcher =
+            new PresenceWatcher(this.irc, this.connectionState,
+                this.operationSet);
+        this.watcher.start();
+    }
+
+    /**
+     * Stop watching the presence of the contacts. To be called when the
+     * connection is closed.
+     */
+    public void dispose()
+    {
+        this.watcher.stop();
     }
 
     /**
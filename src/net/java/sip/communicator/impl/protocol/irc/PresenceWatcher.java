@@ -0,0 +1,767 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.irc;
+
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import com.ircclouds.irc.api.*;
+import com.ircclouds.irc.api.domain.messages.*;
+import com.ircclouds.irc.api.listeners.*;
+import com.ircclouds.irc.api.state.*;
+
+/**
+ * Watcher for the presence of the contacts of an IRC connection.
+ *
+ * If the server supports MONITOR or WATCH, according to its ISUPPORT
+ * parameters, the contacts are registered with the server once and the server
+ * notifies us of their presence changes. Otherwise, or for the contacts which
+ * do not fit in the server's list, presence is polled using ISON. Nicks are
+ * packed in as few lines as possible, so that hundreds of contacts take only a
+ * few lines per cycle. The polling interval is short while contacts come and
+ * go, and grows while nothing changes.
+ *
+ * The contact list is checked for new and removed contacts on every cycle.
+ */
+public class PresenceWatcher
+{
+    /**
+     * Logger.
+     */
+    private static final Logger LOGGER = Logger
+        .getLogger(PresenceWatcher.class);
+
+    /**
+     * Maximum length of the lines sent to the server. IRC lines are limited
+     * to 512 characters, including the server's prefix if it is relayed, so
+     * stay well below.
+     */
+    static final int MAX_LINE_LENGTH = 400;
+
+    /**
+     * Delay before the first cycle, in milliseconds, to let the contact list
+     * load.
+     */
+    private static final long INITIAL_DELAY = 5000L;
+
+    /**
+     * Shortest interval between ISON polls, in milliseconds.
+     */
+    static final long MIN_POLL_INTERVAL = 15000L;
+
+    /**
+     * Longest interval between ISON polls, in milliseconds.
+     */
+    static final long MAX_POLL_INTERVAL = 120000L;
+
+    /**
+     * Interval between cycles if no contact needs polling, in milliseconds.
+     */
+    private static final long SYNC_INTERVAL = 60000L;
+
+    /**
+     * IRC client library instance.
+     *
+     * Instance must be thread-safe!
+     */
+    private final IRCApi irc;
+
+    /**
+     * IRC client connection state.
+     */
+    private final IIRCState connectionState;
+
+    /**
+     * Instance of OperationSetPersistentPresence for updates.
+     */
+    private final OperationSetPersistentPresenceIrcImpl operationSet;
+
+    /**
+     * The server-side method used for watching contacts: MONITOR, WATCH or
+     * <tt>null</tt> if the server supports neither.
+     */
+    private final ISupport method;
+
+    /**
+     * Maximum number of nicks the server watches for us. It is lowered if the
+     * server turns out to watch less.
+     */
+    private int methodLimit;
+
+    /**
+     * Listener for presence replies.
+     */
+    private final WatcherListener listener = new WatcherListener();
+
+    /**
+     * Timer running the watch cycles.
+     */
+    private final Timer timer = new Timer("IRC presence watcher", true);
+
+    /**
+     * Nicks of the contacts during the last cycle, by normalized nick.
+     */
+    private final Map<String, String> contacts = new HashMap<String, String>();
+
+    /**
+     * Nicks registered with the server for watching, by normalized nick.
+     */
+    private final Map<String, String> watched = new HashMap<String, String>();
+
+    /**
+     * The nicks of the ISON queries waiting for a reply, in the order they
+     * were sent.
+     */
+    private final LinkedList<List<String>> pendingQueries =
+        new LinkedList<List<String>>();
+
+    /**
+     * Current interval between ISON polls.
+     */
+    private long pollInterval = MIN_POLL_INTERVAL;
+
+    /**
+     * Whether the presence of a contact changed in the current ISON poll.
+     */
+    private boolean pollChanged = false;
+
+    /**
+     * Whether watching stopped.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Constructor.
+     *
+     * @param irc thread-safe irc client library instance
+     * @param connectionState irc client connection state instance
+     * @param operationSet OperationSetPersistentPresence irc implementation for
+     *            handling presence changes.
+     */
+    public PresenceWatcher(final IRCApi irc, final IIRCState connectionState,
+        final OperationSetPersistentPresenceIrcImpl operationSet)
+    {
+        if (irc == null)
+        {
+            throw new IllegalArgumentException("irc cannot be null");
+        }
+        this.irc = irc;
+        if (connectionState == null)
+        {
+            throw new IllegalArgumentException(
+                "connectionState cannot be null");
+        }
+        this.connectionState = connectionState;
+        if (operationSet == null)
+        {
+            throw new IllegalArgumentException("operationSet cannot be null");
+        }
+        this.operationSet = operationSet;
+
+        Integer limit = parseISupportLimit(connectionState, ISupport.MONITOR);
+        if (limit != null)
+        {
+            this.method = ISupport.MONITOR;
+        }
+        else
+        {
+            limit = parseISupportLimit(connectionState, ISupport.WATCH);
+            this.method = limit == null ? null : ISupport.WATCH;
+        }
+        this.methodLimit =
+            limit == null || limit.intValue() <= 0 ? Integer.MAX_VALUE : limit
+                .intValue();
+        LOGGER.debug("Watching contact presence using "
+            + (this.method == null ? "ISON" : this.method.name()));
+        this.irc.addListener(this.listener);
+    }
+
+    /**
+     * Parse the ISUPPORT parameter for the size of the server's watch list.
+     *
+     * @param state the connection state
+     * @param param the ISUPPORT parameter
+     * @return returns the size of the watch list, 0 if it is not limited, or
+     *         <tt>null</tt> if the parameter is not specified.
+     */
+    private static Integer parseISupportLimit(final IIRCState state,
+        final ISupport param)
+    {
+        final String value = state.getServerOptions().getKey(param.name());
+        if (value == null)
+        {
+            return null;
+        }
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Setting ISUPPORT parameter " + param.name() + " to "
+                + value);
+        }
+        try
+        {
+            return value.isEmpty() ? 0 : Integer.valueOf(value);
+        }
+        catch (NumberFormatException e)
+        {
+            LOGGER.warn("Invalid ISUPPORT parameter " + param.name() + ": "
+                + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Start watching.
+     */
+    public void start()
+    {
+        schedule(INITIAL_DELAY);
+    }
+
+    /**
+     * Stop watching.
+     */
+    public synchronized void stop()
+    {
+        this.stopped = true;
+        this.timer.cancel();
+        this.irc.deleteListener(this.listener);
+    }
+
+    /**
+     * Schedule the next cycle.
+     *
+     * @param delay delay in milliseconds
+     */
+    private synchronized void schedule(final long delay)
+    {
+        if (this.stopped)
+        {
+            return;
+        }
+        this.timer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    cycle();
+                }
+                catch (RuntimeException e)
+                {
+                    // Most likely the connection is gone.
+                    LOGGER.warn("Failed to watch contact presence, stop "
+                        + "watching.", e);
+                    stop();
+                }
+            }
+        }, delay);
+    }
+
+    /**
+     * Run a watch cycle: bring the server's watch list up to date with the
+     * contact list, poll the other contacts using ISON and schedule the next
+     * cycle.
+     */
+    void cycle()
+    {
+        final long delay;
+        synchronized (this)
+        {
+            if (this.stopped)
+            {
+                return;
+            }
+            this.contacts.clear();
+            for (String nick : this.operationSet.getContactNicks())
+            {
+                if (isNick(nick))
+                {
+                    this.contacts.put(normalize(nick), nick);
+                }
+            }
+            if (this.method != null)
+            {
+                updateWatched();
+            }
+
+            final List<String> polled = new ArrayList<String>();
+            for (Map.Entry<String, String> contact : this.contacts.entrySet())
+            {
+                if (!this.watched.containsKey(contact.getKey()))
+                {
+                    polled.add(contact.getValue());
+                }
+            }
+            if (polled.isEmpty())
+            {
+                this.pendingQueries.clear();
+                delay = SYNC_INTERVAL;
+            }
+            else
+            {
+                if (!this.pendingQueries.isEmpty())
+                {
+                    // The server did not answer the last poll yet, so give it
+                    // more time.
+                    LOGGER.debug("Previous ISON poll not answered.");
+                    this.pendingQueries.clear();
+                    this.pollInterval =
+                        Math.min(MAX_POLL_INTERVAL, this.pollInterval * 2);
+                }
+                this.pollChanged = false;
+                for (List<String> nicks : pack("ISON ", polled, ' '))
+                {
+                    this.pendingQueries.add(nicks);
+                    this.irc.rawMessage(line("ISON ", nicks, ' '));
+                }
+                delay = this.pollInterval;
+            }
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Register new contacts with the server's watch list and unregister
+     * removed contacts.
+     */
+    private void updateWatched()
+    {
+        final List<String> removed = new ArrayList<String>();
+        final Iterator<Map.Entry<String, String>> it =
+            this.watched.entrySet().iterator();
+        while (it.hasNext())
+        {
+            final Map.Entry<String, String> nick = it.next();
+            if (!this.contacts.containsKey(nick.getKey()))
+            {
+                removed.add(nick.getValue());
+                it.remove();
+            }
+        }
+        final List<String> added = new ArrayList<String>();
+        for (Map.Entry<String, String> contact : this.contacts.entrySet())
+        {
+            if (this.watched.size() >= this.methodLimit)
+            {
+                break;
+            }
+            if (!this.watched.containsKey(contact.getKey()))
+            {
+                this.watched.put(contact.getKey(), contact.getValue());
+                added.add(contact.getValue());
+            }
+        }
+
+        if (this.method == ISupport.MONITOR)
+        {
+            send("MONITOR - ", removed, ',');
+            send("MONITOR + ", added, ',');
+        }
+        else
+        {
+            final List<String> changes = new ArrayList<String>();
+            for (String nick : removed)
+            {
+                changes.add("-" + nick);
+            }
+            for (String nick : added)
+            {
+                changes.add("+" + nick);
+            }
+            send("WATCH ", changes, ' ');
+        }
+    }
+
+    /**
+     * Send a command for a list of parameters, using as few lines as
+     * possible.
+     *
+     * @param command the command, including the separator of its parameters
+     * @param params the parameters
+     * @param separator the separator between the parameters
+     */
+    private void send(final String command, final List<String> params,
+        final char separator)
+    {
+        for (List<String> batch : pack(command, params, separator))
+        {
+            this.irc.rawMessage(line(command, batch, separator));
+        }
+    }
+
+    /**
+     * Split a list of parameters in batches that fit in a line each.
+     *
+     * @param command the command, including the separator of its parameters
+     * @param params the parameters
+     * @param separator the separator between the parameters
+     * @return returns the batches of parameters
+     */
+    static List<List<String>> pack(final String command,
+        final List<String> params, final char separator)
+    {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        List<String> batch = null;
+        int length = 0;
+        for (String param : params)
+        {
+            if (batch != null
+                && length + 1 + param.length() > MAX_LINE_LENGTH)
+            {
+                batch = null;
+            }
+            if (batch == null)
+            {
+                batch = new ArrayList<String>();
+                batches.add(batch);
+                length = command.length() - 1;
+            }
+            batch.add(param);
+            length += 1 + param.length();
+        }
+        return batches;
+    }
+
+    /**
+     * Build the line of a command.
+     *
+     * @param command the command, including the separator of its parameters
+     * @param params the parameters
+     * @param separator the separator between the parameters
+     * @return returns the line
+     */
+    private static String line(final String command,
+        final List<String> params, final char separator)
+    {
+        final StringBuilder line = new StringBuilder(command);
+        for (int i = 0; i < params.size(); i++)
+        {
+            if (i > 0)
+            {
+                line.append(separator);
+            }
+            line.append(params.get(i));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Check whether a contact identifier can be watched as a nick.
+     *
+     * @param id the contact identifier
+     * @return returns <tt>true</tt> if the identifier is a nick
+     */
+    private static boolean isNick(final String id)
+    {
+        if (id == null || id.isEmpty())
+        {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++)
+        {
+            final char c = id.charAt(i);
+            if (c == ' ' || c == ',' || c == '!' || c == '@' || c == '*')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Normalize a nick for comparison, since the server may change its case.
+     *
+     * @param nick the nick
+     * @return returns the normalized nick
+     */
+    private static String normalize(final String nick)
+    {
+        return nick.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Collect the presence of the contact of a nick, to be updated once the
+     * watcher's lock is released.
+     *
+     * @param nick the nick as reported by the server
+     * @param online <tt>true</tt> if the nick is online
+     * @param updates the presence of the contacts to update, by contact nick
+     */
+    private void update(final String nick, final boolean online,
+        final Map<String, Boolean> updates)
+    {
+        final String contact = this.contacts.get(normalize(nick));
+        if (contact != null)
+        {
+            updates.put(contact, online);
+        }
+    }
+
+    /**
+     * Update the presence of contacts. Presence events are fired from here, so
+     * it must be called without holding the watcher's lock.
+     *
+     * @param updates the presence of the contacts, by contact nick
+     * @return returns <tt>true</tt> if the presence of a contact changed
+     */
+    private boolean fire(final Map<String, Boolean> updates)
+    {
+        boolean changed = false;
+        for (Map.Entry<String, Boolean> update : updates.entrySet())
+        {
+            changed |=
+                this.operationSet.updateNickContactPresence(update.getKey(),
+                    update.getValue().booleanValue());
+        }
+        return changed;
+    }
+
+    /**
+     * Strip the colon from a trailing parameter.
+     *
+     * @param text the text
+     * @return returns the text without leading colon
+     */
+    private static String trailing(final String text)
+    {
+        return text.startsWith(":") ? text.substring(1) : text;
+    }
+
+    /**
+     * Listener for the replies to ISON, MONITOR and WATCH.
+     */
+    private final class WatcherListener
+        extends VariousMessageListenerAdapter
+    {
+        /**
+         * Reply to ISON.
+         */
+        private static final int IRC_RPL_ISON = 303;
+
+        /**
+         * Watch list is full.
+         */
+        private static final int IRC_ERR_TOOMANYWATCH = 512;
+
+        /**
+         * Watched nick logged on.
+         */
+        private static final int IRC_RPL_LOGON = 600;
+
+        /**
+         * Watched nick logged off.
+         */
+        private static final int IRC_RPL_LOGOFF = 601;
+
+        /**
+         * Newly watched nick is online.
+         */
+        private static final int IRC_RPL_NOWON = 604;
+
+        /**
+         * Newly watched nick is offline.
+         */
+        private static final int IRC_RPL_NOWOFF = 605;
+
+        /**
+         * Monitored nicks are online.
+         */
+        private static final int IRC_RPL_MONONLINE = 730;
+
+        /**
+         * Monitored nicks are offline.
+         */
+        private static final int IRC_RPL_MONOFFLINE = 731;
+
+        /**
+         * Monitor list is full.
+         */
+        private static final int IRC_ERR_MONLISTFULL = 734;
+
+        /**
+         * Handle replies to presence watching.
+         */
+        @Override
+        public void onServerNumericMessage(final ServerNumericMessage msg)
+        {
+            final Integer msgCode = msg.getNumericCode();
+            final String text = msg.getText();
+            if (msgCode == null || text == null)
+            {
+                return;
+            }
+            final Map<String, Boolean> updates =
+                new LinkedHashMap<String, Boolean>();
+            boolean ison = false;
+            synchronized (PresenceWatcher.this)
+            {
+                switch (msgCode.intValue())
+                {
+                case IRC_RPL_ISON:
+                    ison = onIsonReply(trailing(text), updates);
+                    break;
+                case IRC_RPL_LOGON:
+                case IRC_RPL_NOWON:
+                    update(firstParam(text), true, updates);
+                    break;
+                case IRC_RPL_LOGOFF:
+                case IRC_RPL_NOWOFF:
+                    update(firstParam(text), false, updates);
+                    break;
+                case IRC_ERR_TOOMANYWATCH:
+                    unwatch(firstParam(text));
+                    break;
+                case IRC_RPL_MONONLINE:
+                    for (String mask : trailing(text).split(","))
+                    {
+                        final int end = mask.indexOf('!');
+                        update(end < 0 ? mask : mask.substring(0, end), true,
+                            updates);
+                    }
+                    break;
+                case IRC_RPL_MONOFFLINE:
+                    for (String nick : trailing(text).split(","))
+                    {
+                        update(nick, false, updates);
+                    }
+                    break;
+                case IRC_ERR_MONLISTFULL:
+                    final String[] params = text.split(" ", 3);
+                    if (params.length > 1)
+                    {
+                        for (String nick : params[1].split(","))
+                        {
+                            unwatch(nick);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+            final boolean changed = fire(updates);
+            if (ison)
+            {
+                synchronized (PresenceWatcher.this)
+                {
+                    onIsonUpdated(changed);
+                }
+            }
+        }
+
+        /**
+         * Handle a reply to ISON: the nicks of the oldest pending query that
+         * are not in the reply are offline.
+         *
+         * @param reply the nicks in the reply
+         * @param updates the presence of the contacts to update
+         * @return returns <tt>true</tt> if the reply answered a pending query
+         */
+        private boolean onIsonReply(final String reply,
+            final Map<String, Boolean> updates)
+        {
+            final List<String> query = pendingQueries.poll();
+            if (query == null)
+            {
+                return false;
+            }
+            final Set<String> online = new HashSet<String>();
+            for (String nick : reply.split(" "))
+            {
+                online.add(normalize(nick));
+            }
+            for (String nick : query)
+            {
+                update(nick, online.contains(normalize(nick)), updates);
+            }
+            return true;
+        }
+
+        /**
+         * Adapt the polling interval once the presence of the contacts of an
+         * ISON reply is updated.
+         *
+         * @param changed <tt>true</tt> if the presence of a contact changed
+         */
+        private void onIsonUpdated(final boolean changed)
+        {
+            pollChanged |= changed;
+            if (pendingQueries.isEmpty())
+            {
+                pollInterval =
+                    pollChanged ? MIN_POLL_INTERVAL : Math.min(
+                        MAX_POLL_INTERVAL, pollInterval * 3 / 2);
+            }
+        }
+
+        /**
+         * Remove a nick which the server refuses to watch, so that it is
+         * polled instead, and do not try to watch more nicks than the server
+         * accepts.
+         *
+         * @param nick the nick
+         */
+        private void unwatch(final String nick)
+        {
+            watched.remove(normalize(nick));
+            methodLimit = Math.min(methodLimit, watched.size());
+        }
+
+        /**
+         * Get the first parameter of a reply.
+         *
+         * @param text the text of the reply
+         * @return returns the first parameter
+         */
+        private String firstParam(final String text)
+        {
+            final int end = text.indexOf(' ');
+            return end < 0 ? trailing(text) : text.substring(0, end);
+        }
+
+        /**
+         * In case the user quits, stop watching. In case a contact quits, it
+         * is offline.
+         */
+        @Override
+        public void onUserQuit(final QuitMessage msg)
+        {
+            final String user = msg.getSource().getNick();
+            if (user == null)
+            {
+                return;
+            }
+            if (user.equals(connectionState.getNickname()))
+            {
+                LOGGER.debug("Local user's QUIT message received: stop "
+                    + "watching contact presence.");
+                stop();
+                return;
+            }
+            final Map<String, Boolean> updates =
+                new HashMap<String, Boolean>();
+            synchronized (PresenceWatcher.this)
+            {
+                update(user, false, updates);
+            }
+            fire(updates);
+        }
+
+        /**
+         * In case a fatal error occurs, stop watching.
+         */
+        @Override
+        public void onError(final ErrorMessage aMsg)
+        {
+            LOGGER.debug("Local user received ERROR message: stop watching "
+                + "contact presence.");
+            stop();
+        }
+    }
+}
@@ -1934,52 +1934,19 @@ public class OperationSetPersistentPresenceJabberImpl
                     VCardTempXUpdatePresenceExtension.NAMESPACE);
         if(defaultPacketExtension != null)
         {
-            try
+            String packetPhotoSHA1 = defaultPacketExtension.getValue("photo");
+            // If this presence packet has a photo tag with a SHA-1 hash
+            // which differs from the current avatar SHA-1 hash, then Jitsi
+            // retrieves the new avatar image, from the avatar cache if it is
+            // there, and updates this contact image in the contact list.
+            if(packetPhotoSHA1 != null
+                    && !packetPhotoSHA1.equals(
+                        VCardTempXUpdatePresenceExtension.getImageSha1(
+                            currentAvatar)))
             {
-                String packetPhotoSHA1 =
-                    defaultPacketExtension.getValue("photo");
-                // If this presence packet has a photo tag with a SHA-1 hash
-                // which differs from the current avatar SHA-1 hash, then Jitsi
-                // retrieves the new avatar image and updates this contact image
-                // in the contact list.
-                if(packetPhotoSHA1 != null
-                        && !packetPhotoSHA1.equals(
-                            VCardTempXUpdatePresenceExtension.getImageSha1(
-                                currentAvatar))
-                  )
-                {
-                    byte[] newAvatar = null;
-
-                    // If there is an avatar image, retrieves it.
-                    if(packetPhotoSHA1.length() != 0)
-                    {
-                        // Retrieves the new contact avatar image.
-                        VCard vCard = new VCard();
-                        vCard.load(parentProvider.getConnection(), userID);
-                        newAvatar = vCard.getAvatar();
-                    }
-                    // Else removes the current avatar image, since the contact
-                    // has removed it from the server.
-                    else
-                    {
-                        newAvatar = new byte[0];
-                    }
-
-                    // Sets the new avatar image to the Jitsi contact.
-                    sourceContact.setImage(newAvatar);
-                    // Fires a property change event to update the contact list.
-                    this.fireContactPropertyChangeEvent(
-                        ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                        sourceContact,
-                        currentAvatar,
-                        newAvatar);
-                }
-            }
-            catch(XMPPException ex)
-            {
-                logger.info("Cannot retrieve vCard from: " + packet.getFrom());
-                if(logger.isTraceEnabled())
-                    logger.trace("vCard retrieval exception was: ", ex);
+                ssContactList.addContactForImageUpdate(
+                    sourceContact,
+                    packetPhotoSHA1);
             }
         }
     }
@@ -7,6 +7,7 @@
 package net.java.sip.communicator.impl.protocol.jabber;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.customavatar.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -69,9 +70,14 @@ public class ServerStoredContactListJabberImpl
         = new Vector<ServerStoredGroupListener>();
 
     /**
-     *  Thread retreiving images for contacts
+     * Retrieves images for contacts.
      */
-    private ImageRetriever imageRetriever = null;
+    private AvatarFetcher avatarFetcher = null;
+
+    /**
+     * The lock of {@link #avatarFetcher}.
+     */
+    private final Object avatarFetcherLock = new Object();
 
     /**
      * Listens for roster changes.
@@ -879,11 +885,15 @@ public class ServerStoredContactListJabberImpl
      */
     void cleanup()
     {
-        if(imageRetriever != null)
+        AvatarFetcher fetcher;
+
+        synchronized(avatarFetcherLock)
         {
-            imageRetriever.quit();
-            imageRetriever = null;
+            fetcher = avatarFetcher;
+            avatarFetcher = null;
         }
+        if(fetcher != null)
+            fetcher.quit();
 
         if(this.roster != null)
             this.roster.removeRosterListener(rosterChangeListener);
@@ -1181,13 +1191,36 @@ public class ServerStoredContactListJabberImpl
             && ((VolatileContactJabberImpl)contact).isPrivateMessagingContact())
             return;
 
-        if(imageRetriever == null)
+        getAvatarFetcher().addContact(contact, null);
+    }
+
+    /**
+     * A contact advertised the SHA-1 hash of its avatar and it is not the
+     * hash of its current image, so we must update it. The avatar is taken
+     * from the avatar cache if it is there and retrieved otherwise.
+     *
+     * @param contact ContactJabberImpl
+     * @param sha1 the SHA-1 hash of the avatar in hexadecimal, or an empty
+     * string if the contact has no avatar
+     */
+    void addContactForImageUpdate(ContactJabberImpl contact, String sha1)
+    {
+        getAvatarFetcher().addContact(contact, sha1);
+    }
+
+    /**
+     * Returns the fetcher of avatars, which is created when first needed.
+     *
+     * @return the fetcher of avatars
+     */
+    private AvatarFetcher getAvatarFetcher()
+    {
+        synchronized(avatarFetcherLock)
         {
-            imageRetriever = new ImageRetriever();
-            imageRetriever.start();
+            if(avatarFetcher == null)
+                avatarFetcher = new AvatarFetcher();
+            return avatarFetcher;
         }
-
-        imageRetriever.addContact(contact);
     }
 
     /**
@@ -1630,112 +1663,277 @@ public class ServerStoredContactListJabberImpl
     }
 
     /**
-     * Thread retrieving images.
+     * Retrieves the images of contacts, a few at a time. An avatar advertised
+     * by its hash is taken from the avatar cache if it is there, and only
+     * retrieved from the server otherwise. A contact which is requested again
+     * while pending is retrieved once, for the last advertised hash, and the
+     * image changes are fired in batches.
      */
-    private class ImageRetriever
-        extends Thread
+    private class AvatarFetcher
     {
         /**
-         * list with the accounts with missing image
+         * The maximum number of avatars retrieved at the same time.
+         */
+        private static final int MAX_CONCURRENT_FETCHES = 4;
+
+        /**
+         * The number of image changes fired at once while avatars are still
+         * being retrieved.
+         */
+        private static final int EVENT_BATCH_SIZE = 16;
+
+        /**
+         * The threads retrieving avatars.
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * The pending requests, by contact address.
+         */
+        private final Map<String, Request> pending
+            = new HashMap<String, Request>();
+
+        /**
+         * The image changes which are not fired yet. Guarded by
+         * {@link #pending}.
          */
-        private final List<ContactJabberImpl> contactsForUpdate
-            = new Vector<ContactJabberImpl>();
+        private final List<ImageChange> changes = new ArrayList<ImageChange>();
 
         /**
-         * Should we stop.
+         * Whether we should stop. Guarded by {@link #pending}.
          */
-        private boolean running = false;
+        private boolean stopped = false;
 
         /**
          * Creates image retrieving.
          */
-        ImageRetriever()
+        AvatarFetcher()
         {
-            setDaemon(true);
+            executor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_FETCHES, MAX_CONCURRENT_FETCHES,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "Jabber avatar fetcher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
         }
 
         /**
-         * Thread entry point.
+         * Adds a contact for retrieving, unless it is already pending.
+         *
+         * @param contact ContactJabberImpl
+         * @param sha1 the advertised SHA-1 hash of the avatar of the contact
+         * or <tt>null</tt> if it is not known
          */
-        @Override
-        public void run()
+        void addContact(ContactJabberImpl contact, String sha1)
         {
-            try
+            Request request;
+
+            synchronized(pending)
             {
-                Collection<ContactJabberImpl> copyContactsForUpdate = null;
-                running = true;
-                while (running)
+                if(stopped)
+                    return;
+
+                request = pending.get(contact.getAddress());
+                if(request != null)
                 {
-                    synchronized(contactsForUpdate)
-                    {
-                        if(contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
+                    // the last advertised avatar is the one to retrieve
+                    if(sha1 != null)
+                        request.sha1 = sha1;
+                    return;
+                }
 
-                        if(!running)
-                            return;
+                request = new Request(contact, sha1);
+                pending.put(contact.getAddress(), request);
+            }
+            executor.execute(request);
+        }
 
-                        copyContactsForUpdate
-                            = new Vector<ContactJabberImpl>(contactsForUpdate);
-                        contactsForUpdate.clear();
-                    }
+        /**
+         * Stops retrieving.
+         */
+        void quit()
+        {
+            synchronized(pending)
+            {
+                stopped = true;
+                pending.clear();
+                changes.clear();
+            }
+            executor.shutdownNow();
+        }
 
-                    Iterator<ContactJabberImpl> iter
-                        = copyContactsForUpdate.iterator();
-                    while (iter.hasNext())
-                    {
-                        ContactJabberImpl contact = iter.next();
+        /**
+         * Retrieves the avatar of a request, again if another hash was
+         * advertised meanwhile, and fires the image changes if enough of them
+         * are waiting or if nothing else is pending.
+         *
+         * @param request the request
+         */
+        private void fetch(Request request)
+        {
+            String sha1;
 
-                        byte[] imgBytes = getAvatar(contact);
+            synchronized(pending)
+            {
+                sha1 = request.sha1;
+            }
 
-                        if(imgBytes != null)
-                        {
-                            byte[] oldImage = contact.getImage(false);
+            boolean done = false;
 
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(
-                                ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                                contact, oldImage, imgBytes);
-                        }
-                        else
-                            // set an empty image data so it won't be queried again
-                            contact.setImage(new byte[0]);
+            while(!done)
+            {
+                ImageChange change = null;
+
+                try
+                {
+                    change = retrieve(request.contact, sha1);
+                }
+                catch(RuntimeException ex)
+                {
+                    logger.error(
+                        "Failed to retrieve image for contact "
+                            + request.contact,
+                        ex);
+                }
+
+                List<ImageChange> batch = null;
+
+                synchronized(pending)
+                {
+                    if(stopped)
+                        return;
+
+                    if(change != null)
+                        changes.add(change);
+
+                    if(sha1 == null
+                        ? request.sha1 == null
+                        : sha1.equals(request.sha1))
+                    {
+                        pending.remove(request.contact.getAddress());
+                        done = true;
+                    }
+                    else
+                        sha1 = request.sha1;
+
+                    if(changes.size() >= EVENT_BATCH_SIZE
+                        || pending.isEmpty())
+                    {
+                        batch = new ArrayList<ImageChange>(changes);
+                        changes.clear();
+                    }
+                }
+
+                if(batch != null)
+                {
+                    for(ImageChange c : batch)
+                    {
+                        parentOperationSet.fireContactPropertyChangeEvent(
+                            ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                            c.contact, c.oldImage, c.newImage);
                     }
                 }
-            }
-            catch (InterruptedException ex)
-            {
-                logger.error("ImageRetriever error waiting will stop now!", ex);
             }
         }
 
         /**
-         * Add contact for retrieving
-         * if the provider is register notify the retriever to get the nicks
-         * if we are not registered add a listener to wait for registering
+         * Updates the image of a contact.
          *
-         * @param contact ContactJabberImpl
+         * @param contact the contact
+         * @param sha1 the advertised SHA-1 hash of the avatar of the contact
+         * or <tt>null</tt> if it is not known
+         * @return the change of the image of the contact or <tt>null</tt> if
+         * it did not change
          */
-        void addContact(ContactJabberImpl contact)
+        private ImageChange retrieve(ContactJabberImpl contact, String sha1)
         {
-            synchronized(contactsForUpdate)
+            byte[] oldImage = contact.getImage(false);
+            byte[] newImage;
+
+            if(sha1 == null)
+            {
+                // retrieved meanwhile
+                if(oldImage != null)
+                    return null;
+
+                newImage = getAvatar(contact);
+                if(newImage == null)
+                {
+                    // set an empty image data so it won't be queried again
+                    contact.setImage(new byte[0]);
+                    return null;
+                }
+            }
+            else if(sha1.length() == 0)
+            {
+                // the contact has removed its avatar from the server
+                newImage = new byte[0];
+            }
+            else
             {
-                if (!contactsForUpdate.contains(contact))
+                if(oldImage != null
+                    && sha1.equalsIgnoreCase(
+                        VCardTempXUpdatePresenceExtension.getImageSha1(
+                            oldImage)))
+                {
+                    return null;
+                }
+
+                newImage = AvatarCacheUtils.getCachedAvatar(contact, sha1);
+                if(newImage == null)
                 {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
+                    newImage = loadAvatar(contact.getAddress());
+                    if(newImage == null)
+                        return null;
                 }
             }
+
+            if(Arrays.equals(oldImage, newImage))
+                return null;
+
+            contact.setImage(newImage);
+            return new ImageChange(contact, oldImage, newImage);
         }
 
         /**
-         * Stops this thread.
+         * Retrieves the avatar in the vCard of a contact from the server,
+         * without using the details retrieved before.
+         *
+         * @param address the address of the contact
+         * @return the avatar, an empty image if the contact has none, or
+         * <tt>null</tt> if the vCard cannot be retrieved
          */
-        void quit()
+        private byte[] loadAvatar(String address)
         {
-            synchronized(contactsForUpdate)
+            XMPPConnection connection = jabberProvider.getConnection();
+
+            if(connection == null)
+                return null;
+
+            try
+            {
+                VCard vCard = new VCard();
+
+                vCard.load(connection, address);
+
+                byte[] avatar = vCard.getAvatar();
+
+                return (avatar == null) ? new byte[0] : avatar;
+            }
+            catch(XMPPException ex)
             {
-                running = false;
-                contactsForUpdate.notifyAll();
+                logger.info("Cannot retrieve vCard from: " + address);
+                if(logger.isTraceEnabled())
+                    logger.trace("vCard retrieval exception was: ", ex);
+                return null;
             }
         }
 
@@ -1786,6 +1984,57 @@ public class ServerStoredContactListJabberImpl
 
             return result;
         }
+
+        /**
+         * A contact which image is to be retrieved.
+         */
+        private class Request
+            implements Runnable
+        {
+            /**
+             * The contact.
+             */
+            final ContactJabberImpl contact;
+
+            /**
+             * The advertised SHA-1 hash of the avatar of the contact or
+             * <tt>null</tt> if it is not known. Guarded by {@link #pending}.
+             */
+            String sha1;
+
+            Request(ContactJabberImpl contact, String sha1)
+            {
+                this.contact = contact;
+                this.sha1 = sha1;
+            }
+
+            public void run()
+            {
+                fetch(this);
+            }
+        }
+    }
+
+    /**
+     * A change of the image of a contact, which is not fired yet.
+     */
+    private static class ImageChange
+    {
+        final ContactJabberImpl contact;
+
+        final byte[] oldImage;
+
+        final byte[] newImage;
+
+        ImageChange(
+            ContactJabberImpl contact,
+            byte[] oldImage,
+            byte[] newImage)
+        {
+            this.contact = contact;
+            this.oldImage = oldImage;
+            this.newImage = newImage;
+        }
     }
 
     /**
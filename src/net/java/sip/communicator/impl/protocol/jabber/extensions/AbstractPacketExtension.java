@@ -8,6 +8,7 @@ package net.java.sip.communicator.impl.protocol.jabber.extensions;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jivesoftware.smack.packet.*;
 
@@ -25,6 +26,14 @@ import org.jivesoftware.smack.packet.*;
 public abstract class AbstractPacketExtension
     implements PacketExtension
 {
+    /**
+     * Whether the classes extending <tt>AbstractPacketExtension</tt> override
+     * {@link #toXML()}, in which case {@link #toXML(StringBuilder)} has to use
+     * their <tt>String</tt> representation.
+     */
+    private static final Map<Class<?>, Boolean> overridesToXML
+        = new ConcurrentHashMap<Class<?>, Boolean>();
+
     /**
      * The name space of this packet extension. Should remain <tt>null</tt> if
      * there's no namespace associated with this element.
@@ -113,6 +122,38 @@ public abstract class AbstractPacketExtension
     {
         StringBuilder bldr = new StringBuilder();
 
+        appendXML(bldr);
+        return bldr.toString();
+    }
+
+    /**
+     * Appends the XML representation of this extension to a
+     * <tt>StringBuilder</tt>. Child extensions extending
+     * <tt>AbstractPacketExtension</tt> are appended to the same
+     * <tt>StringBuilder</tt> so that no intermediate <tt>String</tt> is built
+     * for them.
+     *
+     * @param bldr the <tt>StringBuilder</tt> to append the XML representation
+     * of this extension to
+     */
+    public void toXML(StringBuilder bldr)
+    {
+        if (overridesToXML(getClass()))
+            bldr.append(toXML());
+        else
+            appendXML(bldr);
+    }
+
+    /**
+     * Appends the XML representation of this extension built from its
+     * element name, namespace, attributes, child extensions, packets and text
+     * to a <tt>StringBuilder</tt>.
+     *
+     * @param bldr the <tt>StringBuilder</tt> to append the XML representation
+     * of this extension to
+     */
+    private void appendXML(StringBuilder bldr)
+    {
         bldr.append("<").append(getElementName()).append(" ");
 
         String namespace = getNamespace();
@@ -123,8 +164,9 @@ public abstract class AbstractPacketExtension
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ").append(entry.getKey()).append("='")
-                    .append(entry.getValue()).append("'");
+            bldr.append(" ").append(entry.getKey()).append("='");
+            appendEscaped(bldr, entry.getValue().toString());
+            bldr.append("'");
         }
 
         //add child elements if any
@@ -137,7 +179,7 @@ public abstract class AbstractPacketExtension
             if ((text == null) || (text.length() == 0))
             {
                 bldr.append("/>");
-                return bldr.toString();
+                return;
             }
             else
                 bldr.append('>');
@@ -150,13 +192,18 @@ public abstract class AbstractPacketExtension
                         && ((text == null) || (text.length() == 0)))
                 {
                     bldr.append("/>");
-                    return bldr.toString();
+                    return;
                 }
                 else
                 {
                     bldr.append(">");
                     for(PacketExtension packExt : childElements)
-                        bldr.append(packExt.toXML());
+                    {
+                        if (packExt instanceof AbstractPacketExtension)
+                            ((AbstractPacketExtension) packExt).toXML(bldr);
+                        else
+                            bldr.append(packExt.toXML());
+                    }
                     for(Packet packet : packets)
                         bldr.append(packet.toXML());
                 }
@@ -167,10 +214,79 @@ public abstract class AbstractPacketExtension
         if((text != null) && (text.trim().length() > 0))
             bldr.append(text);
 
-        
         bldr.append("</").append(getElementName()).append(">");
+    }
 
-        return bldr.toString();
+    /**
+     * Appends an attribute value to a <tt>StringBuilder</tt>, escaping the
+     * characters which cannot appear in it. Values without such characters,
+     * that is almost all of them, are appended as they are.
+     *
+     * @param bldr the <tt>StringBuilder</tt> to append <tt>value</tt> to
+     * @param value the attribute value
+     */
+    private static void appendEscaped(StringBuilder bldr, String value)
+    {
+        int length = value.length();
+        int start = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            String entity;
+
+            switch (value.charAt(i))
+            {
+            case '&':
+                entity = "&amp;";
+                break;
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '\'':
+                entity = "&apos;";
+                break;
+            case '"':
+                entity = "&quot;";
+                break;
+            default:
+                continue;
+            }
+            bldr.append(value, start, i).append(entity);
+            start = i + 1;
+        }
+        bldr.append(value, start, length);
+    }
+
+    /**
+     * Determines whether a class extending <tt>AbstractPacketExtension</tt>
+     * overrides {@link #toXML()}.
+     *
+     * @param clazz the class extending <tt>AbstractPacketExtension</tt>
+     * @return <tt>true</tt> if <tt>clazz</tt> overrides {@link #toXML()}
+     */
+    private static boolean overridesToXML(Class<?> clazz)
+    {
+        Boolean overrides = overridesToXML.get(clazz);
+
+        if (overrides == null)
+        {
+            try
+            {
+                overrides
+                    = clazz.getMethod("toXML").getDeclaringClass()
+                        != AbstractPacketExtension.class;
+            }
+            catch (NoSuchMethodException nsme)
+            {
+                // toXML() is public and declared by PacketExtension
+                overrides = Boolean.FALSE;
+            }
+            overridesToXML.put(clazz, overrides);
+        }
+        return overrides;
     }
 
     /**
@@ -16,6 +16,7 @@ import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.util.OSUtils;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.*;
@@ -57,13 +58,25 @@ public class EntityCapsManager
     private static ConfigurationService configService;
 
     /**
-     * The prefix of the <tt>ConfigurationService</tt> properties which persist
-     * {@link #caps2discoverInfo}.
+     * The prefix of the <tt>ConfigurationService</tt> properties which
+     * persisted {@link #caps2discoverInfo} before {@link #capsStore}. They are
+     * moved to the store the first time it is created.
      */
     private static final String CAPS_PROPERTY_NAME_PREFIX
         = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
             + "EntityCapsManager.CAPS.";
 
+    /**
+     * The name of the file of {@link #capsStore}.
+     */
+    private static final String CAPS_STORE_FILE_NAME = "entitycaps.dat";
+
+    /**
+     * The time in milliseconds a lookup of <tt>DiscoverInfo</tt> waits for
+     * {@link #capsStore} to be loaded.
+     */
+    private static final long CAPS_STORE_LOAD_TIMEOUT = 5000;
+
     /**
      * An empty array of <tt>UserCapsNodeListener</tt> elements explicitly
      * defined in order to reduce unnecessary allocations.
@@ -90,6 +103,18 @@ public class EntityCapsManager
     private static final Map<Caps, DiscoverInfo> caps2discoverInfo
         = new ConcurrentHashMap<Caps, DiscoverInfo>();
 
+    /**
+     * The store which remembers {@link #caps2discoverInfo} across application
+     * instances, or <tt>null</tt> until the bundle context is set.
+     */
+    private static volatile EntityCapsStore capsStore;
+
+    /**
+     * Released once {@link #capsStore} has been loaded into
+     * {@link #caps2discoverInfo}.
+     */
+    private static volatile CountDownLatch capsStoreLoaded;
+
     /**
      * Map of Full JID -&gt; DiscoverInfo/null. In case of c2s connection the
      * key is formed as user@server/resource (resource is required) In case of
@@ -147,44 +172,27 @@ public class EntityCapsManager
          */
         info.setNode(caps.getNodeVer());
 
-        synchronized (caps2discoverInfo)
+        DiscoverInfo oldInfo = caps2discoverInfo.put(caps, info);
+
+        /*
+         * If the specified info is a new association for the specified node,
+         * remember it across application instances in order to not query for
+         * it over the network.
+         */
+        if ((oldInfo == null) || !oldInfo.equals(info))
         {
-            DiscoverInfo oldInfo = caps2discoverInfo.put(caps, info);
+            EntityCapsStore capsStore = EntityCapsManager.capsStore;
 
-            /*
-             * If the specified info is a new association for the specified
-             * node, remember it across application instances in order to not
-             * query for it over the network.
-             */
-            if ((oldInfo == null) || !oldInfo.equals(info))
+            if (capsStore != null)
             {
                 String xml = info.getChildElementXML();
 
                 if ((xml != null) && (xml.length() != 0))
-                {
-                    getConfigService()
-                        .setProperty(getCapsPropertyName(caps), xml);
-                }
+                    capsStore.put(caps, xml);
             }
         }
     }
 
-    /**
-     * Gets the name of the property in the <tt>ConfigurationService</tt> which
-     * is or is to be associated with a specific <tt>Caps</tt> value.
-     *
-     * @param caps the <tt>Caps</tt> value for which the associated
-     * <tt>ConfigurationService</tt> property name is to be returned
-     * @return the name of the property in the <tt>ConfigurationService</tt>
-     * which is or is to be associated with a specific <tt>Caps</tt> value
-     */
-    private static String getCapsPropertyName(Caps caps)
-    {
-        return
-            CAPS_PROPERTY_NAME_PREFIX
-                + caps.node + '#' + caps.hash + '#' + caps.ver;
-    }
-
     /**
      * Returns cached instance of {@link ConfigurationService}.
      */
@@ -203,13 +211,204 @@ public class EntityCapsManager
      * @param bundleContext the <tt>BundleContext</tt> instance to be used by
      *                      this class or <tt>null</tt> to clear the reference.
      */
-    public static void setBundleContext(BundleContext bundleContext)
+    public static synchronized void setBundleContext(
+            BundleContext bundleContext)
     {
         if (bundleContext == null)
         {
+            if (capsStore != null)
+                capsStore.flush();
             configService = null;
         }
         EntityCapsManager.bundleContext = bundleContext;
+
+        if ((bundleContext != null) && (capsStore == null))
+            loadCapsStore();
+    }
+
+    /**
+     * Creates {@link #capsStore} and loads it into {@link #caps2discoverInfo}
+     * in the background, parsing every stored <tt>DiscoverInfo</tt> once.
+     */
+    private static void loadCapsStore()
+    {
+        File file = null;
+        FileAccessService fileAccessService
+            = ServiceUtils.getService(bundleContext, FileAccessService.class);
+
+        if (fileAccessService != null)
+        {
+            try
+            {
+                file
+                    = fileAccessService.getPrivatePersistentFile(
+                            CAPS_STORE_FILE_NAME,
+                            FileCategory.CACHE);
+            }
+            catch (Exception e)
+            {
+                logger.error("Failed to get the entity caps file", e);
+            }
+        }
+
+        final EntityCapsStore store = new EntityCapsStore(file);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final ConfigurationService configurationService = getConfigService();
+
+        capsStore = store;
+        capsStoreLoaded = loaded;
+
+        Thread loader
+            = new Thread("EntityCapsManager caps loader")
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Map<Caps, String> xmls = store.load();
+
+                        if ((xmls == null) && (configurationService != null))
+                            xmls
+                                = moveCapsProperties(
+                                        store,
+                                        configurationService);
+                        if (xmls != null)
+                        {
+                            for (Map.Entry<Caps, String> e : xmls.entrySet())
+                            {
+                                loadDiscoverInfo(
+                                        store,
+                                        e.getKey(), e.getValue());
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        loaded.countDown();
+                    }
+                }
+            };
+
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Moves the <tt>DiscoverInfo</tt> XML which previous versions kept in the
+     * <tt>ConfigurationService</tt> to {@link #capsStore}.
+     *
+     * @param store the store to move the XML to
+     * @param configurationService the <tt>ConfigurationService</tt>
+     * @return the moved XML by <tt>Caps</tt>
+     */
+    private static Map<Caps, String> moveCapsProperties(
+            EntityCapsStore store,
+            ConfigurationService configurationService)
+    {
+        Map<Caps, String> xmls = new HashMap<Caps, String>();
+
+        for (String name
+                : configurationService.getPropertyNamesByPrefix(
+                        CAPS_PROPERTY_NAME_PREFIX,
+                        false))
+        {
+            // node#hash#ver where only the node may contain '#'
+            String nodeHashVer
+                = name.substring(CAPS_PROPERTY_NAME_PREFIX.length());
+            int verIndex = nodeHashVer.lastIndexOf('#');
+            int hashIndex
+                = (verIndex > 0) ? nodeHashVer.lastIndexOf('#', verIndex - 1)
+                    : -1;
+            String xml = configurationService.getString(name);
+
+            if ((hashIndex > 0) && (xml != null) && (xml.length() != 0))
+            {
+                Caps caps
+                    = new Caps(
+                            nodeHashVer.substring(0, hashIndex),
+                            nodeHashVer.substring(hashIndex + 1, verIndex),
+                            nodeHashVer.substring(verIndex + 1),
+                            null);
+
+                xmls.put(caps, xml);
+                store.put(caps, xml);
+            }
+            configurationService.removeProperty(name);
+        }
+        return xmls;
+    }
+
+    /**
+     * Parses the stored <tt>DiscoverInfo</tt> of a <tt>Caps</tt> and adds it
+     * to {@link #caps2discoverInfo}, unless a <tt>DiscoverInfo</tt> has been
+     * received for it meanwhile. Invalid <tt>DiscoverInfo</tt> is removed
+     * from the store.
+     *
+     * @param store the store the <tt>DiscoverInfo</tt> has been read from
+     * @param caps the <tt>Caps</tt>
+     * @param xml the XML of the <tt>DiscoverInfo</tt>
+     */
+    private static void loadDiscoverInfo(
+            EntityCapsStore store,
+            Caps caps,
+            String xml)
+    {
+        if (caps2discoverInfo.containsKey(caps))
+            return;
+
+        DiscoverInfo discoverInfo = parseDiscoverInfo(xml);
+
+        if ((discoverInfo != null) && caps.isValid(discoverInfo))
+        {
+            caps2discoverInfo.put(caps, discoverInfo);
+        }
+        else
+        {
+            logger.error(
+                    "Invalid DiscoverInfo for " + caps.getNodeVer() + ": "
+                        + discoverInfo);
+            /*
+             * The discoverInfo doesn't seem valid according to the caps which
+             * means that we must have stored invalid information. Delete the
+             * invalid information in order to not try to validate it again.
+             */
+            store.remove(caps);
+        }
+    }
+
+    /**
+     * Parses the XML of a <tt>DiscoverInfo</tt>.
+     *
+     * @param xml the XML of the <tt>DiscoverInfo</tt>
+     * @return the <tt>DiscoverInfo</tt> or <tt>null</tt> if <tt>xml</tt>
+     * cannot be parsed
+     */
+    private static DiscoverInfo parseDiscoverInfo(String xml)
+    {
+        IQProvider discoverInfoProvider
+            = (IQProvider)
+                ProviderManager.getInstance().getIQProvider(
+                        "query",
+                        "http://jabber.org/protocol/disco#info");
+
+        if (discoverInfoProvider == null)
+            return null;
+
+        XmlPullParser parser = new MXParser();
+
+        try
+        {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(new StringReader(xml));
+            // Start the parser.
+            parser.next();
+            return (DiscoverInfo) discoverInfoProvider.parseIQ(parser);
+        }
+        catch (Exception ex)
+        {
+            return null;
+        }
     }
 
     /**
@@ -447,91 +646,33 @@ public class EntityCapsManager
      */
     public static DiscoverInfo getDiscoverInfoByCaps(Caps caps)
     {
-        synchronized (caps2discoverInfo)
+        DiscoverInfo discoverInfo = caps2discoverInfo.get(caps);
+
+        /*
+         * If we don't have the discoverInfo in the runtime cache yet, we may
+         * have it remembered in a previous application instance and still be
+         * loading it.
+         */
+        if (discoverInfo == null)
         {
-            DiscoverInfo discoverInfo = caps2discoverInfo.get(caps);
+            CountDownLatch capsStoreLoaded = EntityCapsManager.capsStoreLoaded;
 
-            /*
-             * If we don't have the discoverInfo in the runtime cache yet, we
-             * may have it remembered in a previous application instance.
-             */
-            if (discoverInfo == null)
+            if ((capsStoreLoaded != null) && (capsStoreLoaded.getCount() != 0))
             {
-                ConfigurationService configurationService
-                    = getConfigService();
-                String capsPropertyName = getCapsPropertyName(caps);
-                String xml = configurationService.getString(capsPropertyName);
-
-                if ((xml != null) && (xml.length() != 0))
+                try
                 {
-                    IQProvider discoverInfoProvider
-                        = (IQProvider)
-                            ProviderManager.getInstance().getIQProvider(
-                                    "query",
-                                    "http://jabber.org/protocol/disco#info");
-
-                    if (discoverInfoProvider != null)
-                    {
-                        XmlPullParser parser = new MXParser();
-
-                        try
-                        {
-                            parser.setFeature(
-                                    XmlPullParser.FEATURE_PROCESS_NAMESPACES,
-                                    true);
-                            parser.setInput(new StringReader(xml));
-                            // Start the parser.
-                            parser.next();
-                        }
-                        catch (XmlPullParserException xppex)
-                        {
-                            parser = null;
-                        }
-                        catch (IOException ioex)
-                        {
-                            parser = null;
-                        }
-
-                        if (parser != null)
-                        {
-                            try
-                            {
-                                discoverInfo
-                                    = (DiscoverInfo)
-                                        discoverInfoProvider.parseIQ(parser);
-                            }
-                            catch (Exception ex)
-                            {
-                            }
-
-                            if (discoverInfo != null)
-                            {
-                                if (caps.isValid(discoverInfo))
-                                    caps2discoverInfo.put(caps, discoverInfo);
-                                else
-                                {
-                                    logger.error(
-                                            "Invalid DiscoverInfo for "
-                                                + caps.getNodeVer()
-                                                + ": "
-                                                + discoverInfo);
-                                    /*
-                                     * The discoverInfo doesn't seem valid
-                                     * according to the caps which means that we
-                                     * must have stored invalid information.
-                                     * Delete the invalid information in order
-                                     * to not try to validate it again.
-                                     */
-                                    configurationService.removeProperty(
-                                            capsPropertyName);
-                                }
-                            }
-                        }
-                    }
+                    capsStoreLoaded.await(
+                            CAPS_STORE_LOAD_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
                 }
+                discoverInfo = caps2discoverInfo.get(caps);
             }
-            return discoverInfo;
         }
+        return discoverInfo;
     }
 
     /**
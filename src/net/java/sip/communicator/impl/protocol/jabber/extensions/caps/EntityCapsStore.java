@@ -0,0 +1,258 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.caps;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * The file remembering the disco#info XML of the entity capabilities we have
+ * seen across application instances, so that they do not have to be queried
+ * over the network again.
+ * <p>
+ * The whole file is read at once when the application starts, and written
+ * again on a background thread when capabilities are added or removed.
+ * Changes made while the file is being written are saved by a next write.
+ */
+public class EntityCapsStore
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>EntityCapsStore</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(EntityCapsStore.class);
+
+    /**
+     * The magic number starting the file.
+     */
+    private static final int MAGIC = 0x45434150;
+
+    /**
+     * The file, or <tt>null</tt> to only keep the capabilities in memory.
+     */
+    private final File file;
+
+    /**
+     * The disco#info XML of the entity capabilities, as saved in the file.
+     */
+    private final Map<EntityCapsManager.Caps, String> xmlByCaps
+        = new ConcurrentHashMap<EntityCapsManager.Caps, String>();
+
+    /**
+     * The thread writing the file.
+     */
+    private final ThreadPoolExecutor writer;
+
+    /**
+     * Whether a write of the file is scheduled and not started yet.
+     */
+    private final AtomicBoolean savePending = new AtomicBoolean();
+
+    /**
+     * Creates the store of entity capabilities kept in a file.
+     *
+     * @param file the file or <tt>null</tt> to only keep the capabilities in
+     * memory
+     */
+    EntityCapsStore(File file)
+    {
+        this.file = file;
+
+        writer = new ThreadPoolExecutor(
+            1, 1,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "EntityCapsStore writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Reads the file.
+     *
+     * @return the disco#info XML of the entity capabilities in the file, or
+     * <tt>null</tt> if there is no file
+     */
+    Map<EntityCapsManager.Caps, String> load()
+    {
+        if (file == null || !file.isFile())
+            return null;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != MAGIC)
+                {
+                    logger.warn("Ignoring unknown entity caps file " + file);
+                    return null;
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    String node = in.readUTF();
+                    String hash = in.readUTF();
+                    String ver = in.readUTF();
+                    byte[] xml = new byte[in.readInt()];
+
+                    in.readFully(xml);
+                    xmlByCaps.put(
+                        new EntityCapsManager.Caps(node, hash, ver, null),
+                        new String(xml, "UTF-8"));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            // keep what was read, the rest is queried again
+            logger.warn("Failed to read entity caps file " + file, ioe);
+        }
+        return new HashMap<EntityCapsManager.Caps, String>(xmlByCaps);
+    }
+
+    /**
+     * Remembers the disco#info XML of entity capabilities.
+     *
+     * @param caps the entity capabilities
+     * @param xml the disco#info XML
+     */
+    void put(EntityCapsManager.Caps caps, String xml)
+    {
+        if (!xml.equals(xmlByCaps.put(caps, xml)))
+            scheduleSave();
+    }
+
+    /**
+     * Forgets the disco#info XML of entity capabilities.
+     *
+     * @param caps the entity capabilities
+     */
+    void remove(EntityCapsManager.Caps caps)
+    {
+        if (xmlByCaps.remove(caps) != null)
+            scheduleSave();
+    }
+
+    /**
+     * Writes the file if changes have not been saved yet, and waits for the
+     * write to complete.
+     */
+    void flush()
+    {
+        if (savePending.get())
+        {
+            try
+            {
+                writer.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        save();
+                    }
+                }).get();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException ee)
+            {
+                logger.error("Failed to save entity caps", ee.getCause());
+            }
+        }
+    }
+
+    /**
+     * Schedules a write of the file, unless one is already scheduled.
+     */
+    private void scheduleSave()
+    {
+        if (file != null && savePending.compareAndSet(false, true))
+        {
+            writer.execute(new Runnable()
+            {
+                public void run()
+                {
+                    save();
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the file, replacing it only once it is entirely written.
+     */
+    private void save()
+    {
+        if (!savePending.getAndSet(false))
+            return;
+
+        Map<EntityCapsManager.Caps, String> snapshot
+            = new HashMap<EntityCapsManager.Caps, String>(xmlByCaps);
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<EntityCapsManager.Caps, String> e
+                        : snapshot.entrySet())
+                {
+                    EntityCapsManager.Caps caps = e.getKey();
+                    byte[] xml = e.getValue().getBytes("UTF-8");
+
+                    out.writeUTF(caps.node);
+                    out.writeUTF(caps.hash);
+                    out.writeUTF(caps.ver);
+                    out.writeInt(xml.length);
+                    out.write(xml);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(file)
+                    && !(file.delete() && tmpFile.renameTo(file)))
+            {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        }
+        catch (IOException ioe)
+        {
+            logger.error("Failed to save entity caps to " + file, ioe);
+            tmpFile.delete();
+        }
+    }
+}
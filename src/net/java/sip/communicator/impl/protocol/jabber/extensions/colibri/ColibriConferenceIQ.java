@@ -260,7 +260,7 @@ public class ColibriConferenceIQ
             if (rtcpTerminationStrategy != null)
                 rtcpTerminationStrategy.toXML(xml);
             if (gracefulShutdown)
-                xml.append(new GracefulShutdown().toXML());
+                new GracefulShutdown().toXML(xml);
 
             xml.append("</").append(ELEMENT_NAME).append('>');
         }
@@ -965,14 +965,14 @@ public class ColibriConferenceIQ
             int[] ssrcs = getSSRCs();
 
             for (PayloadTypePacketExtension payloadType : payloadTypes)
-                xml.append(payloadType.toXML());
+                payloadType.toXML(xml);
 
             for (SourcePacketExtension source : sources)
-                xml.append(source.toXML());
+                source.toXML(xml);
 
             if (souceGroups != null && souceGroups.size() != 0)
                 for (SourceGroupPacketExtension sourceGroup : souceGroups)
-                    xml.append(sourceGroup.toXML());
+                    sourceGroup.toXML(xml);
 
             for (int i = 0; i < ssrcs.length; i++)
             {
@@ -1295,7 +1295,7 @@ public class ColibriConferenceIQ
             if (transport != null)
             {
                 xml.append('>');
-                xml.append(transport.toXML());
+                transport.toXML(xml);
                 xml.append("</").append(ELEMENT_NAME).append('>');
             }
             else
@@ -1636,7 +1636,7 @@ public class ColibriConferenceIQ
                 if(hasContent())
                     printContent(xml);
                 if (hasTransport)
-                    xml.append(transport.toXML());
+                    transport.toXML(xml);
                 xml.append("</").append(elementName).append('>');
             }
             else
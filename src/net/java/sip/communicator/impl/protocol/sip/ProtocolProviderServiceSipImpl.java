@@ -341,6 +341,8 @@ public class ProtocolProviderServiceSipImpl
         sipSecurityManager.setSecurityAuthority(authority);
 
         initRegistrarConnection();
+        // index us again for dispatching now that our registrar is known
+        sipStackSharing.refreshSipListener(this);
 
         //connect to the Registrar.
         connection = ProxyConnection.create(this);
@@ -2485,6 +2487,12 @@ public class ProtocolProviderServiceSipImpl
             sipStackSharing.removeSipListener(listener);
             listener.removeRegistrationStateChangeListener(this);
         }
+        else if(event.getNewState() == RegistrationState.REGISTERED)
+        {
+            // the address of record may have changed while registering
+            sipStackSharing.refreshSipListener(
+                (ProtocolProviderServiceSipImpl) event.getProvider());
+        }
     }
 
     /**
@@ -76,12 +76,20 @@ public class SipStackSharing
     /**
      * The candidate recipients to choose from when dispatching messages
      * received from one the JAIN-SIP <tt>SipProvider</tt>-s. for thread safety
-     * issues reasons, better iterate on a copy of that set using
-     * <tt>getSipListeners()</tt>.
+     * issues reasons, dispatching uses <tt>routingIndex</tt> instead.
      */
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The index of the candidate recipients which incoming requests are
+     * dispatched with. It is rebuilt, under the lock of <tt>listeners</tt>,
+     * each time a listener is added or removed, and never modified.
+     */
+    private volatile RoutingIndex routingIndex
+        = new RoutingIndex(
+                Collections.<ProtocolProviderServiceSipImpl>emptySet());
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -161,11 +169,28 @@ public class SipStackSharing
             if(this.listeners.size() == 0)
                 startListening();
             this.listeners.add(listener);
+            // index the listener again, its registrar may have changed
+            this.routingIndex = new RoutingIndex(this.listeners);
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
     }
 
+    /**
+     * Indexes again a candidate recipient for the dispatching of new
+     * messages, once its registrar connection has been set up or changed.
+     *
+     * @param listener the candidate recipient which changed
+     */
+    public void refreshSipListener(ProtocolProviderServiceSipImpl listener)
+    {
+        synchronized(this.listeners)
+        {
+            if (this.listeners.contains(listener))
+                this.routingIndex = new RoutingIndex(this.listeners);
+        }
+    }
+
     /**
      * This <tt>listener</tt> will no longer be a candidate recipient for the
      * dispatching of new messages received from the JAIN-SIP
@@ -178,6 +203,7 @@ public class SipStackSharing
         synchronized(this.listeners)
         {
             this.listeners.remove(listener);
+            this.routingIndex = new RoutingIndex(this.listeners);
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -187,19 +213,6 @@ public class SipStackSharing
         }
     }
 
-    /**
-     * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
-     *
-     * @return a copy of the <tt>listeners</tt> set.
-     */
-    private Set<ProtocolProviderServiceSipImpl> getSipListeners()
-    {
-        synchronized(this.listeners)
-        {
-            return new HashSet<ProtocolProviderServiceSipImpl>(this.listeners);
-        }
-    }
-
     /**
      * Returns the JAIN-SIP <tt>ListeningPoint</tt> associated to the given
      * transport string.
@@ -868,16 +881,9 @@ public class SipStackSharing
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
+        RoutingIndex index = this.routingIndex;
 
-        if(currentListenersCopy.size() == 0)
+        if(index.listeners.length == 0)
         {
             logger.error("no listeners");
             return null;
@@ -885,53 +891,75 @@ public class SipStackSharing
 
         URI requestURI = request.getRequestURI();
 
-        if(requestURI.isSipURI())
+        if(!requestURI.isSipURI())
         {
-            String requestUser = ((SipURI) requestURI).getUser();
+            logger.error("Request-URI is not a SIP URI, dropping");
+            return null;
+        }
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
+        String requestUser = ((SipURI) requestURI).getUser();
 
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
+        // the perfect match: the custom param exists in the contact
+        // address (set for registrar accounts) and the account which set it
+        // is on the connection the request came from
+        String hostValue = ((SipURI) requestURI).getParameter(
+                SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+        if (hostValue != null)
+        {
+            List<ProtocolProviderServiceSipImpl> candidates
+                = index.getListeners(requestUser, hostValue);
+
+            if (candidates.size() != 0)
             {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
+                // there is no point in delivering to a provider with a non
+                // matching IP address since it will reject it anyway
+                filterByAddress(candidates, request);
+                if (candidates.size() != 0)
                 {
+                    ProtocolProviderServiceSipImpl target = candidates.get(0);
+
                     if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
+                        logger.trace("Will dispatch to \""
+                                + target.getAccountID() + "\" because "
+                                + "\" the custom param was set");
+                    return target;
                 }
             }
+        }
 
-            // the perfect match
-            // every other case is approximation
-            if(candidates.size() == 1)
-            {
-                ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
+        // check if the Request-URI username is
+        // one of ours usernames
+        List<ProtocolProviderServiceSipImpl> candidates
+            = index.getListeners(requestUser, null);
 
-                if (logger.isTraceEnabled())
-                    logger.trace("Will dispatch to \""
-                            + perfectMatch.getAccountID() + "\"");
-                return perfectMatch;
-            }
+        // Let's first narrow down candidate choice by comparing
+        // addresses and ports (no point in delivering to a provider with a
+        // non matching IP address  since they will reject it anyway).
+        filterByAddress(candidates, request);
+
+        // the perfect match
+        // every other case is approximation
+        if(candidates.size() == 1)
+        {
+            ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
+
+            if (logger.isTraceEnabled())
+                logger.trace("Will dispatch to \""
+                        + perfectMatch.getAccountID() + "\"");
+            return perfectMatch;
+        }
 
-            // more than one account match
-            if(candidates.size() > 1)
+        // more than one account match
+        if(candidates.size() > 1)
+        {
+            // check if a custom param exists in the contact address (set
+            // for registrar accounts), the index may not know it yet
+            if (hostValue != null)
             {
-                // check if a custom param exists in the contact
-                // address (set for registrar accounts)
                 for (ProtocolProviderServiceSipImpl candidate : candidates)
                 {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
-                        continue;
-                    if (hostValue.equals(candidate
-                                .getContactAddressCustomParamValue()))
+                    if (hostValue.equals(
+                            candidate.getContactAddressCustomParamValue()))
                     {
                         if (logger.isTraceEnabled())
                             logger.trace("Will dispatch to \""
@@ -940,27 +968,33 @@ public class SipStackSharing
                         return candidate;
                     }
                 }
+            }
+
+            // Past this point, our guess is not reliable. We try to find
+            // the "least worst" match based on parameters like the To field
 
-                // Past this point, our guess is not reliable. We try to find
-                // the "least worst" match based on parameters like the To field
+            // check if the To header field host part
+            // matches any of our SIP hosts
+            URI fromURI = ((FromHeader) request
+                    .getHeader(FromHeader.NAME)).getAddress().getURI();
+            URI toURI = ((ToHeader) request
+                    .getHeader(ToHeader.NAME)).getAddress().getURI();
+
+            if(fromURI.isSipURI() && toURI.isSipURI())
+            {
+                String toHost = ((SipURI) toURI).getHost();
 
-                // check if the To header field host part
-                // matches any of our SIP hosts
                 for(ProtocolProviderServiceSipImpl candidate : candidates)
                 {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
-                    SipURI ourURI = (SipURI) candidate
-                        .getOurSipAddress((SipURI) fromURI).getURI();
-                    String ourHost = ourURI.getHost();
-
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
-                    String toHost = ((SipURI) toURI).getHost();
+                    // the host of registrarless accounts depends on the
+                    // request
+                    String ourHost = index.registrarHosts.get(candidate);
+                    if (ourHost == null)
+                    {
+                        SipURI ourURI = (SipURI) candidate
+                            .getOurSipAddress((SipURI) fromURI).getURI();
+                        ourHost = ourURI.getHost();
+                    }
 
                     //logger.trace(toHost + "***" + ourHost);
                     if(toHost.equals(ourHost))
@@ -972,36 +1006,41 @@ public class SipStackSharing
                         return candidate;
                     }
                 }
-
-                // fallback on the first candidate
-                ProtocolProviderServiceSipImpl target =
-                    candidates.iterator().next();
-                logger.info("Will randomly dispatch to \""
-                        + target.getAccountID()
-                        + "\" because there is ambiguity on the username from"
-                        + " the Request-URI");
-                if (logger.isTraceEnabled())
-                    logger.trace("\n" + request);
-                return target;
             }
 
-            // fallback on any account
-            ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
-            if (logger.isDebugEnabled())
-                logger.debug("Will randomly dispatch to \"" + target
-                        .getAccountID()
-                        + "\" because the username in the Request-URI "
-                        + "is unknown or empty");
+            // fallback on the first candidate
+            ProtocolProviderServiceSipImpl target = candidates.get(0);
+            logger.info("Will randomly dispatch to \""
+                    + target.getAccountID()
+                    + "\" because there is ambiguity on the username from"
+                    + " the Request-URI");
             if (logger.isTraceEnabled())
                 logger.trace("\n" + request);
             return target;
         }
-        else
+
+        List<ProtocolProviderServiceSipImpl> currentListenersCopy
+            = new ArrayList<ProtocolProviderServiceSipImpl>(
+                    Arrays.asList(index.listeners));
+
+        filterByAddress(currentListenersCopy, request);
+
+        if(currentListenersCopy.size() == 0)
         {
-            logger.error("Request-URI is not a SIP URI, dropping");
+            logger.error("no listeners");
+            return null;
         }
-        return null;
+
+        // fallback on any account
+        ProtocolProviderServiceSipImpl target = currentListenersCopy.get(0);
+        if (logger.isDebugEnabled())
+            logger.debug("Will randomly dispatch to \"" + target
+                    .getAccountID()
+                    + "\" because the username in the Request-URI "
+                    + "is unknown or empty");
+        if (logger.isTraceEnabled())
+            logger.trace("\n" + request);
+        return target;
     }
 
     /**
@@ -1386,4 +1425,114 @@ public class SipStackSharing
                     protocolProvider.getRegistrarConnection().getTransport());
         }
     }
+
+    /**
+     * The candidate recipients indexed by the user ID of their account and
+     * by the custom param of their contact address, so that dispatching a
+     * request does not go through all of them.
+     */
+    private static class RoutingIndex
+    {
+        /**
+         * All the candidate recipients.
+         */
+        final ProtocolProviderServiceSipImpl[] listeners;
+
+        /**
+         * The candidate recipients by user ID, and by user ID and custom
+         * param of their contact address.
+         */
+        private final Map<List<String>, List<ProtocolProviderServiceSipImpl>>
+            listenersByKey
+                = new HashMap<List<String>,
+                              List<ProtocolProviderServiceSipImpl>>();
+
+        /**
+         * The host of the address of record of the candidate recipients
+         * which register with a registrar.
+         */
+        final Map<ProtocolProviderServiceSipImpl, String> registrarHosts
+            = new HashMap<ProtocolProviderServiceSipImpl, String>();
+
+        /**
+         * Indexes candidate recipients.
+         *
+         * @param listeners the candidate recipients
+         */
+        RoutingIndex(Collection<ProtocolProviderServiceSipImpl> listeners)
+        {
+            this.listeners
+                = listeners.toArray(
+                    new ProtocolProviderServiceSipImpl[listeners.size()]);
+
+            for (ProtocolProviderServiceSipImpl listener : this.listeners)
+            {
+                String userID = listener.getAccountID().getUserID();
+
+                addListener(userID, null, listener);
+
+                String paramValue
+                    = listener.getContactAddressCustomParamValue();
+                if (paramValue != null)
+                    addListener(userID, paramValue, listener);
+
+                SipRegistrarConnection src
+                    = listener.getRegistrarConnection();
+                if (src != null && !src.isRegistrarless())
+                {
+                    Address aor = src.getAddressOfRecord();
+
+                    if (aor != null && aor.getURI().isSipURI())
+                    {
+                        registrarHosts.put(
+                            listener, ((SipURI) aor.getURI()).getHost());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the candidate recipients with a user ID, and a custom
+         * param in their contact address.
+         *
+         * @param userID the user ID
+         * @param paramValue the custom param or <tt>null</tt> to return the
+         * candidate recipients with the user ID, whatever their custom param
+         * @return a new list of the candidate recipients
+         */
+        List<ProtocolProviderServiceSipImpl> getListeners(
+            String userID, String paramValue)
+        {
+            List<ProtocolProviderServiceSipImpl> indexed
+                = listenersByKey.get(Arrays.asList(userID, paramValue));
+
+            return (indexed == null)
+                ? new ArrayList<ProtocolProviderServiceSipImpl>()
+                : new ArrayList<ProtocolProviderServiceSipImpl>(indexed);
+        }
+
+        /**
+         * Adds a candidate recipient to the index.
+         *
+         * @param userID the user ID of its account
+         * @param paramValue the custom param of its contact address or
+         * <tt>null</tt>
+         * @param listener the candidate recipient
+         */
+        private void addListener(String userID,
+                                 String paramValue,
+                                 ProtocolProviderServiceSipImpl listener)
+        {
+            List<String> key = Arrays.asList(userID, paramValue);
+            List<ProtocolProviderServiceSipImpl> indexed
+                = listenersByKey.get(key);
+
+            if (indexed == null)
+            {
+                indexed = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+                listenersByKey.put(key, indexed);
+            }
+            indexed.add(listener);
+        }
+    }
 }
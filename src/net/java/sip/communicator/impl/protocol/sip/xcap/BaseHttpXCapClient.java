@@ -59,6 +59,11 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
 
+    /**
+     * HTTP If-Match header.
+     */
+    public static final String HEADER_IF_MATCH = "If-Match";
+
     /**
      * XCap-error content type.
      */
@@ -95,6 +100,12 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private CertificateService certificateVerification;
 
+    /**
+     * The documents read from and written to the server, which we send
+     * conditional requests for.
+     */
+    private final XCapDocumentCache documentCache = new XCapDocumentCache();
+
     /**
      * Creates an instance of this XCAP client.
      */
@@ -169,7 +180,8 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     }
 
     /**
-     * Gets resource from the server.
+     * Gets resource from the server. If the resource is cached, it is only
+     * transferred again if its ETag changed.
      *
      * @param uri the resource uri.
      * @return the server response.
@@ -187,8 +199,34 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             HttpGet getMethod = new HttpGet(uri);
             getMethod.setHeader("Connection", "close");
 
+            XCapDocumentCache.Document cached = documentCache.get(uri);
+            if (cached != null)
+                getMethod.setHeader(HEADER_IF_NONE_MATCH, cached.eTag);
+
             HttpResponse response = httpClient.execute(getMethod);
             XCapHttpResponse result = createResponse(response);
+            int statusCode = result.getHttpCode();
+
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Resource " + uri + " not modified");
+
+                result.setHttpCode(HttpStatus.SC_OK);
+                result.setContentType(cached.contentType);
+                result.setContent(cached.content);
+                result.setETag(cached.eTag);
+                return result;
+            }
+            else if (statusCode == HttpStatus.SC_OK)
+            {
+                documentCache.put(uri, result.getETag(),
+                    result.getContentType(), result.getContent());
+            }
+            else if (statusCode == HttpStatus.SC_NOT_FOUND)
+            {
+                documentCache.remove(uri);
+            }
             if (logger.isDebugEnabled())
             {
                 byte[] contentBytes = result.getContent();
@@ -266,7 +304,10 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
     }
 
     /**
-     * Puts the resource to the server.
+     * Puts the resource to the server. If we have read or written the
+     * resource before, it is only replaced if it did not change on the server
+     * since then. Otherwise, as the resource holds the whole local state, it
+     * replaces the one on the server anyway, once it was logged.
      *
      * @param resource the resource  to be saved on the server.
      * @return the server response.
@@ -275,6 +316,26 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
+    {
+        XCapHttpResponse result = put(resource, true);
+
+        if (result.getHttpCode() == HttpStatus.SC_PRECONDITION_FAILED)
+            result = put(resource, false);
+        return result;
+    }
+
+    /**
+     * Puts the resource to the server.
+     *
+     * @param resource the resource  to be saved on the server.
+     * @param conditional whether the resource is only replaced if it did not
+     * change on the server since we read or wrote it
+     * @return the server response.
+     * @throws IllegalStateException if the user has not been connected.
+     * @throws XCapException         if there is some error during operation.
+     */
+    private XCapHttpResponse put(XCapResource resource, boolean conditional)
+            throws XCapException
     {
         DefaultHttpClient httpClient = null;
         try
@@ -284,6 +345,12 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
             URI resourceUri = getResourceURI(resource.getId());
             HttpPut putMethod = new HttpPut(resourceUri);
             putMethod.setHeader("Connection", "close");
+
+            // don't overwrite the changes made by another client
+            XCapDocumentCache.Document cached
+                = conditional ? documentCache.get(resourceUri) : null;
+            if (cached != null)
+                putMethod.setHeader(HEADER_IF_MATCH, cached.eTag);
             StringEntity stringEntity = new StringEntity(resource.getContent());
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
@@ -299,7 +366,24 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 logger.debug(logMessage);
             }
             HttpResponse response = httpClient.execute(putMethod);
-            return createResponse(response);
+            XCapHttpResponse result = createResponse(response);
+            int statusCode = result.getHttpCode();
+
+            if (statusCode == HttpStatus.SC_OK
+                    || statusCode == HttpStatus.SC_CREATED)
+            {
+                // cache what the server got, which it now returns
+                documentCache.put(resourceUri, result.getETag(),
+                    resource.getContentType(),
+                    StreamUtils.read(stringEntity.getContent()));
+            }
+            else if (statusCode == HttpStatus.SC_PRECONDITION_FAILED)
+            {
+                logger.warn("Resource " + resourceUri
+                    + " changed on the server, replacing it anyway");
+                documentCache.remove(resourceUri);
+            }
+            return result;
         }
         catch (IOException e)
         {
@@ -345,6 +429,7 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
                 logger.debug(logMessage);
             }
             HttpResponse response = httpClient.execute(deleteMethod);
+            documentCache.remove(resourceUri);
             return createResponse(response);
         }
         catch (IOException e)
@@ -0,0 +1,289 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.net.URI;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.sip.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Keeps the XCAP documents read from or written to the server, with their
+ * ETags, in memory and in the cache directory of the user. A document is only
+ * transferred again when the server reports, in answer to a conditional GET,
+ * that its ETag changed, and a document is only replaced on the server if it
+ * did not change since we last read or wrote it.
+ * <p>
+ * Documents are identified by their URI, that is by the server and the
+ * <tt>XCapResourceId</tt> of the document.
+ */
+public class XCapDocumentCache
+{
+    /**
+     * Class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(XCapDocumentCache.class);
+
+    /**
+     * The name of the directory of the cached documents.
+     */
+    private static final String CACHE_DIR = "xcap";
+
+    /**
+     * The magic number starting cache files.
+     */
+    private static final int MAGIC = 0x58434143;
+
+    /**
+     * The documents read so far, by URI.
+     */
+    private final Map<String, Document> documents
+        = new ConcurrentHashMap<String, Document>();
+
+    /**
+     * Returns the cached version of a document.
+     *
+     * @param uri the URI of the document
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    Document get(URI uri)
+    {
+        String key = uri.toString();
+        Document document = documents.get(key);
+
+        if (document == null)
+        {
+            document = load(key);
+            if (document != null)
+                documents.put(key, document);
+        }
+        return document;
+    }
+
+    /**
+     * Caches a document, unless the server did not give it an ETag.
+     *
+     * @param uri the URI of the document
+     * @param eTag the ETag of the document or <tt>null</tt>
+     * @param contentType the content type of the document
+     * @param content the content of the document
+     */
+    void put(URI uri, String eTag, String contentType, byte[] content)
+    {
+        if (eTag == null || content == null)
+        {
+            remove(uri);
+            return;
+        }
+
+        String key = uri.toString();
+        Document document = new Document(eTag, contentType, content);
+
+        documents.put(key, document);
+        store(key, document);
+    }
+
+    /**
+     * Removes a document from the cache.
+     *
+     * @param uri the URI of the document
+     */
+    void remove(URI uri)
+    {
+        String key = uri.toString();
+
+        documents.remove(key);
+
+        File file = getFile(key);
+        if (file != null && file.exists() && !file.delete())
+            file.deleteOnExit();
+    }
+
+    /**
+     * Reads a document from the cache directory.
+     *
+     * @param key the URI of the document
+     * @return the document or <tt>null</tt> if it is not cached
+     */
+    private Document load(String key)
+    {
+        File file = getFile(key);
+        if (file == null || !file.isFile())
+            return null;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                // another document with the same hash is not ours
+                if (in.readInt() != MAGIC || !key.equals(in.readUTF()))
+                    return null;
+
+                String eTag = in.readUTF();
+                String contentType = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+
+                return new Document(
+                    eTag,
+                    (contentType.length() == 0) ? null : contentType,
+                    content);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to read cached XCAP document " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a document to the cache directory.
+     *
+     * @param key the URI of the document
+     * @param document the document
+     */
+    private synchronized void store(String key, Document document)
+    {
+        File file = getFile(key);
+        if (file == null)
+            return;
+
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeUTF(key);
+                out.writeUTF(document.eTag);
+                out.writeUTF(
+                    (document.contentType == null)
+                        ? ""
+                        : document.contentType);
+                out.writeInt(document.content.length);
+                out.write(document.content);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to cache XCAP document " + key, e);
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Returns the file of a document in the cache directory.
+     *
+     * @param key the URI of the document
+     * @return the file or <tt>null</tt> if there is no cache directory
+     */
+    private static File getFile(String key)
+    {
+        FileAccessService fileAccessService
+            = SipActivator.getFileAccessService();
+        if (fileAccessService == null)
+            return null;
+
+        try
+        {
+            File dir
+                = fileAccessService.getPrivatePersistentDirectory(
+                        CACHE_DIR, FileCategory.CACHE);
+
+            if (!dir.isDirectory() && !dir.mkdirs())
+                return null;
+            return new File(dir, hash(key));
+        }
+        catch (Exception e)
+        {
+            logger.warn("Failed to get the XCAP cache directory", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the SHA-1 hash of a string, as a file name.
+     *
+     * @param s the string
+     * @return the hexadecimal SHA-1 hash of <tt>s</tt>
+     */
+    private static String hash(String s)
+    {
+        try
+        {
+            byte[] digest
+                = MessageDigest.getInstance("SHA-1").digest(
+                        s.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+
+            for (byte b : digest)
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A cached XCAP document.
+     */
+    static class Document
+    {
+        /**
+         * The ETag the server gave the document.
+         */
+        final String eTag;
+
+        /**
+         * The content type of the document.
+         */
+        final String contentType;
+
+        /**
+         * The content of the document.
+         */
+        final byte[] content;
+
+        Document(String eTag, String contentType, byte[] content)
+        {
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.content = content;
+        }
+    }
+}
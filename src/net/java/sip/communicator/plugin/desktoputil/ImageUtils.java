@@ -371,25 +371,38 @@ public class ImageUtils
         if (imageBytes == null || !(imageBytes.length > 0))
             return null;
 
-        ImageIcon imageIcon = null;
+        // avatars are only decoded and scaled once for every shape and size
+        ImageIcon imageIcon
+            = AvatarCacheUtils.getScaledAvatarIcon(
+                    imageBytes, shape.name(), width, height);
+
+        if (imageIcon != null)
+            return imageIcon;
 
         try
         {
-            Image image;
+            Image image
+                = AvatarCacheUtils.getScaledAvatar(imageBytes, width, height);
+            boolean decoded = (image != null);
 
             // sometimes ImageIO fails, will fall back to awt Toolkit
-            try
-            {
-                image = ImageIO.read(new ByteArrayInputStream(imageBytes));
-            } catch (Exception e)
+            if (image == null)
             {
                 try
                 {
-                    image = Toolkit.getDefaultToolkit().createImage(imageBytes);
-                } catch (Exception e1)
+                    image = ImageIO.read(new ByteArrayInputStream(imageBytes));
+                } catch (Exception e)
                 {
-                    // if it fails throw the original exception
-                    throw e;
+                    try
+                    {
+                        image
+                            = Toolkit.getDefaultToolkit().createImage(
+                                    imageBytes);
+                    } catch (Exception e1)
+                    {
+                        // if it fails throw the original exception
+                        throw e;
+                    }
                 }
             }
             if(image != null)
@@ -403,6 +416,14 @@ public class ImageUtils
                     imageIcon = getScaledRoundedIcon(image, width, height);
                     break;
                 }
+
+                // the images of the awt Toolkit may not be loaded yet
+                if (decoded)
+                {
+                    AvatarCacheUtils.cacheScaledAvatarIcon(
+                            imageBytes, shape.name(), width, height,
+                            imageIcon);
+                }
             }
             else
                 if (logger.isTraceEnabled())
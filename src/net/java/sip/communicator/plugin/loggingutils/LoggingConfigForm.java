@@ -13,6 +13,7 @@ import java.util.*;
 import javax.swing.*;
 import javax.swing.event.*;
 
+import net.java.sip.communicator.impl.packetlogging.*;
 import net.java.sip.communicator.service.httputil.*;
 import net.java.sip.communicator.service.notification.*;
 import net.java.sip.communicator.util.Logger;
@@ -108,6 +109,11 @@ public class LoggingConfigForm
      */
     private JButton uploadLogsButton;
 
+    /**
+     * Save the packets of a SIP dialog button.
+     */
+    private JButton extractDialogButton;
+
     /**
      * Creates Packet Logging Config form.
      */
@@ -234,6 +240,19 @@ public class LoggingConfigForm
         c.gridy = 4;
         mainPanel.add(archiveButton, c);
 
+        // the packets are found through the indexes of our implementation
+        if(LoggingUtilsActivator.getPacketLoggingService()
+                instanceof PacketLoggingServiceImpl)
+        {
+            extractDialogButton = new JButton(resources.getI18NString(
+                "plugin.loggingutils.EXTRACT_DIALOG_BUTTON"));
+            extractDialogButton.addActionListener(this);
+
+            c.insets = new Insets(10, 0, 0, 0);
+            c.gridy = 5;
+            mainPanel.add(extractDialogButton, c);
+        }
+
         if(!StringUtils.isNullOrEmpty(getUploadLocation()))
         {
             uploadLogsButton = new JButton(
@@ -241,7 +260,7 @@ public class LoggingConfigForm
             uploadLogsButton.addActionListener(this);
 
             c.insets = new Insets(10, 0, 0, 0);
-            c.gridy = 5;
+            c.gridy = 6;
             mainPanel.add(uploadLogsButton, c);
         }
     }
@@ -352,6 +371,25 @@ public class LoggingConfigForm
                 }
             }).start();
         }
+        else if(source.equals(extractDialogButton))
+        {
+            final String callId = JOptionPane.showInputDialog(
+                this,
+                LoggingUtilsActivator.getResourceService().getI18NString(
+                    "plugin.loggingutils.EXTRACT_DIALOG_CALL_ID"));
+
+            if(StringUtils.isNullOrEmpty(callId, true))
+                return;
+
+            // don't block the UI thread
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    extractDialogPackets(callId.trim());
+                }
+            }).start();
+        }
         else if(source.equals(uploadLogsButton))
         {
             // don't block the UI thread
@@ -490,6 +528,75 @@ public class LoggingConfigForm
         }
     }
 
+    /**
+     * Asks user for a location to save the packets of a SIP dialog by poping
+     * up a file chooser, and saves the logged packets of the dialog there.
+     *
+     * @param callId the Call-ID of the SIP dialog
+     */
+    private void extractDialogPackets(String callId)
+    {
+        ResourceManagementService resources =
+                LoggingUtilsActivator.getResourceService();
+
+        SipCommFileChooser fileChooser = GenericFileDialog.create(
+            null,
+            resources.getI18NString(
+                    "plugin.loggingutils.ARCHIVE_FILECHOOSE_TITLE"),
+            SipCommFileChooser.SAVE_FILE_OPERATION);
+        fileChooser.setSelectionMode(
+                SipCommFileChooser.SAVE_FILE_OPERATION);
+
+        String defaultDir = "";
+        try
+        {
+            defaultDir = LoggingUtilsActivator.getFileAccessService()
+                .getDefaultDownloadDirectory().getAbsolutePath()
+                + File.separator;
+        }
+        catch(IOException ex){}
+        fileChooser.setStartPath(defaultDir + "sip-dialog.pcap");
+
+        File dest = fileChooser.getFileFromDialog();
+
+        if(dest == null)
+            return;
+
+        String bodyMsg;
+        try
+        {
+            int count = ((PacketLoggingServiceImpl)
+                    LoggingUtilsActivator.getPacketLoggingService())
+                .extractPackets(PacketLogFilter.forSipDialog(callId), dest);
+
+            bodyMsg = resources.getI18NString(
+                    "plugin.loggingutils.EXTRACT_MESSAGE_OK",
+                    new String[]{String.valueOf(count),
+                        dest.getAbsolutePath()});
+        }
+        catch(IOException ex)
+        {
+            logger.error("Cannot save the packets of SIP dialog " + callId,
+                ex);
+            bodyMsg = resources.getI18NString(
+                    "plugin.loggingutils.EXTRACT_MESSAGE_NOTOK",
+                    new String[]{dest.getAbsolutePath()});
+        }
+
+        NotificationService notificationService
+            = LoggingUtilsActivator.getNotificationService();
+
+        if(notificationService != null)
+        {
+            notificationService.fireNotification(
+                    LOGFILES_ARCHIVED,
+                    resources.getI18NString(
+                            "plugin.loggingutils.EXTRACT_DIALOG_BUTTON"),
+                    bodyMsg,
+                    null);
+        }
+    }
+
     /**
      * Shows a dialog with input for logs description.
      */
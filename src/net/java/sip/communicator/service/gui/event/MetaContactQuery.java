@@ -130,6 +130,33 @@ public class MetaContactQuery
         }
     }
 
+    /**
+     * Notifies the <tt>MetaContactQueryListener</tt> that a batch of
+     * <tt>MetaContact</tt>s has been received as a result of a search, with a
+     * single event. Does nothing when this query is canceled.
+     * @param metaContacts the received <tt>MetaContact</tt>s
+     */
+    public void fireQueryEvents(List<MetaContact> metaContacts)
+    {
+        if (isCanceled || metaContacts.isEmpty())
+            return;
+
+        resultCount += metaContacts.size();
+
+        MetaContactQueryEvent event
+            = new MetaContactQueryEvent(
+                    this, new ArrayList<MetaContact>(metaContacts));
+
+        List<MetaContactQueryListener> listeners;
+        synchronized (queryListeners)
+        {
+            listeners = new LinkedList<MetaContactQueryListener>(queryListeners);
+        }
+
+        for (MetaContactQueryListener listener : listeners)
+            listener.metaContactReceived(event);
+    }
+
     /**
      * Notifies the <tt>MetaContactQueryListener</tt> that a new
      * <tt>MetaGroup</tt> has been received as a result of a search.
@@ -12,7 +12,8 @@ import net.java.sip.communicator.service.contactlist.*;
 
 /**
  * The <tt>MetaContactQueryEvent</tt> is triggered each time a
- * <tt>MetaContact</tt> is received as a result of a <tt>MetaContactQuery</tt>.
+ * <tt>MetaContact</tt>, or a batch of them, is received as a result of a
+ * <tt>MetaContactQuery</tt>.
  *
  * @author Yana Stamcheva
  */
@@ -20,9 +21,9 @@ public class MetaContactQueryEvent
     extends EventObject
 {
     /**
-     * The <tt>MetaContact</tt> this event is about.
+     * The <tt>MetaContact</tt>s this event is about.
      */
-    private final MetaContact metaContact;
+    private final List<MetaContact> metaContacts;
 
     /**
      * Creates an instance of <tt>MetaGroupQueryEvent</tt> by specifying the
@@ -34,9 +35,23 @@ public class MetaContactQueryEvent
      */
     public MetaContactQueryEvent(   MetaContactQuery source,
                                     MetaContact metaContact)
+    {
+        this(source, Collections.singletonList(metaContact));
+    }
+
+    /**
+     * Creates an instance of <tt>MetaContactQueryEvent</tt> by specifying the
+     * <tt>source</tt> query this event comes from and the batch of
+     * <tt>metaContacts</tt> this event is about.
+     *
+     * @param source the <tt>MetaContactQuery</tt> that triggered this event
+     * @param metaContacts the <tt>MetaContact</tt>s this event is about
+     */
+    public MetaContactQueryEvent(   MetaContactQuery source,
+                                    List<MetaContact> metaContacts)
     {
         super(source);
-        this.metaContact = metaContact;
+        this.metaContacts = metaContacts;
     }
 
     /**
@@ -49,11 +64,21 @@ public class MetaContactQueryEvent
     }
 
     /**
-     * Returns the <tt>MetaContact</tt> this event is about.
+     * Returns the <tt>MetaContact</tt> this event is about, the first one if
+     * it is about a batch.
      * @return the <tt>MetaContact</tt> this event is about
      */
     public MetaContact getMetaContact()
     {
-        return metaContact;
+        return metaContacts.get(0);
+    }
+
+    /**
+     * Returns the <tt>MetaContact</tt>s this event is about.
+     * @return the <tt>MetaContact</tt>s this event is about
+     */
+    public List<MetaContact> getMetaContacts()
+    {
+        return metaContacts;
     }
 }
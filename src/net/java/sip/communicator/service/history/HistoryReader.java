@@ -237,4 +237,20 @@ public interface HistoryReader {
      */
     public int countRecords()
         throws UnsupportedOperationException;
+
+    /**
+     * Counts the records of the days overlapping a period, without reading
+     * the records. Records of these days outside the period are counted too.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period, exclusive, or <tt>null</tt>
+     * @return the number of records of every day which has records, by the
+     * start of the day in the default time zone
+     * @throws RuntimeException
+     *              Thrown if an exception occurs during the execution of the
+     *              query, such as internal IO error.
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(Date startDate,
+                                                      Date endDate)
+        throws RuntimeException;
 }
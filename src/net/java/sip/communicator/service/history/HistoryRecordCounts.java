@@ -0,0 +1,43 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.history;
+
+import java.util.*;
+
+/**
+ * Merges the numbers of records by day returned by
+ * {@link HistoryReader#countRecordsByDay(Date, Date)}, for the services
+ * counting the records of several histories.
+ */
+public final class HistoryRecordCounts
+{
+    /**
+     * Prevents the creation of <tt>HistoryRecordCounts</tt> instances.
+     */
+    private HistoryRecordCounts()
+    {
+    }
+
+    /**
+     * Adds numbers of records by day to other ones.
+     *
+     * @param counts the numbers of records by day to add to
+     * @param added the numbers of records by day to add
+     */
+    public static void addCounts(Map<Date, Integer> counts,
+                                 Map<Date, Integer> added)
+    {
+        for (Map.Entry<Date, Integer> day : added.entrySet())
+        {
+            Integer count = counts.get(day.getKey());
+
+            counts.put(
+                day.getKey(),
+                (count == null) ? day.getValue() : count + day.getValue());
+        }
+    }
+}
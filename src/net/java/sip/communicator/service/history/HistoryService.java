@@ -30,6 +30,26 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to select how newly created histories are stored. Value
+     * <tt>STORAGE_BACKEND_XML</tt>, the default, keeps records in XML
+     * documents, <tt>STORAGE_BACKEND_LOG</tt> keeps them in an append-only
+     * binary log and migrates existing XML histories to it when they are
+     * loaded.
+     */
+    public static final String STORAGE_BACKEND_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE_BACKEND";
+
+    /**
+     * The XML documents history storage.
+     */
+    public static final String STORAGE_BACKEND_XML = "xml";
+
+    /**
+     * The append-only binary log history storage.
+     */
+    public static final String STORAGE_BACKEND_LOG = "log";
+
     /**
      * Date format used in the XML history database.
      */
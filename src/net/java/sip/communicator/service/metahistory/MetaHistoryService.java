@@ -49,6 +49,23 @@ public interface MetaHistoryService
             Object descriptor, Date endDate)
         throws RuntimeException;
 
+    /**
+     * Counts the records by day, without reading them, so that the days with
+     * records can be listed.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param startDate Date the start of the period or <tt>null</tt>
+     * @param endDate Date the end of the period or <tt>null</tt>
+     * @return the number of records of the services we wrap of every day
+     *  overlapping the period which has records, by the start of the day
+     * @throws RuntimeException
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(String[] services,
+            Object descriptor, Date startDate, Date endDate)
+        throws RuntimeException;
+
     /**
      * Returns all the records between the given dates
      *
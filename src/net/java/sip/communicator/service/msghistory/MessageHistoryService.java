@@ -71,6 +71,22 @@ public interface MessageHistoryService
             MetaContact contact, Date endDate)
         throws RuntimeException;
 
+    /**
+     * Counts the messages exchanged by all the contacts in the supplied
+     * metacontact by day, without reading the messages.
+     *
+     * @param contact MetaContact
+     * @param startDate Date the start date of the conversations or
+     * <tt>null</tt>
+     * @param endDate Date the end date of the conversations or <tt>null</tt>
+     * @return the number of messages of every day overlapping the period
+     * which has messages, by the start of the day
+     * @throws RuntimeException
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(
+            MetaContact contact, Date startDate, Date endDate)
+        throws RuntimeException;
+
     /**
      * Returns all the messages exchanged by all the contacts
      * in the supplied metacontact between the given dates
@@ -256,6 +272,22 @@ public interface MessageHistoryService
             ChatRoom room, Date endDate)
         throws RuntimeException;
 
+    /**
+     * Counts the messages exchanged in the supplied chat room by day,
+     * without reading the messages.
+     *
+     * @param room The chat room
+     * @param startDate Date the start date of the conversations or
+     * <tt>null</tt>
+     * @param endDate Date the end date of the conversations or <tt>null</tt>
+     * @return the number of messages of every day overlapping the period
+     * which has messages, by the start of the day
+     * @throws RuntimeException
+     */
+    public SortedMap<Date, Integer> countRecordsByDay(
+            ChatRoom room, Date startDate, Date endDate)
+        throws RuntimeException;
+
     /**
      * Returns all the messages exchanged
      * in the supplied chat room between the given dates
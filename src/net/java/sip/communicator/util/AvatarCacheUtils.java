@@ -6,7 +6,16 @@
  */
 package net.java.sip.communicator.util;
 
+import java.awt.*;
+import java.awt.image.*;
 import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.imageio.*;
+import javax.swing.*;
 
 import org.jitsi.service.fileaccess.*;
 
@@ -15,6 +24,14 @@ import net.java.sip.communicator.service.protocol.*;
 /**
  * The <tt>AvatarCacheUtils</tt> allows to cache an avatar or to obtain the
  * image of a cached avatar by specifying a contact or an account address.
+ * <p>
+ * Avatar images are stored once, in files named after their SHA-1 hash, and
+ * the file of a contact or an account only refers to the hash of its avatar.
+ * An avatar shared by several contacts, even of different accounts, is thus
+ * stored and read once. The images read and the scaled icons made from
+ * them are kept in memory, up to a limit, so that showing avatars again does
+ * not read, decode or scale them again. The images no file refers to anymore
+ * are removed in the background the first time the cache is used.
  *
  * @author Yana Stamcheva
  */
@@ -32,6 +49,85 @@ public class AvatarCacheUtils
      */
     private final static String AVATAR_DIR = "avatarcache";
 
+    /**
+     * The name of the directory, in {@link #AVATAR_DIR}, of the avatar images
+     * named after their SHA-1 hash.
+     */
+    private final static String IMAGE_DIR = "images";
+
+    /**
+     * The start of the content of the file of a contact or an account, which
+     * is followed by the SHA-1 hash of its avatar.
+     */
+    private final static String REFERENCE_PREFIX = "sha1:";
+
+    /**
+     * The number of characters of a SHA-1 hash in hexadecimal.
+     */
+    private final static int SHA1_LENGTH = 40;
+
+    /**
+     * The hash of the avatar of a contact or an account which has none.
+     */
+    private final static String NO_AVATAR = "";
+
+    /**
+     * The maximum number of bytes of avatar images kept in memory.
+     */
+    private final static long MAX_CACHED_IMAGE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The maximum number of bytes of scaled avatar icons kept in memory.
+     */
+    private final static long MAX_CACHED_SCALED_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Whether the removal of the avatar images no file refers to has been
+     * started.
+     */
+    private final static AtomicBoolean imagesSweepStarted
+        = new AtomicBoolean(false);
+
+    /**
+     * The SHA-1 hashes of the avatars of the contacts and accounts, by the
+     * path of their file.
+     */
+    private final static Map<String, String> hashesByPath
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The avatar images read or stored, by SHA-1 hash.
+     */
+    private final static LruCache<byte[]> images
+        = new LruCache<byte[]>(MAX_CACHED_IMAGE_BYTES)
+        {
+            @Override
+            long sizeOf(byte[] image)
+            {
+                return image.length;
+            }
+        };
+
+    /**
+     * The scaled avatar icons, by SHA-1 hash, shape and size.
+     */
+    private final static LruCache<ImageIcon> scaledIcons
+        = new LruCache<ImageIcon>(MAX_CACHED_SCALED_BYTES)
+        {
+            @Override
+            long sizeOf(ImageIcon icon)
+            {
+                return 4L * icon.getIconWidth() * icon.getIconHeight();
+            }
+        };
+
+    /**
+     * The SHA-1 hashes of the avatar images given or returned, so that they
+     * are not computed every time an avatar is scaled.
+     */
+    private final static Map<byte[], String> hashesByImage
+        = Collections.synchronizedMap(new WeakHashMap<byte[], String>());
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -61,7 +157,7 @@ public class AvatarCacheUtils
     public static byte[] getCachedAvatar(
                                     ProtocolProviderService protocolProvider)
     {
-        String avatarPath = getCachedAvatarPath(protocolProvider);
+        String avatarPath = getAvatarReferencePath(protocolProvider);
 
         byte[] cachedAvatar = getLocallyStoredAvatar(avatarPath);
 
@@ -86,7 +182,7 @@ public class AvatarCacheUtils
      */
     public static byte[] getCachedAvatar(Contact protocolContact)
     {
-        String avatarPath = getCachedAvatarPath(protocolContact);
+        String avatarPath = getAvatarReferencePath(protocolContact);
 
         byte[] cachedAvatar = getLocallyStoredAvatar(avatarPath);
 
@@ -100,6 +196,139 @@ public class AvatarCacheUtils
         return null;
     }
 
+    /**
+     * Returns the bytes of the avatar image with the given SHA-1 hash, if it
+     * is stored for any contact or account. Protocols advertising the hash of
+     * the avatars of contacts use it to not retrieve an avatar they already
+     * have again.
+     *
+     * @param protocolContact the contact which avatar image we're looking for
+     * @param sha1 the SHA-1 hash of the avatar image, in hexadecimal
+     * @return the bytes of the avatar image with the given hash, or
+     * <tt>null</tt> if none is stored
+     */
+    public static byte[] getCachedAvatar(Contact protocolContact, String sha1)
+    {
+        sha1 = sha1.toLowerCase(Locale.ENGLISH);
+
+        // the hash comes from the network and names a file
+        if (!isSha1(sha1))
+            return null;
+
+        byte[] cachedAvatar = getImage(sha1);
+
+        if ((cachedAvatar != null) && (cachedAvatar.length > 0))
+            return cachedAvatar;
+
+        return null;
+    }
+
+    /**
+     * Returns an instance of an avatar image scaled to fit within the given
+     * bounds while keeping its aspect ratio.
+     *
+     * @param avatarBytes the bytes of the avatar image
+     * @param width the maximum width of the scaled image
+     * @param height the maximum height of the scaled image
+     * @return the scaled image or <tt>null</tt> if the avatar image cannot be
+     * decoded
+     */
+    public static BufferedImage getScaledAvatar(byte[] avatarBytes,
+                                                int width,
+                                                int height)
+    {
+        if ((avatarBytes == null) || (avatarBytes.length == 0)
+                || (width <= 0) || (height <= 0))
+            return null;
+
+        return scale(avatarBytes, width, height);
+    }
+
+    /**
+     * Returns the icon made from an avatar image for the given shape and
+     * size, if it is kept in memory, so that an avatar shown again is
+     * neither decoded nor scaled again.
+     *
+     * @param avatarBytes the bytes of the avatar image
+     * @param shape the name of the shape of the icon
+     * @param width the maximum width of the icon
+     * @param height the maximum height of the icon
+     * @return the icon or <tt>null</tt> if it is not kept
+     */
+    public static ImageIcon getScaledAvatarIcon(byte[] avatarBytes,
+                                                String shape,
+                                                int width,
+                                                int height)
+    {
+        if ((avatarBytes == null) || (avatarBytes.length == 0))
+            return null;
+
+        return scaledIcons.get(
+                getScaledIconKey(avatarBytes, shape, width, height));
+    }
+
+    /**
+     * Keeps in memory the icon made from an avatar image for the given shape
+     * and size.
+     *
+     * @param avatarBytes the bytes of the avatar image
+     * @param shape the name of the shape of the icon
+     * @param width the maximum width of the icon
+     * @param height the maximum height of the icon
+     * @param icon the icon
+     */
+    public static void cacheScaledAvatarIcon(byte[] avatarBytes,
+                                             String shape,
+                                             int width,
+                                             int height,
+                                             ImageIcon icon)
+    {
+        if ((avatarBytes == null) || (avatarBytes.length == 0)
+                || (icon == null))
+            return;
+
+        scaledIcons.put(
+                getScaledIconKey(avatarBytes, shape, width, height),
+                icon);
+    }
+
+    /**
+     * Returns the key of the icon made from an avatar image for the given
+     * shape and size.
+     *
+     * @param avatarBytes the bytes of the avatar image
+     * @param shape the name of the shape of the icon
+     * @param width the maximum width of the icon
+     * @param height the maximum height of the icon
+     * @return the key of the icon
+     */
+    private static String getScaledIconKey(byte[] avatarBytes,
+                                           String shape,
+                                           int width,
+                                           int height)
+    {
+        return getHash(avatarBytes) + '/' + shape + '/' + width + 'x' + height;
+    }
+
+    /**
+     * Returns the SHA-1 hash of an avatar image, computing it only once for
+     * the same array.
+     *
+     * @param avatarBytes the avatar image bytes
+     * @return the SHA-1 hash of <tt>avatarBytes</tt> in hexadecimal
+     */
+    private static String getHash(byte[] avatarBytes)
+    {
+        String sha1 = hashesByImage.get(avatarBytes);
+
+        if (sha1 == null)
+        {
+            sha1 = sha1(avatarBytes);
+            hashesByImage.put(avatarBytes, sha1);
+        }
+        return sha1;
+    }
+
     /**
      * Returns the bytes of the avatar image stored for the account
      * corresponding to the given protocol provider.
@@ -112,13 +341,7 @@ public class AvatarCacheUtils
     public static String getCachedAvatarPath(
                                     ProtocolProviderService protocolProvider)
     {
-        return AVATAR_DIR
-            + File.separator
-            + escapeSpecialCharacters(
-                    protocolProvider.getAccountID().getAccountUniqueID())
-            + File.separator
-            + escapeSpecialCharacters(
-                    protocolProvider.getAccountID().getAccountUniqueID());
+        return getImagePath(getAvatarReferencePath(protocolProvider));
     }
 
     /**
@@ -132,14 +355,7 @@ public class AvatarCacheUtils
      */
     public static String getCachedAvatarPath(Contact protocolContact)
     {
-        return AVATAR_DIR
-            + File.separator
-            + escapeSpecialCharacters(
-                protocolContact
-                    .getProtocolProvider()
-                        .getAccountID().getAccountUniqueID())
-            + File.separator
-            + escapeSpecialCharacters(protocolContact.getAddress());
+        return getImagePath(getAvatarReferencePath(protocolContact));
     }
 
     /**
@@ -154,6 +370,58 @@ public class AvatarCacheUtils
     public static String getCachedAvatarPath(
                                     ProtocolProviderService protocolProvider,
                                     String contactAddress)
+    {
+        return
+            getImagePath(
+                    getAvatarReferencePath(protocolProvider, contactAddress));
+    }
+
+    /**
+     * Returns the path of the file referring to the avatar of the account
+     * corresponding to the given protocol provider.
+     *
+     * @param protocolProvider the <tt>ProtocolProviderService</tt> of the
+     * account
+     * @return the path of the file referring to the avatar of the account
+     */
+    private static String getAvatarReferencePath(
+                                    ProtocolProviderService protocolProvider)
+    {
+        return AVATAR_DIR
+            + File.separator
+            + escapeSpecialCharacters(
+                    protocolProvider.getAccountID().getAccountUniqueID())
+            + File.separator
+            + escapeSpecialCharacters(
+                    protocolProvider.getAccountID().getAccountUniqueID());
+    }
+
+    /**
+     * Returns the path of the file referring to the avatar of the given
+     * contact.
+     *
+     * @param protocolContact the contact
+     * @return the path of the file referring to the avatar of the contact
+     */
+    private static String getAvatarReferencePath(Contact protocolContact)
+    {
+        return getAvatarReferencePath(
+                protocolContact.getProtocolProvider(),
+                protocolContact.getAddress());
+    }
+
+    /**
+     * Returns the path of the file referring to the avatar of a contact of
+     * the account corresponding to the given protocol provider.
+     *
+     * @param protocolProvider the <tt>ProtocolProviderService</tt> of the
+     * account
+     * @param contactAddress the address of the contact
+     * @return the path of the file referring to the avatar of the contact
+     */
+    private static String getAvatarReferencePath(
+                                    ProtocolProviderService protocolProvider,
+                                    String contactAddress)
     {
         return AVATAR_DIR
             + File.separator
@@ -163,6 +431,32 @@ public class AvatarCacheUtils
             + escapeSpecialCharacters(contactAddress);
     }
 
+    /**
+     * Returns the path of the avatar image referred to by the file of a
+     * contact or an account.
+     *
+     * @param avatarPath the path of the file of the contact or account
+     * @return the path of the avatar image, or <tt>avatarPath</tt> if there is
+     * no avatar image
+     */
+    private static String getImagePath(String avatarPath)
+    {
+        String sha1 = getAvatarHash(avatarPath);
+
+        return (sha1 == NO_AVATAR) ? avatarPath : getImageFilePath(sha1);
+    }
+
+    /**
+     * Returns the path of the file of an avatar image.
+     *
+     * @param sha1 the SHA-1 hash of the avatar image
+     * @return the path of the file of the avatar image
+     */
+    private static String getImageFilePath(String sha1)
+    {
+        return AVATAR_DIR + File.separator + IMAGE_DIR + File.separator + sha1;
+    }
+
     /**
      * Returns the avatar image corresponding to the given avatar path.
      *
@@ -171,45 +465,452 @@ public class AvatarCacheUtils
      */
     private static byte[] getLocallyStoredAvatar(String avatarPath)
     {
-        try
+        String sha1 = getAvatarHash(avatarPath);
+
+        return (sha1 == NO_AVATAR) ? null : getImage(sha1);
+    }
+
+    /**
+     * Returns the SHA-1 hash of the avatar referred to by the file of a
+     * contact or an account, reading the file only the first time.
+     *
+     * @param avatarPath the path of the file of the contact or account
+     * @return the SHA-1 hash of the avatar or {@link #NO_AVATAR}
+     */
+    private static String getAvatarHash(String avatarPath)
+    {
+        startSweepingImages();
+
+        String sha1 = hashesByPath.get(avatarPath);
+
+        if (sha1 == null)
+            sha1 = readAvatarReference(avatarPath);
+        return sha1;
+    }
+
+    /**
+     * Reads the file of a contact or an account and remembers the hash it
+     * refers to. A file holding the avatar image itself, as stored by
+     * previous versions, is replaced by a reference to the image.
+     *
+     * @param avatarPath the path of the file of the contact or account
+     * @return the SHA-1 hash of the avatar or {@link #NO_AVATAR}
+     */
+    private static synchronized String readAvatarReference(String avatarPath)
+    {
+        byte[] bs = readFile(avatarPath);
+        String sha1;
+
+        if ((bs == null) || (bs.length == 0))
         {
-            File avatarFile
-                = UtilActivator
-                    .getFileAccessService()
-                        .getPrivatePersistentFile(avatarPath,
-                            FileCategory.CACHE);
+            sha1 = NO_AVATAR;
+        }
+        else
+        {
+            sha1 = parseAvatarReference(bs);
 
-            if(avatarFile.exists())
+            if (sha1 == null)
+            {
+                sha1 = sha1(bs);
+                images.put(sha1, bs);
+                hashesByImage.put(bs, sha1);
+                storeImage(sha1, bs);
+                writeFile(avatarPath, (REFERENCE_PREFIX + sha1).getBytes());
+            }
+            else if (getImage(sha1) == null)
             {
-                FileInputStream avatarInputStream
-                    = new FileInputStream(avatarFile);
-                byte[] bs = null;
+                // the image has been removed from the cache
+                sha1 = NO_AVATAR;
+            }
+        }
 
-                try
-                {
-                    int available = avatarInputStream.available();
+        // remembered while locked, so that removeUnreferencedImages() sees it
+        hashesByPath.put(avatarPath, sha1);
+        return sha1;
+    }
+
+    /**
+     * Parses the content of a file referring to an avatar image.
+     *
+     * @param bs the content of the file
+     * @return the SHA-1 hash of the avatar image, or <tt>null</tt> if the
+     * file does not refer to an avatar image
+     */
+    private static String parseAvatarReference(byte[] bs)
+    {
+        if (bs.length != REFERENCE_PREFIX.length() + SHA1_LENGTH)
+            return null;
+
+        for (int i = 0; i < REFERENCE_PREFIX.length(); i++)
+        {
+            if (bs[i] != REFERENCE_PREFIX.charAt(i))
+                return null;
+        }
+
+        char[] sha1 = new char[SHA1_LENGTH];
+
+        for (int i = 0; i < SHA1_LENGTH; i++)
+            sha1[i] = (char) bs[REFERENCE_PREFIX.length() + i];
+
+        String s = new String(sha1);
+
+        return isSha1(s) ? s : null;
+    }
+
+    /**
+     * Returns an avatar image, from memory if it is there.
+     *
+     * @param sha1 the SHA-1 hash of the avatar image
+     * @return the bytes of the avatar image or <tt>null</tt> if it is not
+     * stored
+     */
+    private static byte[] getImage(String sha1)
+    {
+        byte[] image = images.get(sha1);
+
+        if (image == null)
+        {
+            image = readFile(getImageFilePath(sha1));
+            if (image != null)
+            {
+                images.put(sha1, image);
+                hashesByImage.put(image, sha1);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Starts removing, in the background, the avatar images no file refers
+     * to, the first time it is called.
+     */
+    private static void startSweepingImages()
+    {
+        if (!imagesSweepStarted.compareAndSet(false, true))
+            return;
 
-                    if (available > 0)
-                    {
-                        bs = new byte[available];
-                        avatarInputStream.read(bs);
-                    }
+        Thread thread
+            = new Thread(AvatarCacheUtils.class.getName())
+            {
+                @Override
+                public void run()
+                {
+                    removeUnreferencedImages();
                 }
-                finally
+            };
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Removes the avatar images the files of the contacts and accounts do
+     * not refer to anymore. The files are read without holding the lock of
+     * the class, and the images referred to in the meantime are known by
+     * {@link #hashesByPath} when the images are removed.
+     */
+    static void removeUnreferencedImages()
+    {
+        File avatarDir = getFile(AVATAR_DIR);
+
+        if ((avatarDir == null) || !avatarDir.isDirectory())
+            return;
+
+        File imageDir = new File(avatarDir, IMAGE_DIR);
+        File[] imageFiles = imageDir.listFiles();
+        File[] accountDirs = avatarDir.listFiles();
+
+        if ((imageFiles == null) || (imageFiles.length == 0)
+                || (accountDirs == null))
+            return;
+
+        Set<String> referencedHashes = new HashSet<String>();
+
+        for (File accountDir : accountDirs)
+        {
+            File[] files
+                = accountDir.equals(imageDir) ? null : accountDir.listFiles();
+
+            if (files == null)
+                continue;
+
+            for (File file : files)
+            {
+                // skips the avatar images stored by previous versions
+                if (file.length() != REFERENCE_PREFIX.length() + SHA1_LENGTH)
+                    continue;
+
+                byte[] bs = readFile(file);
+                String sha1 = (bs == null) ? null : parseAvatarReference(bs);
+
+                if (sha1 != null)
+                    referencedHashes.add(sha1);
+            }
+        }
+
+        int removed = 0;
+
+        synchronized (AvatarCacheUtils.class)
+        {
+            referencedHashes.addAll(hashesByPath.values());
+
+            for (File imageFile : imageFiles)
+            {
+                if (!referencedHashes.contains(imageFile.getName())
+                        && imageFile.delete())
                 {
-                    avatarInputStream.close();
+                    removed++;
                 }
-                if (bs != null)
-                    return bs;
             }
         }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Removed " + removed + " unreferenced avatar images.");
+    }
+
+    /**
+     * Stores an avatar image, unless it is already stored.
+     *
+     * @param sha1 the SHA-1 hash of the avatar image
+     * @param avatarBytes the avatar image bytes
+     */
+    private static void storeImage(String sha1, byte[] avatarBytes)
+    {
+        File imageFile = getFile(getImageFilePath(sha1));
+
+        if ((imageFile != null) && !imageFile.exists())
+            writeFile(getImageFilePath(sha1), avatarBytes);
+    }
+
+    /**
+     * Returns the file at the given path in the cache directory.
+     *
+     * @param path the path of the file
+     * @return the file or <tt>null</tt> if there is no cache directory
+     */
+    private static File getFile(String path)
+    {
+        try
+        {
+            return
+                UtilActivator
+                    .getFileAccessService()
+                        .getPrivatePersistentFile(path, FileCategory.CACHE);
+        }
         catch (Exception ex)
         {
-            logger.error(
-                    "Could not read avatar image from file " + avatarPath,
-                    ex);
+            logger.error("Could not get avatar file " + path, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Reads a file of the cache directory.
+     *
+     * @param path the path of the file
+     * @return the content of the file or <tt>null</tt> if it does not exist
+     */
+    private static byte[] readFile(String path)
+    {
+        File file = getFile(path);
+
+        return (file == null) ? null : readFile(file);
+    }
+
+    /**
+     * Reads a file.
+     *
+     * @param file the file
+     * @return the content of the file or <tt>null</tt> if it does not exist
+     */
+    private static byte[] readFile(File file)
+    {
+        if (!file.isFile())
+            return null;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(new FileInputStream(file));
+
+            try
+            {
+                byte[] bs = new byte[(int) file.length()];
+
+                in.readFully(bs);
+                return bs;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read avatar image from file " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a file of the cache directory, replacing it only once it is
+     * entirely written.
+     *
+     * @param path the path of the file
+     * @param bs the content of the file
+     */
+    private static void writeFile(String path, byte[] bs)
+    {
+        File file = getFile(path);
+
+        if (file == null)
+            return;
+
+        File dir = file.getParentFile();
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        try
+        {
+            if (!dir.exists() && !dir.mkdirs())
+            {
+                throw
+                    new IOException(
+                            "Failed to create directory: "
+                                + dir.getAbsolutePath());
+            }
+
+            FileOutputStream fileOutStream = new FileOutputStream(tmpFile);
+
+            try
+            {
+                fileOutStream.write(bs);
+                fileOutStream.flush();
+            }
+            finally
+            {
+                fileOutStream.close();
+            }
+
+            if (!tmpFile.renameTo(file)
+                    && !(file.delete() && tmpFile.renameTo(file)))
+            {
+                throw new IOException("Cannot rename " + tmpFile);
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to store avatar. file=" + file, ex);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Decodes an avatar image and scales it to fit within the given bounds
+     * while keeping its aspect ratio.
+     *
+     * @param avatarBytes the bytes of the avatar image
+     * @param width the maximum width of the scaled image
+     * @param height the maximum height of the scaled image
+     * @return the scaled image or <tt>null</tt> if the avatar image cannot be
+     * decoded
+     */
+    private static BufferedImage scale(byte[] avatarBytes,
+                                       int width,
+                                       int height)
+    {
+        BufferedImage image;
+
+        try
+        {
+            image = ImageIO.read(new ByteArrayInputStream(avatarBytes));
+        }
+        catch (Exception ex)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Could not decode avatar image.", ex);
+            return null;
+        }
+        if (image == null)
+            return null;
+
+        double ratio
+            = Math.min(
+                    (double) width / image.getWidth(),
+                    (double) height / image.getHeight());
+        int scaledWidth
+            = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+        int scaledHeight
+            = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+        BufferedImage scaledImage
+            = new BufferedImage(
+                    scaledWidth, scaledHeight,
+                    BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaledImage.createGraphics();
+
+        try
+        {
+            g.setRenderingHint(
+                    RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(
+                    RenderingHints.KEY_RENDERING,
+                    RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, scaledWidth, scaledHeight, null);
+        }
+        finally
+        {
+            g.dispose();
+        }
+        return scaledImage;
+    }
+
+    /**
+     * Determines whether a string is a SHA-1 hash in lower case hexadecimal.
+     *
+     * @param s the string
+     * @return <tt>true</tt> if <tt>s</tt> is a SHA-1 hash
+     */
+    private static boolean isSha1(String s)
+    {
+        if (s.length() != SHA1_LENGTH)
+            return false;
+
+        for (int i = 0; i < SHA1_LENGTH; i++)
+        {
+            char c = s.charAt(i);
+
+            if (!(((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f'))))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the SHA-1 hash of an avatar image.
+     *
+     * @param avatarBytes the avatar image bytes
+     * @return the SHA-1 hash of <tt>avatarBytes</tt> in hexadecimal
+     */
+    private static String sha1(byte[] avatarBytes)
+    {
+        try
+        {
+            byte[] digest
+                = MessageDigest.getInstance("SHA-1").digest(avatarBytes);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+
+            for (byte b : digest)
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
         }
-        return null;
     }
 
     /**
@@ -241,17 +942,7 @@ public class AvatarCacheUtils
     public static void cacheAvatar( Contact protoContact,
                                     byte[] avatarBytes)
     {
-        String avatarDirPath
-            = AVATAR_DIR
-                + File.separator
-                + escapeSpecialCharacters(
-                        protoContact
-                            .getProtocolProvider()
-                                .getAccountID().getAccountUniqueID());
-        String avatarFileName
-            = escapeSpecialCharacters(protoContact.getAddress());
-
-        cacheAvatar(avatarDirPath, avatarFileName, avatarBytes);
+        cacheAvatar(getAvatarReferencePath(protoContact), avatarBytes);
     }
     /**
      * Stores avatar bytes for the account corresponding to the given
@@ -264,83 +955,113 @@ public class AvatarCacheUtils
     public static void cacheAvatar( ProtocolProviderService protocolProvider,
                                     byte[] avatarBytes)
     {
-        String accountUID
-            = protocolProvider.getAccountID().getAccountUniqueID();
+        cacheAvatar(getAvatarReferencePath(protocolProvider), avatarBytes);
+    }
 
-        String avatarDirPath
-            = AVATAR_DIR
-                + File.separator
-                + escapeSpecialCharacters(accountUID);
+    /**
+     * Stores avatar bytes for the contact or account of the given file,
+     * storing the image unless it is already stored, and making the file
+     * refer to it.
+     *
+     * @param avatarPath the path of the file of the contact or account
+     * @param avatarBytes the avatar image bytes
+     */
+    private static synchronized void cacheAvatar(String avatarPath,
+                                                 byte[] avatarBytes)
+    {
+        if ((avatarBytes == null) || (avatarBytes.length == 0))
+        {
+            if (getAvatarHash(avatarPath) != NO_AVATAR)
+            {
+                writeFile(avatarPath, new byte[0]);
+                hashesByPath.put(avatarPath, NO_AVATAR);
+            }
+            return;
+        }
 
-        String avatarFileName = escapeSpecialCharacters(accountUID);
+        String sha1 = getHash(avatarBytes);
 
-        cacheAvatar(avatarDirPath, avatarFileName, avatarBytes);
+        if (images.get(sha1) == null)
+            images.put(sha1, avatarBytes);
+
+        if (!sha1.equals(getAvatarHash(avatarPath)))
+        {
+            storeImage(sha1, avatarBytes);
+            writeFile(avatarPath, (REFERENCE_PREFIX + sha1).getBytes());
+            hashesByPath.put(avatarPath, sha1);
+        }
     }
 
     /**
-     * Stores avatar bytes for the account corresponding to the given
-     * <tt>protocolProvider</tt>.
+     * A map of values, by key, which keeps the least recently used values
+     * up to a total size.
      *
-     * @param avatarDirPath the directory in which the file will be stored
-     * @param avatarFileName the name of the avatar file
-     * @param avatarBytes the avatar image bytes
+     * @param <V> the type of the values
      */
-    private static void cacheAvatar(String avatarDirPath,
-                                    String avatarFileName,
-                                    byte[] avatarBytes)
+    private static abstract class LruCache<V>
     {
-        File avatarDir = null;
-        File avatarFile = null;
-        try
+        /**
+         * The values, from the least recently used one.
+         */
+        private final LinkedHashMap<String, V> entries
+            = new LinkedHashMap<String, V>(16, 0.75f, true);
+
+        /**
+         * The maximum total size of the values.
+         */
+        private final long maxSize;
+
+        /**
+         * The total size of the values.
+         */
+        private long size = 0;
+
+        LruCache(long maxSize)
         {
-            FileAccessService fileAccessService
-                = UtilActivator.getFileAccessService();
-
-            avatarDir
-                = fileAccessService.getPrivatePersistentDirectory(
-                        avatarDirPath, FileCategory.CACHE);
-            avatarFile
-                = fileAccessService.getPrivatePersistentFile(
-                        new File(avatarDirPath, avatarFileName).toString(),
-                        FileCategory.CACHE);
-
-            if(!avatarFile.exists())
-            {
-                if (!avatarDir.exists() && !avatarDir.mkdirs())
-                {
-                    throw
-                        new IOException(
-                                "Failed to create directory: "
-                                    + avatarDir.getAbsolutePath());
-                }
+            this.maxSize = maxSize;
+        }
 
-                if (!avatarFile.createNewFile())
-                {
-                    throw
-                        new IOException(
-                                "Failed to create file"
-                                    + avatarFile.getAbsolutePath());
-                }
-            }
+        /**
+         * Returns a value.
+         *
+         * @param key the key of the value
+         * @return the value or <tt>null</tt> if it is not kept
+         */
+        synchronized V get(String key)
+        {
+            return entries.get(key);
+        }
 
-            FileOutputStream fileOutStream = new FileOutputStream(avatarFile);
+        /**
+         * Keeps a value, and forgets the least recently used ones if the
+         * values get too large.
+         *
+         * @param key the key of the value
+         * @param value the value
+         */
+        synchronized void put(String key, V value)
+        {
+            V oldValue = entries.put(key, value);
 
-            try
-            {
-                fileOutStream.write(avatarBytes);
-                fileOutStream.flush();
-            }
-            finally
+            if (oldValue != null)
+                size -= sizeOf(oldValue);
+            size += sizeOf(value);
+
+            Iterator<V> it = entries.values().iterator();
+
+            while ((size > maxSize) && (entries.size() > 1))
             {
-                fileOutStream.close();
+                size -= sizeOf(it.next());
+                it.remove();
             }
         }
-        catch (Exception ex)
-        {
-            logger.error(
-                    "Failed to store avatar. dir =" + avatarDir
-                        + " file=" + avatarFile,
-                    ex);
-        }
+
+        /**
+         * Returns the size of a value.
+         *
+         * @param value the value
+         * @return the size of the value
+         */
+        abstract long sizeOf(V value);
     }
 }
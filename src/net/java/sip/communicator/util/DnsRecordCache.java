@@ -0,0 +1,547 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.service.dns.*;
+
+import org.xbill.DNS.*;
+
+/**
+ * Caches the answers of the DNS lookups made through {@link NetworkUtils}, in
+ * front of the default resolver of dnsjava.
+ * <p>
+ * Answers are kept for the smallest TTL of their records, and names or types
+ * which do not exist are kept for {@link #NEGATIVE_TTL}. An answer used after
+ * {@link #REFRESH_AHEAD_RATIO} of its TTL is refreshed in the background, so
+ * that names in use are not resolved again while a caller waits. Concurrent
+ * lookups of the same name and type share a single query, which keeps the
+ * re-registration of many accounts after a network change from sending the
+ * same queries over and over.
+ */
+public class DnsRecordCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DnsRecordCache</tt> class for
+     * logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DnsRecordCache.class);
+
+    /**
+     * The time, in milliseconds, names or types which do not exist are
+     * cached.
+     */
+    public static final long NEGATIVE_TTL = 60 * 1000;
+
+    /**
+     * The longest time, in milliseconds, an answer is cached.
+     */
+    public static final long MAX_TTL = 60 * 60 * 1000;
+
+    /**
+     * The part of the TTL of an answer after which using it refreshes it in
+     * the background.
+     */
+    public static final double REFRESH_AHEAD_RATIO = 0.8;
+
+    /**
+     * The number of threads refreshing and prefetching answers.
+     */
+    private static final int BACKGROUND_THREADS = 4;
+
+    /**
+     * The cached answers.
+     */
+    private final ConcurrentMap<Key, Entry> entries
+        = new ConcurrentHashMap<Key, Entry>();
+
+    /**
+     * The queries being made, shared by the lookups of the same name and
+     * type.
+     */
+    private final ConcurrentMap<Key, Query> pendingQueries
+        = new ConcurrentHashMap<Key, Query>();
+
+    /**
+     * The number of times the cache was emptied, so that the queries made
+     * before do not fill it again.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * The executor refreshing and prefetching answers.
+     */
+    private final ThreadPoolExecutor backgroundExecutor;
+
+    /**
+     * The number of lookups answered from the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of lookups answered from the cache that the name or type
+     * does not exist.
+     */
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    /**
+     * The number of lookups which were not in the cache.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of lookups which waited for the query of another one.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * The number of answers refreshed or prefetched in the background.
+     */
+    private final AtomicLong backgroundQueries = new AtomicLong();
+
+    /**
+     * The number of queries sent.
+     */
+    private final AtomicLong queries = new AtomicLong();
+
+    /**
+     * The sum of the times, in milliseconds, the queries took.
+     */
+    private final AtomicLong totalQueryTime = new AtomicLong();
+
+    /**
+     * The longest time, in milliseconds, a query took.
+     */
+    private final AtomicLong maxQueryTime = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     */
+    DnsRecordCache()
+    {
+        backgroundExecutor = new ThreadPoolExecutor(
+            BACKGROUND_THREADS, BACKGROUND_THREADS,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "DnsRecordCache refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        backgroundExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Looks up the records of a name, from the cache if they are there.
+     *
+     * @param domain the name, as given to {@link Lookup}
+     * @param type the type of the records
+     * @return the records, or <tt>null</tt> if there are none
+     * @throws TextParseException if <tt>domain</tt> is not a valid domain name
+     * @throws DnssecRuntimeException when a DNSSEC validation failure occurred
+     */
+    Record[] lookup(String domain, int type)
+        throws TextParseException
+    {
+        Key key = new Key(domain, type);
+        Entry entry = entries.get(key);
+
+        if (entry != null)
+        {
+            long now = System.currentTimeMillis();
+
+            if (now < entry.expires)
+            {
+                if (entry.records == null)
+                    negativeHits.incrementAndGet();
+                else
+                    hits.incrementAndGet();
+
+                if (now >= entry.refreshAt && !entry.refreshing)
+                {
+                    entry.refreshing = true;
+                    query(key, true);
+                }
+                return entry.records;
+            }
+            entries.remove(key);
+        }
+
+        misses.incrementAndGet();
+        return query(key, false).records;
+    }
+
+    /**
+     * Starts looking up the records of a name in the background, unless they
+     * are cached or being looked up.
+     *
+     * @param domain the name, as given to {@link Lookup}
+     * @param type the type of the records
+     */
+    void prefetch(String domain, int type)
+    {
+        Key key = new Key(domain, type);
+        Entry entry = entries.get(key);
+
+        if ((entry == null || System.currentTimeMillis() >= entry.expires)
+                && !pendingQueries.containsKey(key))
+        {
+            try
+            {
+                query(key, true);
+            }
+            catch (TextParseException e)
+            {
+                // the actual lookup will report it
+            }
+        }
+    }
+
+    /**
+     * Empties the cache, for instance because the DNS servers changed. The
+     * answers of the queries being made are not cached, and later lookups do
+     * not wait for them.
+     */
+    public void clear()
+    {
+        generation.incrementAndGet();
+        pendingQueries.clear();
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache, including the
+     * ones answered that the name or type does not exist.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount()
+    {
+        return hits.get() + negativeHits.get();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache that the name or
+     * type does not exist.
+     *
+     * @return the number of negative cache hits
+     */
+    public long getNegativeHitCount()
+    {
+        return negativeHits.get();
+    }
+
+    /**
+     * Returns the number of lookups which were not in the cache.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of lookups which waited for the query of another
+     * one instead of making their own.
+     *
+     * @return the number of coalesced lookups
+     */
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the average time the queries took.
+     *
+     * @return the average time, in milliseconds, of the queries
+     */
+    public long getAverageQueryTime()
+    {
+        long count = queries.get();
+
+        return (count == 0) ? 0 : totalQueryTime.get() / count;
+    }
+
+    /**
+     * Returns the longest time a query took.
+     *
+     * @return the longest time, in milliseconds, a query took
+     */
+    public long getMaxQueryTime()
+    {
+        return maxQueryTime.get();
+    }
+
+    /**
+     * Returns a description of the statistics of the cache.
+     *
+     * @return the description of the statistics of the cache
+     */
+    public String getStatistics()
+    {
+        return "entries=" + entries.size()
+            + " hits=" + hits.get()
+            + " negativeHits=" + negativeHits.get()
+            + " misses=" + misses.get()
+            + " coalesced=" + coalesced.get()
+            + " background=" + backgroundQueries.get()
+            + " queries=" + queries.get()
+            + " avgQueryTime=" + getAverageQueryTime() + "ms"
+            + " maxQueryTime=" + getMaxQueryTime() + "ms";
+    }
+
+    /**
+     * Queries the records of a name, or joins the query already being made,
+     * and caches the answer.
+     *
+     * @param key the name and type of the records
+     * @param background <tt>true</tt> to make the query on the background
+     * executor and return right away
+     * @return the answer or <tt>null</tt> if <tt>background</tt>
+     * @throws TextParseException if the name is not a valid domain name
+     * @throws DnssecRuntimeException when a DNSSEC validation failure occurred
+     */
+    private Entry query(final Key key, boolean background)
+        throws TextParseException
+    {
+        Query task = new Query(key);
+        Query pending = pendingQueries.putIfAbsent(key, task);
+
+        if (pending == null)
+        {
+            if (background)
+            {
+                backgroundQueries.incrementAndGet();
+                backgroundExecutor.execute(task);
+                return null;
+            }
+            task.run();
+        }
+        else
+        {
+            if (background)
+                return null;
+            coalesced.incrementAndGet();
+            task = pending;
+        }
+
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return Entry.EMPTY;
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof TextParseException)
+                throw (TextParseException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Queries the records of a name with dnsjava and caches the answer.
+     *
+     * @param key the name and type of the records
+     * @param queryGeneration the generation of the cache when the query was
+     * started
+     * @return the answer
+     * @throws TextParseException if the name is not a valid domain name
+     * @throws DnssecRuntimeException when a DNSSEC validation failure occurred
+     */
+    private Entry doQuery(Key key, int queryGeneration)
+        throws TextParseException
+    {
+        Lookup lookup = NetworkUtils.createLookup(key.domain, key.type);
+        long start = System.currentTimeMillis();
+        Record[] records = lookup.run();
+        long now = System.currentTimeMillis();
+        long time = now - start;
+
+        queries.incrementAndGet();
+        totalQueryTime.addAndGet(time);
+        long max = maxQueryTime.get();
+        while (time > max && !maxQueryTime.compareAndSet(max, time))
+            max = maxQueryTime.get();
+
+        long ttl;
+        switch (lookup.getResult())
+        {
+        case Lookup.SUCCESSFUL:
+            ttl = MAX_TTL;
+            for (Record record : records)
+                ttl = Math.min(ttl, record.getTTL() * 1000);
+            break;
+        case Lookup.HOST_NOT_FOUND:
+        case Lookup.TYPE_NOT_FOUND:
+            ttl = NEGATIVE_TTL;
+            break;
+        default:
+            // the servers could not be reached, try again next time
+            ttl = 0;
+            if (logger.isDebugEnabled())
+                logger.debug("Lookup of " + key + " failed: "
+                    + lookup.getErrorString());
+        }
+
+        Entry entry = new Entry(records, now, ttl);
+
+        if (ttl > 0)
+        {
+            // not cached if the cache was emptied while querying
+            if (generation.get() == queryGeneration)
+            {
+                entries.put(key, entry);
+                // clear() may have emptied the cache before the put
+                if (generation.get() != queryGeneration)
+                    entries.remove(key, entry);
+            }
+        }
+        else
+        {
+            // keep a cached answer until it expires, refresh it next time
+            Entry cached = entries.get(key);
+            if (cached != null)
+                cached.refreshing = false;
+        }
+        return entry;
+    }
+
+    /**
+     * A query of the records of a name, which the lookups of the same name
+     * and type wait for.
+     */
+    private class Query
+        extends FutureTask<Entry>
+    {
+        /**
+         * The name and type of the queried records.
+         */
+        private final Key key;
+
+        Query(final Key key)
+        {
+            this(key, generation.get());
+        }
+
+        private Query(final Key key, final int queryGeneration)
+        {
+            super(new Callable<Entry>()
+                    {
+                        public Entry call()
+                            throws TextParseException
+                        {
+                            return doQuery(key, queryGeneration);
+                        }
+                    });
+            this.key = key;
+        }
+
+        @Override
+        protected void done()
+        {
+            pendingQueries.remove(key, this);
+        }
+    }
+
+    /**
+     * The name and type of the records of a lookup.
+     */
+    private static class Key
+    {
+        final String domain;
+
+        final int type;
+
+        Key(String domain, int type)
+        {
+            this.domain = domain.toLowerCase(Locale.ENGLISH);
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key key = (Key) obj;
+
+            return type == key.type && domain.equals(key.domain);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * domain.hashCode() + type;
+        }
+
+        @Override
+        public String toString()
+        {
+            return domain + "/" + Type.string(type);
+        }
+    }
+
+    /**
+     * A cached answer.
+     */
+    private static class Entry
+    {
+        /**
+         * The answer of an interrupted lookup.
+         */
+        static final Entry EMPTY = new Entry(null, 0, 0);
+
+        /**
+         * The records or <tt>null</tt> if there are none.
+         */
+        final Record[] records;
+
+        /**
+         * The time, in milliseconds, the answer expires.
+         */
+        final long expires;
+
+        /**
+         * The time, in milliseconds, from which using the answer refreshes
+         * it.
+         */
+        final long refreshAt;
+
+        /**
+         * Whether the answer is being refreshed.
+         */
+        volatile boolean refreshing = false;
+
+        Entry(Record[] records, long time, long ttl)
+        {
+            this.records = records;
+            this.expires = time + ttl;
+            this.refreshAt = time + (long) (ttl * REFRESH_AHEAD_RATIO);
+        }
+    }
+}
@@ -91,6 +91,23 @@ public class NetworkUtils
      */
     public static final boolean PDEFAULT_DNS_ALWAYS_ABSOLUTE = false;
 
+    /**
+     * The name of the boolean property that defines whether the answers of
+     * the DNS lookups are cached by {@link DnsRecordCache}.
+     */
+    public static final String PNAME_DNS_RECORD_CACHE_ENABLED
+        = "net.java.sip.communicator.util.dns.RECORD_CACHE_ENABLED";
+
+    /**
+     * Default value of {@link #PNAME_DNS_RECORD_CACHE_ENABLED}.
+     */
+    public static final boolean PDEFAULT_DNS_RECORD_CACHE_ENABLED = true;
+
+    /**
+     * The cache of the answers of the DNS lookups.
+     */
+    private static final DnsRecordCache dnsRecordCache = new DnsRecordCache();
+
     /**
      * A random number generator.
      */
@@ -569,14 +586,7 @@ public class NetworkUtils
         Record[] records = null;
         try
         {
-            Lookup lookup = createLookup(domain, Type.SRV);
-            // Disables the DNS cache: i.e. useful when testing DNS
-            // connectivity.
-            if(!useDNSCache)
-            {
-                lookup.setCache(new Cache());
-            }
-            records = lookup.run();
+            records = lookup(domain, Type.SRV, useDNSCache);
         }
         catch (TextParseException tpe)
         {
@@ -605,6 +615,16 @@ public class NetworkUtils
         // Sort the SRV RRs by priority (lower is preferred) and weight.
         sortSrvRecord(srvRecords);
 
+        // the targets are likely to be resolved next
+        if (useDNSCache && isDnsRecordCacheEnabled())
+        {
+            for (SRVRecord srvRecord : srvRecords)
+            {
+                dnsRecordCache.prefetch(srvRecord.getTarget(), Type.A);
+                dnsRecordCache.prefetch(srvRecord.getTarget(), Type.AAAA);
+            }
+        }
+
         if (logger.isTraceEnabled())
         {
             logger.trace("DNS SRV query for domain " + domain + " returned:");
@@ -721,8 +741,7 @@ public class NetworkUtils
         Record[] records = null;
         try
         {
-            Lookup lookup = createLookup(domain, Type.NAPTR);
-            records = lookup.run();
+            records = lookup(domain, Type.NAPTR, true);
         }
         catch (TextParseException tpe)
         {
@@ -761,6 +780,10 @@ public class NetworkUtils
                 recVals[i][2] = replacement;
             }
             recVals[i][3] = "" + r.getPreference();
+
+            // the SRV records are likely to be looked up next
+            if (isDnsRecordCacheEnabled())
+                dnsRecordCache.prefetch(recVals[i][2], Type.SRV);
         }
 
         // sort the SRV RRs by RR value (lower is preferred)
@@ -941,23 +964,22 @@ public class NetworkUtils
         List<InetSocketAddress> addresses = new LinkedList<InetSocketAddress>();
         boolean v6lookup = Boolean.getBoolean("java.net.preferIPv6Addresses");
 
+        // look both types up at once
+        if (isDnsRecordCacheEnabled())
+            dnsRecordCache.prefetch(domain, v6lookup ? Type.A : Type.AAAA);
+
         for(int i = 0; i < 2; i++)
         {
-            Lookup lookup;
+            Record[] records = null;
             try
             {
-                lookup = createLookup(domain, v6lookup ? Type.AAAA : Type.A);
+                records = lookup(domain, v6lookup ? Type.AAAA : Type.A, true);
             }
             catch (TextParseException tpe)
             {
                 logger.error("Failed to parse domain <" + domain + ">", tpe);
                 throw new ParseException(tpe.getMessage(), 0);
             }
-            Record[] records = null;
-            try
-            {
-                records = lookup.run();
-            }
             catch(DnssecRuntimeException e)
             {
                 throw new DnssecException(e);
@@ -1032,8 +1054,7 @@ public class NetworkUtils
             //for starters we'd like to make sure that it works well enough
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
-            Lookup lookup = createLookup(domain, Type.A);
-            records = lookup.run();
+            records = lookup(domain, Type.A, true);
         }
         catch (TextParseException tpe)
         {
@@ -1106,8 +1127,7 @@ public class NetworkUtils
             //for starters we'd like to make sure that it works well enough
             //with SRV and NAPTR queries. We may then also adopt it for As
             //and AAAAs once it proves to be reliable (posted on: 2010-11-24)
-            Lookup lookup = createLookup(domain, Type.AAAA);
-            records = lookup.run();
+            records = lookup(domain, Type.AAAA, true);
         }
         catch (TextParseException tpe)
         {
@@ -1251,6 +1271,59 @@ public class NetworkUtils
         return false;
     }
 
+    /**
+     * Looks up the records of the specified type for a domain, through the
+     * {@link DnsRecordCache} if it is enabled.
+     *
+     * @param domain the domain we will be resolving
+     * @param type the type of the record we will be trying to obtain.
+     * @param useDNSCache whether the answer may come from a DNS cache
+     *
+     * @return the records or <tt>null</tt> if there are none.
+     *
+     * @throws TextParseException if <tt>domain</tt> is not a valid domain name.
+     * @throws DnssecRuntimeException when a DNSSEC validation failure occurred.
+     */
+    private static Record[] lookup(String domain, int type, boolean useDNSCache)
+        throws TextParseException
+    {
+        if (useDNSCache && isDnsRecordCacheEnabled())
+            return dnsRecordCache.lookup(domain, type);
+
+        Lookup lookup = createLookup(domain, type);
+        // Disables the DNS cache: i.e. useful when testing DNS
+        // connectivity.
+        if(!useDNSCache)
+        {
+            lookup.setCache(new Cache());
+        }
+        return lookup.run();
+    }
+
+    /**
+     * Determines whether the answers of the DNS lookups are cached by
+     * {@link DnsRecordCache}.
+     *
+     * @return <tt>true</tt> if the DNS record cache is enabled.
+     */
+    private static boolean isDnsRecordCacheEnabled()
+    {
+        return UtilActivator.getConfigurationService().getBoolean(
+            PNAME_DNS_RECORD_CACHE_ENABLED,
+            PDEFAULT_DNS_RECORD_CACHE_ENABLED);
+    }
+
+    /**
+     * Returns the cache of the answers of the DNS lookups, which reports its
+     * hit, miss and latency statistics.
+     *
+     * @return the cache of the answers of the DNS lookups.
+     */
+    public static DnsRecordCache getDnsRecordCache()
+    {
+        return dnsRecordCache;
+    }
+
     /**
      * Creates a new {@link Lookup} instance.
      *
@@ -1261,7 +1334,7 @@ public class NetworkUtils
      *
      * @throws TextParseException if <tt>domain</tt> is not a valid domain name.
      */
-    private static Lookup createLookup(String domain, int type)
+    static Lookup createLookup(String domain, int type)
         throws TextParseException
     {
         // make domain name absolute if requested
@@ -1460,11 +1533,13 @@ public class NetworkUtils
     }
 
     /**
-     * Clears the default DNS cache.
+     * Clears the default DNS cache and the cache of the answers of the DNS
+     * lookups.
      */
     public static void clearDefaultDNSCache()
     {
         Cache defaultCache = Lookup.getDefaultCache(DClass.IN);
         defaultCache.clearCache();
+        dnsRecordCache.clear();
     }
 }
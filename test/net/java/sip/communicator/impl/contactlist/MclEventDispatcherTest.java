@@ -0,0 +1,190 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+
+import org.easymock.*;
+
+public class MclEventDispatcherTest
+    extends TestCase
+{
+    private final List<EventObject> delivered = new ArrayList<EventObject>();
+
+    private MetaContactListListener[] listeners;
+    private MclEventDispatcher dispatcher;
+    private MetaContactImpl metaContact;
+    private MockContact contact;
+    private MetaContactGroup group;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.listeners = new MetaContactListListener[]
+        {
+            new MetaContactListAdapter()
+            {
+                @Override
+                public void metaContactRenamed(MetaContactRenamedEvent evt)
+                {
+                    record(evt);
+                }
+
+                @Override
+                public void protoContactModified(ProtoContactEvent evt)
+                {
+                    record(evt);
+                }
+
+                @Override
+                public void childContactsReordered(MetaContactGroupEvent evt)
+                {
+                    record(evt);
+                }
+
+                @Override
+                public void metaContactAvatarUpdated(
+                    MetaContactAvatarUpdateEvent evt)
+                {
+                    record(evt);
+                }
+            }
+        };
+        // long enough for the events of a test to be coalesced
+        this.dispatcher = new MclEventDispatcher(500);
+        this.metaContact = new MetaContactImpl();
+        this.contact = new MockContact("alice", new MockProvider("me"));
+        this.group = EasyMock.createNiceMock(MetaContactGroup.class);
+        EasyMock.replay(this.group);
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        this.dispatcher.stop(5000);
+        super.tearDown();
+    }
+
+    private void record(EventObject evt)
+    {
+        synchronized (this.delivered)
+        {
+            this.delivered.add(evt);
+        }
+    }
+
+    private List<EventObject> getDelivered()
+    {
+        synchronized (this.delivered)
+        {
+            return new ArrayList<EventObject>(this.delivered);
+        }
+    }
+
+    private EventObject fireRenamed(String name)
+    {
+        EventObject evt
+            = new MetaContactRenamedEvent(this.metaContact, null, name);
+        this.dispatcher.dispatch(evt, this.listeners);
+        return evt;
+    }
+
+    private EventObject fireModified()
+    {
+        EventObject evt = new ProtoContactEvent(this.contact,
+            ProtoContactEvent.PROTO_CONTACT_MODIFIED, null, this.metaContact);
+        this.dispatcher.dispatch(evt, this.listeners);
+        return evt;
+    }
+
+    private EventObject fireReordered()
+    {
+        EventObject evt = new MetaContactGroupEvent(this.group, null, null,
+            MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+        this.dispatcher.dispatch(evt, this.listeners);
+        return evt;
+    }
+
+    private EventObject fireAvatarUpdated()
+    {
+        EventObject evt = new MetaContactAvatarUpdateEvent(this.metaContact,
+            null, new byte[] { 1 });
+        this.dispatcher.dispatch(evt, this.listeners);
+        return evt;
+    }
+
+    //@Test
+    public void testOrder() throws Exception
+    {
+        List<EventObject> fired = new ArrayList<EventObject>();
+
+        this.dispatcher.start();
+        for (int i = 0; i < 10; i++)
+        {
+            fired.add(fireRenamed("name" + i));
+        }
+        this.dispatcher.stop(5000);
+
+        Assert.assertEquals(fired, getDelivered());
+        Assert.assertEquals(10, this.dispatcher.getDispatchedCount());
+        Assert.assertEquals(0, this.dispatcher.getQueueSize());
+    }
+
+    //@Test
+    public void testCoalescing() throws Exception
+    {
+        fireModified();
+        fireReordered();
+        fireAvatarUpdated();
+        EventObject modified = fireModified();
+        EventObject reordered = fireReordered();
+        EventObject avatarUpdated = fireAvatarUpdated();
+
+        this.dispatcher.start();
+        this.dispatcher.stop(5000);
+
+        Assert.assertEquals(
+            Arrays.asList(modified, reordered, avatarUpdated),
+            getDelivered());
+        Assert.assertEquals(3, this.dispatcher.getCoalescedCount());
+        Assert.assertEquals(3, this.dispatcher.getMaxQueueSize());
+    }
+
+    //@Test
+    public void testNoCoalescingAcrossOtherEvents() throws Exception
+    {
+        EventObject first = fireModified();
+        EventObject renamed = fireRenamed("bob");
+        EventObject second = fireModified();
+
+        this.dispatcher.start();
+        this.dispatcher.stop(5000);
+
+        Assert.assertEquals(Arrays.asList(first, renamed, second),
+            getDelivered());
+        Assert.assertEquals(0, this.dispatcher.getCoalescedCount());
+    }
+
+    //@Test
+    public void testDispatchAfterStop() throws Exception
+    {
+        this.dispatcher.start();
+        this.dispatcher.stop(5000);
+
+        EventObject evt = fireModified();
+
+        // delivered on the firing thread
+        Assert.assertEquals(Collections.singletonList(evt), getDelivered());
+    }
+}
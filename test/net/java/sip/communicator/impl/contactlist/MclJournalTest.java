@@ -0,0 +1,176 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class MclJournalTest
+    extends TestCase
+{
+    private File file;
+    private MclJournal journal;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.file = File.createTempFile("contactlist", ".journal");
+        this.journal = new MclJournal(this.file);
+        this.journal.reset(7);
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        this.file.delete();
+        super.tearDown();
+    }
+
+    private static MclJournal.Record store(String metaUID, String xml)
+    {
+        return new MclJournal.Record(
+            MclJournal.OP_STORE, metaUID, "root", xml);
+    }
+
+    private static MclJournal.Record remove(String metaUID)
+    {
+        return new MclJournal.Record(
+            MclJournal.OP_REMOVE, metaUID, null, null);
+    }
+
+    private static List<String> metaUIDs(List<MclJournal.Record> records)
+    {
+        List<String> result = new ArrayList<String>();
+        for (MclJournal.Record record : records)
+        {
+            result.add(record.metaUID);
+        }
+        return result;
+    }
+
+    private void cut(long length) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try
+        {
+            raf.setLength(length);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    //@Test
+    public void testReadRecords() throws Exception
+    {
+        this.journal.append(Arrays.asList(store("a", "<contact/>"),
+            remove("b")));
+
+        List<MclJournal.Record> records = this.journal.read(7);
+        Assert.assertEquals(Arrays.asList("a", "b"), metaUIDs(records));
+        Assert.assertEquals(MclJournal.OP_STORE, records.get(0).op);
+        Assert.assertEquals("root", records.get(0).groupUID);
+        Assert.assertEquals("<contact/>", records.get(0).xml);
+        Assert.assertEquals(MclJournal.OP_REMOVE, records.get(1).op);
+    }
+
+    //@Test
+    public void testOtherGeneration() throws Exception
+    {
+        this.journal.append(Arrays.asList(store("a", "<contact/>")));
+
+        // emptied, so that a snapshot starts a new journal
+        Assert.assertTrue(this.journal.read(6).isEmpty());
+        Assert.assertEquals(0, this.journal.length());
+    }
+
+    //@Test
+    public void testCorruptLength() throws Exception
+    {
+        this.journal.append(Arrays.asList(remove("a")));
+        long length = this.journal.length();
+        this.journal.append(Arrays.asList(store("b", "<contact/>")));
+
+        // the length of the XML of the second record
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try
+        {
+            raf.seek(this.journal.length() - "<contact/>".length() - 4);
+            raf.writeInt(-2);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        Assert.assertEquals(Arrays.asList("a"),
+            metaUIDs(this.journal.read(7)));
+        Assert.assertEquals(length, this.journal.length());
+    }
+
+    //@Test
+    public void testTornTail() throws Exception
+    {
+        this.journal.append(Arrays.asList(store("a", "<contact/>")));
+        long length = this.journal.length();
+        this.journal.append(Arrays.asList(store("b", "<contact/>")));
+        cut(this.journal.length() - 3);
+
+        Assert.assertEquals(Arrays.asList("a"),
+            metaUIDs(this.journal.read(7)));
+        Assert.assertEquals(length, this.journal.length());
+
+        // the records appended after the torn one are read again
+        this.journal.append(Arrays.asList(remove("c")));
+        Assert.assertEquals(Arrays.asList("a", "c"),
+            metaUIDs(this.journal.read(7)));
+    }
+
+    //@Test
+    public void testTornFirstRecord() throws Exception
+    {
+        long length = this.journal.length();
+        this.journal.append(Arrays.asList(store("a", "<contact/>")));
+        cut(length + 4);
+
+        Assert.assertTrue(this.journal.read(7).isEmpty());
+        Assert.assertEquals(length, this.journal.length());
+    }
+
+    //@Test
+    public void testTornHeader() throws Exception
+    {
+        cut(6);
+
+        Assert.assertTrue(this.journal.read(7).isEmpty());
+        Assert.assertEquals(0, this.journal.length());
+    }
+
+    //@Test
+    public void testInvalidOperation() throws Exception
+    {
+        this.journal.append(Arrays.asList(remove("a")));
+        long length = this.journal.length();
+        FileOutputStream out = new FileOutputStream(this.file, true);
+        try
+        {
+            out.write(new byte[] { 9, 0, 0 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        Assert.assertEquals(Arrays.asList("a"),
+            metaUIDs(this.journal.read(7)));
+        Assert.assertEquals(length, this.journal.length());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.impl.protocol.mock.*;
+
+import org.easymock.*;
+
+public class MetaContactIndexTest
+    extends TestCase
+{
+    private MetaContactListServiceImpl mclMock;
+    private MetaContactGroupImpl root;
+    private MetaContactIndex index;
+    private MockProvider provider;
+    private MockProvider otherProvider;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.mclMock
+            = EasyMock.createNiceMock(MetaContactListServiceImpl.class);
+        this.root = new MetaContactGroupImpl(this.mclMock, "root", "root");
+        this.index = new MetaContactIndex(this.root);
+        EasyMock.expect(this.mclMock.getContactIndex())
+            .andStubReturn(this.index);
+        EasyMock.replay(this.mclMock);
+        this.provider = new MockProvider("me");
+        this.otherProvider = new MockProvider("other");
+    }
+
+    private MetaContactImpl createMetaContact(
+        MetaContactGroupImpl group, MockContact... contacts)
+    {
+        MetaContactImpl metaContact = new MetaContactImpl();
+        for (MockContact contact : contacts)
+        {
+            metaContact.addProtoContact(contact);
+        }
+        group.addMetaContact(metaContact);
+        return metaContact;
+    }
+
+    private String accountID(MockProvider provider)
+    {
+        return provider.getAccountID().getAccountUniqueID();
+    }
+
+    //@Test
+    public void testFindMetaContact()
+    {
+        MockContact alice = new MockContact("alice", this.provider);
+        MockContact bob = new MockContact("bob", this.provider);
+        MetaContactImpl metaContact = createMetaContact(this.root, alice);
+        createMetaContact(this.root, bob);
+
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByContact(alice));
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByContact("alice",
+                accountID(this.provider)));
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByMetaUID(metaContact.getMetaUID()));
+        Assert.assertNull(this.index.findMetaContactByMetaUID("unknown"));
+    }
+
+    //@Test
+    public void testSameAddressOfAnotherAccount()
+    {
+        MockContact alice = new MockContact("alice", this.provider);
+        MockContact otherAlice = new MockContact("alice", this.otherProvider);
+        MetaContactImpl metaContact = createMetaContact(this.root, alice);
+
+        Assert.assertNull(this.index.findMetaContactByContact(otherAlice));
+        Assert.assertNull(this.index.findMetaContactByContact("alice",
+            accountID(this.otherProvider)));
+
+        MetaContactImpl otherMetaContact
+            = createMetaContact(this.root, otherAlice);
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByContact(alice));
+        Assert.assertSame(otherMetaContact,
+            this.index.findMetaContactByContact(otherAlice));
+    }
+
+    //@Test
+    public void testProtoContactAddedAndRemoved()
+    {
+        MockContact alice = new MockContact("alice", this.provider);
+        MockContact aliceWork = new MockContact("alice.work", this.provider);
+        MetaContactImpl metaContact = createMetaContact(this.root, alice);
+
+        metaContact.addProtoContact(aliceWork);
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByContact(aliceWork));
+
+        metaContact.removeProtoContact(aliceWork);
+        Assert.assertNull(this.index.findMetaContactByContact(aliceWork));
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByContact(alice));
+    }
+
+    //@Test
+    public void testMovedProtoContact()
+    {
+        MockContact alice = new MockContact("alice", this.provider);
+        MetaContactImpl metaContact = createMetaContact(this.root, alice);
+        MetaContactImpl newMetaContact = createMetaContact(this.root);
+
+        // added to the new meta contact before it is removed from the old one
+        newMetaContact.addProtoContact(alice);
+        metaContact.removeProtoContact(alice);
+        Assert.assertSame(newMetaContact,
+            this.index.findMetaContactByContact(alice));
+    }
+
+    //@Test
+    public void testMetaContactRemoved()
+    {
+        MockContact alice = new MockContact("alice", this.provider);
+        MetaContactImpl metaContact = createMetaContact(this.root, alice);
+
+        this.root.removeMetaContact(metaContact);
+        Assert.assertNull(this.index.findMetaContactByContact(alice));
+        Assert.assertNull(
+            this.index.findMetaContactByMetaUID(metaContact.getMetaUID()));
+    }
+
+    //@Test
+    public void testSharedContactKey()
+    {
+        MockContact alice = new MockContact("alice", this.provider);
+        MockContact aliceCopy = new MockContact("alice", this.provider);
+        MetaContactImpl metaContact = createMetaContact(this.root, alice);
+        MetaContactImpl otherMetaContact
+            = createMetaContact(this.root, aliceCopy);
+        Assert.assertSame(otherMetaContact,
+            this.index.findMetaContactByContact(alice));
+
+        // removing the meta contact indexed last keeps the other one
+        this.root.removeMetaContact(otherMetaContact);
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByContact(alice));
+        Assert.assertSame(metaContact,
+            this.index.findMetaContactByContact("alice",
+                accountID(this.provider)));
+
+        this.root.addMetaContact(otherMetaContact);
+        Assert.assertSame(otherMetaContact,
+            this.index.findMetaContactByContact(alice));
+
+        // and removing the first one keeps the one indexed last
+        this.root.removeMetaContact(metaContact);
+        Assert.assertSame(otherMetaContact,
+            this.index.findMetaContactByContact(alice));
+
+        this.root.removeMetaContact(otherMetaContact);
+        Assert.assertNull(this.index.findMetaContactByContact(alice));
+    }
+
+    //@Test
+    public void testSubgroups()
+    {
+        MetaContactGroupImpl group
+            = new MetaContactGroupImpl(this.mclMock, "group", "group");
+        MetaContactGroupImpl subgroup
+            = new MetaContactGroupImpl(this.mclMock, "subgroup", "subgroup");
+        MockContact alice = new MockContact("alice", this.provider);
+        MockContact bob = new MockContact("bob", this.provider);
+        MetaContactImpl aliceMeta = createMetaContact(group, alice);
+        MetaContactImpl bobMeta = createMetaContact(subgroup, bob);
+        group.addSubgroup(subgroup);
+
+        // the group is not in the list yet
+        Assert.assertNull(this.index.findMetaContactByContact(alice));
+
+        this.root.addSubgroup(group);
+        Assert.assertSame(aliceMeta,
+            this.index.findMetaContactByContact(alice));
+        Assert.assertSame(bobMeta, this.index.findMetaContactByContact(bob));
+
+        this.root.removeSubgroup(group);
+        Assert.assertNull(this.index.findMetaContactByContact(alice));
+        Assert.assertNull(this.index.findMetaContactByContact(bob));
+    }
+}
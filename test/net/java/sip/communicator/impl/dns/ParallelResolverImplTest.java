@@ -0,0 +1,125 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.service.dns.*;
+
+import org.xbill.DNS.*;
+
+public class ParallelResolverImplTest
+    extends TestCase
+{
+    /**
+     * The number of queries keeping all the workers of the default resolver
+     * busy.
+     */
+    private static final int STALLED_QUERIES = 8;
+
+    private Semaphore primaryPermits;
+    private ParallelResolverImpl resolver;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.primaryPermits = new Semaphore(0);
+
+        final Semaphore permits = this.primaryPermits;
+        ExtendedResolver primary = new ExtendedResolver(new Resolver[0])
+        {
+            @Override
+            public Message send(Message query)
+                throws IOException
+            {
+                permits.acquireUninterruptibly();
+                return answer(query);
+            }
+        };
+        ExtendedResolver backup = new ExtendedResolver(new Resolver[0])
+        {
+            @Override
+            public Message send(Message query)
+                throws IOException
+            {
+                return answer(query);
+            }
+        };
+        this.resolver = new ParallelResolverImpl(primary, backup);
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        this.primaryPermits.release(STALLED_QUERIES + 1);
+        super.tearDown();
+    }
+
+    private static Message answer(Message query)
+        throws IOException
+    {
+        Record question = query.getQuestion();
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.addRecord(question, Section.QUESTION);
+        response.addRecord(new ARecord(question.getName(), DClass.IN, 300,
+            InetAddress.getByAddress(new byte[] { (byte) 192, 0, 2, 1 })),
+            Section.ANSWER);
+        return response;
+    }
+
+    private static Message query(String name)
+        throws TextParseException
+    {
+        return Message.newQuery(
+            Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+    }
+
+    //@Test
+    public void testQueuedQuerySentToBackupInRedundantMode() throws Exception
+    {
+        final CountDownLatch stalled = new CountDownLatch(STALLED_QUERIES);
+        final CountDownLatch queued = new CountDownLatch(1);
+        ResolverListener listener = new ResolverListener()
+        {
+            public void receiveMessage(Object id, Message m)
+            {
+                if (m.getQuestion().getName().toString().startsWith("queued"))
+                    queued.countDown();
+                else
+                    stalled.countDown();
+            }
+
+            public void handleException(Object id, Exception e)
+            {
+            }
+        };
+
+        for (int i = 0; i < STALLED_QUERIES; i++)
+        {
+            this.resolver.sendAsync(query("stalled" + i + ".example.com."),
+                listener);
+        }
+        // waits for a worker, before we enter redundant mode
+        this.resolver.sendAsync(query("queued.example.com."), listener);
+
+        // the patience of the stalled queries runs out and the backup
+        // resolvers answer them
+        Assert.assertTrue(stalled.await(
+            CustomResolver.DNS_PATIENCE + 5000, TimeUnit.MILLISECONDS));
+
+        // frees a worker, while the default resolver stays stalled for the
+        // queued query
+        this.primaryPermits.release();
+        Assert.assertTrue(queued.await(5000, TimeUnit.MILLISECONDS));
+    }
+}
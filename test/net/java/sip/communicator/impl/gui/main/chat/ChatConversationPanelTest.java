@@ -10,6 +10,9 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.regex.*;
 
+import javax.swing.text.*;
+import javax.swing.text.html.*;
+
 import junit.framework.*;
 
 /**
@@ -108,4 +111,75 @@ public class ChatConversationPanelTest
             Assert.assertEquals(entry.getValue().length, index);
         }
     }
+
+    /**
+     * Test that the HTML of messages removed from the document is the same
+     * once inserted back in a document and removed again.
+     */
+    public void testEvictedHtmlRoundTrip() throws Exception
+    {
+        String message = "<table width=\"100%\" name=\"table\""
+            + " id=\"messageHeader\"><tr><td align=\"left\">"
+            + "<h2 id=\"dateHeader\" date='2014-01-02 03:04:05'>"
+            + "<a href=\"user@example.com\">User</a></h2></td></tr></table>"
+            + "<div id='message1' name = 'user@example.com'"
+            + " date=\"2014-01-02 03:04:05\" original_message = 'a &lt;b&gt;"
+            + "bold&lt;/b&gt; &amp; &quot;quoted&quot; message'>"
+            + "a <b>bold</b> &amp; \"quoted\" message</div>";
+
+        HTMLDocument document = createDocument(message);
+        String html = getMessagesHTML(document);
+        Assert.assertNotNull(html);
+        HTMLDocument copy = createDocument(html);
+
+        Assert.assertEquals(html, getMessagesHTML(copy));
+        Assert.assertEquals(
+            document.getText(0, document.getLength()),
+            copy.getText(0, copy.getLength()));
+
+        AttributeSet attributes
+            = document.getElement("message1").getAttributes();
+        AttributeSet copyAttributes
+            = copy.getElement("message1").getAttributes();
+        for (String name : new String[] {
+                ChatHtmlUtils.NAME_ATTRIBUTE,
+                ChatHtmlUtils.DATE_ATTRIBUTE,
+                ChatHtmlUtils.ORIGINAL_MESSAGE_ATTRIBUTE })
+        {
+            Assert.assertEquals(name, attributes.getAttribute(name),
+                copyAttributes.getAttribute(name));
+        }
+    }
+
+    /**
+     * Creates a document holding the given messages.
+     *
+     * @param html the HTML of the messages
+     * @return the document
+     */
+    private static HTMLDocument createDocument(String html) throws Exception
+    {
+        HTMLDocument document
+            = (HTMLDocument) new HTMLEditorKit().createDefaultDocument();
+        Element root = document.getDefaultRootElement();
+
+        document.insertBeforeEnd(
+            root.getElement(root.getElementCount() - 1), html);
+        return document;
+    }
+
+    /**
+     * Returns the HTML of the messages of a document, as it is kept when they
+     * are removed.
+     *
+     * @param document the document
+     * @return the HTML of the messages
+     */
+    private static String getMessagesHTML(HTMLDocument document)
+    {
+        return ChatConversationPanel.getHTML(
+            document,
+            document.getElement("messageHeader").getStartOffset(),
+            document.getElement("message1").getEndOffset());
+    }
 }
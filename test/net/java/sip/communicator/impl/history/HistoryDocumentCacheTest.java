@@ -0,0 +1,96 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.w3c.dom.*;
+
+public class HistoryDocumentCacheTest
+    extends TestCase
+{
+    private HistoryDocumentCache cache;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        ConfigurationService configMock
+            = EasyMock.createNiceMock(ConfigurationService.class);
+        EasyMock.expect(configMock.getLong(
+                HistoryDocumentCache.PNAME_CACHE_MAX_SIZE,
+                16 * 1024 * 1024))
+            .andReturn(Long.MAX_VALUE).anyTimes();
+        EasyMock.expect(configMock.getInt(
+                HistoryDocumentCache.PNAME_CACHE_MAX_DOCUMENTS, 128))
+            .andReturn(2).anyTimes();
+        EasyMock.replay(configMock);
+        this.cache = new HistoryDocumentCache(configMock);
+    }
+
+    private static Document createDocument()
+        throws ParserConfigurationException
+    {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .newDocument();
+    }
+
+    //@Test
+    public void testStatistics() throws Exception
+    {
+        Document a = createDocument();
+        this.cache.put(new File("a.xml"), a);
+
+        Assert.assertSame(a, this.cache.get(new File("a.xml")));
+        Assert.assertNull(this.cache.get(new File("b.xml")));
+        Assert.assertEquals(1, this.cache.getHits());
+        Assert.assertEquals(1, this.cache.getMisses());
+        Assert.assertEquals(1, this.cache.getDocumentCount());
+        Assert.assertTrue(this.cache.getSize() > 0);
+
+        this.cache.remove(new File("a.xml"));
+        Assert.assertEquals(0, this.cache.getDocumentCount());
+        Assert.assertEquals(0, this.cache.getSize());
+    }
+
+    //@Test
+    public void testGetMakesMostRecentlyUsed() throws Exception
+    {
+        Document a = createDocument();
+        this.cache.put(new File("a.xml"), a);
+        this.cache.put(new File("b.xml"), createDocument());
+
+        this.cache.get(new File("a.xml"));
+        this.cache.put(new File("c.xml"), createDocument());
+
+        Assert.assertEquals(1, this.cache.getEvictions());
+        Assert.assertSame(a, this.cache.peek(new File("a.xml")));
+        Assert.assertNull(this.cache.peek(new File("b.xml")));
+    }
+
+    //@Test
+    public void testPeekKeepsOrder() throws Exception
+    {
+        Document b = createDocument();
+        this.cache.put(new File("a.xml"), createDocument());
+        this.cache.put(new File("b.xml"), b);
+
+        Assert.assertNotNull(this.cache.peek(new File("a.xml")));
+        this.cache.put(new File("c.xml"), createDocument());
+
+        Assert.assertNull(this.cache.peek(new File("a.xml")));
+        Assert.assertSame(b, this.cache.peek(new File("b.xml")));
+        Assert.assertEquals(0, this.cache.getHits());
+        Assert.assertEquals(0, this.cache.getMisses());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.w3c.dom.*;
+import org.xml.sax.*;
+
+public class HistoryKeywordIndexTest
+    extends TestCase
+{
+    private File directory;
+    private Map<String, Document> documents;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.directory = File.createTempFile("history", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.documents = new TreeMap<String, Document>();
+        this.documents.put("a.xml", parse("Hello World", "good morning"));
+        this.documents.put("b.xml", parse("hello again"));
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        for (File file : this.directory.listFiles())
+        {
+            file.delete();
+        }
+        this.directory.delete();
+        super.tearDown();
+    }
+
+    private static Document parse(String... messages) throws Exception
+    {
+        StringBuilder xml = new StringBuilder("<history>");
+        for (String message : messages)
+        {
+            xml.append("<record><msg>").append(message)
+                .append("</msg><dir>incoming</dir></record>");
+        }
+        xml.append("</history>");
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new InputSource(new StringReader(xml.toString())));
+    }
+
+    /**
+     * Creates a history mock with the test documents, which fails if a
+     * document is loaded while <tt>load</tt> is <tt>false</tt>.
+     */
+    private HistoryImpl createHistory(boolean load)
+    {
+        HistoryImpl history = EasyMock.createMock(HistoryImpl.class);
+        EasyMock.expect(history.getFileList()).andStubAnswer(
+            new IAnswer<Iterator<String>>()
+            {
+                public Iterator<String> answer()
+                {
+                    return documents.keySet().iterator();
+                }
+            });
+        EasyMock.expect(
+            history.getDocumentLength(EasyMock.anyObject(String.class)))
+            .andStubAnswer(new IAnswer<Long>()
+            {
+                public Long answer()
+                {
+                    String filename
+                        = (String) EasyMock.getCurrentArguments()[0];
+                    return (long) documents.get(filename)
+                        .getElementsByTagName("record").getLength();
+                }
+            });
+        if (load)
+        {
+            EasyMock.expect(
+                history.loadDocument(EasyMock.anyObject(String.class)))
+                .andStubAnswer(new IAnswer<Document>()
+                {
+                    public Document answer()
+                    {
+                        return documents.get(
+                            EasyMock.getCurrentArguments()[0]);
+                    }
+                });
+        }
+        EasyMock.replay(history);
+        return history;
+    }
+
+    private static BitSet positions(int... positions)
+    {
+        BitSet result = new BitSet();
+        for (int position : positions)
+        {
+            result.set(position);
+        }
+        return result;
+    }
+
+    //@Test
+    public void testFind()
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(createHistory(true), this.directory);
+
+        Map<String, BitSet> result
+            = index.find("msg", new String[] { "HELLO" });
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(positions(0), result.get("a.xml"));
+        Assert.assertEquals(positions(0), result.get("b.xml"));
+
+        result = index.find("msg", new String[] { "morn", "good" });
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(positions(1), result.get("a.xml"));
+        index.close();
+    }
+
+    //@Test
+    public void testFindMissingKeyword()
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(createHistory(true), this.directory);
+
+        Assert.assertTrue(
+            index.find("msg", new String[] { "evening" }).isEmpty());
+        // the keyword is in another field
+        Assert.assertTrue(
+            index.find("msg", new String[] { "incoming" }).isEmpty());
+        index.close();
+    }
+
+    //@Test
+    public void testShortKeywords()
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(createHistory(true), this.directory);
+
+        Assert.assertNull(index.find("msg", new String[] { "he", null }));
+        index.close();
+    }
+
+    //@Test
+    public void testRecordAppended() throws Exception
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(createHistory(true), this.directory);
+        index.find("msg", new String[] { "hello" });
+
+        Document added = parse("hello there");
+        index.recordAppended("b.xml", 1,
+            (Element) added.getElementsByTagName("record").item(0));
+
+        Assert.assertEquals(positions(0, 1),
+            index.find("msg", new String[] { "hello" }).get("b.xml"));
+        index.close();
+    }
+
+    //@Test
+    public void testSavedIndex()
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(createHistory(true), this.directory);
+        index.find("msg", new String[] { "hello" });
+        index.close();
+        Assert.assertTrue(
+            new File(this.directory, HistoryKeywordIndex.INDEX_FILE).exists());
+
+        // no document is loaded again
+        index = new HistoryKeywordIndex(createHistory(false), this.directory);
+        Map<String, BitSet> result
+            = index.find("msg", new String[] { "hello" });
+        Assert.assertEquals(positions(0), result.get("a.xml"));
+        Assert.assertEquals(positions(0), result.get("b.xml"));
+        index.close();
+    }
+
+    //@Test
+    public void testChangedDocumentIndexedAgain() throws Exception
+    {
+        HistoryKeywordIndex index
+            = new HistoryKeywordIndex(createHistory(true), this.directory);
+        index.find("msg", new String[] { "hello" });
+        index.close();
+
+        this.documents.put("b.xml", parse("bye", "bye", "hello"));
+        this.documents.remove("a.xml");
+        index = new HistoryKeywordIndex(createHistory(true), this.directory);
+        Map<String, BitSet> result
+            = index.find("msg", new String[] { "hello" });
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(positions(2), result.get("b.xml"));
+        index.close();
+    }
+}
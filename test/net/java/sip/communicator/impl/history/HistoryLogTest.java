@@ -0,0 +1,181 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+public class HistoryLogTest
+    extends TestCase
+{
+    private static final String[] NAMES = new String[] { "msg" };
+
+    private File directory;
+    private File file;
+    private HistoryLog log;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.directory = File.createTempFile("history", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.file = new File(this.directory, "history.log");
+        this.log = new HistoryLog(this.file, 1);
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        this.log.close();
+        for (File file : this.directory.listFiles())
+        {
+            file.delete();
+        }
+        this.directory.delete();
+        super.tearDown();
+    }
+
+    private static List<String> messages(HistoryLog log)
+        throws IOException
+    {
+        List<String> result = new ArrayList<String>();
+        for (long offset : log.findOffsets(null, null))
+        {
+            HistoryRecord record = log.read(offset);
+            result.add(record.getPropertyValues()[0]);
+        }
+        return result;
+    }
+
+    private static void write(File file, String... messages)
+        throws IOException
+    {
+        HistoryLog log = new HistoryLog(file, 1);
+        for (int i = 0; i < messages.length; i++)
+        {
+            log.append(NAMES, new String[] { messages[i] }, 1000 + i);
+        }
+        log.close();
+    }
+
+    private File sibling(String suffix)
+    {
+        return new File(this.file.getPath() + suffix);
+    }
+
+    //@Test
+    public void testAppendAndRead() throws Exception
+    {
+        this.log.append(NAMES, new String[] { "b" }, 2000);
+        this.log.append(NAMES, new String[] { "a" }, 1000);
+        this.log.append(NAMES, new String[] { "c" }, 3000);
+
+        Assert.assertEquals(3, this.log.size());
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), messages(this.log));
+
+        this.log.close();
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), messages(this.log));
+    }
+
+    //@Test
+    public void testFindOffsets() throws Exception
+    {
+        write(this.file, "a", "b", "c", "d");
+
+        long[] offsets = this.log.findOffsets(new Date(1001), new Date(1003));
+        Assert.assertEquals(2, offsets.length);
+        Assert.assertEquals("b",
+            this.log.read(offsets[0]).getPropertyValues()[0]);
+        Assert.assertEquals("c",
+            this.log.read(offsets[1]).getPropertyValues()[0]);
+    }
+
+    //@Test
+    public void testDelete() throws Exception
+    {
+        write(this.file, "a", "b", "c");
+
+        long[] offsets = this.log.findOffsets(null, null);
+        this.log.delete(offsets[1]);
+        Assert.assertNull(this.log.read(offsets[1]));
+        Assert.assertEquals(Arrays.asList("a", "c"), messages(this.log));
+
+        this.log.close();
+        Assert.assertEquals(Arrays.asList("a", "c"), messages(this.log));
+    }
+
+    //@Test
+    public void testCompact() throws Exception
+    {
+        char[] padding = new char[1024];
+        Arrays.fill(padding, 'x');
+        for (int i = 0; i < 200; i++)
+        {
+            this.log.append(NAMES,
+                new String[] { i + new String(padding) }, 1000 + i);
+        }
+        long[] offsets = this.log.findOffsets(null, null);
+        for (int i = 0; i < 190; i++)
+        {
+            this.log.delete(offsets[i]);
+        }
+        this.log.close();
+        long length = this.file.length();
+
+        // compacted when opened again
+        Assert.assertEquals(10, this.log.size());
+        Assert.assertTrue(this.file.length() < length / 10);
+        Assert.assertFalse(sibling(HistoryLog.TMP_SUFFIX).exists());
+        Assert.assertFalse(sibling(HistoryLog.BACKUP_SUFFIX).exists());
+
+        List<String> messages = messages(this.log);
+        for (int i = 0; i < 10; i++)
+        {
+            Assert.assertTrue(messages.get(i).startsWith((190 + i) + "x"));
+        }
+    }
+
+    //@Test
+    public void testRecoverCompactedLog() throws Exception
+    {
+        // stopped after the log was moved to the backup
+        write(sibling(HistoryLog.BACKUP_SUFFIX), "a", "b", "c");
+        write(sibling(HistoryLog.TMP_SUFFIX), "a", "c");
+
+        Assert.assertEquals(Arrays.asList("a", "c"), messages(this.log));
+        Assert.assertFalse(sibling(HistoryLog.TMP_SUFFIX).exists());
+        Assert.assertFalse(sibling(HistoryLog.BACKUP_SUFFIX).exists());
+    }
+
+    //@Test
+    public void testRecoverBackup() throws Exception
+    {
+        write(sibling(HistoryLog.BACKUP_SUFFIX), "a", "b", "c");
+
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), messages(this.log));
+        Assert.assertFalse(sibling(HistoryLog.BACKUP_SUFFIX).exists());
+    }
+
+    //@Test
+    public void testDiscardIncompleteCopy() throws Exception
+    {
+        // stopped while copying, or after the log was replaced
+        write(this.file, "a", "b", "c");
+        write(sibling(HistoryLog.TMP_SUFFIX), "a");
+        write(sibling(HistoryLog.BACKUP_SUFFIX), "x", "y");
+
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), messages(this.log));
+        Assert.assertFalse(sibling(HistoryLog.TMP_SUFFIX).exists());
+        Assert.assertFalse(sibling(HistoryLog.BACKUP_SUFFIX).exists());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.w3c.dom.*;
+
+public class HistoryTimestampIndexTest
+    extends TestCase
+{
+    private File directory;
+    private HistoryImpl historyMock;
+    private HistoryTimestampIndex index;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.directory = File.createTempFile("history", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+        this.historyMock = EasyMock.createNiceMock(HistoryImpl.class);
+        EasyMock.expect(this.historyMock.getFileList()).andReturn(
+            new ArrayList<String>().iterator()).anyTimes();
+        EasyMock.expect(
+            this.historyMock.getDocumentLength(EasyMock.anyObject(String.class)))
+            .andReturn(0L).anyTimes();
+        EasyMock.replay(this.historyMock);
+        this.index = new HistoryTimestampIndex(this.historyMock, directory);
+
+        // loaded first, as records appended before are not indexed until
+        // the index is loaded
+        this.index.countRecords();
+
+        // two documents with interleaved timestamps
+        for (int i = 0; i < 5; i++)
+        {
+            this.index.recordAppended("a.xml", i, 10 + 20 * i);
+            this.index.recordAppended("b.xml", i, 20 + 20 * i);
+        }
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        this.index.close();
+        for (File file : this.directory.listFiles())
+        {
+            file.delete();
+        }
+        this.directory.delete();
+        super.tearDown();
+    }
+
+    private static List<Long> timestamps(
+        List<HistoryTimestampIndex.Entry> entries)
+    {
+        List<Long> result = new ArrayList<Long>();
+        for (HistoryTimestampIndex.Entry entry : entries)
+        {
+            result.add(entry.timestamp);
+        }
+        return result;
+    }
+
+    //@Test
+    public void testCountRecords()
+    {
+        Assert.assertEquals(10, this.index.countRecords());
+    }
+
+    //@Test
+    public void testFindLast()
+    {
+        Assert.assertEquals(Arrays.asList(80L, 90L, 100L),
+            timestamps(this.index.findLast(null, 3)));
+        Assert.assertEquals(Arrays.asList(40L, 50L),
+            timestamps(this.index.findLast(new Date(60), 2)));
+    }
+
+    //@Test
+    public void testFindFirst()
+    {
+        Assert.assertEquals(Arrays.asList(10L, 20L),
+            timestamps(this.index.findFirst(null, 2)));
+        Assert.assertEquals(Arrays.asList(50L, 60L, 70L),
+            timestamps(this.index.findFirst(new Date(50), 3)));
+    }
+
+    //@Test
+    public void testFindMoreThanAvailable()
+    {
+        Assert.assertEquals(10, this.index.findLast(null, 100).size());
+        Assert.assertEquals(10, this.index.findFirst(null, 100).size());
+    }
+
+    //@Test
+    public void testFindNone()
+    {
+        Assert.assertTrue(this.index.findLast(null, 0).isEmpty());
+        Assert.assertTrue(this.index.findLast(new Date(60), 0).isEmpty());
+        Assert.assertTrue(this.index.findFirst(null, 0).isEmpty());
+        Assert.assertTrue(this.index.findFirst(new Date(50), -1).isEmpty());
+    }
+
+    //@Test
+    public void testFindByPeriod()
+    {
+        Assert.assertEquals(Arrays.asList(30L, 40L, 50L),
+            timestamps(this.index.findByPeriod(new Date(30), new Date(60))));
+    }
+
+    //@Test
+    public void testAppendedBeforeLoaded() throws Exception
+    {
+        this.index.close();
+
+        // the document in memory, its last record is not written yet
+        final Document document = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+        Element root = document.createElement("history");
+        document.appendChild(root);
+        for (long timestamp = 5; timestamp < 30; timestamp += 10)
+        {
+            Element record = document.createElement("record");
+            record.setAttribute("timestamp", Long.toString(timestamp));
+            root.appendChild(record);
+        }
+
+        final AtomicInteger loads = new AtomicInteger();
+        HistoryImpl historyMock = EasyMock.createNiceMock(HistoryImpl.class);
+        EasyMock.expect(historyMock.getFileList()).andStubAnswer(
+            new IAnswer<Iterator<String>>()
+            {
+                public Iterator<String> answer()
+                {
+                    return Arrays.asList("c.xml").iterator();
+                }
+            });
+        EasyMock.expect(historyMock.loadDocument("c.xml")).andStubAnswer(
+            new IAnswer<Document>()
+            {
+                public Document answer()
+                {
+                    loads.incrementAndGet();
+                    return document;
+                }
+            });
+        EasyMock.replay(historyMock);
+        HistoryTimestampIndex index
+            = new HistoryTimestampIndex(historyMock, this.directory);
+
+        // the writer does not load the index
+        index.recordAppended("c.xml", 2, 25);
+        Assert.assertEquals(0, loads.get());
+
+        Assert.assertEquals(Arrays.asList(5L, 15L, 25L),
+            timestamps(index.findLast(null, 10)));
+        Assert.assertEquals(1, loads.get());
+        index.close();
+    }
+}
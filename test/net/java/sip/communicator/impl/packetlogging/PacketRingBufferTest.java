@@ -0,0 +1,220 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import junit.framework.*;
+
+import org.jitsi.service.packetlogging.PacketLoggingService.*;
+
+public class PacketRingBufferTest
+    extends TestCase
+{
+    private static final byte[] ADDRESS = new byte[] { 127, 0, 0, 1 };
+
+    private static boolean offer(PacketRingBuffer ring, int id)
+    {
+        byte[] content = new byte[] { 0, (byte) id, (byte) (id >> 8) };
+        return ring.offer(ProtocolName.SIP, ADDRESS, 5060, ADDRESS, 5061,
+            TransportName.UDP, true, content, 1, 2);
+    }
+
+    private static int take(PacketRingBuffer ring)
+    {
+        PacketRingBuffer.Packet packet = ring.poll();
+        if (packet == null)
+        {
+            return -1;
+        }
+        Assert.assertEquals(2, packet.packetLength);
+        int id = (packet.packetContent[0] & 0xff)
+            | ((packet.packetContent[1] & 0xff) << 8);
+        ring.release(packet);
+        return id;
+    }
+
+    //@Test
+    public void testCapacity()
+    {
+        Assert.assertEquals(8, new PacketRingBuffer(5, false).getCapacity());
+        Assert.assertEquals(8, new PacketRingBuffer(8, false).getCapacity());
+        Assert.assertEquals(1, new PacketRingBuffer(0, false).getCapacity());
+    }
+
+    //@Test
+    public void testOrderAndContent()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(4, false);
+        Assert.assertTrue(ring.isEmpty());
+        Assert.assertNull(ring.poll());
+
+        byte[] content = new byte[] { 1, 2, 3 };
+        Assert.assertTrue(ring.offer(ProtocolName.RTP, ADDRESS, 1000,
+            ADDRESS, 2000, TransportName.TCP, false, content, 0, 3));
+        // the ring holds a copy
+        content[0] = 9;
+        Assert.assertFalse(ring.isEmpty());
+
+        PacketRingBuffer.Packet packet = ring.poll();
+        Assert.assertEquals(ProtocolName.RTP, packet.protocol);
+        Assert.assertEquals(1000, packet.sourcePort);
+        Assert.assertEquals(2000, packet.destinationPort);
+        Assert.assertEquals(TransportName.TCP, packet.transport);
+        Assert.assertFalse(packet.sender);
+        Assert.assertEquals(3, packet.packetLength);
+        Assert.assertEquals(1, packet.packetContent[0]);
+        ring.release(packet);
+        Assert.assertTrue(ring.isEmpty());
+
+        for (int i = 0; i < 10; i++)
+        {
+            Assert.assertTrue(offer(ring, i));
+            Assert.assertTrue(offer(ring, 100 + i));
+            Assert.assertEquals(i, take(ring));
+            Assert.assertEquals(100 + i, take(ring));
+        }
+        Assert.assertEquals(0, ring.getDroppedCount());
+    }
+
+    //@Test
+    public void testLargeContent()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(2, false);
+        byte[] content = new byte[10000];
+        content[9999] = 7;
+
+        Assert.assertTrue(ring.offer(ProtocolName.SIP, ADDRESS, 1, ADDRESS, 2,
+            TransportName.UDP, true, content, 0, content.length));
+        PacketRingBuffer.Packet packet = ring.poll();
+        Assert.assertEquals(content.length, packet.packetLength);
+        Assert.assertEquals(7, packet.packetContent[9999]);
+    }
+
+    //@Test
+    public void testDropNewest()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(4, false);
+        for (int i = 0; i < 4; i++)
+        {
+            Assert.assertTrue(offer(ring, i));
+        }
+        Assert.assertFalse(offer(ring, 4));
+        Assert.assertEquals(1, ring.getDroppedCount());
+
+        for (int i = 0; i < 4; i++)
+        {
+            Assert.assertEquals(i, take(ring));
+        }
+        Assert.assertEquals(-1, take(ring));
+    }
+
+    //@Test
+    public void testDropOldest()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(4, true);
+        for (int i = 0; i < 6; i++)
+        {
+            Assert.assertTrue(offer(ring, i));
+        }
+        Assert.assertEquals(2, ring.getDroppedCount());
+
+        for (int i = 2; i < 6; i++)
+        {
+            Assert.assertEquals(i, take(ring));
+        }
+        Assert.assertEquals(-1, take(ring));
+    }
+
+    //@Test
+    public void testDropNewestWhileOldestIsSaved()
+    {
+        PacketRingBuffer ring = new PacketRingBuffer(2, true);
+        Assert.assertTrue(offer(ring, 0));
+        Assert.assertTrue(offer(ring, 1));
+
+        // the saver holds the slot of the oldest packet
+        PacketRingBuffer.Packet saved = ring.poll();
+        Assert.assertTrue(offer(ring, 2) == false);
+        ring.release(saved);
+
+        Assert.assertEquals(1, take(ring));
+        Assert.assertTrue(offer(ring, 3));
+        Assert.assertEquals(3, take(ring));
+    }
+
+    //@Test
+    public void testConcurrentOffers() throws Exception
+    {
+        concurrentOffers(false);
+    }
+
+    //@Test
+    public void testConcurrentOffersDropOldest() throws Exception
+    {
+        concurrentOffers(true);
+    }
+
+    private void concurrentOffers(boolean dropOldest) throws Exception
+    {
+        final PacketRingBuffer ring = new PacketRingBuffer(64, dropOldest);
+        final int threadCount = 4;
+        final int packetCount = 10000;
+        final AtomicInteger offered = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int thread = t;
+            Thread producer = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < packetCount; i++)
+                    {
+                        if (offer(ring, thread * packetCount + i))
+                            offered.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(producer);
+            producer.start();
+        }
+
+        BitSet received = new BitSet();
+        int[] last = new int[threadCount];
+        Arrays.fill(last, -1);
+        boolean running = true;
+        while (running || !ring.isEmpty())
+        {
+            running = false;
+            for (Thread producer : threads)
+            {
+                running |= producer.isAlive();
+            }
+
+            int id;
+            while ((id = take(ring)) >= 0)
+            {
+                Assert.assertFalse(received.get(id));
+                received.set(id);
+                // the packets of a thread keep their order
+                Assert.assertTrue(id > last[id / packetCount]);
+                last[id / packetCount] = id;
+            }
+        }
+
+        if (!dropOldest)
+        {
+            Assert.assertEquals(offered.get(), received.cardinality());
+        }
+        Assert.assertEquals(threadCount * packetCount,
+            received.cardinality() + ring.getDroppedCount());
+    }
+}
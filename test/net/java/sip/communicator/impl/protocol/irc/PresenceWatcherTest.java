@@ -0,0 +1,167 @@
+package net.java.sip.communicator.impl.protocol.irc;
+
+import java.util.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+
+import com.ircclouds.irc.api.*;
+import com.ircclouds.irc.api.domain.*;
+import com.ircclouds.irc.api.domain.messages.*;
+import com.ircclouds.irc.api.listeners.*;
+import com.ircclouds.irc.api.state.*;
+
+public class PresenceWatcherTest
+    extends TestCase
+{
+    private IRCApi ircMock;
+    private IIRCState stateMock;
+    private OperationSetPersistentPresenceIrcImpl presenceMock;
+    private Capture<IMessageListener> listener;
+    private Capture<String> lines;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.ircMock = EasyMock.createMock(IRCApi.class);
+        this.stateMock = EasyMock.createMock(IIRCState.class);
+        this.presenceMock =
+            EasyMock.createMock(OperationSetPersistentPresenceIrcImpl.class);
+        this.listener = new Capture<IMessageListener>();
+        this.lines = new Capture<String>(CaptureType.ALL);
+        this.ircMock.addListener(EasyMock.capture(this.listener));
+        this.ircMock.rawMessage(EasyMock.capture(this.lines));
+        EasyMock.expectLastCall().anyTimes();
+        this.ircMock.deleteListener(EasyMock.anyObject(IMessageListener.class));
+        EasyMock.expectLastCall().anyTimes();
+    }
+
+    private PresenceWatcher createWatcher(String key, String value)
+    {
+        Properties properties = new Properties();
+        if (key != null)
+        {
+            properties.put(key, value);
+        }
+        EasyMock.expect(this.stateMock.getServerOptions())
+            .andReturn(new IRCServerOptions(properties)).anyTimes();
+        EasyMock.replay(this.ircMock, this.stateMock, this.presenceMock);
+        return new PresenceWatcher(this.ircMock, this.stateMock,
+            this.presenceMock);
+    }
+
+    private void reply(int code, String text)
+    {
+        ((VariousMessageListenerAdapter) this.listener.getValue())
+            .onServerNumericMessage(new ServerNumericMessage(code, "me", text,
+                new IRCServer("irc.example.org")));
+    }
+
+    //@Test
+    public void testIsonPolling()
+    {
+        EasyMock.expect(this.presenceMock.getContactNicks()).andReturn(
+            Arrays.asList("alice", "bob"));
+        EasyMock.expect(
+            this.presenceMock.updateNickContactPresence("alice",
+                true)).andReturn(true);
+        EasyMock.expect(
+            this.presenceMock.updateNickContactPresence("bob",
+                false)).andReturn(true);
+        PresenceWatcher watcher = createWatcher(null, null);
+        watcher.cycle();
+        watcher.stop();
+        Assert.assertEquals(1, this.lines.getValues().size());
+        String line = this.lines.getValue();
+        Assert.assertTrue(line.equals("ISON alice bob")
+            || line.equals("ISON bob alice"));
+        reply(303, ":Alice");
+        EasyMock.verify(this.presenceMock);
+    }
+
+    //@Test
+    public void testIsonPacksManyNicks()
+    {
+        List<String> nicks = new ArrayList<String>();
+        for (int i = 0; i < 300; i++)
+        {
+            nicks.add("contact" + i);
+        }
+        EasyMock.expect(this.presenceMock.getContactNicks()).andReturn(nicks);
+        PresenceWatcher watcher = createWatcher(null, null);
+        watcher.cycle();
+        watcher.stop();
+        Set<String> polled = new HashSet<String>();
+        for (String line : this.lines.getValues())
+        {
+            Assert.assertTrue(line.startsWith("ISON "));
+            Assert.assertTrue(line.length() <= PresenceWatcher.MAX_LINE_LENGTH);
+            polled.addAll(Arrays.asList(line.substring(5).split(" ")));
+        }
+        Assert.assertEquals(new HashSet<String>(nicks), polled);
+        Assert.assertTrue(this.lines.getValues().size() <= 10);
+    }
+
+    //@Test
+    public void testMonitor()
+    {
+        EasyMock.expect(this.presenceMock.getContactNicks()).andReturn(
+            Arrays.asList("alice", "bob"));
+        EasyMock.expect(
+            this.presenceMock.updateNickContactPresence("alice",
+                true)).andReturn(true);
+        EasyMock.expect(
+            this.presenceMock.updateNickContactPresence("bob",
+                false)).andReturn(true);
+        PresenceWatcher watcher = createWatcher("MONITOR", "100");
+        watcher.cycle();
+        watcher.stop();
+        Assert.assertEquals(1, this.lines.getValues().size());
+        Assert.assertTrue(this.lines.getValue().startsWith("MONITOR + "));
+        reply(730, ":alice!alice@example.org");
+        reply(731, ":bob");
+        EasyMock.verify(this.presenceMock);
+    }
+
+    //@Test
+    public void testWatch()
+    {
+        EasyMock.expect(this.presenceMock.getContactNicks()).andReturn(
+            Arrays.asList("alice"));
+        EasyMock.expect(
+            this.presenceMock.updateNickContactPresence("alice",
+                false)).andReturn(true);
+        PresenceWatcher watcher = createWatcher("WATCH", "128");
+        watcher.cycle();
+        watcher.stop();
+        Assert.assertEquals(Arrays.asList("WATCH +alice"),
+            this.lines.getValues());
+        reply(605, "alice * * 0 :is offline");
+        EasyMock.verify(this.presenceMock);
+    }
+
+    //@Test
+    public void testMonitorListFullFallsBackToIson()
+    {
+        EasyMock.expect(this.presenceMock.getContactNicks()).andReturn(
+            Arrays.asList("alice", "bob")).times(2);
+        PresenceWatcher watcher = createWatcher("MONITOR", "1");
+        watcher.cycle();
+        Assert.assertEquals(2, this.lines.getValues().size());
+        Assert.assertTrue(this.lines.getValues().get(0)
+            .startsWith("MONITOR + "));
+        Assert.assertTrue(this.lines.getValues().get(1).startsWith("ISON "));
+        String monitored =
+            this.lines.getValues().get(0).substring("MONITOR + ".length());
+        reply(734, "1 " + monitored + " :Monitor list is full.");
+        this.lines.reset();
+        watcher.cycle();
+        watcher.stop();
+        Assert.assertEquals(1, this.lines.getValues().size());
+        String line = this.lines.getValue();
+        Assert.assertTrue(line.equals("ISON alice bob")
+            || line.equals("ISON bob alice"));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.jitsi.service.fileaccess.*;
+import org.osgi.framework.*;
+
+public class AvatarCacheUtilsTest
+    extends TestCase
+{
+    private static final String REFERENCED
+        = "0123456789abcdef0123456789abcdef01234567";
+
+    private static final String UNREFERENCED
+        = "89abcdef0123456789abcdef0123456789abcdef";
+
+    private File directory;
+
+    //@before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.directory = File.createTempFile("avatars", "");
+        this.directory.delete();
+        this.directory.mkdirs();
+
+        // the files of the cache are in the temporary directory
+        final File root = this.directory;
+        FileAccessService fileAccessMock
+            = EasyMock.createMock(FileAccessService.class);
+        EasyMock.expect(fileAccessMock.getPrivatePersistentFile(
+                EasyMock.anyObject(String.class),
+                EasyMock.anyObject(FileCategory.class)))
+            .andStubAnswer(new IAnswer<File>()
+            {
+                public File answer()
+                {
+                    return new File(root,
+                        (String) EasyMock.getCurrentArguments()[0]);
+                }
+            });
+        ServiceReference<FileAccessService> referenceMock
+            = EasyMock.createMock(ServiceReference.class);
+        BundleContext contextMock = EasyMock.createMock(BundleContext.class);
+        EasyMock.expect(
+            contextMock.getServiceReference(FileAccessService.class))
+            .andStubReturn(referenceMock);
+        EasyMock.expect(contextMock.getService(referenceMock))
+            .andStubReturn(fileAccessMock);
+        EasyMock.replay(fileAccessMock, referenceMock, contextMock);
+        UtilActivator.bundleContext = contextMock;
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        delete(this.directory);
+        super.tearDown();
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (File child : files)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File write(String path, byte[] bs)
+        throws IOException
+    {
+        File file = new File(this.directory, path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(bs);
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    //@Test
+    public void testRemoveUnreferencedImages() throws Exception
+    {
+        write("avatarcache/account/alice", ("sha1:" + REFERENCED).getBytes());
+        // stored by previous versions, refers to no image file
+        write("avatarcache/account/bob", new byte[] { 1, 2, 3 });
+        File referenced
+            = write("avatarcache/images/" + REFERENCED, new byte[] { 4 });
+        File unreferenced
+            = write("avatarcache/images/" + UNREFERENCED, new byte[] { 5 });
+        File tmp = write("avatarcache/images/" + UNREFERENCED + ".tmp",
+            new byte[] { 6 });
+
+        AvatarCacheUtils.removeUnreferencedImages();
+
+        Assert.assertTrue(referenced.exists());
+        Assert.assertFalse(unreferenced.exists());
+        Assert.assertFalse(tmp.exists());
+        Assert.assertTrue(
+            new File(this.directory, "avatarcache/account/bob").exists());
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+import org.xbill.DNS.*;
+
+public class DnsRecordCacheTest
+    extends TestCase
+{
+    private Resolver defaultResolver;
+    private FakeResolver resolver;
+    private DnsRecordCache cache;
+
+    //@before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        super.setUp();
+
+        // the lookups read their options from the configuration
+        ConfigurationService configMock
+            = EasyMock.createMock(ConfigurationService.class);
+        EasyMock.expect(configMock.getBoolean(EasyMock.anyObject(String.class),
+            EasyMock.anyBoolean())).andStubAnswer(new IAnswer<Boolean>()
+            {
+                public Boolean answer()
+                {
+                    return (Boolean) EasyMock.getCurrentArguments()[1];
+                }
+            });
+        ServiceReference<ConfigurationService> referenceMock
+            = EasyMock.createMock(ServiceReference.class);
+        BundleContext contextMock = EasyMock.createMock(BundleContext.class);
+        EasyMock.expect(
+            contextMock.getServiceReference(ConfigurationService.class))
+            .andStubReturn(referenceMock);
+        EasyMock.expect(contextMock.getService(referenceMock))
+            .andStubReturn(configMock);
+        EasyMock.replay(configMock, referenceMock, contextMock);
+        UtilActivator.bundleContext = contextMock;
+
+        // no answer is cached by dnsjava
+        Cache dnsjavaCache = new Cache();
+        dnsjavaCache.setMaxCache(0);
+        dnsjavaCache.setMaxNCache(0);
+        Lookup.setDefaultCache(dnsjavaCache, DClass.IN);
+
+        this.defaultResolver = Lookup.getDefaultResolver();
+        this.resolver = new FakeResolver();
+        Lookup.setDefaultResolver(this.resolver);
+        this.cache = new DnsRecordCache();
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        Lookup.setDefaultResolver(this.defaultResolver);
+        Lookup.setDefaultCache(new Cache(), DClass.IN);
+        super.tearDown();
+    }
+
+    private static void waitFor(Callable<Boolean> condition) throws Exception
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.call())
+        {
+            Assert.assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    //@Test
+    public void testHit() throws Exception
+    {
+        this.resolver.addresses.put("host.example.com.", 300L);
+
+        Record[] records = this.cache.lookup("host.example.com.", Type.A);
+        Assert.assertEquals(1, records.length);
+        Assert.assertSame(records,
+            this.cache.lookup("HOST.example.com.", Type.A));
+
+        Assert.assertEquals(1, this.resolver.queries.get());
+        Assert.assertEquals(1, this.cache.getMissCount());
+        Assert.assertEquals(1, this.cache.getHitCount());
+    }
+
+    //@Test
+    public void testNegativeHit() throws Exception
+    {
+        Assert.assertNull(this.cache.lookup("none.example.com.", Type.A));
+        Assert.assertNull(this.cache.lookup("none.example.com.", Type.A));
+
+        Assert.assertEquals(1, this.resolver.queries.get());
+        Assert.assertEquals(1, this.cache.getNegativeHitCount());
+    }
+
+    //@Test
+    public void testFailureNotCached() throws Exception
+    {
+        this.resolver.failing = true;
+        Assert.assertNull(this.cache.lookup("host.example.com.", Type.A));
+
+        this.resolver.failing = false;
+        this.resolver.addresses.put("host.example.com.", 300L);
+        Assert.assertNotNull(this.cache.lookup("host.example.com.", Type.A));
+        Assert.assertEquals(2, this.cache.getMissCount());
+    }
+
+    //@Test
+    public void testClear() throws Exception
+    {
+        this.resolver.addresses.put("host.example.com.", 300L);
+        this.cache.lookup("host.example.com.", Type.A);
+        this.cache.clear();
+        this.cache.lookup("host.example.com.", Type.A);
+
+        Assert.assertEquals(2, this.resolver.queries.get());
+        Assert.assertEquals(2, this.cache.getMissCount());
+    }
+
+    //@Test
+    public void testClearDiscardsPendingQuery() throws Exception
+    {
+        this.resolver.addresses.put("host.example.com.", 300L);
+        this.resolver.latch = new CountDownLatch(1);
+        this.cache.prefetch("host.example.com.", Type.A);
+        waitFor(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return resolver.queries.get() == 1;
+            }
+        });
+
+        // the answer of the query made before is not cached
+        this.cache.clear();
+        this.resolver.latch.countDown();
+        this.resolver.latch = null;
+        Thread.sleep(100);
+        this.cache.lookup("host.example.com.", Type.A);
+
+        Assert.assertEquals(2, this.resolver.queries.get());
+        Assert.assertEquals(1, this.cache.getMissCount());
+        Assert.assertEquals(0, this.cache.getCoalescedCount());
+    }
+
+    //@Test
+    public void testCoalescedLookups() throws Exception
+    {
+        this.resolver.addresses.put("host.example.com.", 300L);
+        this.resolver.latch = new CountDownLatch(1);
+
+        final List<Record[]> results
+            = Collections.synchronizedList(new ArrayList<Record[]>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++)
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        results.add(
+                            cache.lookup("host.example.com.", Type.A));
+                    }
+                    catch (TextParseException e)
+                    {
+                        results.add(null);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        waitFor(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return cache.getCoalescedCount() == 1;
+            }
+        });
+        this.resolver.latch.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        Assert.assertEquals(1, this.resolver.queries.get());
+        Assert.assertEquals(2, results.size());
+        Assert.assertNotNull(results.get(0));
+        Assert.assertSame(results.get(0), results.get(1));
+    }
+
+    //@Test
+    public void testPrefetch() throws Exception
+    {
+        this.resolver.addresses.put("host.example.com.", 300L);
+        this.cache.prefetch("host.example.com.", Type.A);
+
+        // answered by the prefetch, once it is done or by waiting for it
+        Assert.assertNotNull(this.cache.lookup("host.example.com.", Type.A));
+        Assert.assertEquals(1, this.resolver.queries.get());
+    }
+
+    //@Test
+    public void testRefreshAhead() throws Exception
+    {
+        this.resolver.addresses.put("host.example.com.", 1L);
+        this.cache.lookup("host.example.com.", Type.A);
+
+        Thread.sleep((long) (1000 * DnsRecordCache.REFRESH_AHEAD_RATIO) + 50);
+        Assert.assertNotNull(this.cache.lookup("host.example.com.", Type.A));
+        Assert.assertEquals(1, this.cache.getHitCount());
+
+        waitFor(new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                return resolver.queries.get() == 2;
+            }
+        });
+    }
+
+    /**
+     * Answers the queries of A records from a map of names to TTLs.
+     */
+    private static class FakeResolver
+        implements Resolver
+    {
+        final Map<String, Long> addresses
+            = new ConcurrentHashMap<String, Long>();
+
+        final AtomicInteger queries = new AtomicInteger();
+
+        volatile boolean failing = false;
+
+        volatile CountDownLatch latch = null;
+
+        public Message send(Message query)
+            throws IOException
+        {
+            queries.incrementAndGet();
+            if (latch != null)
+            {
+                try
+                {
+                    latch.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            Record question = query.getQuestion();
+            Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flags.QR);
+            response.addRecord(question, Section.QUESTION);
+
+            Long ttl = addresses.get(question.getName().toString());
+            if (failing)
+            {
+                response.getHeader().setRcode(Rcode.SERVFAIL);
+            }
+            else if (ttl == null)
+            {
+                response.getHeader().setRcode(Rcode.NXDOMAIN);
+            }
+            else
+            {
+                response.addRecord(new ARecord(question.getName(),
+                    DClass.IN, ttl, InetAddress.getByAddress(
+                        new byte[] { (byte) 192, 0, 2, 1 })), Section.ANSWER);
+            }
+            return response;
+        }
+
+        public Object sendAsync(Message query, ResolverListener listener)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setPort(int port) {}
+
+        public void setTCP(boolean flag) {}
+
+        public void setIgnoreTruncation(boolean flag) {}
+
+        public void setEDNS(int level) {}
+
+        @SuppressWarnings("rawtypes")
+        public void setEDNS(int level, int payloadSize, int flags,
+            List options) {}
+
+        public void setTSIGKey(TSIG key) {}
+
+        public void setTimeout(int secs, int msecs) {}
+
+        public void setTimeout(int secs) {}
+    }
+}